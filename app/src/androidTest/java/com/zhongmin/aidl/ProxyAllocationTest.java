@@ -0,0 +1,162 @@
+package com.zhongmin.aidl;
+
+import android.os.Debug;
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.Parcel;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.FileDescriptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * MyAidlProxy 热点方法的分配测试，需要在设备上运行（真实的Parcel和ART的分配计数）
+ *
+ * 服务端是直接写回复的替身Binder，只统计客户端代理自身的分配。
+ */
+@RunWith(AndroidJUnit4.class)
+public class ProxyAllocationTest {
+    
+    private static final int WARMUP_CALLS = 1_000;
+    private static final int MEASURED_CALLS = 10_000;
+    
+    @Test
+    public void add_allocatesNothingInSteadyState() throws Exception {
+        IMyAidlInterface proxy = MyAidlStub.asInterface(new ReplyBinder());
+        for (int i = 0; i < WARMUP_CALLS; i++) {
+            proxy.add(i, 1);
+        }
+        int allocations = countAllocations(() -> {
+            for (int i = 0; i < MEASURED_CALLS; i++) {
+                proxy.add(i, 1);
+            }
+        });
+        assertEquals(0, allocations);
+    }
+    
+    @Test
+    public void getPidAndServiceName_allocateNothingInSteadyState() throws Exception {
+        ReplyBinder binder = new ReplyBinder();
+        IMyAidlInterface proxy = MyAidlStub.asInterface(binder);
+        proxy.getServiceName();
+        for (int i = 0; i < WARMUP_CALLS; i++) {
+            proxy.getPid();
+        }
+        int allocations = countAllocations(() -> {
+            for (int i = 0; i < MEASURED_CALLS; i++) {
+                proxy.getPid();
+                proxy.getServiceName();
+            }
+        });
+        assertEquals(0, allocations);
+        // 服务名只跨进程获取一次
+        assertEquals(1, binder.mServiceNameCalls);
+    }
+    
+    @Test
+    public void asInterface_returnsCachedProxyPerBinderAndLane() {
+        ReplyBinder binder = new ReplyBinder();
+        IMyAidlInterface interactive = MyAidlStub.asInterface(binder);
+        assertSame(interactive, MyAidlStub.asInterface(binder));
+        IMyAidlInterface bulk = MyAidlStub.asInterface(binder, IMyAidlInterface.LANE_BULK);
+        assertNotSame(interactive, bulk);
+        assertSame(bulk, MyAidlStub.asInterface(binder, IMyAidlInterface.LANE_BULK));
+        assertNotSame(interactive, MyAidlStub.asInterface(new ReplyBinder()));
+    }
+    
+    private interface Calls {
+        void run() throws Exception;
+    }
+    
+    /**
+     * 统计当前线程执行期间分配的对象数
+     */
+    @SuppressWarnings("deprecation")
+    private static int countAllocations(Calls calls) throws Exception {
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            calls.run();
+            return Debug.getThreadAllocCount();
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+    
+    /**
+     * 替身服务：按事务码直接写回复，不分配对象
+     */
+    private static final class ReplyBinder implements IBinder {
+        int mServiceNameCalls;
+        
+        @Override
+        public String getInterfaceDescriptor() {
+            return IMyAidlInterface.DESCRIPTOR;
+        }
+        
+        @Override
+        public boolean pingBinder() {
+            return true;
+        }
+        
+        @Override
+        public boolean isBinderAlive() {
+            return true;
+        }
+        
+        @Override
+        public IInterface queryLocalInterface(String descriptor) {
+            return null;
+        }
+        
+        @Override
+        public void dump(FileDescriptor fd, String[] args) {
+        }
+        
+        @Override
+        public void dumpAsync(FileDescriptor fd, String[] args) {
+        }
+        
+        @Override
+        public boolean transact(int code, Parcel data, Parcel reply, int flags) {
+            switch (code & ~IMyAidlInterface.FLAG_BULK_LANE) {
+                case IMyAidlInterface.TRANSACTION_getPid:
+                    reply.writeNoException();
+                    reply.writeInt(42);
+                    break;
+                case IMyAidlInterface.TRANSACTION_add:
+                    data.setDataPosition(data.dataSize() - 8);
+                    int a = data.readInt();
+                    int b = data.readInt();
+                    reply.writeNoException();
+                    reply.writeInt(a + b);
+                    break;
+                case IMyAidlInterface.TRANSACTION_getServiceName:
+                    mServiceNameCalls++;
+                    reply.writeNoException();
+                    reply.writeString("ReplyBinder");
+                    break;
+                default:
+                    return false;
+            }
+            reply.setDataPosition(0);
+            return true;
+        }
+        
+        @Override
+        public void linkToDeath(DeathRecipient recipient, int flags) {
+        }
+        
+        @Override
+        public boolean unlinkToDeath(DeathRecipient recipient, int flags) {
+            return true;
+        }
+    }
+}
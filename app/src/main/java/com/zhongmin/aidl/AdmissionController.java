@@ -0,0 +1,383 @@
+package com.zhongmin.aidl;
+
+import android.os.IBinder;
+import android.os.SystemClock;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * 准入控制
+ *
+ * 在 MyAidlStub.onTransact 最前面执行，防止单个客户端占满所有Binder线程：
+ * 1. 每个事务码的并发上限，超过时直接拒绝
+ * 2. 每个调用方（uid + pid）一个令牌桶，按调用方哈希到分段锁上，不同调用方之间基本没有竞争
+ *
+ * 被拒绝的调用立即返回 ServiceSpecificException(IMyAidlInterface.ERROR_BUSY)，客户端可以稍后重试。
+ * 所有限制都可以在运行时修改：set*() 设置代码中的默认值，override*() 是通过dumpsys的临时调整，
+ * 覆盖默认值直到 clearOverrides()。
+ *
+ * 只有覆盖值和累计计数参与 WarmSnapshot：通过dumpsys调整过的限制在服务进程重启后仍然有效，
+ * 没有调整过的限制总是使用代码中的默认值，升级后新的默认值立即生效。
+ * 累计计数作为统计写入，每次调用都会变化，不会让定时保存每次都重写快照。
+ */
+public class AdmissionController implements WarmSnapshot.Participant {
+    
+    /**
+     * acquire() 的返回值：准入成功
+     */
+    public static final long ADMITTED = 0;
+    
+    /**
+     * 并发超限时建议的重试间隔
+     */
+    private static final long CONCURRENCY_RETRY_MS = 10;
+    
+    /**
+     * 需要跟踪并发数的事务码数量（从 FIRST_CALL_TRANSACTION 开始）
+     */
+    private static final int MAX_CODES = 64;
+    
+    /**
+     * 令牌桶分段数，必须是2的幂
+     */
+    private static final int STRIPES = 32;
+    
+    /**
+     * 每个分段保留的令牌桶数量上限，超过后清理已经回满的桶
+     */
+    private static final int MAX_BUCKETS_PER_STRIPE = 64;
+    
+    private final Stripe[] mStripes = new Stripe[STRIPES];
+    
+    /**
+     * 令牌桶的时钟，纳秒
+     */
+    private final LongSupplier mClock;
+    private final AtomicIntegerArray mInFlight = new AtomicIntegerArray(MAX_CODES);
+    private final AtomicIntegerArray mConcurrencyLimits = new AtomicIntegerArray(MAX_CODES);
+    
+    private volatile double mTokensPerNano;
+    private volatile double mBurst;
+    
+    /**
+     * 默认值和覆盖标记，受 this 保护；第i位表示事务码 FIRST_CALL_TRANSACTION + i 的并发上限被覆盖
+     */
+    private final int[] mDefaultLimits = new int[MAX_CODES];
+    private double mDefaultRate;
+    private int mDefaultBurst;
+    private boolean mRateOverridden;
+    private long mOverriddenCodes;
+    
+    private final AtomicLong mAdmitted = new AtomicLong();
+    private final AtomicLong mRejectedByRate = new AtomicLong();
+    private final AtomicLong mRejectedByConcurrency = new AtomicLong();
+    
+    /**
+     * @param ratePerSecond 每个调用方每秒允许的调用数，<=0 表示不限速
+     * @param burst 每个调用方允许的突发调用数
+     */
+    public AdmissionController(double ratePerSecond, int burst) {
+        this(ratePerSecond, burst, SystemClock::elapsedRealtimeNanos);
+    }
+    
+    /**
+     * @param clock 令牌桶使用的时钟（纳秒），测试时替换
+     */
+    AdmissionController(double ratePerSecond, int burst, LongSupplier clock) {
+        mClock = clock;
+        for (int i = 0; i < STRIPES; i++) {
+            mStripes[i] = new Stripe();
+        }
+        setRateLimit(ratePerSecond, burst);
+    }
+    
+    /**
+     * 修改每个调用方的默认速率限制，没有被覆盖时立即生效
+     *
+     * @param ratePerSecond 每秒允许的调用数，<=0 表示不限速
+     * @param burst 允许的突发调用数
+     */
+    public synchronized void setRateLimit(double ratePerSecond, int burst) {
+        mDefaultRate = ratePerSecond;
+        mDefaultBurst = burst;
+        if (!mRateOverridden) {
+            applyRateLimit(ratePerSecond, burst);
+        }
+    }
+    
+    /**
+     * 覆盖速率限制，立即生效并保存在快照中
+     */
+    public synchronized void overrideRateLimit(double ratePerSecond, int burst) {
+        mRateOverridden = true;
+        applyRateLimit(ratePerSecond, burst);
+    }
+    
+    /**
+     * 修改某个事务码的默认并发上限，没有被覆盖时立即生效
+     *
+     * @param code 事务码
+     * @param limit 最大并发数，<=0 表示不限制
+     */
+    public synchronized void setConcurrencyLimit(int code, int limit) {
+        int index = checkedIndexOf(code);
+        mDefaultLimits[index] = limit;
+        if ((mOverriddenCodes & (1L << index)) == 0) {
+            mConcurrencyLimits.set(index, limit);
+        }
+    }
+    
+    /**
+     * 覆盖某个事务码的并发上限，立即生效并保存在快照中
+     */
+    public synchronized void overrideConcurrencyLimit(int code, int limit) {
+        int index = checkedIndexOf(code);
+        mOverriddenCodes |= 1L << index;
+        mConcurrencyLimits.set(index, limit);
+    }
+    
+    /**
+     * 丢弃所有覆盖值，回到默认值
+     */
+    public synchronized void clearOverrides() {
+        mRateOverridden = false;
+        mOverriddenCodes = 0;
+        applyRateLimit(mDefaultRate, mDefaultBurst);
+        for (int i = 0; i < MAX_CODES; i++) {
+            mConcurrencyLimits.set(i, mDefaultLimits[i]);
+        }
+    }
+    
+    /**
+     * 尝试准入
+     * 成功时必须在调用结束后调用 release(code)
+     *
+     * @return ADMITTED 表示准入成功，否则是建议的重试间隔（毫秒）
+     */
+    public long acquire(int code, int uid, int pid) {
+        int index = indexOf(code);
+        if (index >= 0) {
+            int limit = mConcurrencyLimits.get(index);
+            int inFlight = mInFlight.incrementAndGet(index);
+            if (limit > 0 && inFlight > limit) {
+                mInFlight.decrementAndGet(index);
+                mRejectedByConcurrency.incrementAndGet();
+                return CONCURRENCY_RETRY_MS;
+            }
+        }
+        
+        double tokensPerNano = mTokensPerNano;
+        if (tokensPerNano > 0) {
+            long caller = ((long) uid << 32) | (pid & 0xFFFFFFFFL);
+            long waitNanos = mStripes[stripeIndex(caller)].take(caller, mClock, tokensPerNano, mBurst);
+            if (waitNanos > 0) {
+                if (index >= 0) {
+                    mInFlight.decrementAndGet(index);
+                }
+                mRejectedByRate.incrementAndGet();
+                return Math.max(1, waitNanos / 1_000_000);
+            }
+        }
+        
+        mAdmitted.incrementAndGet();
+        return ADMITTED;
+    }
+    
+    /**
+     * 释放 acquire() 占用的并发名额
+     */
+    public void release(int code) {
+        int index = indexOf(code);
+        if (index >= 0) {
+            mInFlight.decrementAndGet(index);
+        }
+    }
+    
+    /**
+     * 输出当前限制和统计
+     */
+    public synchronized void dump(PrintWriter writer) {
+        double rate = mTokensPerNano * 1e9;
+        writer.println("Admission control:");
+        writer.println("  rate limit: " + (rate > 0 ? rate + "/s, burst " + (int) mBurst : "off")
+                + (mRateOverridden ? " (overridden)" : ""));
+        writer.println("  admitted: " + mAdmitted.get()
+                + ", rejected by rate: " + mRejectedByRate.get()
+                + ", rejected by concurrency: " + mRejectedByConcurrency.get());
+        for (int i = 0; i < MAX_CODES; i++) {
+            int limit = mConcurrencyLimits.get(i);
+            if (limit > 0 || mInFlight.get(i) > 0) {
+                writer.println("  code " + (IBinder.FIRST_CALL_TRANSACTION + i)
+                        + ": in flight " + mInFlight.get(i)
+                        + ", limit " + (limit > 0 ? String.valueOf(limit) : "none")
+                        + ((mOverriddenCodes & (1L << i)) != 0 ? " (overridden)" : ""));
+            }
+        }
+    }
+    
+    /**
+     * 格式版本2起只写覆盖值；版本1写的是全部限制，不恢复
+     */
+    @Override
+    public int snapshotVersion() {
+        return 2;
+    }
+    
+    @Override
+    public synchronized void writeSnapshot(DataOutput out) throws IOException {
+        out.writeBoolean(mRateOverridden);
+        if (mRateOverridden) {
+            out.writeDouble(mTokensPerNano * 1e9);
+            out.writeInt((int) mBurst);
+        }
+        out.writeLong(mOverriddenCodes);
+        for (int i = 0; i < MAX_CODES; i++) {
+            if ((mOverriddenCodes & (1L << i)) != 0) {
+                out.writeInt(mConcurrencyLimits.get(i));
+            }
+        }
+    }
+    
+    @Override
+    public void writeStats(DataOutput out) throws IOException {
+        out.writeLong(mAdmitted.get());
+        out.writeLong(mRejectedByRate.get());
+        out.writeLong(mRejectedByConcurrency.get());
+    }
+    
+    /**
+     * 恢复覆盖值，和 set*() 的调用顺序无关；令牌桶不恢复，重启后每个调用方从满桶开始
+     */
+    @Override
+    public void readSnapshot(DataInput in) throws IOException {
+        boolean rateOverridden = in.readBoolean();
+        double rate = rateOverridden ? in.readDouble() : 0;
+        int burst = rateOverridden ? in.readInt() : 0;
+        long overriddenCodes = in.readLong();
+        int[] limits = new int[MAX_CODES];
+        for (int i = 0; i < MAX_CODES; i++) {
+            if ((overriddenCodes & (1L << i)) != 0) {
+                limits[i] = in.readInt();
+            }
+        }
+        
+        synchronized (this) {
+            if (rateOverridden) {
+                overrideRateLimit(rate, burst);
+            }
+            for (int i = 0; i < MAX_CODES; i++) {
+                if ((overriddenCodes & (1L << i)) != 0) {
+                    overrideConcurrencyLimit(IBinder.FIRST_CALL_TRANSACTION + i, limits[i]);
+                }
+            }
+        }
+    }
+    
+    /**
+     * 累计计数加到当前值上
+     */
+    @Override
+    public void readStats(DataInput in) throws IOException {
+        long admitted = in.readLong();
+        long rejectedByRate = in.readLong();
+        long rejectedByConcurrency = in.readLong();
+        mAdmitted.addAndGet(admitted);
+        mRejectedByRate.addAndGet(rejectedByRate);
+        mRejectedByConcurrency.addAndGet(rejectedByConcurrency);
+    }
+    
+    /**
+     * 调用方所在的分段，uid和pid都参与哈希，同一个应用的多个进程分散到不同分段
+     */
+    static int stripeIndex(long caller) {
+        int hash = (int) (caller ^ (caller >>> 32)) * 0x9E3779B9;
+        return (hash >>> 16) & (STRIPES - 1);
+    }
+    
+    private void applyRateLimit(double ratePerSecond, int burst) {
+        mBurst = Math.max(1, burst);
+        mTokensPerNano = ratePerSecond / 1e9;
+    }
+    
+    private static int checkedIndexOf(int code) {
+        int index = indexOf(code);
+        if (index < 0) {
+            throw new IllegalArgumentException("Unsupported transaction code: " + code);
+        }
+        return index;
+    }
+    
+    private static int indexOf(int code) {
+        int index = code - IBinder.FIRST_CALL_TRANSACTION;
+        return index >= 0 && index < MAX_CODES ? index : -1;
+    }
+    
+    /**
+     * 一段令牌桶，同一分段内的调用方共享一把锁
+     */
+    private static final class Stripe {
+        private final HashMap<Long, Bucket> mBuckets = new HashMap<>();
+        
+        /**
+         * 取一个令牌
+         *
+         * @return 0 表示成功，否则是还需要等待的纳秒数
+         */
+        synchronized long take(long caller, LongSupplier clock, double tokensPerNano, double burst) {
+            // 在锁内读时钟，同一个桶的时间不会倒退
+            long now = clock.getAsLong();
+            Bucket bucket = mBuckets.get(caller);
+            if (bucket == null) {
+                if (mBuckets.size() >= MAX_BUCKETS_PER_STRIPE) {
+                    evictIdle(now, tokensPerNano, burst);
+                }
+                bucket = new Bucket(burst, now);
+                mBuckets.put(caller, bucket);
+            }
+            
+            bucket.refill(now, tokensPerNano, burst);
+            if (bucket.tokens >= 1) {
+                bucket.tokens -= 1;
+                return 0;
+            }
+            return Math.max(1, (long) ((1 - bucket.tokens) / tokensPerNano));
+        }
+        
+        /**
+         * 已经回满的桶和新建的桶等价，可以直接丢弃
+         */
+        private void evictIdle(long now, double tokensPerNano, double burst) {
+            Iterator<Bucket> iterator = mBuckets.values().iterator();
+            while (iterator.hasNext()) {
+                Bucket bucket = iterator.next();
+                bucket.refill(now, tokensPerNano, burst);
+                if (bucket.tokens >= burst) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+    
+    private static final class Bucket {
+        double tokens;
+        long lastRefillNanos;
+        
+        Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.lastRefillNanos = now;
+        }
+        
+        void refill(long now, double tokensPerNano, double burst) {
+            tokens = Math.min(burst, tokens + (now - lastRefillNanos) * tokensPerNano);
+            lastRefillNanos = now;
+        }
+    }
+}
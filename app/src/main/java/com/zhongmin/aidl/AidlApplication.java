@@ -0,0 +1,122 @@
+package com.zhongmin.aidl;
+
+import android.app.Application;
+import android.os.Process;
+import android.os.Trace;
+import android.util.Log;
+
+/**
+ * 应用的所有进程共用的 Application，按进程名分别初始化
+ *
+ * :remote 等服务进程只提供Binder接口，同一个APK里的 AppCompat、Compose 和主题在这些进程中都用不到：
+ * 类是按需加载的，只要服务进程的初始化路径不引用它们就不会加载，进程启动更快、常驻内存更小。
+ * 所以 onCreate 里不做任何公共初始化，界面相关的放进 onCreateMainProcess()，
+ * 服务进程需要的放进 onCreateServiceProcess()，服务进程中不能引用 androidx 和 ui 包里的类。
+ * 同进程部署（RemoteService.Colocated）的服务运行在主进程，走主进程的初始化。
+ *
+ * 两种进程都在后台线程上预先加载第一次调用路径上的类（CLIENT_CLASSES / SERVICE_CLASSES），
+ * 与主线程创建Activity或Service并行，第一次调用不再在Binder线程或主线程上同步加载。
+ * 启动各阶段耗时和内存由 ProcessMetrics 记录。
+ */
+public class AidlApplication extends Application {
+    private static final String TAG = "AidlApplication";
+    
+    /**
+     * 清单中服务进程的 android:process 后缀，修改清单时同步修改
+     */
+    static final String[] SERVICE_PROCESS_SUFFIXES = {":remote", ":remote1", ":remote2"};
+    
+    /**
+     * 按类名加载：类字面量在 AidlApplication 初始化时就会在主线程上加载这些类
+     */
+    private static final String PACKAGE_PREFIX = "com.zhongmin.aidl.";
+    
+    /**
+     * 客户端第一次调用路径上的类：握手、代理、分块和数组编码、负载均衡
+     */
+    private static final String[] CLIENT_CLASSES = {
+            "MyAidlProxy", "Capabilities", "ChunkedTransfer", "LzCodec", "IntArrays",
+            "ServiceRegistryProxy", "ReplicaBalancer", "MyEventCallbackStub",
+    };
+    
+    /**
+     * 服务端第一次调用路径上的类：注册表、分发、准入、看门狗和 RemoteService.onCreate 中创建的组件
+     */
+    private static final String[] SERVICE_CLASSES = {
+            "ServiceRegistryStub", "MyAidlStub", "Capabilities", "ChunkedTransfer", "LzCodec", "IntArrays",
+            "PriorityDispatcher", "AdmissionController", "BinderWatchdog", "WarmSnapshot", "TelemetryJournal",
+            "PrimitiveMemo", "EventHub", "ParallelCompute",
+    };
+    
+    @Override
+    public void onCreate() {
+        String processName = getProcessName();
+        ProcessMetrics.markApplicationStart(processName);
+        super.onCreate();
+        if (isServiceProcess(processName)) {
+            // macrobenchmark 按这个名字测量服务进程的初始化
+            Trace.beginSection("AidlApplication.onCreateServiceProcess");
+            onCreateServiceProcess(processName);
+        } else {
+            Trace.beginSection("AidlApplication.onCreateMainProcess");
+            onCreateMainProcess();
+        }
+        Trace.endSection();
+        ProcessMetrics.markApplicationEnd();
+    }
+    
+    /**
+     * 主进程（界面和同进程部署的服务）的初始化
+     */
+    protected void onCreateMainProcess() {
+        preload(CLIENT_CLASSES);
+        // 部署方式在第一次绑定时才用到，提前在后台读好，主线程不读文件、不查询 PackageManager
+        ServiceDeployment.prefetch(this);
+    }
+    
+    /**
+     * 服务进程的初始化，只能使用服务本身依赖的类
+     *
+     * @param processName 完整进程名，例如 com.zhongmin.aidl:remote1
+     */
+    protected void onCreateServiceProcess(String processName) {
+        preload(SERVICE_CLASSES);
+    }
+    
+    /**
+     * 清单中声明的服务进程（包名加 SERVICE_PROCESS_SUFFIXES 中的后缀），其他进程按主进程处理
+     */
+    static boolean isServiceProcess(String processName) {
+        if (processName == null) {
+            return false;
+        }
+        for (String suffix : SERVICE_PROCESS_SUFFIXES) {
+            if (processName.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * 在后台线程上加载并初始化类，失败只记录日志，用到时再按原来的方式加载
+     */
+    private void preload(String[] classes) {
+        ClassLoader loader = getClassLoader();
+        Thread thread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            Trace.beginSection("AidlApplication.preload");
+            try {
+                for (String name : classes) {
+                    Class.forName(PACKAGE_PREFIX + name, true, loader);
+                }
+            } catch (ClassNotFoundException | LinkageError e) {
+                Log.w(TAG, "Preload failed", e);
+            } finally {
+                Trace.endSection();
+            }
+        }, "class-preload");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,52 @@
+package com.zhongmin.aidl;
+
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * 把socket请求交给本地Binder对象处理，SocketBinder 的对端
+ *
+ * 用法：new SocketServer(serverChannel, new BinderSocketHandler(stub), executor).start()
+ * 请求在 SocketServer 的执行器上执行，行为与Binder线程上的 execTransact 一致：
+ * 能通过Parcel传递的异常写进回复，其他异常只记录日志，客户端的 transact() 返回false。
+ * 注意执行器线程上没有调用方身份，Binder.getCallingUid() 返回的是服务进程自己。
+ */
+public class BinderSocketHandler implements SocketServer.Handler {
+    private static final String TAG = "BinderSocketHandler";
+    
+    private final IBinder mBinder;
+    
+    public BinderSocketHandler(IBinder binder) {
+        mBinder = binder;
+    }
+    
+    @Override
+    public byte[] handle(int code, byte[] bytes, int flags) {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.unmarshall(bytes, 0, bytes.length);
+            data.setDataPosition(0);
+            try {
+                if (!mBinder.transact(code, data, reply, flags)) {
+                    return null;
+                }
+            } catch (RemoteException | RuntimeException e) {
+                reply.setDataSize(0);
+                reply.setDataPosition(0);
+                try {
+                    reply.writeException(e);
+                } catch (RuntimeException unsupported) {
+                    Log.w(TAG, "Uncaught remote exception for transaction " + code, e);
+                    return null;
+                }
+            }
+            return reply.marshall();
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package com.zhongmin.aidl;
+
+import android.os.IBinder;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Binder线程池饱和检测和慢调用看门狗
+ *
+ * MyAidlStub.onTransact 进出时调用 enter()/exit()，只更新原子计数和当前线程自己的槽位，不加锁：
+ * 1. 正在执行调用的Binder线程数和历史最高值；达到Binder线程数时所有线程都在忙，
+ *    新的调用开始在内核中排队，记一次饱和。同一线程上嵌套的重入调用不占用新的线程，只计一次；
+ *    每个事务码正在执行的调用数单独统计，包括嵌套调用
+ * 2. 看门狗线程定期扫描所有槽位，执行超过阈值的调用抓取一次调用栈，保留最近 MAX_SLOW_CALLS 条
+ *
+ * 调用转到 PriorityDispatcher 执行时，抓取的是实际执行的工作线程的调用栈。
+ * 所有信息通过 dump() 输出。
+ */
+public class BinderWatchdog {
+    
+    /**
+     * 应用进程默认的Binder线程数：15个线程池线程加主Binder线程
+     */
+    public static final int DEFAULT_BINDER_THREADS = 16;
+    
+    private static final int MAX_CODES = 64;
+    private static final int MAX_SLOW_CALLS = 16;
+    private static final int MAX_FRAMES = 32;
+    
+    /**
+     * 一个Binder线程的当前调用，只有所属线程写入，看门狗线程读取
+     */
+    public static final class Slot {
+        private static final AtomicReferenceFieldUpdater<Slot, Worker> WORKER =
+                AtomicReferenceFieldUpdater.newUpdater(Slot.class, Worker.class, "worker");
+        
+        final Thread thread;
+        
+        /**
+         * 最外层调用的开始时间，0表示空闲
+         */
+        volatile long startNanos;
+        volatile int code;
+        volatile int uid;
+        volatile int pid;
+        
+        /**
+         * 实际执行调用的线程，没有转到分发器时为null；开始时间和 startNanos 不同时属于已经结束的调用
+         */
+        volatile Worker worker;
+        
+        /**
+         * 同一线程上嵌套的调用层数，只有所属线程访问
+         */
+        int depth;
+        
+        /**
+         * 已经抓取过调用栈的调用的开始时间，只有看门狗线程访问
+         */
+        long reportedStart;
+        
+        Slot(Thread thread) {
+            this.thread = thread;
+        }
+        
+        /**
+         * 当前最外层调用的开始时间，在Binder线程上读取后传给 setWorker()
+         */
+        public long getStartNanos() {
+            return startNanos;
+        }
+        
+        /**
+         * 调用转到另一个线程执行时，在那个线程上调用；执行完后传null
+         *
+         * Binder线程可能在工作线程开始或结束之前就放弃等待并处理下一个调用，
+         * 开始时间不一致时不修改槽位，不会覆盖或清除下一个调用的工作线程。
+         *
+         * @param callStart 转发调用时 getStartNanos() 的值
+         */
+        public void setWorker(long callStart, Thread worker) {
+            if (worker != null) {
+                if (startNanos == callStart) {
+                    // 检查之后槽位仍可能被复用，看门狗会再比较一次开始时间
+                    this.worker = new Worker(worker, callStart);
+                }
+            } else {
+                Worker current = this.worker;
+                if (current != null && current.startNanos == callStart) {
+                    WORKER.compareAndSet(this, current, null);
+                }
+            }
+        }
+    }
+    
+    private static final class Worker {
+        final Thread thread;
+        final long startNanos;
+        
+        Worker(Thread thread, long startNanos) {
+            this.thread = thread;
+            this.startNanos = startNanos;
+        }
+    }
+    
+    /**
+     * 一次慢调用
+     */
+    private static final class SlowCall {
+        final long wallTime;
+        final int code;
+        final int uid;
+        final int pid;
+        final long elapsedMs;
+        final String threadName;
+        final StackTraceElement[] stack;
+        
+        SlowCall(int code, int uid, int pid, long elapsedMs, Thread thread, StackTraceElement[] stack) {
+            this.wallTime = System.currentTimeMillis();
+            this.code = code;
+            this.uid = uid;
+            this.pid = pid;
+            this.elapsedMs = elapsedMs;
+            this.threadName = thread.getName();
+            this.stack = stack;
+        }
+    }
+    
+    private final int mBinderThreads;
+    private volatile long mThresholdNanos;
+    
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicInteger mHighWater = new AtomicInteger();
+    private final AtomicIntegerArray mCodeInFlight = new AtomicIntegerArray(MAX_CODES);
+    private final AtomicIntegerArray mCodeHighWater = new AtomicIntegerArray(MAX_CODES);
+    private final AtomicLong mCalls = new AtomicLong();
+    private final AtomicLong mSaturations = new AtomicLong();
+    private final AtomicLong mSlowCalls = new AtomicLong();
+    
+    /**
+     * 每个进入过的线程一个槽位，注册很少发生；分发器工作线程和socket连接线程会退出，
+     * 看门狗扫描时移除已经结束的线程的槽位
+     */
+    private final CopyOnWriteArrayList<Slot> mSlots = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Slot> mSlot = ThreadLocal.withInitial(() -> {
+        Slot slot = new Slot(Thread.currentThread());
+        mSlots.add(slot);
+        return slot;
+    });
+    
+    /**
+     * 最近的慢调用，受自身保护
+     */
+    private final ArrayDeque<SlowCall> mRecentSlowCalls = new ArrayDeque<>();
+    
+    private Thread mThread;
+    private volatile boolean mStopped;
+    
+    /**
+     * @param binderThreads 进程的Binder线程数，正在执行的调用达到此数时记为饱和
+     * @param thresholdMillis 慢调用阈值
+     */
+    public BinderWatchdog(int binderThreads, long thresholdMillis) {
+        mBinderThreads = binderThreads;
+        setThreshold(thresholdMillis);
+    }
+    
+    public void setThreshold(long thresholdMillis) {
+        mThresholdNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, thresholdMillis));
+    }
+    
+    /**
+     * 启动看门狗线程
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mStopped = false;
+        mThread = new Thread(this::watch, "binder-watchdog");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+    
+    public synchronized void stop() {
+        mStopped = true;
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+    
+    /**
+     * 调用开始，在Binder线程上调用
+     *
+     * @return 必须在调用结束时传给 exit()
+     */
+    public Slot enter(int code, int uid, int pid) {
+        mCalls.incrementAndGet();
+        int index = indexOf(code);
+        if (index >= 0) {
+            int codeInFlight = mCodeInFlight.incrementAndGet(index);
+            if (codeInFlight > mCodeHighWater.get(index)) {
+                updateMax(mCodeHighWater, index, codeInFlight);
+            }
+        }
+        
+        Slot slot = mSlot.get();
+        if (slot.depth++ == 0) {
+            // 嵌套调用在同一个Binder线程上执行，只有最外层调用占用线程
+            int inFlight = mInFlight.incrementAndGet();
+            updateMax(mHighWater, inFlight);
+            if (inFlight == mBinderThreads) {
+                mSaturations.incrementAndGet();
+            }
+            slot.code = code;
+            slot.uid = uid;
+            slot.pid = pid;
+            slot.worker = null;
+            // 最后写开始时间，看门狗读到非0时其他字段已经写好
+            slot.startNanos = System.nanoTime();
+        }
+        return slot;
+    }
+    
+    /**
+     * 调用结束
+     */
+    public void exit(Slot slot, int code) {
+        if (--slot.depth == 0) {
+            slot.startNanos = 0;
+            slot.worker = null;
+            mInFlight.decrementAndGet();
+        }
+        int index = indexOf(code);
+        if (index >= 0) {
+            mCodeInFlight.decrementAndGet(index);
+        }
+    }
+    
+    /**
+     * 当前登记的线程数
+     */
+    int getSlotCount() {
+        return mSlots.size();
+    }
+    
+    public int getInFlight() {
+        return mInFlight.get();
+    }
+    
+    public int getHighWater() {
+        return mHighWater.get();
+    }
+    
+    /**
+     * 历史最高值重新从当前值开始统计
+     */
+    public void resetHighWater() {
+        mHighWater.set(mInFlight.get());
+        for (int i = 0; i < MAX_CODES; i++) {
+            mCodeHighWater.set(i, mCodeInFlight.get(i));
+        }
+    }
+    
+    /**
+     * 输出并发统计和最近的慢调用
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("Binder watchdog:");
+        writer.println("  binder threads: " + mBinderThreads
+                + ", in flight: " + mInFlight.get()
+                + ", high water: " + mHighWater.get()
+                + ", saturated: " + mSaturations.get() + " times");
+        writer.println("  calls: " + mCalls.get() + ", slow calls: " + mSlowCalls.get()
+                + " (threshold " + TimeUnit.NANOSECONDS.toMillis(mThresholdNanos) + "ms)");
+        for (int i = 0; i < MAX_CODES; i++) {
+            if (mCodeHighWater.get(i) > 0) {
+                writer.println("  code " + (IBinder.FIRST_CALL_TRANSACTION + i)
+                        + ": in flight " + mCodeInFlight.get(i) + ", high water " + mCodeHighWater.get(i));
+            }
+        }
+        
+        List<SlowCall> slowCalls;
+        synchronized (mRecentSlowCalls) {
+            slowCalls = new ArrayList<>(mRecentSlowCalls);
+        }
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+        for (SlowCall call : slowCalls) {
+            writer.println("  slow call at " + format.format(new Date(call.wallTime))
+                    + ": code " + call.code + ", uid " + call.uid + ", pid " + call.pid
+                    + ", running " + call.elapsedMs + "ms on " + call.threadName);
+            for (StackTraceElement frame : call.stack) {
+                writer.println("      at " + frame);
+            }
+        }
+    }
+    
+    private void watch() {
+        while (!mStopped) {
+            long threshold = mThresholdNanos;
+            try {
+                Thread.sleep(Math.max(10, TimeUnit.NANOSECONDS.toMillis(threshold) / 4));
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (Slot slot : mSlots) {
+                if (!slot.thread.isAlive()) {
+                    mSlots.remove(slot);
+                    continue;
+                }
+                long start = slot.startNanos;
+                if (start == 0 || start == slot.reportedStart || now - start < threshold) {
+                    continue;
+                }
+                slot.reportedStart = start;
+                Worker worker = slot.worker;
+                Thread thread = worker != null && worker.startNanos == start ? worker.thread : slot.thread;
+                int code = slot.code;
+                int uid = slot.uid;
+                int pid = slot.pid;
+                StackTraceElement[] stack = thread.getStackTrace();
+                // 抓取期间调用已经结束，栈已经不属于这次调用
+                if (slot.startNanos != start) {
+                    continue;
+                }
+                if (stack.length > MAX_FRAMES) {
+                    stack = Arrays.copyOf(stack, MAX_FRAMES);
+                }
+                mSlowCalls.incrementAndGet();
+                SlowCall call = new SlowCall(code, uid, pid, TimeUnit.NANOSECONDS.toMillis(now - start),
+                        thread, stack);
+                synchronized (mRecentSlowCalls) {
+                    if (mRecentSlowCalls.size() == MAX_SLOW_CALLS) {
+                        mRecentSlowCalls.removeFirst();
+                    }
+                    mRecentSlowCalls.addLast(call);
+                }
+            }
+        }
+    }
+    
+    private static void updateMax(AtomicInteger max, int value) {
+        int current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+    
+    private static void updateMax(AtomicIntegerArray max, int index, int value) {
+        int current;
+        while (value > (current = max.get(index))) {
+            if (max.compareAndSet(index, current, value)) {
+                return;
+            }
+        }
+    }
+    
+    private static int indexOf(int code) {
+        int index = code - IBinder.FIRST_CALL_TRANSACTION;
+        return index >= 0 && index < MAX_CODES ? index : -1;
+    }
+}
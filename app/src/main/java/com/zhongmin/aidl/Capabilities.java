@@ -0,0 +1,122 @@
+package com.zhongmin.aidl;
+
+/**
+ * 服务端能力，每个Binder握手一次（TRANSACTION_handshake），客户端据此为每次调用选择最便宜的传输方式
+ *
+ * 握手内容：协议版本、能力位图、压缩编码和单次事务建议的最大字节数。
+ * 回复可以在末尾追加字段，旧客户端只读自己认识的部分。
+ *
+ * 旧服务端不认识握手事务码时按它实际支持的能力处理：
+ * 认识 TRANSACTION_negotiate 的服务端支持分块、共享内存数组和协商出的压缩编码（legacyChunked()），
+ * 连 negotiate 也不认识的最早版本只能内联传输（LEGACY_BASIC）。
+ */
+public class Capabilities {
+    
+    /**
+     * 当前协议版本
+     */
+    public static final int VERSION = 1;
+    
+    /**
+     * 能力位：大字符串分块传输，见 ChunkedTransfer
+     */
+    public static final int CAP_CHUNKED_STRINGS = 1;
+    
+    /**
+     * 能力位：大数组放进 SharedMemory，见 IntArrays；传输层不能传文件描述符时服务端不报告此位
+     */
+    public static final int CAP_SHARED_MEMORY = 1 << 1;
+    
+    /**
+     * 能力位：服务端支持 basicTypesOneway()，并统计丢弃的oneway调用
+     */
+    public static final int CAP_ONEWAY = 1 << 2;
+    
+    /**
+     * 本端支持的所有能力
+     */
+    public static final int SUPPORTED = CAP_CHUNKED_STRINGS | CAP_SHARED_MEMORY | CAP_ONEWAY;
+    
+    /**
+     * 单次事务建议的最大字节数，与字符串分块和内联数组的上限一致
+     */
+    public static final int DEFAULT_MAX_PARCEL_BYTES = IntArrays.INLINE_MAX_INTS * 4;
+    
+    /**
+     * 最早版本的服务端：没有分块、压缩和共享内存
+     */
+    public static final Capabilities LEGACY_BASIC = new Capabilities(0, 0, 0, DEFAULT_MAX_PARCEL_BYTES);
+    
+    public final int version;
+    public final int flags;
+    public final int codecs;
+    public final int maxParcelBytes;
+    
+    public Capabilities(int version, int flags, int codecs, int maxParcelBytes) {
+        this.version = version;
+        this.flags = flags;
+        this.codecs = codecs;
+        this.maxParcelBytes = maxParcelBytes;
+    }
+    
+    /**
+     * 认识 negotiate、不认识握手的服务端
+     */
+    public static Capabilities legacyChunked(int codecs) {
+        return new Capabilities(0, CAP_CHUNKED_STRINGS | CAP_SHARED_MEMORY, codecs, DEFAULT_MAX_PARCEL_BYTES);
+    }
+    
+    /**
+     * 服务端对客户端的握手回复：只报告双方都支持的能力
+     *
+     * @param inlineOnly 握手经过不能传文件描述符的传输层（FLAG_INLINE_ONLY）
+     */
+    public static Capabilities negotiate(int clientFlags, int clientCodecs, boolean inlineOnly) {
+        int flags = clientFlags & SUPPORTED;
+        if (inlineOnly) {
+            flags &= ~CAP_SHARED_MEMORY;
+        }
+        return new Capabilities(VERSION, flags, clientCodecs & ChunkedTransfer.SUPPORTED_CODECS,
+                DEFAULT_MAX_PARCEL_BYTES);
+    }
+    
+    public boolean has(int capability) {
+        return (flags & capability) == capability;
+    }
+    
+    /**
+     * 大数组是否放进共享内存
+     *
+     * @param transportAllowsFds 本端的传输层能否传文件描述符
+     */
+    public boolean useSharedMemory(boolean transportAllowsFds) {
+        return transportAllowsFds && has(CAP_SHARED_MEMORY);
+    }
+    
+    /**
+     * 内联传输的最大元素数，超过时使用共享内存；内联比创建共享内存便宜，服务端允许时尽量内联
+     */
+    public int inlineMaxInts() {
+        return Math.max(1, maxParcelBytes / 4);
+    }
+    
+    /**
+     * 字符串参数可用的压缩编码，服务端不支持分块时不能压缩
+     */
+    public int stringCodecs() {
+        return has(CAP_CHUNKED_STRINGS) ? codecs : 0;
+    }
+    
+    /**
+     * basicTypesOneway() 能否真的用oneway调用，否则按同步调用
+     */
+    public boolean useOneway() {
+        return has(CAP_ONEWAY);
+    }
+    
+    @Override
+    public String toString() {
+        return "Capabilities{version=" + version + ", flags=0x" + Integer.toHexString(flags)
+                + ", codecs=0x" + Integer.toHexString(codecs) + ", maxParcelBytes=" + maxParcelBytes + "}";
+    }
+}
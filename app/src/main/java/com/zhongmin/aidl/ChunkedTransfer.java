@@ -0,0 +1,772 @@
+package com.zhongmin.aidl;
+
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.ServiceSpecificException;
+import android.os.SystemClock;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * 大字符串分块传输
+ *
+ * Binder事务缓冲区是整个进程共享的1MB，单次事务过大会抛出TransactionTooLargeException，
+ * 同时也会挤占其他并发调用的缓冲区。超过阈值的字符串参数/返回值会被拆成固定大小的分块，
+ * 通过多次事务传输，在另一端重新拼接。
+ *
+ * 连接协商了压缩编码时，超过 COMPRESS_THRESHOLD_CHARS 的字符串参数先按UTF-8编码再用 LzCodec 压缩，
+ * 压缩后的字节按 CHUNK_BYTES 分块，通常可以把多次事务合并成一次。
+ * 含落单代理项的字符串UTF-8编码会丢失内容，总是按UTF-16原样传输。
+ *
+ * 线格式：未超过阈值时与原来完全一致（writeString）；
+ * 其他格式写入一个负数标记，readString 永远不会读到小于 -1 的长度，
+ * 所以接收端可以先读一个int判断格式。
+ *
+ * 客户端使用静态方法，服务端每个Stub持有一个实例保存未完成的传输。
+ *
+ * 服务端缓存的分块有上限：所有传输合计 MAX_BUFFERED_BYTES，每个uid最多 MAX_CALLER_TRANSFERS 个
+ * 未完成的传输、合计 MAX_CALLER_BYTES，超过时抛出 ServiceSpecificException(ERROR_BUSY)，
+ * 客户端稍后重试。每个传输记录发起的调用方（见 caller()），其他调用方的分块和取回请求按传输不存在处理；
+ * oneway调用取不到pid，只比较uid。超过 TRANSFER_TIMEOUT_MS 的传输同样按不存在处理。
+ */
+public class ChunkedTransfer {
+    
+    /**
+     * 单个分块的字符数
+     * 32K个UTF-16字符约64KB，只占事务缓冲区的1/16，多个调用方同时传输大字符串也不会互相饿死
+     */
+    public static final int CHUNK_CHARS = 32 * 1024;
+    
+    /**
+     * 压缩数据单个分块的字节数，与字符分块占用相同的事务缓冲区
+     */
+    public static final int CHUNK_BYTES = CHUNK_CHARS * 2;
+    
+    /**
+     * 单次传输允许的最大分块数，限制服务端为一次传输缓存的内存（16MB）
+     */
+    public static final int MAX_CHUNKS = 256;
+    
+    /**
+     * 服务端所有未完成的传输合计缓存的字节数上限
+     */
+    static final long MAX_BUFFERED_BYTES = 2L * MAX_CHUNKS * CHUNK_BYTES;
+    
+    /**
+     * 每个uid未完成的传输数和缓存字节数上限，一个调用方最多占用一半的缓存
+     */
+    static final int MAX_CALLER_TRANSFERS = 8;
+    static final long MAX_CALLER_BYTES = (long) MAX_CHUNKS * CHUNK_BYTES;
+    
+    /**
+     * 压缩编码，按位组合，每个连接协商一次
+     */
+    public static final int CODEC_LZ = 1;
+    public static final int SUPPORTED_CODECS = CODEC_LZ;
+    
+    /**
+     * 启用压缩的字符串长度阈值，不需要分块的字符串达到这个长度也压缩
+     *
+     * ChunkedTransferBenchmark（JSON，JVM，一次写入+读取）：
+     *   字符数   不压缩   压缩     Parcel字节（不压缩/压缩）
+     *   1024    3.6us   4.9us   2056 / 416
+     *   4096   12.7us  17.8us   8200 / 1512
+     *   16384  53.9us  71.0us  32776 / 5780
+     * 在JVM上压缩在每种长度都更慢，压缩不是为了降低延迟，是为了给全进程共享的1MB事务缓冲区留余量：
+     * 4K字符的参数从8200字节降到1512字节，每次调用多花约5us，1MB缓冲区能同时容纳的这种调用从127个增加到693个。
+     * 更短的字符串每次省下的不到3KB，不值得多花的CPU。真机上省下的内核拷贝没有测量，不作为依据。
+     */
+    public static final int COMPRESS_THRESHOLD_CHARS = 4 * 1024;
+    
+    /**
+     * 格式标记
+     */
+    static final int MARKER_CHUNKED = -2;
+    static final int MARKER_COMPRESSED = -3;
+    static final int MARKER_COMPRESSED_CHUNKED = -4;
+    
+    /**
+     * 分块内容类型
+     */
+    private static final int PART_STRING = 0;
+    private static final int PART_BYTES = 1;
+    
+    /**
+     * 未完成传输的过期时间，客户端中途死亡时由此回收
+     */
+    static final long TRANSFER_TIMEOUT_MS = 30_000;
+    
+    /**
+     * 线程复用缓冲区的最大保留大小，更大的数据临时分配，避免长期占用内存
+     */
+    private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+    
+    /**
+     * 解压后允许的最大字节数（UTF-8最多3字节/字符）
+     */
+    private static final int MAX_RAW_BYTES = MAX_CHUNKS * CHUNK_CHARS * 3;
+    
+    /**
+     * 传输ID：高32位是客户端PID，低32位是进程内计数，避免不同客户端的ID冲突
+     */
+    private static final AtomicInteger sNextTransferId = new AtomicInteger();
+    
+    /**
+     * 每个线程复用的编解码缓冲区
+     */
+    private static final ThreadLocal<Buffers> sBuffers = ThreadLocal.withInitial(Buffers::new);
+    
+    /**
+     * 服务端：客户端正在上传的参数，传输ID由客户端生成，按uid区分，其他应用不能占用或改写
+     */
+    private final ConcurrentHashMap<IncomingKey, Transfer> mIncoming = new ConcurrentHashMap<>();
+    
+    /**
+     * 服务端：等待客户端取回的返回值
+     */
+    private final ConcurrentHashMap<Long, Transfer> mOutgoing = new ConcurrentHashMap<>();
+    
+    private final AtomicLong mNextOutgoingId = new AtomicLong();
+    
+    /**
+     * 判断传输过期的时钟，毫秒
+     */
+    private final LongSupplier mClock;
+    
+    /**
+     * 所有传输缓存的字节数和每个uid的 {传输数, 字节数}，受 this 保护
+     */
+    private long mBufferedBytes;
+    private final HashMap<Integer, long[]> mCallerUsage = new HashMap<>();
+    
+    public ChunkedTransfer() {
+        this(SystemClock::uptimeMillis);
+    }
+    
+    /**
+     * @param clock 判断传输过期的时钟（毫秒），测试时替换
+     */
+    ChunkedTransfer(LongSupplier clock) {
+        mClock = clock;
+    }
+    
+    // ==================== 客户端 ====================
+    
+    /**
+     * 写入字符串参数，超过阈值时先把前面的分块上传，最后一块随本次调用一起发送
+     *
+     * @param remote 远程Binder对象
+     * @param data 本次调用的参数Parcel
+     * @param value 字符串参数
+     * @param codecs 与服务端协商好的压缩编码
+     */
+    public static void writeString(IBinder remote, Parcel data, String value, int codecs)
+            throws RemoteException {
+        if (value != null && (codecs & CODEC_LZ) != 0 && value.length() >= COMPRESS_THRESHOLD_CHARS
+                && isWellFormed(value) && writeCompressed(remote, data, value)) {
+            return;
+        }
+        if (value == null || value.length() <= CHUNK_CHARS) {
+            data.writeString(value);
+            return;
+        }
+        
+        int count = chunkCount(value.length(), CHUNK_CHARS);
+        long transferId = nextTransferId();
+        for (int i = 0; i < count - 1; i++) {
+            Parcel chunk = obtainChunk(transferId, i, count, PART_STRING);
+            chunk.writeString(charChunk(value, i));
+            putChunk(remote, chunk);
+        }
+        
+        data.writeInt(MARKER_CHUNKED);
+        data.writeLong(transferId);
+        data.writeInt(count);
+        data.writeString(charChunk(value, count - 1));
+    }
+    
+    /**
+     * 压缩后写入，压缩效果不明显时返回false，由调用方按原样写入或分块
+     * 调用方保证 value 是合法的UTF-16（见 isWellFormed）
+     */
+    static boolean writeCompressed(IBinder remote, Parcel data, String value)
+            throws RemoteException {
+        byte[] raw = value.getBytes(StandardCharsets.UTF_8);
+        Buffers buffers = sBuffers.get();
+        byte[] compressed = buffers.compressed(LzCodec.maxCompressedLength(raw.length));
+        int length = LzCodec.compress(raw, raw.length, compressed, buffers.table);
+        // 至少要比UTF-16原文小1/4，否则不值得让接收端再解压一次
+        if (length > (long) value.length() * 2 * 3 / 4) {
+            return false;
+        }
+        
+        int count = chunkCount(length, CHUNK_BYTES);
+        if (count == 1) {
+            data.writeInt(MARKER_COMPRESSED);
+            data.writeInt(raw.length);
+            data.writeByteArray(compressed, 0, length);
+            return true;
+        }
+        if (count > MAX_CHUNKS) {
+            return false;
+        }
+        
+        long transferId = nextTransferId();
+        for (int i = 0; i < count - 1; i++) {
+            Parcel chunk = obtainChunk(transferId, i, count, PART_BYTES);
+            chunk.writeByteArray(compressed, i * CHUNK_BYTES, CHUNK_BYTES);
+            putChunk(remote, chunk);
+        }
+        
+        int lastOffset = (count - 1) * CHUNK_BYTES;
+        data.writeInt(MARKER_COMPRESSED_CHUNKED);
+        data.writeLong(transferId);
+        data.writeInt(count);
+        data.writeInt(raw.length);
+        data.writeByteArray(compressed, lastOffset, length - lastOffset);
+        return true;
+    }
+    
+    /**
+     * 读取字符串返回值，分块格式时继续向服务端取回剩余分块
+     *
+     * @param remote 远程Binder对象
+     * @param reply 本次调用的返回Parcel
+     * @return 完整的字符串
+     */
+    public static String readString(IBinder remote, Parcel reply) throws RemoteException {
+        int position = reply.dataPosition();
+        if (reply.readInt() != MARKER_CHUNKED) {
+            reply.setDataPosition(position);
+            return reply.readString();
+        }
+        
+        long transferId = reply.readLong();
+        int count = reply.readInt();
+        String first = reply.readString();
+        StringBuilder builder = new StringBuilder(count * CHUNK_CHARS);
+        builder.append(first);
+        for (int i = 1; i < count; i++) {
+            builder.append(fetchChunk(remote, transferId, i));
+        }
+        return builder.toString();
+    }
+    
+    /**
+     * 是否没有落单的代理项（surrogate）
+     * String.getBytes(UTF_8) 把落单的代理项替换成'?'，这样的字符串压缩后不能原样还原，只能按UTF-16传输
+     */
+    static boolean isWellFormed(String value) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (!Character.isSurrogate(c)) {
+                continue;
+            }
+            if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                i++;
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static long nextTransferId() {
+        return ((long) Process.myPid() << 32) | (sNextTransferId.incrementAndGet() & 0xFFFFFFFFL);
+    }
+    
+    private static Parcel obtainChunk(long transferId, int index, int count, int kind) {
+        Parcel data = Parcel.obtain();
+        data.writeInterfaceToken(IMyAidlInterface.DESCRIPTOR);
+        data.writeLong(transferId);
+        data.writeInt(index);
+        data.writeInt(count);
+        data.writeInt(kind);
+        return data;
+    }
+    
+    private static void putChunk(IBinder remote, Parcel data) throws RemoteException {
+        Parcel reply = Parcel.obtain();
+        
+        try {
+            remote.transact(IMyAidlInterface.TRANSACTION_putChunk, data, reply, 0);
+            reply.readException();
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+    }
+    
+    private static String fetchChunk(IBinder remote, long transferId, int index) throws RemoteException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        String result;
+        
+        try {
+            data.writeInterfaceToken(IMyAidlInterface.DESCRIPTOR);
+            data.writeLong(transferId);
+            data.writeInt(index);
+            remote.transact(IMyAidlInterface.TRANSACTION_fetchChunk, data, reply, 0);
+            reply.readException();
+            result = reply.readString();
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+        
+        return result;
+    }
+    
+    // ==================== 服务端 ====================
+    
+    /**
+     * 调用方标识，在Binder线程上取 getCallingUid()/getCallingPid() 打包，分发器的工作线程上取不到
+     */
+    public static long caller(int uid, int pid) {
+        return ((long) uid << 32) | (pid & 0xFFFFFFFFL);
+    }
+    
+    /**
+     * 读取字符串参数，分块格式时与之前上传的分块拼接，压缩格式时解压
+     *
+     * @param caller 本次调用的调用方，见 caller()
+     */
+    public String readString(Parcel data, long caller) {
+        int position = data.dataPosition();
+        int marker = data.readInt();
+        switch (marker) {
+            case MARKER_CHUNKED: {
+                long transferId = data.readLong();
+                int count = data.readInt();
+                String last = data.readString();
+                Transfer transfer = takeIncoming(caller, transferId, count, PART_STRING);
+                transfer.set(count - 1, last);
+                return transfer.joinString();
+            }
+            
+            case MARKER_COMPRESSED: {
+                int rawLength = checkRawLength(data.readInt());
+                byte[] compressed = data.createByteArray();
+                return decompress(compressed, compressed.length, rawLength);
+            }
+            
+            case MARKER_COMPRESSED_CHUNKED: {
+                long transferId = data.readLong();
+                int count = data.readInt();
+                int rawLength = checkRawLength(data.readInt());
+                byte[] last = data.createByteArray();
+                Transfer transfer = takeIncoming(caller, transferId, count, PART_BYTES);
+                transfer.set(count - 1, last);
+                int length = transfer.byteLength();
+                byte[] compressed = sBuffers.get().compressed(length);
+                transfer.copyBytes(compressed);
+                return decompress(compressed, length, rawLength);
+            }
+            
+            default:
+                data.setDataPosition(position);
+                return data.readString();
+        }
+    }
+    
+    /**
+     * 处理 TRANSACTION_putChunk：缓存客户端上传的一个分块
+     *
+     * @throws ServiceSpecificException ERROR_BUSY，缓存已满
+     */
+    public void onPutChunk(Parcel data, long caller) {
+        long transferId = data.readLong();
+        int index = data.readInt();
+        int count = data.readInt();
+        int kind = data.readInt();
+        if (count <= 1 || count > MAX_CHUNKS || index < 0 || index >= count - 1
+                || (kind != PART_STRING && kind != PART_BYTES)) {
+            throw new IllegalArgumentException("Bad chunk " + index + "/" + count);
+        }
+        Object part = kind == PART_STRING ? data.readString() : data.createByteArray();
+        
+        IncomingKey key = new IncomingKey(uidOf(caller), transferId);
+        Transfer transfer = mIncoming.get(key);
+        if (transfer == null) {
+            transfer = new Transfer(kind, count, caller, mClock.getAsLong());
+            admit(transfer);
+            Transfer existing = mIncoming.putIfAbsent(key, transfer);
+            if (existing != null) {
+                release(transfer);
+                transfer = existing;
+            }
+        }
+        if (!transfer.isFrom(caller)) {
+            throw new IllegalStateException("Unknown or expired chunked transfer: " + transferId);
+        }
+        if (transfer.kind != kind) {
+            throw new IllegalArgumentException("Chunk kind mismatch in transfer " + transferId);
+        }
+        try {
+            reserve(transfer, partBytes(part));
+        } catch (ServiceSpecificException e) {
+            // 剩下的分块也放不下，整个传输作废，不等超时
+            mIncoming.remove(key, transfer);
+            release(transfer);
+            throw e;
+        }
+        if (!transfer.setOnce(index, part)) {
+            throw new IllegalArgumentException("Duplicate chunk " + index + " in transfer " + transferId);
+        }
+    }
+    
+    /**
+     * 写入字符串返回值，超过阈值时第一块随回复返回，其余分块留给客户端取回
+     *
+     * @param caller 本次调用的调用方，只有它可以取回剩余分块
+     * @throws ServiceSpecificException ERROR_BUSY，缓存已满
+     */
+    public void writeString(Parcel reply, String value, long caller) {
+        if (value == null || value.length() <= CHUNK_CHARS) {
+            reply.writeString(value);
+            return;
+        }
+        
+        int count = chunkCount(value.length(), CHUNK_CHARS);
+        if (count > MAX_CHUNKS) {
+            throw new IllegalStateException("Reply too large: " + value.length() + " chars");
+        }
+        Transfer transfer = new Transfer(PART_STRING, count, caller, mClock.getAsLong());
+        admit(transfer);
+        try {
+            reserve(transfer, 2L * (value.length() - CHUNK_CHARS));
+        } catch (ServiceSpecificException e) {
+            release(transfer);
+            throw e;
+        }
+        for (int i = 1; i < count; i++) {
+            transfer.set(i, charChunk(value, i));
+        }
+        long transferId = mNextOutgoingId.incrementAndGet();
+        mOutgoing.put(transferId, transfer);
+        
+        reply.writeInt(MARKER_CHUNKED);
+        reply.writeLong(transferId);
+        reply.writeInt(count);
+        reply.writeString(charChunk(value, 0));
+    }
+    
+    /**
+     * 处理 TRANSACTION_fetchChunk：返回一个待取回的分块，最后一块取走后释放
+     */
+    public void onFetchChunk(Parcel data, Parcel reply, long caller) {
+        long transferId = data.readLong();
+        int index = data.readInt();
+        Transfer transfer = mOutgoing.get(transferId);
+        if (transfer != null && isExpired(transfer)) {
+            if (mOutgoing.remove(transferId, transfer)) {
+                release(transfer);
+            }
+            transfer = null;
+        }
+        if (transfer == null || !transfer.isFrom(caller) || index <= 0 || index >= transfer.parts.length) {
+            throw new IllegalStateException("Unknown or expired chunked transfer: " + transferId);
+        }
+        String part = (String) transfer.get(index);
+        if (index == transfer.parts.length - 1 && mOutgoing.remove(transferId, transfer)) {
+            release(transfer);
+        }
+        reply.writeNoException();
+        reply.writeString(part);
+    }
+    
+    /**
+     * 所有未完成的传输缓存的字节数
+     */
+    synchronized long bufferedBytes() {
+        return mBufferedBytes;
+    }
+    
+    private Transfer takeIncoming(long caller, long transferId, int count, int kind) {
+        IncomingKey key = new IncomingKey(uidOf(caller), transferId);
+        Transfer transfer = mIncoming.get(key);
+        if (transfer != null && isExpired(transfer)) {
+            if (mIncoming.remove(key, transfer)) {
+                release(transfer);
+            }
+            transfer = null;
+        }
+        if (transfer == null || !transfer.isFrom(caller) || transfer.parts.length != count || transfer.kind != kind
+                || !mIncoming.remove(key, transfer)) {
+            throw new IllegalStateException("Unknown or expired chunked transfer: " + transferId);
+        }
+        // 分块马上拼接成结果，不再计入缓存
+        release(transfer);
+        return transfer;
+    }
+    
+    /**
+     * 登记一个新的传输，调用方未完成的传输太多时先回收过期的传输，仍然太多时拒绝
+     */
+    private synchronized void admit(Transfer transfer) {
+        long[] usage = mCallerUsage.get(transfer.uid);
+        if (usage != null && usage[0] >= MAX_CALLER_TRANSFERS) {
+            purgeExpired();
+            usage = mCallerUsage.get(transfer.uid);
+            if (usage != null && usage[0] >= MAX_CALLER_TRANSFERS) {
+                throw busy();
+            }
+        }
+        if (usage == null) {
+            usage = new long[2];
+            mCallerUsage.put(transfer.uid, usage);
+        }
+        usage[0]++;
+        transfer.admitted = true;
+    }
+    
+    /**
+     * 为传输多缓存 bytes 字节，超过总量或调用方的上限时先回收过期的传输，仍然超过时拒绝
+     */
+    private synchronized void reserve(Transfer transfer, long bytes) {
+        if (!fits(transfer.uid, bytes)) {
+            purgeExpired();
+            if (!fits(transfer.uid, bytes)) {
+                throw busy();
+            }
+        }
+        mCallerUsage.get(transfer.uid)[1] += bytes;
+        mBufferedBytes += bytes;
+        transfer.bytes += bytes;
+    }
+    
+    /**
+     * 归还传输占用的名额和缓存，重复调用没有影响
+     */
+    private synchronized void release(Transfer transfer) {
+        if (!transfer.admitted) {
+            return;
+        }
+        transfer.admitted = false;
+        mBufferedBytes -= transfer.bytes;
+        long[] usage = mCallerUsage.get(transfer.uid);
+        usage[0]--;
+        usage[1] -= transfer.bytes;
+        if (usage[0] == 0) {
+            mCallerUsage.remove(transfer.uid);
+        }
+    }
+    
+    private boolean fits(int uid, long bytes) {
+        long[] usage = mCallerUsage.get(uid);
+        long callerBytes = usage != null ? usage[1] : 0;
+        return mBufferedBytes + bytes <= MAX_BUFFERED_BYTES && callerBytes + bytes <= MAX_CALLER_BYTES;
+    }
+    
+    private void purgeExpired() {
+        purgeExpired(mIncoming);
+        purgeExpired(mOutgoing);
+    }
+    
+    private <K> void purgeExpired(ConcurrentHashMap<K, Transfer> transfers) {
+        transfers.entrySet().removeIf(entry -> {
+            if (!isExpired(entry.getValue())) {
+                return false;
+            }
+            release(entry.getValue());
+            return true;
+        });
+    }
+    
+    private boolean isExpired(Transfer transfer) {
+        return mClock.getAsLong() - transfer.createdAt > TRANSFER_TIMEOUT_MS;
+    }
+    
+    private static ServiceSpecificException busy() {
+        return new ServiceSpecificException(IMyAidlInterface.ERROR_BUSY,
+                "Too many pending chunked transfers, retry later");
+    }
+    
+    private static long partBytes(Object part) {
+        if (part instanceof String) {
+            return 2L * ((String) part).length();
+        }
+        return part != null ? ((byte[]) part).length : 0;
+    }
+    
+    private static int uidOf(long caller) {
+        return (int) (caller >>> 32);
+    }
+    
+    /**
+     * 解压到线程复用的缓冲区，只为结果字符串分配内存
+     */
+    private static String decompress(byte[] compressed, int length, int rawLength) {
+        byte[] raw = sBuffers.get().output(rawLength);
+        LzCodec.decompress(compressed, 0, length, raw, rawLength);
+        return new String(raw, 0, rawLength, StandardCharsets.UTF_8);
+    }
+    
+    private static int checkRawLength(int rawLength) {
+        if (rawLength < 0 || rawLength > MAX_RAW_BYTES) {
+            throw new IllegalArgumentException("Bad compressed length: " + rawLength);
+        }
+        return rawLength;
+    }
+    
+    private static int chunkCount(int length, int chunkSize) {
+        return (length + chunkSize - 1) / chunkSize;
+    }
+    
+    private static String charChunk(String value, int index) {
+        int start = index * CHUNK_CHARS;
+        return value.substring(start, Math.min(value.length(), start + CHUNK_CHARS));
+    }
+    
+    /**
+     * 客户端上传的传输的key
+     */
+    private static final class IncomingKey {
+        final int uid;
+        final long transferId;
+        
+        IncomingKey(int uid, long transferId) {
+            this.uid = uid;
+            this.transferId = transferId;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof IncomingKey)) {
+                return false;
+            }
+            IncomingKey other = (IncomingKey) o;
+            return uid == other.uid && transferId == other.transferId;
+        }
+        
+        @Override
+        public int hashCode() {
+            return 31 * uid + Long.hashCode(transferId);
+        }
+    }
+    
+    /**
+     * 一次未完成的传输，分块是String或byte[]
+     */
+    private static final class Transfer {
+        final int kind;
+        final Object[] parts;
+        final long createdAt;
+        final int uid;
+        final int pid;
+        
+        /**
+         * 占用的名额和缓存字节数，受外层 ChunkedTransfer 保护
+         */
+        boolean admitted;
+        long bytes;
+        
+        Transfer(int kind, int count, long caller, long createdAt) {
+            this.kind = kind;
+            this.createdAt = createdAt;
+            parts = new Object[count];
+            uid = uidOf(caller);
+            pid = (int) caller;
+        }
+        
+        /**
+         * oneway调用的pid是0，这时只比较uid
+         */
+        boolean isFrom(long caller) {
+            int callerPid = (int) caller;
+            return uidOf(caller) == uid && (callerPid == 0 || pid == 0 || callerPid == pid);
+        }
+        
+        synchronized void set(int index, Object part) {
+            parts[index] = part;
+        }
+        
+        /**
+         * 分块已经存在时不覆盖，返回false
+         */
+        synchronized boolean setOnce(int index, Object part) {
+            if (parts[index] != null) {
+                return false;
+            }
+            parts[index] = part;
+            return true;
+        }
+        
+        synchronized Object get(int index) {
+            return parts[index];
+        }
+        
+        synchronized String joinString() {
+            int length = 0;
+            for (Object part : parts) {
+                length += ((String) requirePart(part)).length();
+            }
+            StringBuilder builder = new StringBuilder(length);
+            for (Object part : parts) {
+                builder.append((String) part);
+            }
+            return builder.toString();
+        }
+        
+        synchronized int byteLength() {
+            int length = 0;
+            for (Object part : parts) {
+                length += ((byte[]) requirePart(part)).length;
+            }
+            return length;
+        }
+        
+        synchronized void copyBytes(byte[] dst) {
+            int offset = 0;
+            for (Object part : parts) {
+                byte[] bytes = (byte[]) part;
+                System.arraycopy(bytes, 0, dst, offset, bytes.length);
+                offset += bytes.length;
+            }
+        }
+        
+        private static Object requirePart(Object part) {
+            if (part == null) {
+                throw new IllegalStateException("Chunked transfer is incomplete");
+            }
+            return part;
+        }
+    }
+    
+    /**
+     * 线程复用的缓冲区：压缩哈希表、压缩数据、解压输出
+     */
+    private static final class Buffers {
+        final int[] table = new int[LzCodec.HASH_TABLE_SIZE];
+        private byte[] mCompressed = new byte[0];
+        private byte[] mOutput = new byte[0];
+        
+        byte[] compressed(int size) {
+            if (size > MAX_RETAINED_BUFFER) {
+                return new byte[size];
+            }
+            if (mCompressed.length < size) {
+                mCompressed = new byte[size];
+            }
+            return mCompressed;
+        }
+        
+        byte[] output(int size) {
+            if (size > MAX_RETAINED_BUFFER) {
+                return new byte[size];
+            }
+            if (mOutput.length < size) {
+                mOutput = new byte[size];
+            }
+            return mOutput;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.zhongmin.aidl;
+
+import android.os.BadParcelableException;
+import android.os.IBinder;
+import android.os.NetworkOnMainThreadException;
+import android.os.RemoteException;
+import android.os.ServiceSpecificException;
+import android.util.Log;
+
+/**
+ * 同进程调用的包装
+ *
+ * 服务与客户端在同一进程时直接调用服务对象，但保持与跨进程调用相同的语义：
+ * 1. 数组参数和返回值按值传递，双方各自持有一份拷贝
+ * 2. 能通过Parcel传递的异常（见 Parcel.writeException）重新创建后抛出，只保留类型和消息，
+ *    与客户端跨进程收到的一样；子类按父类传递，例如 NumberFormatException 变成 IllegalArgumentException
+ * 3. 其他异常（包括服务实现抛出的 RemoteException）跨进程时无法写回，Binder只记录日志，
+ *    客户端拿到的是默认返回值；这里同样记录日志并返回相同的默认值
+ * 4. Error 不做处理，直接抛出
+ *
+ * 调用不经过 onTransact，准入控制和优先级分发不生效。
+ */
+final class ColocatedInterface implements IMyAidlInterface {
+    private static final String TAG = "ColocatedInterface";
+    
+    private final IMyAidlInterface mService;
+    
+    ColocatedInterface(IMyAidlInterface service) {
+        mService = service;
+    }
+    
+    @Override
+    public IBinder asBinder() {
+        return mService.asBinder();
+    }
+    
+    @Override
+    public int getPid() throws RemoteException {
+        try {
+            return mService.getPid();
+        } catch (RuntimeException | RemoteException e) {
+            propagate(e);
+            return 0;
+        }
+    }
+    
+    @Override
+    public void basicTypes(int anInt, long aLong, boolean aBoolean, float aFloat,
+                           double aDouble, String aString) throws RemoteException {
+        try {
+            mService.basicTypes(anInt, aLong, aBoolean, aFloat, aDouble, aString);
+        } catch (RuntimeException | RemoteException e) {
+            propagate(e);
+        }
+    }
+    
+    @Override
+    public int add(int a, int b) throws RemoteException {
+        try {
+            return mService.add(a, b);
+        } catch (RuntimeException | RemoteException e) {
+            propagate(e);
+            return 0;
+        }
+    }
+    
+    @Override
+    public String getServiceName() throws RemoteException {
+        try {
+            return mService.getServiceName();
+        } catch (RuntimeException | RemoteException e) {
+            propagate(e);
+            return null;
+        }
+    }
+    
+    @Override
+    public int[] addArrays(int[] a, int[] b) throws RemoteException {
+        try {
+            return copy(mService.addArrays(copy(a), copy(b)));
+        } catch (RuntimeException | RemoteException e) {
+            propagate(e);
+            // 空的回复读出来是长度为0的数组
+            return new int[0];
+        }
+    }
+    
+    @Override
+    public long sum(int[] values) throws RemoteException {
+        try {
+            return mService.sum(copy(values));
+        } catch (RuntimeException | RemoteException e) {
+            propagate(e);
+            return 0;
+        }
+    }
+    
+    @Override
+    public long dot(int[] a, int[] b) throws RemoteException {
+        try {
+            return mService.dot(copy(a), copy(b));
+        } catch (RuntimeException | RemoteException e) {
+            propagate(e);
+            return 0;
+        }
+    }
+    
+    @Override
+    public void subscribe(IMyEventCallback callback, String[] topics) throws RemoteException {
+        try {
+            mService.subscribe(callback, topics != null ? topics.clone() : null);
+        } catch (RuntimeException | RemoteException e) {
+            propagate(e);
+        }
+    }
+    
+    @Override
+    public void unsubscribe(IMyEventCallback callback) throws RemoteException {
+        try {
+            mService.unsubscribe(callback);
+        } catch (RuntimeException | RemoteException e) {
+            propagate(e);
+        }
+    }
+    
+    private static int[] copy(int[] values) {
+        return values != null ? values.clone() : null;
+    }
+    
+    /**
+     * 能跨进程传递的异常按客户端收到的样子重新抛出，其他异常只记录日志
+     */
+    private static void propagate(Exception e) {
+        RuntimeException remote = asRemoteException(e);
+        if (remote != null) {
+            throw remote;
+        }
+        Log.e(TAG, "Uncaught remote exception, returning default value", e);
+    }
+    
+    /**
+     * 与 Parcel.writeException 支持的异常类型和判断顺序一致
+     */
+    private static RuntimeException asRemoteException(Exception e) {
+        String message = e.getMessage();
+        if (e instanceof SecurityException) {
+            return new SecurityException(message);
+        } else if (e instanceof BadParcelableException) {
+            return new BadParcelableException(message);
+        } else if (e instanceof IllegalArgumentException) {
+            return new IllegalArgumentException(message);
+        } else if (e instanceof NullPointerException) {
+            return new NullPointerException(message);
+        } else if (e instanceof IllegalStateException) {
+            return new IllegalStateException(message);
+        } else if (e instanceof NetworkOnMainThreadException) {
+            return new NetworkOnMainThreadException();
+        } else if (e instanceof UnsupportedOperationException) {
+            return new UnsupportedOperationException(message);
+        } else if (e instanceof ServiceSpecificException) {
+            return new ServiceSpecificException(((ServiceSpecificException) e).errorCode, message);
+        }
+        return null;
+    }
+}
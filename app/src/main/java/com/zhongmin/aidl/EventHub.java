@@ -0,0 +1,279 @@
+package com.zhongmin.aidl;
+
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 事件分发
+ *
+ * 服务端任意线程调用 publish()，同一个tick内同一主题只保留最新值；每个tick给每个订阅者
+ * 发一次oneway回调，带上它订阅的所有变化。投递次数与订阅者数和事件变化相关，与客户端轮询频率无关；
+ * 没有事件时不唤醒。订阅者用 RemoteCallbackList 管理，进程死亡时自动移除。
+ *
+ * 慢的订阅者：对方异步缓冲区满时oneway调用会失败，未送达的事件按主题合并进它的积压，下个tick重试；
+ * 连续失败 MAX_FAILED_TICKS 次，或积压的主题超过 MAX_BACKLOG_TOPICS 时移除该订阅者，
+ * 不影响其他订阅者。新订阅者在下一个tick收到所订阅主题的当前值。
+ *
+ * 各主题的当前值参与 WarmSnapshot，服务进程重启后新订阅者仍然能马上收到。
+ */
+public class EventHub implements WarmSnapshot.Participant {
+    private static final String TAG = "EventHub";
+    
+    private static final int MAX_FAILED_TICKS = 50;
+    private static final int MAX_BACKLOG_TOPICS = 1024;
+    
+    private final long mTickMillis;
+    private final ScheduledExecutorService mExecutor;
+    private final RemoteCallbackList<IMyEventCallback> mSubscribers = new RemoteCallbackList<>();
+    
+    private final Object mLock = new Object();
+    
+    /**
+     * 当前tick内变化的主题，受 mLock 保护
+     */
+    private LinkedHashMap<String, String> mDirty = new LinkedHashMap<>();
+    
+    /**
+     * 每个主题的最新值，受 mLock 保护
+     */
+    private final HashMap<String, String> mLatest = new HashMap<>();
+    private boolean mScheduled;
+    private boolean mShutdown;
+    
+    private final AtomicLong mPublished = new AtomicLong();
+    private final AtomicLong mTicks = new AtomicLong();
+    private final AtomicLong mCallbacks = new AtomicLong();
+    private final AtomicLong mFailedCallbacks = new AtomicLong();
+    private final AtomicLong mDroppedSubscribers = new AtomicLong();
+    
+    /**
+     * @param tickMillis 批量投递的间隔
+     */
+    public EventHub(long tickMillis) {
+        mTickMillis = tickMillis;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "event-hub");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * 发布事件，可以在任意线程调用
+     */
+    public void publish(String topic, String value) {
+        mPublished.incrementAndGet();
+        synchronized (mLock) {
+            mDirty.put(topic, value);
+            mLatest.put(topic, value);
+            scheduleTickLocked();
+        }
+    }
+    
+    /**
+     * 订阅，同一个callback重复订阅时替换主题
+     *
+     * @param topics 订阅的主题，null表示所有主题
+     */
+    public void subscribe(IMyEventCallback callback, String[] topics) {
+        Subscription subscription = new Subscription(topics);
+        synchronized (mLock) {
+            // 新订阅者先收到当前值
+            for (Map.Entry<String, String> entry : mLatest.entrySet()) {
+                if (subscription.accepts(entry.getKey())) {
+                    subscription.backlog.put(entry.getKey(), entry.getValue());
+                }
+            }
+            // 在锁内注册：之后的 publish 一定进入它能收到的tick；
+            // 锁外注册时，中间发布的新值可能在注册前就投递完，订阅者只收到快照里的旧值
+            mSubscribers.register(callback, subscription);
+            if (!subscription.backlog.isEmpty()) {
+                scheduleTickLocked();
+            }
+        }
+    }
+    
+    public void unsubscribe(IMyEventCallback callback) {
+        mSubscribers.unregister(callback);
+    }
+    
+    /**
+     * 停止投递并移除所有订阅者
+     */
+    public void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+        }
+        mExecutor.shutdownNow();
+        mSubscribers.kill();
+    }
+    
+    /**
+     * 输出订阅者数量和投递统计
+     */
+    public void dump(PrintWriter writer) {
+        int topics;
+        synchronized (mLock) {
+            topics = mLatest.size();
+        }
+        writer.println("Events:");
+        writer.println("  subscribers: " + mSubscribers.getRegisteredCallbackCount()
+                + ", topics: " + topics + ", tick: " + mTickMillis + "ms");
+        writer.println("  published: " + mPublished.get() + ", ticks: " + mTicks.get()
+                + ", callbacks: " + mCallbacks.get() + ", failed: " + mFailedCallbacks.get()
+                + ", dropped subscribers: " + mDroppedSubscribers.get());
+    }
+    
+    @Override
+    public void writeSnapshot(DataOutput out) throws IOException {
+        HashMap<String, String> latest;
+        synchronized (mLock) {
+            latest = new HashMap<>(mLatest);
+        }
+        out.writeInt(latest.size());
+        for (Map.Entry<String, String> entry : latest.entrySet()) {
+            WarmSnapshot.writeString(out, entry.getKey());
+            WarmSnapshot.writeString(out, entry.getValue());
+        }
+    }
+    
+    /**
+     * 恢复各主题的当前值，不推送给订阅者；重启后已经发布过的主题保留新值
+     */
+    @Override
+    public void readSnapshot(DataInput in) throws IOException {
+        int count = in.readInt();
+        HashMap<String, String> latest = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String topic = WarmSnapshot.readString(in);
+            latest.put(topic, WarmSnapshot.readString(in));
+        }
+        synchronized (mLock) {
+            for (Map.Entry<String, String> entry : latest.entrySet()) {
+                mLatest.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+    
+    private void scheduleTickLocked() {
+        if (!mScheduled && !mShutdown) {
+            mScheduled = true;
+            mExecutor.schedule(this::tick, mTickMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    private void tick() {
+        LinkedHashMap<String, String> batch;
+        synchronized (mLock) {
+            batch = mDirty;
+            mDirty = new LinkedHashMap<>();
+            mScheduled = false;
+        }
+        mTicks.incrementAndGet();
+        String[] topics = batch.keySet().toArray(new String[0]);
+        String[] values = batch.values().toArray(new String[0]);
+        
+        boolean retry = false;
+        int count = mSubscribers.beginBroadcast();
+        try {
+            for (int i = 0; i < count; i++) {
+                IMyEventCallback callback = mSubscribers.getBroadcastItem(i);
+                Subscription subscription = (Subscription) mSubscribers.getBroadcastCookie(i);
+                deliver(callback, subscription, topics, values);
+                retry |= !subscription.backlog.isEmpty();
+            }
+        } finally {
+            mSubscribers.finishBroadcast();
+        }
+        
+        if (retry) {
+            synchronized (mLock) {
+                scheduleTickLocked();
+            }
+        }
+    }
+    
+    /**
+     * 在tick线程上执行
+     */
+    private void deliver(IMyEventCallback callback, Subscription subscription, String[] topics, String[] values) {
+        String[] outTopics = topics;
+        String[] outValues = values;
+        // 订阅所有主题且没有积压时直接发送共享的数组，不需要为每个订阅者复制
+        if (subscription.topics != null || !subscription.backlog.isEmpty()) {
+            for (int i = 0; i < topics.length; i++) {
+                if (subscription.accepts(topics[i])) {
+                    subscription.backlog.remove(topics[i]);
+                    subscription.backlog.put(topics[i], values[i]);
+                }
+            }
+            outTopics = subscription.backlog.keySet().toArray(new String[0]);
+            outValues = subscription.backlog.values().toArray(new String[0]);
+        }
+        if (outTopics.length == 0) {
+            return;
+        }
+        
+        try {
+            callback.onEvents(outTopics, outValues);
+            mCallbacks.incrementAndGet();
+            subscription.failedTicks = 0;
+            subscription.backlog.clear();
+        } catch (RemoteException | RuntimeException e) {
+            mFailedCallbacks.incrementAndGet();
+            if (outTopics == topics) {
+                for (int i = 0; i < topics.length; i++) {
+                    subscription.backlog.put(topics[i], values[i]);
+                }
+            }
+            subscription.failedTicks++;
+            if (subscription.failedTicks >= MAX_FAILED_TICKS
+                    || subscription.backlog.size() > MAX_BACKLOG_TOPICS) {
+                Log.w(TAG, "Dropping slow subscriber after " + subscription.failedTicks + " failed ticks", e);
+                subscription.backlog.clear();
+                mSubscribers.unregister(callback);
+                mDroppedSubscribers.incrementAndGet();
+            }
+        }
+    }
+    
+    /**
+     * 一个订阅者的状态，只在tick线程上访问
+     */
+    private static final class Subscription {
+        /**
+         * 订阅的主题，null表示所有主题
+         */
+        final Set<String> topics;
+        
+        /**
+         * 还没送达的事件，按主题合并
+         */
+        final LinkedHashMap<String, String> backlog = new LinkedHashMap<>();
+        int failedTicks;
+        
+        Subscription(String[] topics) {
+            this.topics = topics != null ? new HashSet<>(Arrays.asList(topics)) : null;
+        }
+        
+        boolean accepts(String topic) {
+            return topics == null || topics.contains(topic);
+        }
+    }
+}
@@ -21,21 +21,86 @@ public interface IMyAidlInterface extends IInterface {
     void basicTypes(int anInt, long aLong, boolean aBoolean, float aFloat,
                     double aDouble, String aString) throws RemoteException;
     
+    /**
+     * basicTypes 的oneway版本，不等待服务端执行完，用于允许少量丢失的后台上报
+     * 服务端过载拒绝或执行失败的调用不会抛给调用方，而是按调用方uid计数，通过 takeDroppedOneway() 取回；
+     * 服务端不支持oneway或同进程调用时按 basicTypes 同步执行
+     */
+    default void basicTypesOneway(int anInt, long aLong, boolean aBoolean, float aFloat,
+                                  double aDouble, String aString) throws RemoteException {
+        basicTypes(anInt, aLong, aBoolean, aFloat, aDouble, aString);
+    }
+    
+    /**
+     * 取回并清零服务端丢弃的本uid的oneway调用数，调用方据此决定是否重发或降级为同步调用
+     */
+    default int takeDroppedOneway() throws RemoteException {
+        return 0;
+    }
+    
     /**
      * 加法运算
      */
     int add(int a, int b) throws RemoteException;
     
     /**
-     * 获取服务名称
+     * 获取服务名称，在服务进程的生命周期内不变，客户端代理会缓存
      */
     String getServiceName() throws RemoteException;
     
+    /**
+     * 两个int数组逐元素相加
+     */
+    int[] addArrays(int[] a, int[] b) throws RemoteException;
+    
+    /**
+     * int数组求和
+     */
+    long sum(int[] values) throws RemoteException;
+    
+    /**
+     * 两个int数组的点积
+     */
+    long dot(int[] a, int[] b) throws RemoteException;
+    
+    /**
+     * 订阅服务端事件，事件按批次通过oneway回调推送，见 EventHub
+     * 同一个callback重复订阅时替换主题；topics为null表示所有主题
+     */
+    void subscribe(IMyEventCallback callback, String[] topics) throws RemoteException;
+    
+    /**
+     * 取消订阅
+     */
+    void unsubscribe(IMyEventCallback callback) throws RemoteException;
+    
     /**
      * Binder描述符 - 用于验证接口一致性
      */
     String DESCRIPTOR = "com.zhongmin.aidl.IMyAidlInterface";
     
+    /**
+     * 错误码 - 服务端过载拒绝了本次调用，可以稍后重试
+     * 客户端收到的是 ServiceSpecificException，errorCode 为该值
+     */
+    int ERROR_BUSY = 1;
+    
+    /**
+     * 调用通道 - 交互调用（默认）优先执行，批量调用使用剩余的处理能力，见 PriorityDispatcher
+     */
+    int LANE_INTERACTIVE = 0;
+    int LANE_BULK = 1;
+    
+    /**
+     * 批量通道的调用在事务码上加此标记位，服务端分发前去掉
+     */
+    int FLAG_BULK_LANE = 0x00100000;
+    
+    /**
+     * 事务标志 - 传输层不能传递文件描述符（见 SocketBinder），大数组等参数和返回值必须内联写入Parcel
+     */
+    int FLAG_INLINE_ONLY = 0x00010000;
+    
     /**
      * 事务码 - 每个方法对应一个唯一的事务码
      */
@@ -43,4 +108,31 @@ public interface IMyAidlInterface extends IInterface {
     int TRANSACTION_basicTypes = IBinder.FIRST_CALL_TRANSACTION + 1;
     int TRANSACTION_add = IBinder.FIRST_CALL_TRANSACTION + 2;
     int TRANSACTION_getServiceName = IBinder.FIRST_CALL_TRANSACTION + 3;
+    
+    /**
+     * 内部事务码 - 大字符串分块传输，不对应接口方法，见 ChunkedTransfer
+     */
+    int TRANSACTION_putChunk = IBinder.FIRST_CALL_TRANSACTION + 4;
+    int TRANSACTION_fetchChunk = IBinder.FIRST_CALL_TRANSACTION + 5;
+    
+    /**
+     * 内部事务码 - 每个连接协商一次压缩编码，新客户端改用 TRANSACTION_handshake，保留给旧客户端
+     */
+    int TRANSACTION_negotiate = IBinder.FIRST_CALL_TRANSACTION + 6;
+    
+    int TRANSACTION_addArrays = IBinder.FIRST_CALL_TRANSACTION + 7;
+    int TRANSACTION_sum = IBinder.FIRST_CALL_TRANSACTION + 8;
+    int TRANSACTION_dot = IBinder.FIRST_CALL_TRANSACTION + 9;
+    int TRANSACTION_subscribe = IBinder.FIRST_CALL_TRANSACTION + 10;
+    int TRANSACTION_unsubscribe = IBinder.FIRST_CALL_TRANSACTION + 11;
+    
+    /**
+     * 内部事务码 - 每个Binder握手一次，交换能力位图和传输上限，见 Capabilities
+     */
+    int TRANSACTION_handshake = IBinder.FIRST_CALL_TRANSACTION + 12;
+    
+    /**
+     * 内部事务码 - 取回丢弃的oneway调用数，见 takeDroppedOneway()
+     */
+    int TRANSACTION_takeDroppedOneway = IBinder.FIRST_CALL_TRANSACTION + 13;
 }
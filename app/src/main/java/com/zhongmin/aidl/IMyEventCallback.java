@@ -0,0 +1,33 @@
+package com.zhongmin.aidl;
+
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.RemoteException;
+
+/**
+ * 仿AIDL事件回调接口定义
+ * 客户端实现后通过 IMyAidlInterface.subscribe 注册，服务端用oneway调用批量推送事件
+ */
+public interface IMyEventCallback extends IInterface {
+    
+    /**
+     * 一批事件，同一批内每个主题只有最新的值
+     * oneway调用，服务端不等待客户端处理完成
+     */
+    void onEvents(String[] topics, String[] values) throws RemoteException;
+    
+    /**
+     * Binder描述符 - 用于验证接口一致性
+     */
+    String DESCRIPTOR = "com.zhongmin.aidl.IMyEventCallback";
+    
+    /**
+     * 主题 - 服务端收到 basicTypes 调用
+     */
+    String TOPIC_BASIC_TYPES = "basicTypes";
+    
+    /**
+     * 事务码
+     */
+    int TRANSACTION_onEvents = IBinder.FIRST_CALL_TRANSACTION + 0;
+}
@@ -0,0 +1,41 @@
+package com.zhongmin.aidl;
+
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.RemoteException;
+
+/**
+ * 服务注册表接口
+ * RemoteService.onBind 返回注册表，各个子接口的Binder按名字获取，一个进程、一次绑定提供所有接口
+ */
+public interface IServiceRegistry extends IInterface {
+    
+    /**
+     * 按名字获取子接口的Binder，名字使用接口描述符，例如 IMyAidlInterface.DESCRIPTOR
+     * 
+     * @return 没有这个接口时返回null
+     */
+    IBinder getService(String name) throws RemoteException;
+    
+    /**
+     * 一次获取多个子接口，结果与名字一一对应
+     */
+    IBinder[] getServices(String[] names) throws RemoteException;
+    
+    /**
+     * 所有已注册的接口名字
+     */
+    String[] listServices() throws RemoteException;
+    
+    /**
+     * Binder描述符 - 用于验证接口一致性
+     */
+    String DESCRIPTOR = "com.zhongmin.aidl.IServiceRegistry";
+    
+    /**
+     * 事务码
+     */
+    int TRANSACTION_getService = IBinder.FIRST_CALL_TRANSACTION + 0;
+    int TRANSACTION_getServices = IBinder.FIRST_CALL_TRANSACTION + 1;
+    int TRANSACTION_listServices = IBinder.FIRST_CALL_TRANSACTION + 2;
+}
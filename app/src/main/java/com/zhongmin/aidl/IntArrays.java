@@ -0,0 +1,114 @@
+package com.zhongmin.aidl;
+
+import android.os.Parcel;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * int数组的序列化
+ *
+ * 小数组直接用 writeIntArray 放进Parcel；超过 INLINE_MAX_INTS 的数组放进 SharedMemory，
+ * Parcel里只传文件描述符，避免百万级元素的数组撑爆1MB的Binder事务缓冲区。
+ *
+ * 线格式：内联时与 writeIntArray 完全一致；共享内存时先写负数标记 MARKER_SHARED，
+ * writeIntArray 的长度字段永远不会小于 -1。
+ */
+public class IntArrays {
+    
+    /**
+     * 内联传输的最大元素数：16K个int = 64KB，与字符串分块占用相同的事务缓冲区
+     */
+    public static final int INLINE_MAX_INTS = 16 * 1024;
+    
+    static final int MARKER_SHARED = -2;
+    
+    private IntArrays() {
+    }
+    
+    /**
+     * 写入int数组
+     * 共享内存创建失败时退回内联方式
+     */
+    public static void write(Parcel parcel, int[] values) {
+        write(parcel, values, true);
+    }
+    
+    /**
+     * 写入int数组
+     *
+     * @param allowShared 传输层是否能传递文件描述符，false时总是内联
+     */
+    public static void write(Parcel parcel, int[] values, boolean allowShared) {
+        write(parcel, values, allowShared, INLINE_MAX_INTS);
+    }
+    
+    /**
+     * 写入int数组
+     *
+     * @param allowShared 传输层是否能传递文件描述符，false时总是内联
+     * @param inlineMaxInts 不超过此元素数时内联，由握手得到的事务大小上限决定
+     */
+    public static void write(Parcel parcel, int[] values, boolean allowShared, int inlineMaxInts) {
+        if (values == null || values.length <= inlineMaxInts || !allowShared) {
+            parcel.writeIntArray(values);
+            return;
+        }
+        
+        SharedMemory memory = null;
+        try {
+            memory = SharedMemory.create("aidl-int-array", values.length * 4);
+            ByteBuffer buffer = memory.mapReadWrite();
+            buffer.order(ByteOrder.nativeOrder()).asIntBuffer().put(values);
+            SharedMemory.unmap(buffer);
+            // 接收方只读
+            memory.setProtect(OsConstants.PROT_READ);
+        } catch (ErrnoException e) {
+            if (memory != null) {
+                memory.close();
+            }
+            parcel.writeIntArray(values);
+            return;
+        }
+        
+        try {
+            parcel.writeInt(MARKER_SHARED);
+            parcel.writeInt(values.length);
+            // Parcel会dup文件描述符，写入后即可关闭本地的引用
+            memory.writeToParcel(parcel, 0);
+        } finally {
+            memory.close();
+        }
+    }
+    
+    /**
+     * 读取int数组
+     */
+    public static int[] read(Parcel parcel) {
+        int position = parcel.dataPosition();
+        if (parcel.readInt() != MARKER_SHARED) {
+            parcel.setDataPosition(position);
+            return parcel.createIntArray();
+        }
+        
+        int length = parcel.readInt();
+        SharedMemory memory = SharedMemory.CREATOR.createFromParcel(parcel);
+        try {
+            if (length < 0 || (long) length * 4 > memory.getSize()) {
+                throw new IllegalArgumentException("Bad shared int array length: " + length);
+            }
+            int[] values = new int[length];
+            ByteBuffer buffer = memory.mapReadOnly();
+            buffer.order(ByteOrder.nativeOrder()).asIntBuffer().get(values);
+            SharedMemory.unmap(buffer);
+            return values;
+        } catch (ErrnoException e) {
+            throw new IllegalStateException("Failed to map shared int array", e);
+        } finally {
+            memory.close();
+        }
+    }
+}
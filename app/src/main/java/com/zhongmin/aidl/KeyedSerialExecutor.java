@@ -0,0 +1,183 @@
+package com.zhongmin.aidl;
+
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按key串行的执行器
+ *
+ * 同一个key（客户端PID或会话）提交的任务按提交顺序依次执行，不同key的任务在共享线程池上完全并行。
+ * 每个key一个无锁队列，队列里有任务时只占用线程池的一个线程；队列空了就从表里移除，
+ * 不需要一把全局锁来保证顺序。
+ */
+public class KeyedSerialExecutor {
+    private static final String TAG = "KeyedSerialExecutor";
+    
+    /**
+     * 一个key连续执行的最大任务数，超过后让出线程，避免热点key饿死其他key
+     */
+    private static final int MAX_BATCH = 32;
+    
+    private final Executor mPool;
+    private final ExecutorService mOwnedPool;
+    private final ConcurrentHashMap<Object, SerialQueue> mQueues = new ConcurrentHashMap<>();
+    
+    /**
+     * 使用外部线程池
+     */
+    public KeyedSerialExecutor(Executor pool) {
+        mPool = pool;
+        mOwnedPool = null;
+    }
+    
+    /**
+     * 创建自己的固定大小线程池
+     *
+     * @param threads 工作线程数
+     * @param name 线程名前缀
+     */
+    public KeyedSerialExecutor(int threads, String name) {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory factory = runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        mOwnedPool = Executors.newFixedThreadPool(threads, factory);
+        mPool = mOwnedPool;
+    }
+    
+    /**
+     * 提交任务，同一个key的任务按提交顺序执行
+     */
+    public void execute(Object key, Runnable task) {
+        while (true) {
+            SerialQueue queue = mQueues.computeIfAbsent(key, SerialQueue::new);
+            if (queue.offer(task)) {
+                return;
+            }
+            // 队列刚好在退役，重新取一个新的
+        }
+    }
+    
+    /**
+     * 当前有任务的key数量
+     */
+    public int activeKeys() {
+        return mQueues.size();
+    }
+    
+    /**
+     * 关闭自己创建的线程池，外部线程池由调用方管理
+     */
+    public void shutdown() {
+        if (mOwnedPool != null) {
+            mOwnedPool.shutdown();
+        }
+    }
+    
+    /**
+     * 一个key的任务队列
+     *
+     * mPending 是已提交未执行完的任务数，-1 表示已经退役：
+     * 提交时从0变成1的那个线程负责把队列调度到线程池；执行完变回0时尝试退役并从表里移除，
+     * 退役和提交通过CAS互斥，不会出现同一个key的两个队列同时执行。
+     */
+    private final class SerialQueue implements Runnable {
+        private final Object mKey;
+        private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger mPending = new AtomicInteger();
+        
+        SerialQueue(Object key) {
+            mKey = key;
+        }
+        
+        boolean offer(Runnable task) {
+            int pending;
+            do {
+                pending = mPending.get();
+                if (pending < 0) {
+                    return false;
+                }
+            } while (!mPending.compareAndSet(pending, pending + 1));
+            
+            mTasks.offer(task);
+            if (pending == 0) {
+                try {
+                    mPool.execute(this);
+                } catch (RejectedExecutionException e) {
+                    abandon();
+                    throw e;
+                }
+            }
+            return true;
+        }
+        
+        @Override
+        public void run() {
+            while (true) {
+                for (int i = 0; i < MAX_BATCH; i++) {
+                    Runnable task = take();
+                    int remaining;
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        Log.w(TAG, "Task for key " + mKey + " failed", t);
+                    } finally {
+                        // Error 也不能跳过计数，否则这个key之后的任务永远不会执行
+                        remaining = mPending.decrementAndGet();
+                    }
+                    if (remaining == 0) {
+                        // 退役失败说明刚好有新任务提交，提交线程已经重新调度
+                        if (mPending.compareAndSet(0, -1)) {
+                            mQueues.remove(mKey, this);
+                        }
+                        return;
+                    }
+                }
+                // 还有任务，重新排到线程池末尾；线程池不再接受时在当前线程上继续执行
+                try {
+                    mPool.execute(this);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    Log.w(TAG, "Pool rejected key " + mKey + ", draining on current thread");
+                }
+            }
+        }
+        
+        private Runnable take() {
+            Runnable task = mTasks.poll();
+            while (task == null) {
+                // 计数已经加上但任务还没入队，等提交线程完成
+                Thread.yield();
+                task = mTasks.poll();
+            }
+            return task;
+        }
+        
+        /**
+         * 线程池拒绝调度时退役这个队列，已经排队的任务不会再执行
+         * Future 类型的任务被取消，等待它的线程不会一直阻塞；之后提交的任务进入新的队列
+         */
+        private void abandon() {
+            int pending = mPending.getAndSet(-1);
+            mQueues.remove(mKey, this);
+            for (int i = 0; i < pending; i++) {
+                Runnable task = take();
+                if (task instanceof Future) {
+                    ((Future<?>) task).cancel(false);
+                }
+            }
+            Log.w(TAG, "Pool rejected key " + mKey + ", dropped " + pending + " tasks");
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.zhongmin.aidl;
+
+/**
+ * LZ压缩编解码（LZ4块格式的纯Java实现）
+ *
+ * 只做字节数组到字节数组的转换，不分配内存：
+ * 压缩使用调用方提供的哈希表，解压直接写入调用方提供的缓冲区，
+ * 方便两端按线程复用缓冲区。
+ *
+ * 块格式：若干个序列，每个序列由 token、字面量、匹配偏移、匹配长度组成，
+ * 最后一个序列只有字面量。
+ */
+public final class LzCodec {
+    
+    /**
+     * 哈希表大小，调用方分配 new int[HASH_TABLE_SIZE] 并在多次压缩之间复用
+     */
+    public static final int HASH_TABLE_SIZE = 1 << 12;
+    
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int SKIP_TRIGGER = 6;
+    
+    private LzCodec() {
+    }
+    
+    /**
+     * 压缩结果的最大长度（输入完全不可压缩时）
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+    
+    /**
+     * 压缩
+     *
+     * @param src 原始数据
+     * @param srcLength 原始数据长度
+     * @param dst 输出缓冲区，长度至少为 maxCompressedLength(srcLength)
+     * @param table 哈希表，长度为 HASH_TABLE_SIZE，不需要清零
+     * @return 压缩后的长度
+     */
+    public static int compress(byte[] src, int srcLength, byte[] dst, int[] table) {
+        int anchor = 0;
+        int out = 0;
+        
+        if (srcLength > MATCH_FIND_LIMIT) {
+            int matchFindEnd = srcLength - MATCH_FIND_LIMIT;
+            int matchEnd = srcLength - LAST_LITERALS;
+            int pos = 1;
+            while (pos < matchFindEnd) {
+                int sequence = readInt(src, pos);
+                int hash = hash(sequence);
+                // 哈希表不清零：旧数据只要位置合法且字节相同，同样是有效匹配
+                int ref = table[hash];
+                table[hash] = pos;
+                if (ref < 0 || ref >= pos || pos - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                    // 连续找不到匹配时加大步长，快速跳过不可压缩数据
+                    pos += 1 + ((pos - anchor) >>> SKIP_TRIGGER);
+                    continue;
+                }
+                
+                // 向前扩展匹配
+                while (pos > anchor && ref > 0 && src[pos - 1] == src[ref - 1]) {
+                    pos--;
+                    ref--;
+                }
+                
+                // 向后扩展匹配
+                int matchLength = MIN_MATCH;
+                while (pos + matchLength < matchEnd && src[pos + matchLength] == src[ref + matchLength]) {
+                    matchLength++;
+                }
+                
+                out = writeSequence(src, anchor, pos - anchor, pos - ref, matchLength, dst, out);
+                pos += matchLength;
+                anchor = pos;
+            }
+        }
+        
+        // 最后的字面量
+        int literalLength = srcLength - anchor;
+        int token = out++;
+        out = writeLength(literalLength, dst, token, out, 4);
+        System.arraycopy(src, anchor, dst, out, literalLength);
+        return out + literalLength;
+    }
+    
+    /**
+     * 解压
+     *
+     * @param src 压缩数据
+     * @param srcOffset 压缩数据起始位置
+     * @param srcLength 压缩数据长度
+     * @param dst 输出缓冲区
+     * @param dstLength 原始数据长度
+     * @throws IllegalArgumentException 数据损坏
+     */
+    public static void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstLength) {
+        int in = srcOffset;
+        int end = srcOffset + srcLength;
+        int out = 0;
+        
+        try {
+            while (true) {
+                int token = src[in++] & 0xFF;
+                
+                // 字面量
+                int literalLength = token >>> 4;
+                if (literalLength == 15) {
+                    int b;
+                    do {
+                        b = src[in++] & 0xFF;
+                        literalLength += b;
+                    } while (b == 255);
+                }
+                if (in + literalLength > end || out + literalLength > dstLength) {
+                    throw new IllegalArgumentException("Corrupted LZ block: literal overflow");
+                }
+                System.arraycopy(src, in, dst, out, literalLength);
+                in += literalLength;
+                out += literalLength;
+                if (in == end) {
+                    break;
+                }
+                
+                // 匹配
+                int offset = (src[in++] & 0xFF) | ((src[in++] & 0xFF) << 8);
+                int matchLength = token & 0x0F;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[in++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                int ref = out - offset;
+                if (offset == 0 || ref < 0 || out + matchLength > dstLength) {
+                    throw new IllegalArgumentException("Corrupted LZ block: bad match");
+                }
+                if (offset >= matchLength) {
+                    System.arraycopy(dst, ref, dst, out, matchLength);
+                } else {
+                    // 重叠匹配必须逐字节复制
+                    for (int i = 0; i < matchLength; i++) {
+                        dst[out + i] = dst[ref + i];
+                    }
+                }
+                out += matchLength;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Corrupted LZ block: truncated", e);
+        }
+        
+        if (out != dstLength) {
+            throw new IllegalArgumentException("Corrupted LZ block: expected " + dstLength + " bytes, got " + out);
+        }
+    }
+    
+    private static int writeSequence(byte[] src, int literalStart, int literalLength, int offset,
+                                     int matchLength, byte[] dst, int out) {
+        int token = out++;
+        out = writeLength(literalLength, dst, token, out, 4);
+        System.arraycopy(src, literalStart, dst, out, literalLength);
+        out += literalLength;
+        
+        dst[out++] = (byte) offset;
+        dst[out++] = (byte) (offset >>> 8);
+        
+        int extra = matchLength - MIN_MATCH;
+        if (extra >= 15) {
+            dst[token] |= 0x0F;
+            out = writeExtraLength(extra - 15, dst, out);
+        } else {
+            dst[token] |= (byte) extra;
+        }
+        return out;
+    }
+    
+    /**
+     * 把长度写入token的高4位（shift=4），超过14的部分用扩展字节表示
+     */
+    private static int writeLength(int length, byte[] dst, int token, int out, int shift) {
+        if (length >= 15) {
+            dst[token] = (byte) (15 << shift);
+            return writeExtraLength(length - 15, dst, out);
+        }
+        dst[token] = (byte) (length << shift);
+        return out;
+    }
+    
+    private static int writeExtraLength(int remaining, byte[] dst, int out) {
+        while (remaining >= 255) {
+            dst[out++] = (byte) 255;
+            remaining -= 255;
+        }
+        dst[out++] = (byte) remaining;
+        return out;
+    }
+    
+    private static int readInt(byte[] src, int pos) {
+        return (src[pos] & 0xFF)
+                | (src[pos + 1] & 0xFF) << 8
+                | (src[pos + 2] & 0xFF) << 16
+                | (src[pos + 3] & 0xFF) << 24;
+    }
+    
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - 12);
+    }
+}
@@ -8,6 +8,7 @@ import android.os.Bundle;
 import android.os.IBinder;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.Trace;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
@@ -18,16 +19,47 @@ import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 /**
  * MainActivity - Java实现
  * 演示跨进程通信（仿AIDL方式）
+ *
+ * 绑定过程和每次接口调用都有 trace section（aidl.bind、aidl.<方法名>），
+ * macrobenchmark 模块用它们测量冷启动后第一次调用的延迟，改名时需要同步修改
  */
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = "MainActivity";
     
     private IMyAidlInterface mService;
+    
+    /**
+     * 当前连接的服务注册表，连接期间保持同一个代理，已经获取的子接口不再跨进程查询
+     */
+    private IServiceRegistry mRegistry;
+    
+    /**
+     * 批量通道，后台上报类调用走这里，不影响界面调用的延迟；
+     * 先只绑定主连接的服务进程（第一个副本），批量调用堆积时才启动其他副本进程，见 ReplicaBalancer
+     */
+    private ReplicaBalancer mBulkReplicas;
+    
+    /**
+     * 批量通道的调用在这个线程上执行：服务端每次调用都要把遥测日志落盘（fsync），主线程不能等
+     */
+    private final ExecutorService mBulkExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "bulk-calls");
+        thread.setDaemon(true);
+        return thread;
+    });
     private boolean mBound = false;
     
+    /**
+     * aidl.bind 异步 section 的 cookie，每次绑定加一
+     */
+    private int mBindCookie;
+    
     private TextView tvStatus;
     private TextView tvLog;
     private Button btnBind;
@@ -39,6 +71,20 @@ public class MainActivity extends AppCompatActivity {
     
     private StringBuilder logBuilder = new StringBuilder();
     
+    /**
+     * 服务端事件回调，在Binder线程上收到，切到主线程写日志
+     */
+    private final MyEventCallbackStub mEventCallback = new MyEventCallbackStub() {
+        @Override
+        public void onEvents(String[] topics, String[] values) {
+            runOnUiThread(() -> {
+                for (int i = 0; i < topics.length; i++) {
+                    appendLog("✉ 事件 " + topics[i] + ": " + values[i]);
+                }
+            });
+        }
+    };
+    
     /**
      * ServiceConnection回调
      */
@@ -46,10 +92,25 @@ public class MainActivity extends AppCompatActivity {
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
             Log.d(TAG, "onServiceConnected: " + name);
-            mService = MyAidlStub.asInterface(service);
+            Trace.endAsyncSection("aidl.bind", mBindCookie);
+            mRegistry = ServiceRegistryStub.asInterface(service);
+            IBinder binder;
+            try {
+                binder = mRegistry.getService(IMyAidlInterface.DESCRIPTOR);
+            } catch (RemoteException e) {
+                // 服务进程在连接后立即死亡，等系统重启服务后再次回调
+                Log.e(TAG, "Failed to get " + IMyAidlInterface.DESCRIPTOR, e);
+                return;
+            }
+            if (binder == null) {
+                appendLog("✗ 服务没有提供 IMyAidlInterface");
+                return;
+            }
+            mService = MyAidlStub.asInterface(binder);
             mBound = true;
             updateStatus("服务已连接");
             appendLog("✓ 服务连接成功");
+            subscribeEvents();
             enableButtons(true);
             Toast.makeText(MainActivity.this, "服务绑定成功", Toast.LENGTH_SHORT).show();
         }
@@ -58,6 +119,7 @@ public class MainActivity extends AppCompatActivity {
         public void onServiceDisconnected(ComponentName name) {
             Log.d(TAG, "onServiceDisconnected: " + name);
             mService = null;
+            mRegistry = null;
             mBound = false;
             updateStatus("服务已断开");
             appendLog("✗ 服务连接断开");
@@ -193,13 +255,21 @@ public class MainActivity extends AppCompatActivity {
      */
     private void bindService() {
         if (!mBound) {
-            Intent intent = new Intent(this, RemoteService.class);
+            // 独立进程或同进程部署，见 ServiceDeployment；部署方式在进程启动时已经在后台读好
+            Intent intent = new Intent(this, ServiceDeployment.serviceClass(this));
+            if (mBulkReplicas == null) {
+                mBulkReplicas = new ReplicaBalancer(this, IMyAidlInterface.LANE_BULK);
+            }
+            // 从发起绑定到 onServiceConnected，包括服务进程的启动
+            Trace.beginAsyncSection("aidl.bind", ++mBindCookie);
             boolean success = bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
             if (success) {
+                mBulkReplicas.bind();
                 appendLog("→ 正在绑定服务...");
                 btnBind.setEnabled(false);
                 btnUnbind.setEnabled(true);
             } else {
+                Trace.endAsyncSection("aidl.bind", mBindCookie);
                 appendLog("✗ 绑定服务失败");
                 Toast.makeText(this, "绑定服务失败", Toast.LENGTH_SHORT).show();
             }
@@ -211,9 +281,12 @@ public class MainActivity extends AppCompatActivity {
      */
     private void unbindService() {
         if (mBound) {
+            unsubscribeEvents();
             unbindService(mConnection);
+            mBulkReplicas.unbind();
             mBound = false;
             mService = null;
+            mRegistry = null;
             updateStatus("未连接");
             appendLog("← 服务已解绑");
             btnBind.setEnabled(true);
@@ -229,7 +302,13 @@ public class MainActivity extends AppCompatActivity {
     private void getPid() {
         if (mService != null) {
             try {
-                int pid = mService.getPid();
+                int pid;
+                Trace.beginSection("aidl.getPid");
+                try {
+                    pid = mService.getPid();
+                } finally {
+                    Trace.endSection();
+                }
                 int myPid = Process.myPid();
                 appendLog("⚡ getPid() 调用成功");
                 appendLog("  客户端 PID: " + myPid);
@@ -254,7 +333,13 @@ public class MainActivity extends AppCompatActivity {
         if (mService != null) {
             try {
                 int a = 5, b = 3;
-                int result = mService.add(a, b);
+                int result;
+                Trace.beginSection("aidl.add");
+                try {
+                    result = mService.add(a, b);
+                } finally {
+                    Trace.endSection();
+                }
                 appendLog("⚡ add(" + a + ", " + b + ") = " + result);
                 Toast.makeText(this, "结果: " + result, Toast.LENGTH_SHORT).show();
             } catch (RemoteException e) {
@@ -270,7 +355,13 @@ public class MainActivity extends AppCompatActivity {
     private void getServiceName() {
         if (mService != null) {
             try {
-                String name = mService.getServiceName();
+                String name;
+                Trace.beginSection("aidl.getServiceName");
+                try {
+                    name = mService.getServiceName();
+                } finally {
+                    Trace.endSection();
+                }
                 appendLog("⚡ getServiceName() = " + name);
                 Toast.makeText(this, name, Toast.LENGTH_SHORT).show();
             } catch (RemoteException e) {
@@ -284,17 +375,30 @@ public class MainActivity extends AppCompatActivity {
      * 测试基本类型传递
      */
     private void testBasicTypes() {
-        if (mService != null) {
-            try {
-                mService.basicTypes(100, 200L, true, 3.14f, 2.71828, "Hello AIDL");
-                appendLog("⚡ basicTypes() 调用成功");
-                appendLog("  参数: int=100, long=200, boolean=true");
-                appendLog("  float=3.14, double=2.71828, String=\"Hello AIDL\"");
-                Toast.makeText(this, "基本类型传递成功", Toast.LENGTH_SHORT).show();
-            } catch (RemoteException e) {
-                appendLog("✗ basicTypes() 调用失败: " + e.getMessage());
-                Log.e(TAG, "Error calling basicTypes", e);
-            }
+        if (mBound) {
+            ReplicaBalancer replicas = mBulkReplicas;
+            mBulkExecutor.execute(() -> {
+                try {
+                    Trace.beginSection("aidl.basicTypes");
+                    try {
+                        replicas.execute(service -> {
+                            service.basicTypes(100, 200L, true, 3.14f, 2.71828, "Hello AIDL");
+                            return null;
+                        });
+                    } finally {
+                        Trace.endSection();
+                    }
+                    runOnUiThread(() -> {
+                        appendLog("⚡ basicTypes() 调用成功");
+                        appendLog("  参数: int=100, long=200, boolean=true");
+                        appendLog("  float=3.14, double=2.71828, String=\"Hello AIDL\"");
+                        Toast.makeText(this, "基本类型传递成功", Toast.LENGTH_SHORT).show();
+                    });
+                } catch (RemoteException e) {
+                    Log.e(TAG, "Error calling basicTypes", e);
+                    runOnUiThread(() -> appendLog("✗ basicTypes() 调用失败: " + e.getMessage()));
+                }
+            });
         }
     }
     
@@ -305,6 +409,33 @@ public class MainActivity extends AppCompatActivity {
         tvStatus.setText("状态: " + status);
     }
     
+    /**
+     * 订阅服务端的所有事件
+     */
+    private void subscribeEvents() {
+        Trace.beginSection("aidl.subscribe");
+        try {
+            mService.subscribe(mEventCallback, null);
+        } catch (RemoteException e) {
+            appendLog("✗ subscribe() 调用失败: " + e.getMessage());
+        } finally {
+            Trace.endSection();
+        }
+    }
+    
+    /**
+     * 取消订阅，服务进程已经死亡时忽略
+     */
+    private void unsubscribeEvents() {
+        if (mService != null) {
+            try {
+                mService.unsubscribe(mEventCallback);
+            } catch (RemoteException e) {
+                Log.w(TAG, "unsubscribe failed", e);
+            }
+        }
+    }
+    
     /**
      * 添加日志
      */
@@ -328,8 +459,12 @@ public class MainActivity extends AppCompatActivity {
     protected void onDestroy() {
         super.onDestroy();
         if (mBound) {
+            unsubscribeEvents();
             unbindService(mConnection);
+            mBulkReplicas.unbind();
             mBound = false;
         }
+        // 已经提交的调用在副本解绑后失败，不再等待
+        mBulkExecutor.shutdown();
     }
 }
@@ -4,21 +4,85 @@ import android.os.IBinder;
 import android.os.Parcel;
 import android.os.RemoteException;
 
+import java.util.WeakHashMap;
+
 /**
  * Proxy类 - 客户端代理
  * 客户端通过此代理调用远程服务
+ *
+ * 参数和返回值都是基本类型的热点方法（getPid、add）使用当前线程复用的一对Parcel，
+ * 稳定状态下每次调用不分配任何对象；getServiceName 的结果在服务进程的生命周期内不变，只取一次。
+ * 其他方法的参数可能带文件描述符或Binder对象，仍然每次 obtain/recycle。
+ *
+ * 第一次需要选择传输方式时与服务端握手（TRANSACTION_handshake），结果按Binder缓存，
+ * 之后每次调用按 Capabilities 选择双方都支持的最便宜的方式：大字符串分块和压缩、大数组放进共享内存、
+ * 调用方显式选择的 basicTypesOneway 用oneway。旧服务端不认识握手时退回 negotiate，两者都不认识时只用内联传输。
  */
 public class MyAidlProxy implements IMyAidlInterface {
     
+    /**
+     * 每个线程一对可复用的Parcel
+     */
+    private static final class ThreadParcels {
+        final Parcel data = Parcel.obtain();
+        final Parcel reply = Parcel.obtain();
+        
+        /**
+         * 同一线程上嵌套的调用（服务端同步回调到本进程时在等待的线程上执行）使用新的Parcel
+         */
+        boolean inUse;
+    }
+    
+    private static final ThreadLocal<ThreadParcels> sThreadParcels = ThreadLocal.withInitial(ThreadParcels::new);
+    
+    private static volatile boolean sReuseParcels = true;
+    
+    /**
+     * 每个服务端Binder的握手结果，两个调用通道的代理共用，受自身保护
+     */
+    private static final WeakHashMap<IBinder, Capabilities> sCapabilities = new WeakHashMap<>();
+    
     private IBinder mRemote;
     
+    /**
+     * 调用通道，LANE_INTERACTIVE 或 LANE_BULK
+     */
+    private final int mLane;
+    
+    /**
+     * 大数组能否放进共享内存，socket传输时只能内联
+     */
+    private final boolean mSharedMemory;
+    
+    /**
+     * 握手结果，null表示尚未握手
+     */
+    private volatile Capabilities mCapabilities;
+    
+    /**
+     * 第一次获取的服务名称
+     */
+    private volatile String mServiceName;
+    
     /**
      * 构造函数
      * 
      * @param remote 远程Binder对象
      */
     public MyAidlProxy(IBinder remote) {
+        this(remote, LANE_INTERACTIVE);
+    }
+    
+    /**
+     * 构造函数
+     * 
+     * @param remote 远程Binder对象
+     * @param lane 调用通道，后台批量调用使用 LANE_BULK，不影响界面调用的延迟
+     */
+    public MyAidlProxy(IBinder remote, int lane) {
         mRemote = remote;
+        mLane = lane;
+        mSharedMemory = !(remote instanceof SocketBinder);
     }
     
     @Override
@@ -26,6 +90,13 @@ public class MyAidlProxy implements IMyAidlInterface {
         return mRemote;
     }
     
+    /**
+     * 是否复用线程的Parcel，默认开启；关闭后每次调用 obtain/recycle，用于对比和排查问题
+     */
+    public static void setReuseParcels(boolean reuse) {
+        sReuseParcels = reuse;
+    }
+    
     /**
      * 获取接口描述符
      */
@@ -38,19 +109,19 @@ public class MyAidlProxy implements IMyAidlInterface {
      */
     @Override
     public int getPid() throws RemoteException {
-        Parcel data = Parcel.obtain();
-        Parcel reply = Parcel.obtain();
+        ThreadParcels parcels = acquireParcels();
+        Parcel data = parcels != null ? parcels.data : Parcel.obtain();
+        Parcel reply = parcels != null ? parcels.reply : Parcel.obtain();
         int result;
         
         try {
             data.writeInterfaceToken(DESCRIPTOR);
             // 发起跨进程调用
-            mRemote.transact(TRANSACTION_getPid, data, reply, 0);
+            mRemote.transact(code(TRANSACTION_getPid), data, reply, 0);
             reply.readException();
             result = reply.readInt();
         } finally {
-            reply.recycle();
-            data.recycle();
+            releaseParcels(parcels, data, reply);
         }
         
         return result;
@@ -73,9 +144,9 @@ public class MyAidlProxy implements IMyAidlInterface {
             data.writeInt(aBoolean ? 1 : 0);
             data.writeFloat(aFloat);
             data.writeDouble(aDouble);
-            data.writeString(aString);
+            writeBasicString(data, aString, null);
             // 发起跨进程调用
-            mRemote.transact(TRANSACTION_basicTypes, data, reply, 0);
+            mRemote.transact(code(TRANSACTION_basicTypes), data, reply, 0);
             reply.readException();
         } finally {
             reply.recycle();
@@ -84,37 +155,92 @@ public class MyAidlProxy implements IMyAidlInterface {
     }
     
     /**
-     * 加法运算
+     * 基本类型传递，不等待服务端执行；服务端不支持时同步调用
      */
     @Override
-    public int add(int a, int b) throws RemoteException {
+    public void basicTypesOneway(int anInt, long aLong, boolean aBoolean, float aFloat,
+                                 double aDouble, String aString) throws RemoteException {
+        Capabilities caps = getCapabilities();
+        if (!caps.useOneway()) {
+            basicTypes(anInt, aLong, aBoolean, aFloat, aDouble, aString);
+            return;
+        }
+        Parcel data = Parcel.obtain();
+        
+        try {
+            data.writeInterfaceToken(DESCRIPTOR);
+            data.writeInt(anInt);
+            data.writeLong(aLong);
+            data.writeInt(aBoolean ? 1 : 0);
+            data.writeFloat(aFloat);
+            data.writeDouble(aDouble);
+            writeBasicString(data, aString, caps);
+            mRemote.transact(code(TRANSACTION_basicTypes), data, null, IBinder.FLAG_ONEWAY);
+        } finally {
+            data.recycle();
+        }
+    }
+    
+    /**
+     * 取回服务端丢弃的oneway调用数，旧服务端不认识该事务码时没有丢弃
+     */
+    @Override
+    public int takeDroppedOneway() throws RemoteException {
         Parcel data = Parcel.obtain();
         Parcel reply = Parcel.obtain();
         int result;
         
+        try {
+            data.writeInterfaceToken(DESCRIPTOR);
+            if (!mRemote.transact(TRANSACTION_takeDroppedOneway, data, reply, 0)) {
+                return 0;
+            }
+            reply.readException();
+            result = reply.readInt();
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+        
+        return result;
+    }
+    
+    /**
+     * 加法运算
+     */
+    @Override
+    public int add(int a, int b) throws RemoteException {
+        ThreadParcels parcels = acquireParcels();
+        Parcel data = parcels != null ? parcels.data : Parcel.obtain();
+        Parcel reply = parcels != null ? parcels.reply : Parcel.obtain();
+        int result;
+        
         try {
             data.writeInterfaceToken(DESCRIPTOR);
             // 序列化参数
             data.writeInt(a);
             data.writeInt(b);
             // 发起跨进程调用
-            mRemote.transact(TRANSACTION_add, data, reply, 0);
+            mRemote.transact(code(TRANSACTION_add), data, reply, 0);
             reply.readException();
             // 反序列化返回值
             result = reply.readInt();
         } finally {
-            reply.recycle();
-            data.recycle();
+            releaseParcels(parcels, data, reply);
         }
         
         return result;
     }
     
     /**
-     * 获取服务名称
+     * 获取服务名称，同一个服务进程只跨进程获取一次
      */
     @Override
     public String getServiceName() throws RemoteException {
+        String name = mServiceName;
+        if (name != null) {
+            return name;
+        }
         Parcel data = Parcel.obtain();
         Parcel reply = Parcel.obtain();
         String result;
@@ -122,10 +248,87 @@ public class MyAidlProxy implements IMyAidlInterface {
         try {
             data.writeInterfaceToken(DESCRIPTOR);
             // 发起跨进程调用
-            mRemote.transact(TRANSACTION_getServiceName, data, reply, 0);
+            mRemote.transact(code(TRANSACTION_getServiceName), data, reply, 0);
+            reply.readException();
+            // 反序列化返回值，大字符串自动取回剩余分块
+            result = ChunkedTransfer.readString(mRemote, reply);
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+        
+        mServiceName = result;
+        return result;
+    }
+    
+    /**
+     * 数组逐元素相加
+     */
+    @Override
+    public int[] addArrays(int[] a, int[] b) throws RemoteException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        int[] result;
+        
+        try {
+            data.writeInterfaceToken(DESCRIPTOR);
+            // 大数组自动放进共享内存
+            writeArray(data, a);
+            writeArray(data, b);
+            // 发起跨进程调用
+            mRemote.transact(code(TRANSACTION_addArrays), data, reply, 0);
             reply.readException();
             // 反序列化返回值
-            result = reply.readString();
+            result = IntArrays.read(reply);
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+        
+        return result;
+    }
+    
+    /**
+     * 数组求和
+     */
+    @Override
+    public long sum(int[] values) throws RemoteException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        long result;
+        
+        try {
+            data.writeInterfaceToken(DESCRIPTOR);
+            writeArray(data, values);
+            // 发起跨进程调用
+            mRemote.transact(code(TRANSACTION_sum), data, reply, 0);
+            reply.readException();
+            result = reply.readLong();
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+        
+        return result;
+    }
+    
+    /**
+     * 数组点积
+     */
+    @Override
+    public long dot(int[] a, int[] b) throws RemoteException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        long result;
+        
+        try {
+            data.writeInterfaceToken(DESCRIPTOR);
+            writeArray(data, a);
+            writeArray(data, b);
+            // 发起跨进程调用
+            mRemote.transact(code(TRANSACTION_dot), data, reply, 0);
+            reply.readException();
+            result = reply.readLong();
         } finally {
             reply.recycle();
             data.recycle();
@@ -133,4 +336,183 @@ public class MyAidlProxy implements IMyAidlInterface {
         
         return result;
     }
+    
+    /**
+     * 订阅事件，传递的是callback的Binder对象
+     */
+    @Override
+    public void subscribe(IMyEventCallback callback, String[] topics) throws RemoteException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        
+        try {
+            data.writeInterfaceToken(DESCRIPTOR);
+            data.writeStrongBinder(callback != null ? callback.asBinder() : null);
+            data.writeStringArray(topics);
+            // 发起跨进程调用
+            mRemote.transact(code(TRANSACTION_subscribe), data, reply, 0);
+            reply.readException();
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+    }
+    
+    /**
+     * 取消订阅
+     */
+    @Override
+    public void unsubscribe(IMyEventCallback callback) throws RemoteException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        
+        try {
+            data.writeInterfaceToken(DESCRIPTOR);
+            data.writeStrongBinder(callback != null ? callback.asBinder() : null);
+            // 发起跨进程调用
+            mRemote.transact(code(TRANSACTION_unsubscribe), data, reply, 0);
+            reply.readException();
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+    }
+    
+    /**
+     * 取当前线程的Parcel，关闭复用或线程上已有调用在使用时返回null
+     */
+    private static ThreadParcels acquireParcels() {
+        if (!sReuseParcels) {
+            return null;
+        }
+        ThreadParcels parcels = sThreadParcels.get();
+        if (parcels.inUse) {
+            return null;
+        }
+        parcels.inUse = true;
+        return parcels;
+    }
+    
+    /**
+     * 复用的Parcel清空后留给下一次调用，大小置0同时释放回复占用的Binder缓冲区
+     */
+    private static void releaseParcels(ThreadParcels parcels, Parcel data, Parcel reply) {
+        if (parcels == null) {
+            reply.recycle();
+            data.recycle();
+            return;
+        }
+        reply.setDataSize(0);
+        data.setDataSize(0);
+        parcels.inUse = false;
+    }
+    
+    /**
+     * 加上调用通道标记的事务码
+     */
+    private int code(int transaction) {
+        return mLane == LANE_BULK ? transaction | FLAG_BULK_LANE : transaction;
+    }
+    
+    /**
+     * 写入字符串参数，大字符串按服务端能力自动压缩/分块，避免TransactionTooLargeException
+     *
+     * @param caps 已经取得的服务端能力，为null时只在字符串可能需要压缩或分块时握手
+     */
+    private void writeBasicString(Parcel data, String value, Capabilities caps) throws RemoteException {
+        if (caps == null && value != null && value.length() >= ChunkedTransfer.COMPRESS_THRESHOLD_CHARS) {
+            caps = getCapabilities();
+        }
+        if (caps == null || caps.has(Capabilities.CAP_CHUNKED_STRINGS)) {
+            ChunkedTransfer.writeString(mRemote, data, value, caps != null ? caps.stringCodecs() : 0);
+        } else {
+            data.writeString(value);
+        }
+    }
+    
+    /**
+     * 写入数组参数，超过内联上限且双方都支持时放进共享内存；不超过内联上限时不需要握手
+     */
+    private void writeArray(Parcel data, int[] values) throws RemoteException {
+        if (values == null || values.length <= IntArrays.INLINE_MAX_INTS || !mSharedMemory) {
+            data.writeIntArray(values);
+            return;
+        }
+        Capabilities caps = getCapabilities();
+        IntArrays.write(data, values, caps.useSharedMemory(mSharedMemory), caps.inlineMaxInts());
+    }
+    
+    /**
+     * 获取服务端能力，同一个Binder只握手一次
+     */
+    private Capabilities getCapabilities() throws RemoteException {
+        Capabilities caps = mCapabilities;
+        if (caps != null) {
+            return caps;
+        }
+        synchronized (sCapabilities) {
+            caps = sCapabilities.get(mRemote);
+        }
+        if (caps == null) {
+            // 并发的第一次调用可能各握手一次，结果相同
+            caps = handshake();
+            synchronized (sCapabilities) {
+                sCapabilities.put(mRemote, caps);
+            }
+        }
+        mCapabilities = caps;
+        return caps;
+    }
+    
+    /**
+     * 与服务端握手
+     * 旧版本服务端不认识该事务码时transact返回false，退回 negotiate
+     */
+    private Capabilities handshake() throws RemoteException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        Capabilities result;
+        
+        try {
+            data.writeInterfaceToken(DESCRIPTOR);
+            data.writeInt(Capabilities.VERSION);
+            data.writeInt(Capabilities.SUPPORTED);
+            data.writeInt(ChunkedTransfer.SUPPORTED_CODECS);
+            if (!mRemote.transact(TRANSACTION_handshake, data, reply, 0)) {
+                return negotiate();
+            }
+            reply.readException();
+            result = new Capabilities(reply.readInt(), reply.readInt(), reply.readInt(), reply.readInt());
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+        
+        return result;
+    }
+    
+    /**
+     * 协商压缩编码，认识该事务码的服务端也支持分块和共享内存数组
+     * 更早的服务端不认识该事务码时transact返回false，只用内联传输
+     */
+    private Capabilities negotiate() throws RemoteException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        int result;
+        
+        try {
+            data.writeInterfaceToken(DESCRIPTOR);
+            data.writeInt(ChunkedTransfer.SUPPORTED_CODECS);
+            if (!mRemote.transact(TRANSACTION_negotiate, data, reply, 0)) {
+                return Capabilities.LEGACY_BASIC;
+            }
+            reply.readException();
+            result = reply.readInt();
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+        
+        return Capabilities.legacyChunked(result);
+    }
 }
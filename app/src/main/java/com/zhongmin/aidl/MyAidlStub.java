@@ -5,12 +5,54 @@ import android.os.IBinder;
 import android.os.IInterface;
 import android.os.Parcel;
 import android.os.RemoteException;
+import android.os.ServiceSpecificException;
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Stub类 - 服务端基类
  * 服务端需要继承此类并实现接口方法
  */
 public abstract class MyAidlStub extends Binder implements IMyAidlInterface {
+    private static final String TAG = "MyAidlStub";
+    
+    /**
+     * 大字符串分块/压缩传输中未完成的分块
+     */
+    private final ChunkedTransfer mChunks = new ChunkedTransfer();
+    
+    /**
+     * 准入控制，为null时不限制
+     */
+    private volatile AdmissionController mAdmission;
+    
+    /**
+     * 接口方法的分发器，为null时直接在Binder线程上执行
+     */
+    private volatile PriorityDispatcher mDispatcher;
+    
+    /**
+     * 调用录制，为null时不录制
+     */
+    private volatile TransactionRecorder mRecorder;
+    
+    /**
+     * 并发和慢调用监控，为null时不监控
+     */
+    private volatile BinderWatchdog mWatchdog;
+    
+    /**
+     * 每个调用方uid被拒绝或执行失败的oneway调用数，由 TRANSACTION_takeDroppedOneway 取回并清零；
+     * oneway调用的 getCallingPid() 总是0，只能按uid区分
+     */
+    private final ConcurrentHashMap<Integer, AtomicInteger> mDroppedOneway = new ConcurrentHashMap<>();
     
     /**
      * 构造函数 - 注册接口描述符
@@ -19,28 +61,63 @@ public abstract class MyAidlStub extends Binder implements IMyAidlInterface {
         this.attachInterface(this, DESCRIPTOR);
     }
     
+    /**
+     * asInterface() 的结果，每个IBinder每个通道一个；值是弱引用，接口对象持有IBinder，
+     * 强引用会让 WeakHashMap 的键永远不被回收
+     */
+    private static final WeakHashMap<IBinder, WeakReference<IMyAidlInterface>> sInteractiveInterfaces =
+            new WeakHashMap<>();
+    private static final WeakHashMap<IBinder, WeakReference<IMyAidlInterface>> sBulkInterfaces =
+            new WeakHashMap<>();
+    
     /**
      * 将IBinder转换为IMyAidlInterface接口
-     * 如果是同进程调用，直接返回本地对象
+     * 如果是同进程调用，直接调用本地对象（保持跨进程时的参数和异常语义，见 ColocatedInterface）
      * 如果是跨进程调用，返回代理对象
      * 
      * @param obj IBinder对象
      * @return IMyAidlInterface接口实例
      */
     public static IMyAidlInterface asInterface(IBinder obj) {
+        return asInterface(obj, LANE_INTERACTIVE);
+    }
+    
+    /**
+     * 将IBinder转换为指定调用通道的IMyAidlInterface接口
+     * 同进程调用没有优先级之分，直接调用本地对象
+     * 同一个IBinder和通道返回同一个对象，只要调用方还持有它
+     * 
+     * @param obj IBinder对象
+     * @param lane LANE_INTERACTIVE 或 LANE_BULK
+     * @return IMyAidlInterface接口实例
+     */
+    public static IMyAidlInterface asInterface(IBinder obj, int lane) {
         if (obj == null) {
             return null;
         }
         
-        // 查询本地接口
-        IInterface iin = obj.queryLocalInterface(DESCRIPTOR);
-        if (iin != null && iin instanceof IMyAidlInterface) {
-            // 同进程，直接返回
-            return (IMyAidlInterface) iin;
+        WeakHashMap<IBinder, WeakReference<IMyAidlInterface>> cache =
+                lane == LANE_BULK ? sBulkInterfaces : sInteractiveInterfaces;
+        synchronized (cache) {
+            WeakReference<IMyAidlInterface> ref = cache.get(obj);
+            IMyAidlInterface cached = ref != null ? ref.get() : null;
+            if (cached != null) {
+                return cached;
+            }
+            
+            IMyAidlInterface result;
+            // 查询本地接口
+            IInterface iin = obj.queryLocalInterface(DESCRIPTOR);
+            if (iin != null && iin instanceof IMyAidlInterface) {
+                // 同进程，直接调用
+                result = new ColocatedInterface((IMyAidlInterface) iin);
+            } else {
+                // 跨进程，返回代理对象
+                result = new MyAidlProxy(obj, lane);
+            }
+            cache.put(obj, new WeakReference<>(result));
+            return result;
         }
-        
-        // 跨进程，返回代理对象
-        return new MyAidlProxy(obj);
     }
     
     @Override
@@ -48,6 +125,63 @@ public abstract class MyAidlStub extends Binder implements IMyAidlInterface {
         return this;
     }
     
+    /**
+     * 设置准入控制，可以在运行时替换或置为null关闭
+     */
+    public void setAdmissionController(AdmissionController admission) {
+        mAdmission = admission;
+    }
+    
+    public AdmissionController getAdmissionController() {
+        return mAdmission;
+    }
+    
+    /**
+     * 设置接口方法的分发器
+     * 设置后接口方法按调用通道在分发器的工作线程上运行，同一个客户端（见 dispatchKey）
+     * 在同一通道内的调用按到达顺序执行，不同客户端之间并行。
+     * 同步调用的Binder线程等待执行完成后返回结果；oneway调用复制参数后立即返回。
+     * 注意工作线程上 Binder.getCallingPid()/getCallingUid() 返回的是服务进程自己。
+     */
+    public void setDispatcher(PriorityDispatcher dispatcher) {
+        mDispatcher = dispatcher;
+    }
+    
+    public PriorityDispatcher getDispatcher() {
+        return mDispatcher;
+    }
+    
+    /**
+     * 设置调用录制，之后收到的每个接口调用在准入控制之前写入录制文件，被拒绝的调用也会录制
+     * 包含Binder对象或文件描述符的Parcel（例如 subscribe、共享内存传递的大数组）不能序列化，不会录制
+     */
+    public void setRecorder(TransactionRecorder recorder) {
+        mRecorder = recorder;
+    }
+    
+    public TransactionRecorder getRecorder() {
+        return mRecorder;
+    }
+    
+    /**
+     * 设置Binder线程池饱和检测和慢调用看门狗
+     */
+    public void setWatchdog(BinderWatchdog watchdog) {
+        mWatchdog = watchdog;
+    }
+    
+    public BinderWatchdog getWatchdog() {
+        return mWatchdog;
+    }
+    
+    /**
+     * 串行执行的key，默认按客户端进程；子类可以按会话等更细的粒度返回
+     * 在Binder线程上调用
+     */
+    protected Object dispatchKey(int code, int callingUid, int callingPid) {
+        return callingPid;
+    }
+    
     /**
      * 处理客户端请求
      * 运行在Binder线程池中
@@ -60,6 +194,228 @@ public abstract class MyAidlStub extends Binder implements IMyAidlInterface {
      */
     @Override
     protected boolean onTransact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+        if (code < FIRST_CALL_TRANSACTION || code > LAST_CALL_TRANSACTION) {
+            return dispatchTransact(code, data, reply, flags, callingCaller());
+        }
+        TransactionRecorder recorder = mRecorder;
+        if (recorder != null) {
+            record(recorder, code, data, flags);
+        }
+        int lane = (code & FLAG_BULK_LANE) != 0 ? LANE_BULK : LANE_INTERACTIVE;
+        code &= ~FLAG_BULK_LANE;
+        if (code == TRANSACTION_takeDroppedOneway) {
+            // 在Binder线程上处理，分发器的工作线程上取不到调用方uid
+            data.enforceInterface(DESCRIPTOR);
+            AtomicInteger dropped = mDroppedOneway.get(getCallingUid());
+            reply.writeNoException();
+            reply.writeInt(dropped != null ? dropped.getAndSet(0) : 0);
+            return true;
+        }
+        
+        BinderWatchdog watchdog = mWatchdog;
+        BinderWatchdog.Slot slot = watchdog != null
+                ? watchdog.enter(code, getCallingUid(), getCallingPid()) : null;
+        try {
+            // 准入控制：在读取参数之前拒绝，尽快释放Binder线程
+            AdmissionController admission = mAdmission;
+            if (admission != null) {
+                long retryAfterMs = admission.acquire(code, getCallingUid(), getCallingPid());
+                if (retryAfterMs != AdmissionController.ADMITTED) {
+                    if ((flags & FLAG_ONEWAY) == 0) {
+                        reply.writeException(new ServiceSpecificException(ERROR_BUSY,
+                                "Service busy, retry after " + retryAfterMs + "ms"));
+                    } else {
+                        dropOneway(getCallingUid());
+                    }
+                    return true;
+                }
+            }
+            try {
+                return executeTransact(code, lane, data, reply, flags, slot);
+            } finally {
+                if (admission != null) {
+                    admission.release(code);
+                }
+            }
+        } finally {
+            if (slot != null) {
+                watchdog.exit(slot, code);
+            }
+        }
+    }
+    
+    /**
+     * 录制原始事务码（包含调用通道标记），回放时走相同的通道
+     */
+    private void record(TransactionRecorder recorder, int code, Parcel data, int flags) {
+        byte[] payload;
+        try {
+            payload = data.marshall();
+        } catch (RuntimeException e) {
+            // Parcel中有Binder对象或文件描述符
+            return;
+        }
+        recorder.record(code, flags, getCallingUid(), getCallingPid(), payload);
+    }
+    
+    /**
+     * 在Binder线程上直接执行，或者按调用通道转到分发器上执行
+     */
+    private boolean executeTransact(int code, int lane, Parcel data, Parcel reply, int flags,
+                                    BinderWatchdog.Slot slot) throws RemoteException {
+        PriorityDispatcher dispatcher = mDispatcher;
+        if (dispatcher == null) {
+            return dispatchTransact(code, data, reply, flags, callingCaller());
+        }
+        boolean oneway = (flags & FLAG_ONEWAY) != 0;
+        boolean bulk = lane == LANE_BULK;
+        // 批量调用占用的Binder线程和排队数量有上限，超过时拒绝
+        if (bulk && !dispatcher.tryAcquireBulk(oneway)) {
+            if (!oneway) {
+                reply.writeException(new ServiceSpecificException(ERROR_BUSY, "Bulk lane busy, retry later"));
+            } else {
+                dropOneway(getCallingUid());
+            }
+            return true;
+        }
+        // 从这里开始名额必须归还：同步调用返回时归还，oneway调用交给任务后由任务归还
+        boolean handedOff = false;
+        try {
+            KeyedSerialExecutor executor = dispatcher.lane(lane);
+            Object key = dispatchKey(code, getCallingUid(), getCallingPid());
+            if (oneway) {
+                enqueueOneway(executor, key, code, data, flags, bulk ? dispatcher : null);
+                handedOff = true;
+                return true;
+            }
+            return dispatchAndWait(executor, key, code, data, reply, flags, slot);
+        } finally {
+            if (bulk && !handedOff) {
+                dispatcher.releaseBulk(oneway);
+            }
+        }
+    }
+    
+    /**
+     * oneway调用排进分发器，入队失败时计为丢弃
+     *
+     * @param bulkPermits 批量通道的名额由任务执行完后归还，交互通道为null
+     */
+    private void enqueueOneway(KeyedSerialExecutor executor, Object key, int code, Parcel data, int flags,
+                               PriorityDispatcher bulkPermits) {
+        int uid = getCallingUid();
+        long caller = callingCaller();
+        // oneway调用返回后Binder会回收data，需要先复制一份
+        Parcel copy = Parcel.obtain();
+        boolean queued = false;
+        try {
+            copy.appendFrom(data, 0, data.dataSize());
+            copy.setDataPosition(data.dataPosition());
+            executor.execute(key, () -> {
+                Parcel ignored = Parcel.obtain();
+                try {
+                    dispatchTransact(code, copy, ignored, flags, caller);
+                } catch (RemoteException | RuntimeException e) {
+                    Log.w(TAG, "Oneway transaction " + code + " failed", e);
+                    dropOneway(uid);
+                } finally {
+                    ignored.recycle();
+                    copy.recycle();
+                    if (bulkPermits != null) {
+                        bulkPermits.releaseBulk(true);
+                    }
+                }
+            });
+            queued = true;
+        } finally {
+            if (!queued) {
+                copy.recycle();
+                dropOneway(uid);
+            }
+        }
+    }
+    
+    /**
+     * 在分发器上执行同步调用，Binder线程等待结果
+     */
+    private boolean dispatchAndWait(KeyedSerialExecutor executor, Object key, int code, Parcel data,
+                                    Parcel reply, int flags, BinderWatchdog.Slot slot) throws RemoteException {
+        // 任务开始执行和Binder线程放弃等待互斥，谁先置位谁拥有 data 和 reply
+        AtomicBoolean claimed = new AtomicBoolean();
+        long callStart = slot != null ? slot.getStartNanos() : 0;
+        long caller = callingCaller();
+        FutureTask<Boolean> call = new FutureTask<>(() -> {
+            if (!claimed.compareAndSet(false, true)) {
+                return false;
+            }
+            // 看门狗抓取实际执行调用的线程的调用栈
+            if (slot != null) {
+                slot.setWorker(callStart, Thread.currentThread());
+            }
+            try {
+                return dispatchTransact(code, data, reply, flags, caller);
+            } finally {
+                if (slot != null) {
+                    slot.setWorker(callStart, null);
+                }
+            }
+        });
+        executor.execute(key, call);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return call.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    // 还没开始执行就取消；已经开始执行时必须等它结束，Binder在返回后会回收 data 和 reply
+                    if (claimed.compareAndSet(false, true)) {
+                        call.cancel(false);
+                        throw new IllegalStateException("Interrupted while waiting for dispatch", e);
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            // 按原样抛出，由Binder写回给客户端
+            Throwable cause = e.getCause();
+            if (cause instanceof RemoteException) {
+                throw (RemoteException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+     * 记录一次被丢弃的oneway调用
+     */
+    private void dropOneway(int uid) {
+        mDroppedOneway.computeIfAbsent(uid, key -> new AtomicInteger()).incrementAndGet();
+    }
+    
+    /**
+     * 当前调用的调用方，分块传输按它区分；只能在Binder线程上调用
+     */
+    private static long callingCaller() {
+        return ChunkedTransfer.caller(getCallingUid(), getCallingPid());
+    }
+    
+    /**
+     * 按事务码分发到具体的接口方法
+     *
+     * @param caller 调用方，在Binder线程上取得（见 callingCaller()），工作线程上取不到
+     */
+    private boolean dispatchTransact(int code, Parcel data, Parcel reply, int flags, long caller)
+            throws RemoteException {
         switch (code) {
             case INTERFACE_TRANSACTION:
                 // 返回接口描述符
@@ -82,9 +438,12 @@ public abstract class MyAidlStub extends Binder implements IMyAidlInterface {
                 boolean aBoolean = data.readInt() != 0;
                 float aFloat = data.readFloat();
                 double aDouble = data.readDouble();
-                String aString = data.readString();
+                String aString = mChunks.readString(data, caller);
                 this.basicTypes(anInt, aLong, aBoolean, aFloat, aDouble, aString);
-                reply.writeNoException();
+                // basicTypesOneway 没有回复
+                if ((flags & FLAG_ONEWAY) == 0) {
+                    reply.writeNoException();
+                }
                 return true;
                 
             case TRANSACTION_add:
@@ -102,7 +461,89 @@ public abstract class MyAidlStub extends Binder implements IMyAidlInterface {
                 data.enforceInterface(DESCRIPTOR);
                 String serviceName = this.getServiceName();
                 reply.writeNoException();
-                reply.writeString(serviceName);
+                mChunks.writeString(reply, serviceName, caller);
+                return true;
+                
+            case TRANSACTION_addArrays:
+                // 处理addArrays()方法调用
+                data.enforceInterface(DESCRIPTOR);
+                int[] addA = IntArrays.read(data);
+                int[] addB = IntArrays.read(data);
+                int[] addArraysResult = this.addArrays(addA, addB);
+                reply.writeNoException();
+                IntArrays.write(reply, addArraysResult, (flags & FLAG_INLINE_ONLY) == 0);
+                return true;
+                
+            case TRANSACTION_sum:
+                // 处理sum()方法调用
+                data.enforceInterface(DESCRIPTOR);
+                int[] sumValues = IntArrays.read(data);
+                long sumResult = this.sum(sumValues);
+                reply.writeNoException();
+                reply.writeLong(sumResult);
+                return true;
+                
+            case TRANSACTION_dot:
+                // 处理dot()方法调用
+                data.enforceInterface(DESCRIPTOR);
+                int[] dotA = IntArrays.read(data);
+                int[] dotB = IntArrays.read(data);
+                long dotResult = this.dot(dotA, dotB);
+                reply.writeNoException();
+                reply.writeLong(dotResult);
+                return true;
+                
+            case TRANSACTION_subscribe:
+                // 处理subscribe()方法调用
+                data.enforceInterface(DESCRIPTOR);
+                IMyEventCallback subscribeCallback = MyEventCallbackStub.asInterface(data.readStrongBinder());
+                String[] subscribeTopics = data.createStringArray();
+                this.subscribe(subscribeCallback, subscribeTopics);
+                reply.writeNoException();
+                return true;
+                
+            case TRANSACTION_unsubscribe:
+                // 处理unsubscribe()方法调用
+                data.enforceInterface(DESCRIPTOR);
+                IMyEventCallback unsubscribeCallback = MyEventCallbackStub.asInterface(data.readStrongBinder());
+                this.unsubscribe(unsubscribeCallback);
+                reply.writeNoException();
+                return true;
+                
+            case TRANSACTION_putChunk:
+                // 缓存客户端上传的字符串分块
+                data.enforceInterface(DESCRIPTOR);
+                mChunks.onPutChunk(data, caller);
+                reply.writeNoException();
+                return true;
+                
+            case TRANSACTION_fetchChunk:
+                // 返回字符串返回值的剩余分块
+                data.enforceInterface(DESCRIPTOR);
+                mChunks.onFetchChunk(data, reply, caller);
+                return true;
+                
+            case TRANSACTION_negotiate:
+                // 返回双方都支持的压缩编码
+                data.enforceInterface(DESCRIPTOR);
+                int clientCodecs = data.readInt();
+                reply.writeNoException();
+                reply.writeInt(clientCodecs & ChunkedTransfer.SUPPORTED_CODECS);
+                return true;
+                
+            case TRANSACTION_handshake:
+                // 返回双方都支持的能力，回复字段只能在末尾追加
+                data.enforceInterface(DESCRIPTOR);
+                data.readInt(); // 客户端协议版本
+                int clientCaps = data.readInt();
+                int clientCodecsMask = data.readInt();
+                Capabilities caps = Capabilities.negotiate(clientCaps, clientCodecsMask,
+                        (flags & FLAG_INLINE_ONLY) != 0);
+                reply.writeNoException();
+                reply.writeInt(caps.version);
+                reply.writeInt(caps.flags);
+                reply.writeInt(caps.codecs);
+                reply.writeInt(caps.maxParcelBytes);
                 return true;
         }
         
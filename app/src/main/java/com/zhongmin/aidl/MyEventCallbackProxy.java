@@ -0,0 +1,41 @@
+package com.zhongmin.aidl;
+
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+
+/**
+ * Proxy类 - 事件回调的服务端代理
+ * 服务端通过此代理向订阅者推送事件
+ */
+public class MyEventCallbackProxy implements IMyEventCallback {
+    
+    private IBinder mRemote;
+    
+    public MyEventCallbackProxy(IBinder remote) {
+        mRemote = remote;
+    }
+    
+    @Override
+    public IBinder asBinder() {
+        return mRemote;
+    }
+    
+    /**
+     * 推送一批事件
+     * oneway调用，对方的异步缓冲区满时抛出 RemoteException
+     */
+    @Override
+    public void onEvents(String[] topics, String[] values) throws RemoteException {
+        Parcel data = Parcel.obtain();
+        
+        try {
+            data.writeInterfaceToken(DESCRIPTOR);
+            data.writeStringArray(topics);
+            data.writeStringArray(values);
+            mRemote.transact(TRANSACTION_onEvents, data, null, IBinder.FLAG_ONEWAY);
+        } finally {
+            data.recycle();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.zhongmin.aidl;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.Parcel;
+import android.os.RemoteException;
+
+/**
+ * Stub类 - 事件回调的客户端基类
+ * 订阅事件的客户端继承此类并实现 onEvents，回调运行在客户端的Binder线程池中
+ */
+public abstract class MyEventCallbackStub extends Binder implements IMyEventCallback {
+    
+    /**
+     * 构造函数 - 注册接口描述符
+     */
+    public MyEventCallbackStub() {
+        this.attachInterface(this, DESCRIPTOR);
+    }
+    
+    /**
+     * 将IBinder转换为IMyEventCallback接口
+     * 如果是同进程，直接返回本地对象；如果是跨进程，返回代理对象
+     */
+    public static IMyEventCallback asInterface(IBinder obj) {
+        if (obj == null) {
+            return null;
+        }
+        
+        IInterface iin = obj.queryLocalInterface(DESCRIPTOR);
+        if (iin != null && iin instanceof IMyEventCallback) {
+            return (IMyEventCallback) iin;
+        }
+        
+        return new MyEventCallbackProxy(obj);
+    }
+    
+    @Override
+    public IBinder asBinder() {
+        return this;
+    }
+    
+    @Override
+    protected boolean onTransact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+        switch (code) {
+            case INTERFACE_TRANSACTION:
+                reply.writeString(DESCRIPTOR);
+                return true;
+                
+            case TRANSACTION_onEvents:
+                // oneway调用，没有回复
+                data.enforceInterface(DESCRIPTOR);
+                String[] topics = data.createStringArray();
+                String[] values = data.createStringArray();
+                this.onEvents(topics, values);
+                return true;
+        }
+        
+        return super.onTransact(code, data, reply, flags);
+    }
+}
@@ -0,0 +1,210 @@
+package com.zhongmin.aidl;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * 数组计算的并行实现
+ *
+ * 小数组直接在当前Binder线程上顺序计算；超过 PARALLEL_THRESHOLD 的数组拆分到
+ * 独占的ForkJoinPool上，一次调用可以用满服务进程的所有CPU核心，而不是只占一个Binder线程。
+ * 参数来自客户端，数组为null或长度不一致时抛出 IllegalArgumentException，由Binder传回调用方。
+ */
+public class ParallelCompute {
+    
+    /**
+     * 启用并行计算的最小元素数，更小的数组拆分调度的开销大于收益
+     */
+    public static final int PARALLEL_THRESHOLD = 64 * 1024;
+    
+    /**
+     * 叶子任务的最小元素数
+     */
+    private static final int MIN_SPLIT = 16 * 1024;
+    
+    private final ForkJoinPool mPool;
+    
+    public ParallelCompute() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * @param parallelism 并行度，通常等于CPU核心数
+     */
+    public ParallelCompute(int parallelism) {
+        mPool = new ForkJoinPool(parallelism);
+    }
+    
+    /**
+     * 逐元素相加
+     */
+    public int[] add(int[] a, int[] b) {
+        checkSameLength(a, b);
+        int[] result = new int[a.length];
+        if (a.length < PARALLEL_THRESHOLD) {
+            addRange(a, b, result, 0, a.length);
+        } else {
+            mPool.invoke(new AddTask(a, b, result, 0, a.length, splitSize(a.length)));
+        }
+        return result;
+    }
+    
+    /**
+     * 求和
+     */
+    public long sum(int[] values) {
+        checkNotNull(values, "values");
+        if (values.length < PARALLEL_THRESHOLD) {
+            return sumRange(values, 0, values.length);
+        }
+        return mPool.invoke(new SumTask(values, 0, values.length, splitSize(values.length)));
+    }
+    
+    /**
+     * 点积
+     */
+    public long dot(int[] a, int[] b) {
+        checkSameLength(a, b);
+        if (a.length < PARALLEL_THRESHOLD) {
+            return dotRange(a, b, 0, a.length);
+        }
+        return mPool.invoke(new DotTask(a, b, 0, a.length, splitSize(a.length)));
+    }
+    
+    /**
+     * 关闭线程池
+     */
+    public void shutdown() {
+        mPool.shutdown();
+    }
+    
+    /**
+     * 每个核心分4块，负载不均时其他工作线程可以窃取
+     */
+    private int splitSize(int length) {
+        return Math.max(MIN_SPLIT, length / (mPool.getParallelism() * 4));
+    }
+    
+    /**
+     * 参数校验，服务端在记录日志之前调用
+     */
+    static void checkNotNull(int[] values, String name) {
+        if (values == null) {
+            throw new IllegalArgumentException(name + " == null");
+        }
+    }
+    
+    static void checkSameLength(int[] a, int[] b) {
+        checkNotNull(a, "a");
+        checkNotNull(b, "b");
+        if (a.length != b.length) {
+            throw new IllegalArgumentException("Array length mismatch: " + a.length + " vs " + b.length);
+        }
+    }
+    
+    private static void addRange(int[] a, int[] b, int[] result, int from, int to) {
+        for (int i = from; i < to; i++) {
+            result[i] = a[i] + b[i];
+        }
+    }
+    
+    private static long sumRange(int[] values, int from, int to) {
+        long sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += values[i];
+        }
+        return sum;
+    }
+    
+    private static long dotRange(int[] a, int[] b, int from, int to) {
+        long sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += (long) a[i] * b[i];
+        }
+        return sum;
+    }
+    
+    private static final class AddTask extends RecursiveAction {
+        private final int[] a;
+        private final int[] b;
+        private final int[] result;
+        private final int from;
+        private final int to;
+        private final int split;
+        
+        AddTask(int[] a, int[] b, int[] result, int from, int to, int split) {
+            this.a = a;
+            this.b = b;
+            this.result = result;
+            this.from = from;
+            this.to = to;
+            this.split = split;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from <= split) {
+                addRange(a, b, result, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new AddTask(a, b, result, from, mid, split),
+                    new AddTask(a, b, result, mid, to, split));
+        }
+    }
+    
+    private static final class SumTask extends RecursiveTask<Long> {
+        private final int[] values;
+        private final int from;
+        private final int to;
+        private final int split;
+        
+        SumTask(int[] values, int from, int to, int split) {
+            this.values = values;
+            this.from = from;
+            this.to = to;
+            this.split = split;
+        }
+        
+        @Override
+        protected Long compute() {
+            if (to - from <= split) {
+                return sumRange(values, from, to);
+            }
+            int mid = (from + to) >>> 1;
+            SumTask left = new SumTask(values, from, mid, split);
+            left.fork();
+            long right = new SumTask(values, mid, to, split).compute();
+            return left.join() + right;
+        }
+    }
+    
+    private static final class DotTask extends RecursiveTask<Long> {
+        private final int[] a;
+        private final int[] b;
+        private final int from;
+        private final int to;
+        private final int split;
+        
+        DotTask(int[] a, int[] b, int from, int to, int split) {
+            this.a = a;
+            this.b = b;
+            this.from = from;
+            this.to = to;
+            this.split = split;
+        }
+        
+        @Override
+        protected Long compute() {
+            if (to - from <= split) {
+                return dotRange(a, b, from, to);
+            }
+            int mid = (from + to) >>> 1;
+            DotTask left = new DotTask(a, b, from, mid, split);
+            left.fork();
+            long right = new DotTask(a, b, mid, to, split).compute();
+            return left.join() + right;
+        }
+    }
+}
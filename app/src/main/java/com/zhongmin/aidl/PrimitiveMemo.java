@@ -0,0 +1,326 @@
+package com.zhongmin.aidl;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * 纯函数服务方法的结果缓存，键和值都是long
+ *
+ * 调用方把基本类型参数打包成一个long作为键（见 key()），结果同样存成long，全程没有装箱：
+ * 键、值和状态分别放在三个基本类型数组里，开放寻址、线性探测，删除时向前移动后面的元素，不留墓碑。
+ *
+ * 占用有上限：表从 MIN_CAPACITY 开始按需翻倍，条目数达到 maxEntries 后用 CLOCK 淘汰——
+ * 命中时只设置访问位，指针扫过时清除访问位，扫到访问位已经清除的条目就淘汰它，近似LRU。
+ * 内存紧张时 shrink() 淘汰一半并缩小数组，clear() 丢弃全部。
+ *
+ * 计算在锁外执行，同一个键被并发计算时结果相同，后写入的覆盖先写入的。
+ * 条目参与 WarmSnapshot，服务进程重启后缓存不用从空开始；访问位和命中统计不保存。
+ * 只依赖JDK，可以在普通JVM上运行。
+ */
+public class PrimitiveMemo implements WarmSnapshot.Participant {
+    
+    private static final int MIN_CAPACITY = 16;
+    
+    private static final byte EMPTY = 0;
+    private static final byte USED = 1;
+    private static final byte REFERENCED = 2;
+    
+    private final String mName;
+    private final int mMaxEntries;
+    
+    /**
+     * 以下字段受 this 保护
+     */
+    private long[] mKeys;
+    private long[] mValues;
+    private byte[] mStates;
+    private int mSize;
+    private int mHand;
+    
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+    private int mTrims;
+    
+    /**
+     * @param name dump() 中显示的名字，通常是方法名
+     * @param maxEntries 最多缓存的结果数
+     */
+    public PrimitiveMemo(String name, int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries < 1");
+        }
+        mName = name;
+        mMaxEntries = maxEntries;
+        allocate(MIN_CAPACITY);
+    }
+    
+    /**
+     * 两个int参数打包成键
+     */
+    public static long key(int a, int b) {
+        return ((long) a << 32) | (b & 0xFFFFFFFFL);
+    }
+    
+    /**
+     * key() 的第一个参数
+     */
+    public static int first(long key) {
+        return (int) (key >>> 32);
+    }
+    
+    /**
+     * key() 的第二个参数
+     */
+    public static int second(long key) {
+        return (int) key;
+    }
+    
+    /**
+     * 返回缓存的结果，没有时调用 compute 计算并缓存
+     *
+     * @param compute 参数是键，在锁外调用；参数从键中取出（见 first()/second()），
+     *                不要捕获局部变量，否则每次调用都会分配一个lambda对象
+     */
+    public long get(long key, LongUnaryOperator compute) {
+        synchronized (this) {
+            int index = find(key);
+            if (index >= 0) {
+                mStates[index] = REFERENCED;
+                mHits++;
+                return mValues[index];
+            }
+            mMisses++;
+        }
+        long value = compute.applyAsLong(key);
+        put(key, value);
+        return value;
+    }
+    
+    /**
+     * 写入结果，已经存在时覆盖
+     */
+    public synchronized void put(long key, long value) {
+        int index = find(key);
+        if (index >= 0) {
+            mValues[index] = value;
+            return;
+        }
+        if (mSize >= mMaxEntries) {
+            evictOne();
+        } else if (mSize >= mKeys.length - (mKeys.length >>> 2) && mKeys.length < maxCapacity()) {
+            resize(mKeys.length << 1);
+        }
+        index = slot(key, mKeys.length - 1);
+        while (mStates[index] != EMPTY) {
+            index = (index + 1) & (mKeys.length - 1);
+        }
+        mKeys[index] = key;
+        mValues[index] = value;
+        mStates[index] = USED;
+        mSize++;
+    }
+    
+    public synchronized int size() {
+        return mSize;
+    }
+    
+    /**
+     * 淘汰一半的条目并缩小数组，最近访问过的条目优先保留
+     */
+    public synchronized void shrink() {
+        int target = mSize / 2;
+        while (mSize > target) {
+            evictOne();
+        }
+        resize(capacityFor(mSize));
+        mTrims++;
+    }
+    
+    /**
+     * 丢弃所有条目，数组回到最小容量；命中统计保留
+     */
+    public synchronized void clear() {
+        mEvictions += mSize;
+        allocate(MIN_CAPACITY);
+        mTrims++;
+    }
+    
+    /**
+     * 输出大小和命中率
+     */
+    public synchronized void dump(PrintWriter writer) {
+        long lookups = mHits + mMisses;
+        writer.println("Memo " + mName + ": " + mSize + "/" + mMaxEntries + " entries, capacity " + mKeys.length
+                + ", hits " + mHits + ", misses " + mMisses
+                + (lookups > 0 ? String.format(" (%.1f%% hit)", mHits * 100.0 / lookups) : "")
+                + ", evictions " + mEvictions + ", trims " + mTrims);
+    }
+    
+    @Override
+    public void writeSnapshot(DataOutput out) throws IOException {
+        long[] keys;
+        long[] values;
+        synchronized (this) {
+            keys = new long[mSize];
+            values = new long[mSize];
+            int count = 0;
+            for (int i = 0; i < mKeys.length; i++) {
+                if (mStates[i] != EMPTY) {
+                    keys[count] = mKeys[i];
+                    values[count] = mValues[i];
+                    count++;
+                }
+            }
+        }
+        out.writeInt(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            out.writeLong(keys[i]);
+            out.writeLong(values[i]);
+        }
+    }
+    
+    /**
+     * 恢复的条目不覆盖已经计算的结果，超过 maxEntries 的部分被淘汰
+     */
+    @Override
+    public void readSnapshot(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Bad entry count " + count);
+        }
+        long[] keys = new long[Math.min(count, mMaxEntries)];
+        long[] values = new long[keys.length];
+        for (int i = 0; i < count; i++) {
+            long key = in.readLong();
+            long value = in.readLong();
+            if (i < keys.length) {
+                keys[i] = key;
+                values[i] = value;
+            }
+        }
+        synchronized (this) {
+            for (int i = 0; i < keys.length; i++) {
+                if (find(keys[i]) < 0) {
+                    put(keys[i], values[i]);
+                }
+            }
+        }
+    }
+    
+    /**
+     * 没有找到时返回-1
+     */
+    private int find(long key) {
+        int mask = mKeys.length - 1;
+        int index = slot(key, mask);
+        while (mStates[index] != EMPTY) {
+            if (mKeys[index] == key) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+    
+    /**
+     * CLOCK：跳过并清除访问过的条目，淘汰第一个没有访问过的
+     */
+    private void evictOne() {
+        int mask = mKeys.length - 1;
+        while (true) {
+            mHand = (mHand + 1) & mask;
+            byte state = mStates[mHand];
+            if (state == REFERENCED) {
+                mStates[mHand] = USED;
+            } else if (state == USED) {
+                removeAt(mHand);
+                mEvictions++;
+                return;
+            }
+        }
+    }
+    
+    /**
+     * 删除后把同一探测链上后面的元素前移，保证查找不会在空位提前结束
+     */
+    private void removeAt(int index) {
+        int mask = mKeys.length - 1;
+        int hole = index;
+        int next = index;
+        while (true) {
+            next = (next + 1) & mask;
+            if (mStates[next] == EMPTY) {
+                break;
+            }
+            int home = slot(mKeys[next], mask);
+            // home 不在 (hole, next] 区间内时，这个元素可以移到空位
+            boolean movable = next > hole ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (movable) {
+                mKeys[hole] = mKeys[next];
+                mValues[hole] = mValues[next];
+                mStates[hole] = mStates[next];
+                hole = next;
+            }
+        }
+        mStates[hole] = EMPTY;
+        mSize--;
+    }
+    
+    private void resize(int capacity) {
+        long[] keys = mKeys;
+        long[] values = mValues;
+        byte[] states = mStates;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < keys.length; i++) {
+            if (states[i] == EMPTY) {
+                continue;
+            }
+            int index = slot(keys[i], mask);
+            while (mStates[index] != EMPTY) {
+                index = (index + 1) & mask;
+            }
+            mKeys[index] = keys[i];
+            mValues[index] = values[i];
+            mStates[index] = states[i];
+            mSize++;
+        }
+    }
+    
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new long[capacity];
+        mStates = new byte[capacity];
+        mSize = 0;
+        mHand = 0;
+    }
+    
+    /**
+     * 装载因子不超过3/4的最小容量
+     */
+    private static int capacityFor(int entries) {
+        int capacity = MIN_CAPACITY;
+        while (entries > capacity - (capacity >>> 2)) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+    
+    private int maxCapacity() {
+        return capacityFor(mMaxEntries);
+    }
+    
+    /**
+     * 混合高低位，打包的键低位往往相同
+     */
+    private static int slot(long key, int mask) {
+        key ^= key >>> 33;
+        key *= 0xFF51AFD7ED558CCDL;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+}
@@ -0,0 +1,259 @@
+package com.zhongmin.aidl;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按优先级分发接口调用
+ *
+ * 两条通道：交互调用（界面触发，要求低延迟）和批量调用（后台上报等，要求吞吐）。
+ * 1. 前 reserved 个工作线程只执行交互调用，批量调用再多也不会占满所有线程
+ * 2. 其余线程优先执行交互调用，但每连续执行 INTERACTIVE_WEIGHT 个交互调用后，
+ *    如果有批量调用在等待就执行一个，批量调用不会饿死
+ * 3. 同步批量调用在Binder线程上等待结果，等待数量超过上限时直接拒绝，把Binder线程留给交互调用
+ *
+ * 每条通道一个 KeyedSerialExecutor，同一个客户端在同一条通道内的调用保持顺序。
+ */
+public class PriorityDispatcher {
+    private static final String TAG = "PriorityDispatcher";
+    
+    /**
+     * 共享线程上交互调用与批量调用的调度比例
+     */
+    static final int INTERACTIVE_WEIGHT = 4;
+    
+    private static final int LANES = 2;
+    
+    private final ReentrantLock mLock = new ReentrantLock();
+    
+    /**
+     * 保留线程只等交互调用，共享线程等任意调用
+     */
+    private final Condition mInteractiveReady = mLock.newCondition();
+    private final Condition mAnyReady = mLock.newCondition();
+    
+    private final ArrayDeque<Task> mInteractive = new ArrayDeque<>();
+    private final ArrayDeque<Task> mBulk = new ArrayDeque<>();
+    
+    /**
+     * 共享线程连续执行交互调用的次数，受 mLock 保护
+     */
+    private int mInteractiveStreak;
+    private boolean mShutdown;
+    
+    private final KeyedSerialExecutor[] mLanes = new KeyedSerialExecutor[LANES];
+    private final int mWorkers;
+    private final int mReserved;
+    
+    private volatile int mMaxBulkWaiting = 4;
+    private volatile int mMaxBulkQueued = 256;
+    private final AtomicInteger mBulkWaiting = new AtomicInteger();
+    private final AtomicInteger mBulkQueued = new AtomicInteger();
+    private final AtomicLong mBulkRejected = new AtomicLong();
+    
+    private final AtomicLong[] mExecuted = new AtomicLong[LANES];
+    private final AtomicLong[] mTotalWaitNanos = new AtomicLong[LANES];
+    private final AtomicLong[] mMaxWaitNanos = new AtomicLong[LANES];
+    
+    /**
+     * @param workers 工作线程总数
+     * @param reserved 只执行交互调用的线程数，必须小于 workers
+     */
+    public PriorityDispatcher(int workers, int reserved) {
+        if (reserved < 0 || reserved >= workers) {
+            throw new IllegalArgumentException("Bad reserved workers: " + reserved + " of " + workers);
+        }
+        mWorkers = workers;
+        mReserved = reserved;
+        for (int lane = 0; lane < LANES; lane++) {
+            int target = lane;
+            mLanes[lane] = new KeyedSerialExecutor(runnable -> submit(target, runnable));
+            mExecuted[lane] = new AtomicLong();
+            mTotalWaitNanos[lane] = new AtomicLong();
+            mMaxWaitNanos[lane] = new AtomicLong();
+        }
+        for (int i = 0; i < workers; i++) {
+            boolean interactiveOnly = i < reserved;
+            Thread thread = new Thread(() -> runWorker(interactiveOnly),
+                    (interactiveOnly ? "dispatch-interactive-" : "dispatch-shared-") + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+    
+    /**
+     * 某条通道的执行器
+     *
+     * @param lane IMyAidlInterface.LANE_INTERACTIVE 或 LANE_BULK
+     */
+    public KeyedSerialExecutor lane(int lane) {
+        return mLanes[lane == IMyAidlInterface.LANE_BULK ? IMyAidlInterface.LANE_BULK
+                : IMyAidlInterface.LANE_INTERACTIVE];
+    }
+    
+    /**
+     * 修改批量调用的上限，立即生效
+     *
+     * @param maxWaiting 同时在Binder线程上等待结果的同步批量调用数
+     * @param maxQueued 排队中的oneway批量调用数
+     */
+    public void setBulkLimits(int maxWaiting, int maxQueued) {
+        mMaxBulkWaiting = maxWaiting;
+        mMaxBulkQueued = maxQueued;
+    }
+    
+    /**
+     * 为一个批量调用占用名额，成功时必须在调用结束后调用 releaseBulk()
+     *
+     * @return false 表示已经超过上限，调用应被拒绝
+     */
+    public boolean tryAcquireBulk(boolean oneway) {
+        AtomicInteger counter = oneway ? mBulkQueued : mBulkWaiting;
+        int limit = oneway ? mMaxBulkQueued : mMaxBulkWaiting;
+        if (counter.incrementAndGet() > limit) {
+            counter.decrementAndGet();
+            mBulkRejected.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+    
+    public void releaseBulk(boolean oneway) {
+        (oneway ? mBulkQueued : mBulkWaiting).decrementAndGet();
+    }
+    
+    /**
+     * 停止接收新任务，工作线程执行完已排队的任务后退出
+     * 之后提交的任务直接在提交线程上执行，不会丢失
+     */
+    public void shutdown() {
+        mLock.lock();
+        try {
+            mShutdown = true;
+            mInteractiveReady.signalAll();
+            mAnyReady.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+    
+    /**
+     * 输出线程配置和各通道的排队情况
+     */
+    public void dump(PrintWriter writer) {
+        int interactiveQueued;
+        int bulkQueued;
+        mLock.lock();
+        try {
+            interactiveQueued = mInteractive.size();
+            bulkQueued = mBulk.size();
+        } finally {
+            mLock.unlock();
+        }
+        writer.println("Priority dispatch:");
+        writer.println("  workers: " + mWorkers + ", reserved for interactive: " + mReserved);
+        writer.println("  bulk: waiting " + mBulkWaiting.get() + "/" + mMaxBulkWaiting
+                + ", oneway queued " + mBulkQueued.get() + "/" + mMaxBulkQueued
+                + ", rejected " + mBulkRejected.get());
+        dumpLane(writer, "interactive", IMyAidlInterface.LANE_INTERACTIVE, interactiveQueued);
+        dumpLane(writer, "bulk", IMyAidlInterface.LANE_BULK, bulkQueued);
+    }
+    
+    private void dumpLane(PrintWriter writer, String name, int lane, int queued) {
+        long executed = mExecuted[lane].get();
+        long averageMicros = executed > 0 ? mTotalWaitNanos[lane].get() / executed / 1000 : 0;
+        writer.println("  " + name + ": queued " + queued + ", executed " + executed
+                + ", queue wait avg " + averageMicros + "us, max "
+                + mMaxWaitNanos[lane].get() / 1000 + "us");
+    }
+    
+    private void submit(int lane, Runnable runnable) {
+        mLock.lock();
+        try {
+            if (!mShutdown) {
+                Task task = new Task(lane, runnable, SystemClock.elapsedRealtimeNanos());
+                if (lane == IMyAidlInterface.LANE_BULK) {
+                    mBulk.addLast(task);
+                } else {
+                    mInteractive.addLast(task);
+                    mInteractiveReady.signal();
+                }
+                mAnyReady.signal();
+                return;
+            }
+        } finally {
+            mLock.unlock();
+        }
+        runnable.run();
+    }
+    
+    private void runWorker(boolean interactiveOnly) {
+        while (true) {
+            Task task;
+            mLock.lock();
+            try {
+                while ((task = next(interactiveOnly)) == null) {
+                    if (mShutdown) {
+                        return;
+                    }
+                    (interactiveOnly ? mInteractiveReady : mAnyReady).awaitUninterruptibly();
+                }
+            } finally {
+                mLock.unlock();
+            }
+            
+            long waitNanos = SystemClock.elapsedRealtimeNanos() - task.enqueueNanos;
+            mExecuted[task.lane].incrementAndGet();
+            mTotalWaitNanos[task.lane].addAndGet(waitNanos);
+            AtomicLong max = mMaxWaitNanos[task.lane];
+            long previous;
+            while (waitNanos > (previous = max.get()) && !max.compareAndSet(previous, waitNanos)) {
+                // 重试直到更新成功或已有更大的值
+            }
+            
+            try {
+                task.runnable.run();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Dispatch task failed", e);
+            }
+        }
+    }
+    
+    /**
+     * 选择下一个任务，调用时持有 mLock
+     */
+    private Task next(boolean interactiveOnly) {
+        if (interactiveOnly) {
+            return mInteractive.pollFirst();
+        }
+        boolean bulkTurn = mInteractiveStreak >= INTERACTIVE_WEIGHT || mInteractive.isEmpty();
+        if (bulkTurn && !mBulk.isEmpty()) {
+            mInteractiveStreak = 0;
+            return mBulk.pollFirst();
+        }
+        Task task = mInteractive.pollFirst();
+        if (task != null && !mBulk.isEmpty()) {
+            mInteractiveStreak++;
+        }
+        return task;
+    }
+    
+    private static final class Task {
+        final int lane;
+        final Runnable runnable;
+        final long enqueueNanos;
+        
+        Task(int lane, Runnable runnable, long enqueueNanos) {
+            this.lane = lane;
+            this.runnable = runnable;
+            this.enqueueNanos = enqueueNanos;
+        }
+    }
+}
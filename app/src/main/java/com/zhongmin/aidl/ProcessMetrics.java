@@ -0,0 +1,162 @@
+package com.zhongmin.aidl;
+
+import android.os.Debug;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/**
+ * 进程冷启动各阶段的耗时和常驻内存，每个进程一份
+ *
+ * 时间点都用 elapsedRealtime，从系统请求创建进程（zygote fork 之前）开始：
+ * 1. fork：进程开始运行 bindApplication
+ * 2. application：AidlApplication.onCreate 开始和结束
+ * 3. service：服务 onCreate 结束
+ * 4. bind：第一次 onBind，客户端从这时起才能调用
+ *
+ * 第一次 onBind 后在后台线程采样一次内存（读 smaps 需要几十毫秒），打一行日志并写入 trace counter，
+ * macrobenchmark 的 RemoteProcessMetric 从 trace 中读取；dump() 时重新采样。
+ * 加载的类数量反映进程初始化是否带进了界面相关的类。
+ */
+public class ProcessMetrics {
+    private static final String TAG = "ProcessMetrics";
+    
+    /**
+     * trace counter 名字的前缀，后面接指标名，例如 aidl.process.pssKb
+     */
+    public static final String COUNTER_PREFIX = "aidl.process.";
+    
+    private static volatile String sProcessName;
+    private static volatile long sApplicationStart;
+    private static volatile long sApplicationEnd;
+    private static volatile long sServiceCreated;
+    private static volatile long sFirstBind;
+    
+    private ProcessMetrics() {
+    }
+    
+    /**
+     * 内存采样，单位KB
+     */
+    public static final class Memory {
+        public final int totalPss;
+        public final int privateDirty;
+        public final int javaHeap;
+        public final int nativeHeap;
+        public final int code;
+        public final int loadedClasses;
+        
+        Memory(Debug.MemoryInfo info) {
+            totalPss = info.getTotalPss();
+            privateDirty = info.getTotalPrivateDirty();
+            javaHeap = stat(info, "summary.java-heap");
+            nativeHeap = stat(info, "summary.native-heap");
+            code = stat(info, "summary.code");
+            loadedClasses = Debug.getLoadedClassCount();
+        }
+        
+        private static int stat(Debug.MemoryInfo info, String name) {
+            String value = info.getMemoryStat(name);
+            try {
+                return value != null ? Integer.parseInt(value) : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return "pss " + totalPss + "KB (java " + javaHeap + "KB, native " + nativeHeap + "KB, code " + code
+                    + "KB), private dirty " + privateDirty + "KB, classes " + loadedClasses;
+        }
+    }
+    
+    /**
+     * AidlApplication.onCreate 开始时调用
+     */
+    static void markApplicationStart(String processName) {
+        sProcessName = processName;
+        sApplicationStart = SystemClock.elapsedRealtime();
+    }
+    
+    static void markApplicationEnd() {
+        sApplicationEnd = SystemClock.elapsedRealtime();
+    }
+    
+    /**
+     * 服务 onCreate 结束时调用，同一进程中有多个服务时记录第一个
+     */
+    public static void markServiceCreated() {
+        if (sServiceCreated == 0) {
+            sServiceCreated = SystemClock.elapsedRealtime();
+        }
+    }
+    
+    /**
+     * 服务 onBind 时调用，只有第一次记录并采样内存
+     */
+    public static void markFirstBind() {
+        if (sFirstBind != 0) {
+            return;
+        }
+        sFirstBind = SystemClock.elapsedRealtime();
+        Thread sampler = new Thread(ProcessMetrics::report, "process-metrics");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+    
+    /**
+     * 采样当前进程的内存
+     */
+    public static Memory sampleMemory() {
+        Debug.MemoryInfo info = new Debug.MemoryInfo();
+        Debug.getMemoryInfo(info);
+        return new Memory(info);
+    }
+    
+    /**
+     * 输出启动各阶段耗时和当前内存
+     */
+    public static void dump(PrintWriter writer) {
+        writer.println("Process " + sProcessName + " (pid " + Process.myPid() + "):");
+        writer.println("  startup: " + formatStartup());
+        writer.println("  memory: " + sampleMemory());
+    }
+    
+    private static void report() {
+        Memory memory = sampleMemory();
+        Log.i(TAG, sProcessName + " started: " + formatStartup() + "; " + memory);
+        counter("forkMs", Process.getStartElapsedRealtime() - forkRequested());
+        counter("applicationMs", sApplicationEnd - sApplicationStart);
+        counter("firstBindMs", sFirstBind - forkRequested());
+        counter("pssKb", memory.totalPss);
+        counter("privateDirtyKb", memory.privateDirty);
+        counter("loadedClasses", memory.loadedClasses);
+    }
+    
+    /**
+     * 各阶段相对进程创建请求的时间，没有经过的阶段显示为 -
+     */
+    private static String formatStartup() {
+        long origin = forkRequested();
+        return "fork " + (Process.getStartElapsedRealtime() - origin) + "ms"
+                + ", application " + since(origin, sApplicationStart) + "-" + since(origin, sApplicationEnd)
+                + ", service " + since(origin, sServiceCreated)
+                + ", first bind " + since(origin, sFirstBind);
+    }
+    
+    private static long forkRequested() {
+        return Process.getStartRequestedElapsedRealtime();
+    }
+    
+    private static String since(long origin, long mark) {
+        return mark > 0 ? (mark - origin) + "ms" : "-";
+    }
+    
+    private static void counter(String name, long value) {
+        Trace.setCounter(COUNTER_PREFIX + name, value);
+    }
+}
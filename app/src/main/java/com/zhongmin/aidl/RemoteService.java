@@ -5,18 +5,103 @@ import android.content.Intent;
 import android.os.IBinder;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.Trace;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.function.LongUnaryOperator;
+
 /**
  * 后台服务进程
+ * 
+ * 子类 Replica1/Replica2 是同一个服务的副本，在清单中声明在各自的进程，
+ * 由客户端的 ReplicaBalancer 分发调用；子类 Colocated 运行在客户端进程。
  */
 public class RemoteService extends Service {
     private static final String TAG = "RemoteService";
     
+    /**
+     * 所有副本，每个运行在独立进程
+     */
+    public static final Class<?>[] REPLICAS = {RemoteService.class, Replica1.class, Replica2.class};
+    
+    /**
+     * 热状态快照的保存间隔，状态没有变化时不写文件
+     */
+    private static final long SNAPSHOT_PERIOD_MS = 60_000;
+    
+    private static final String SNAPSHOT_EVENTS = "events";
+    private static final String SNAPSHOT_ADMISSION = "admission";
+    private static final String SNAPSHOT_ADD_MEMO = "add-memo";
+    
+    /**
+     * 数组计算，大数组在独占的ForkJoinPool上并行
+     */
+    private final ParallelCompute mCompute = new ParallelCompute();
+    
+    /**
+     * 准入控制：每个调用方每秒500次、突发100次；数组计算本身会用满所有核心，限制并发
+     */
+    private final AdmissionController mAdmission = new AdmissionController(500, 100);
+    
+    /**
+     * 调用分发：保留2个线程给界面的交互调用，后台批量调用只能用其余线程
+     */
+    private PriorityDispatcher mDispatcher;
+    
+    /**
+     * 事件推送，每100ms给每个订阅者发一批
+     */
+    private final EventHub mEvents = new EventHub(100);
+    
+    /**
+     * basicTypes 遥测数据的持久化日志，每个进程一个目录；打开失败时为null，只记录日志
+     */
+    private volatile TelemetryJournal mJournal;
+    
+    /**
+     * 热状态快照，进程被杀后重建时恢复事件的当前值、准入限制和计数、add() 的结果缓存；
+     * 各组件第一次使用时才解析自己的那一段
+     */
+    private WarmSnapshot mSnapshot;
+    
+    /**
+     * Binder线程池饱和检测，执行超过500ms的调用抓取调用栈
+     */
+    private final BinderWatchdog mWatchdog = new BinderWatchdog(BinderWatchdog.DEFAULT_BINDER_THREADS, 500);
+    
+    /**
+     * add() 的计算，参数从键中取出；不捕获变量，所有调用共用一个实例
+     */
+    private static final LongUnaryOperator ADD = key -> PrimitiveMemo.first(key) + PrimitiveMemo.second(key);
+    
+    /**
+     * add() 的结果缓存，键是打包的两个参数
+     */
+    private final PrimitiveMemo mAddMemo = new PrimitiveMemo("add", 4096);
+    
+    /**
+     * mAddMemo 是否已经从快照恢复，第一次 add() 时恢复
+     */
+    private volatile boolean mAddMemoRestored;
+    
+    /**
+     * onBind 返回的服务注册表，客户端从中按名字获取各个子接口
+     */
+    private final ServiceRegistry mRegistry = new ServiceRegistry();
+    
+    /**
+     * IMyAidlInterface 的实现，客户端第一次从注册表获取时才创建，之前为null
+     */
+    private volatile MyAidlBinder mBinder;
+    
     /**
      * Binder实现
      */
-    private final MyAidlStub mBinder = new MyAidlStub() {
+    private final class MyAidlBinder extends MyAidlStub {
         @Override
         public int getPid() throws RemoteException {
             Log.d(TAG, "getPid called, returning: " + Process.myPid());
@@ -33,11 +118,19 @@ public class RemoteService extends Service {
                     ", float=" + aFloat +
                     ", double=" + aDouble +
                     ", String=" + aString);
+            ingest(anInt, aLong, aBoolean, aFloat, aDouble, aString);
+            // 只推送摘要，aString可能很大
+            mEvents.publish(IMyEventCallback.TOPIC_BASIC_TYPES, "int=" + anInt + ", long=" + aLong
+                    + ", String.length=" + (aString != null ? aString.length() : -1));
         }
         
         @Override
         public int add(int a, int b) throws RemoteException {
-            int result = a + b;
+            if (!mAddMemoRestored) {
+                mSnapshot.restore(SNAPSHOT_ADD_MEMO);
+                mAddMemoRestored = true;
+            }
+            int result = (int) mAddMemo.get(PrimitiveMemo.key(a, b), ADD);
             Log.d(TAG, "add called: " + a + " + " + b + " = " + result);
             return result;
         }
@@ -48,18 +141,85 @@ public class RemoteService extends Service {
             Log.d(TAG, "getServiceName called, returning: " + name);
             return name;
         }
-    };
+        
+        @Override
+        public int[] addArrays(int[] a, int[] b) throws RemoteException {
+            // 先校验参数再记录日志，null数组抛出 IllegalArgumentException 而不是 NullPointerException
+            ParallelCompute.checkSameLength(a, b);
+            Log.d(TAG, "addArrays called, length: " + a.length);
+            return mCompute.add(a, b);
+        }
+        
+        @Override
+        public long sum(int[] values) throws RemoteException {
+            ParallelCompute.checkNotNull(values, "values");
+            Log.d(TAG, "sum called, length: " + values.length);
+            return mCompute.sum(values);
+        }
+        
+        @Override
+        public long dot(int[] a, int[] b) throws RemoteException {
+            ParallelCompute.checkSameLength(a, b);
+            Log.d(TAG, "dot called, length: " + a.length);
+            return mCompute.dot(a, b);
+        }
+        
+        @Override
+        public void subscribe(IMyEventCallback callback, String[] topics) throws RemoteException {
+            if (callback == null) {
+                throw new IllegalArgumentException("callback == null");
+            }
+            Log.d(TAG, "subscribe called, topics: " + (topics != null ? String.join(",", topics) : "*"));
+            mEvents.subscribe(callback, topics);
+        }
+        
+        @Override
+        public void unsubscribe(IMyEventCallback callback) throws RemoteException {
+            if (callback != null) {
+                mEvents.unsubscribe(callback);
+            }
+        }
+    }
     
     @Override
     public void onCreate() {
         super.onCreate();
+        // 服务进程冷启动的主要耗时，macrobenchmark 按这个名字测量；抛出异常时进程直接崩溃，不需要 finally
+        Trace.beginSection("RemoteService.onCreate");
         Log.d(TAG, "RemoteService onCreate, PID: " + Process.myPid());
+        mAdmission.setConcurrencyLimit(IMyAidlInterface.TRANSACTION_addArrays, 2);
+        mAdmission.setConcurrencyLimit(IMyAidlInterface.TRANSACTION_sum, 2);
+        mAdmission.setConcurrencyLimit(IMyAidlInterface.TRANSACTION_dot, 2);
+        mDispatcher = new PriorityDispatcher(Math.max(4, Runtime.getRuntime().availableProcessors()), 2);
+        mWatchdog.start();
+        mRegistry.register(IMyAidlInterface.DESCRIPTOR, this::createBinder);
+        
+        // 这里只映射文件、读取索引，各段在组件第一次使用时解析，见 createBinder() 和 add()；
+        // 快照中只有通过dumpsys覆盖的限制，其余限制使用上面的默认值
+        mSnapshot = new WarmSnapshot(new File(getFilesDir(), "warm-" + getClass().getSimpleName() + ".snap"));
+        mSnapshot.registerLazy(SNAPSHOT_EVENTS, mEvents);
+        mSnapshot.registerLazy(SNAPSHOT_ADMISSION, mAdmission);
+        mSnapshot.registerLazy(SNAPSHOT_ADD_MEMO, mAddMemo);
+        if (mSnapshot.getLastError() != null) {
+            Log.w(TAG, "Warm snapshot: " + mSnapshot.getLastError());
+        }
+        mSnapshot.start(SNAPSHOT_PERIOD_MS);
+        
+        File journalDir = new File(getFilesDir(), "telemetry-" + getClass().getSimpleName());
+        try {
+            mJournal = new TelemetryJournal(journalDir);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open telemetry journal " + journalDir, e);
+        }
+        Trace.endSection();
+        ProcessMetrics.markServiceCreated();
     }
     
     @Override
     public IBinder onBind(Intent intent) {
         Log.d(TAG, "RemoteService onBind");
-        return mBinder;
+        ProcessMetrics.markFirstBind();
+        return mRegistry;
     }
     
     @Override
@@ -68,9 +228,216 @@ public class RemoteService extends Service {
         return super.onUnbind(intent);
     }
     
+    /**
+     * 进程转入后台、随时可能被杀时保存一次快照，保存之后丢弃结果缓存；
+     * 同进程部署时界面隐藏先缩小一半
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            if (mSnapshot != null) {
+                // 在快照线程上保存，主线程不做文件IO；缓存写入快照之后再丢弃
+                mSnapshot.requestSave(mAddMemo::clear);
+            } else {
+                mAddMemo.clear();
+            }
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            mAddMemo.shrink();
+        }
+    }
+    
     @Override
     public void onDestroy() {
         super.onDestroy();
+        mSnapshot.stopAfterSave();
+        MyAidlBinder binder = mBinder;
+        if (binder != null) {
+            binder.setWatchdog(null);
+            binder.setDispatcher(null);
+        }
+        mWatchdog.stop();
+        mDispatcher.shutdown();
+        stopRecording(null);
+        mEvents.shutdown();
+        closeJournal();
+        mCompute.shutdown();
         Log.d(TAG, "RemoteService onDestroy");
     }
+    
+    /**
+     * adb shell dumpsys activity service com.zhongmin.aidl/.RemoteService [命令]
+     * 
+     * 支持的命令，用于过载时不重新部署就调整限制；准入限制的调整保存在热状态快照中，重启后仍然有效：
+     *   admission rate <每秒调用数> <突发数>
+     *   admission limit <事务码> <最大并发数>
+     *   admission reset         丢弃以上调整，回到代码中的默认值
+     *   lanes bulk <同步调用等待数> <oneway排队数>
+     *   record start [最大MB]   开始录制调用到 files/capture-<时间>.txr，见 TransactionReplayer
+     *   record stop
+     *   watchdog threshold <毫秒>
+     *   watchdog reset          重新统计并发最高值
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        // 先恢复快照中的覆盖值，这次的调整不会被随后的恢复覆盖
+        mSnapshot.restore(SNAPSHOT_ADMISSION);
+        if (args != null && args.length == 2 && "admission".equals(args[0]) && "reset".equals(args[1])) {
+            mAdmission.clearOverrides();
+        } else if (args != null && args.length == 4 && "admission".equals(args[0])) {
+            try {
+                if ("rate".equals(args[1])) {
+                    mAdmission.overrideRateLimit(Double.parseDouble(args[2]), Integer.parseInt(args[3]));
+                } else if ("limit".equals(args[1])) {
+                    mAdmission.overrideConcurrencyLimit(Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+                } else {
+                    writer.println("Unknown admission command: " + args[1]);
+                }
+            } catch (IllegalArgumentException e) {
+                writer.println("Bad admission command: " + e.getMessage());
+            }
+        } else if (args != null && args.length == 4 && "lanes".equals(args[0]) && "bulk".equals(args[1])) {
+            try {
+                mDispatcher.setBulkLimits(Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+            } catch (NumberFormatException e) {
+                writer.println("Bad lanes command: " + e.getMessage());
+            }
+        } else if (args != null && args.length >= 2 && "watchdog".equals(args[0])) {
+            if ("reset".equals(args[1])) {
+                mWatchdog.resetHighWater();
+            } else if ("threshold".equals(args[1]) && args.length == 3) {
+                try {
+                    mWatchdog.setThreshold(Long.parseLong(args[2]));
+                } catch (NumberFormatException e) {
+                    writer.println("Bad watchdog command: " + e.getMessage());
+                }
+            }
+        } else if (args != null && args.length >= 2 && "record".equals(args[0])) {
+            if ("start".equals(args[1])) {
+                try {
+                    long maxBytes = args.length > 2 ? Long.parseLong(args[2]) * 1024 * 1024 : 256L * 1024 * 1024;
+                    startRecording(maxBytes, writer);
+                } catch (NumberFormatException e) {
+                    writer.println("Bad record command: " + e.getMessage());
+                }
+            } else if ("stop".equals(args[1])) {
+                stopRecording(writer);
+            }
+        }
+        ProcessMetrics.dump(writer);
+        mWatchdog.dump(writer);
+        mAdmission.dump(writer);
+        mDispatcher.dump(writer);
+        mEvents.dump(writer);
+        mAddMemo.dump(writer);
+        TelemetryJournal journal = mJournal;
+        if (journal != null) {
+            journal.dump(writer);
+        }
+        mSnapshot.dump(writer);
+        MyAidlBinder binder = mBinder;
+        TransactionRecorder recorder = binder != null ? binder.getRecorder() : null;
+        if (recorder != null) {
+            recorder.dump(writer);
+        }
+    }
+    
+    /**
+     * 写入遥测日志并等待落盘，并发调用的Binder线程共享一次刷盘
+     * 写入失败不影响调用方
+     */
+    private void ingest(int anInt, long aLong, boolean aBoolean, float aFloat, double aDouble, String aString) {
+        TelemetryJournal journal = mJournal;
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.sync(journal.append(anInt, aLong, aBoolean, aFloat, aDouble, aString));
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Failed to journal basicTypes", e);
+        }
+    }
+    
+    private void closeJournal() {
+        TelemetryJournal journal = mJournal;
+        mJournal = null;
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close telemetry journal", e);
+            }
+        }
+    }
+    
+    /**
+     * 注册表的工厂，在第一次获取接口的Binder线程上调用，注册表保证只调用一次
+     * （dumpsys record start 时可能在dump线程上调用）
+     */
+    private IBinder createBinder() {
+        // 客户端开始调用之前恢复每次调用都会用到的组件，在Binder线程上解析，不占用主线程
+        mSnapshot.restore(SNAPSHOT_ADMISSION);
+        mSnapshot.restore(SNAPSHOT_EVENTS);
+        MyAidlBinder binder = new MyAidlBinder();
+        binder.setAdmissionController(mAdmission);
+        binder.setDispatcher(mDispatcher);
+        binder.setWatchdog(mWatchdog);
+        mBinder = binder;
+        return binder;
+    }
+    
+    /**
+     * 开始录制，已经在录制时先结束上一次；接口还没有创建时立即创建
+     */
+    private void startRecording(long maxBytes, PrintWriter writer) {
+        stopRecording(writer);
+        MyAidlBinder binder = (MyAidlBinder) mRegistry.getService(IMyAidlInterface.DESCRIPTOR);
+        File file = new File(getFilesDir(), "capture-" + System.currentTimeMillis() + ".txr");
+        try {
+            binder.setRecorder(new TransactionRecorder(file, TransactionRecorder.DEFAULT_WINDOW_SIZE, maxBytes));
+            writer.println("Recording to " + file);
+        } catch (IOException e) {
+            writer.println("Failed to start recording: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * 结束录制
+     *
+     * @param writer dumpsys的输出，为null时只记录日志
+     */
+    private void stopRecording(PrintWriter writer) {
+        MyAidlBinder binder = mBinder;
+        TransactionRecorder recorder = binder != null ? binder.getRecorder() : null;
+        if (recorder == null) {
+            return;
+        }
+        binder.setRecorder(null);
+        try {
+            recorder.close();
+            if (writer != null) {
+                writer.println("Recorded " + recorder.getFile() + ", " + recorder.size() + " bytes");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close " + recorder.getFile(), e);
+        }
+    }
+    
+    /**
+     * 副本，运行在 :remote1 进程
+     */
+    public static class Replica1 extends RemoteService {
+    }
+    
+    /**
+     * 副本，运行在 :remote2 进程
+     */
+    public static class Replica2 extends RemoteService {
+    }
+    
+    /**
+     * 同进程部署，运行在客户端进程，见 ServiceDeployment
+     */
+    public static class Colocated extends RemoteService {
+    }
 }
@@ -0,0 +1,358 @@
+package com.zhongmin.aidl;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.DeadObjectException;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多进程服务副本的客户端负载均衡
+ *
+ * 服务的每个副本是一个独立进程，有自己的Binder线程池和堆：
+ * 1. bind() 只绑定第一个副本，每多一个副本就要多启动一个进程；普通调用选中的副本上已经有
+ *    GROW_OUTSTANDING 个未完成的调用、并且已绑定的副本都已连接时再绑定下一个，bindAll() 一次绑定全部
+ * 2. 普通调用选择未完成请求最少的副本，CPU密集的调用自然分散到多个进程
+ * 3. 带key的调用用rendezvous哈希固定到一个可用副本，有状态的调用总是落在同一个进程；
+ *    副本死亡时只有原本落在它上面的key会迁移，新绑定的副本连接后也只分走约1/n的key
+ * 4. 副本的健康状态来自 linkToDeath 死亡通知，系统重启副本并重新连接后自动恢复
+ *
+ * 调用遇到 DeadObjectException 时不会自动重试（调用不一定是幂等的），
+ * 该副本立即被标记为不可用，调用方重试时会选择其他副本。
+ */
+public class ReplicaBalancer {
+    private static final String TAG = "ReplicaBalancer";
+    
+    /**
+     * 选中的副本上未完成的调用达到这个数时绑定下一个副本
+     */
+    static final int GROW_OUTSTANDING = 2;
+    
+    /**
+     * 在选中的副本上执行的调用
+     */
+    public interface Call<T> {
+        T call(IMyAidlInterface service) throws RemoteException;
+    }
+    
+    private final Context mContext;
+    private final int mLane;
+    private final Replica[] mReplicas;
+    
+    /**
+     * 未完成请求数相同时轮流选择的起点
+     */
+    private final AtomicInteger mNext = new AtomicInteger();
+    
+    /**
+     * 已经绑定的副本是 mReplicas 的前 mBoundCount 个，受 this 保护
+     */
+    private volatile boolean mBound;
+    private int mBoundCount;
+    
+    /**
+     * RemoteService 的所有副本，同进程部署时只有一个
+     *
+     * @param lane 调用通道，见 IMyAidlInterface.LANE_INTERACTIVE / LANE_BULK
+     */
+    public ReplicaBalancer(Context context, int lane) {
+        this(context, lane, ServiceDeployment.replicas(context));
+    }
+    
+    /**
+     * @param lane 调用通道
+     * @param services 副本服务类，每个类在清单中声明在不同的进程
+     */
+    public ReplicaBalancer(Context context, int lane, Class<?>... services) {
+        mContext = context.getApplicationContext();
+        mLane = lane;
+        mReplicas = new Replica[services.length];
+        for (int i = 0; i < services.length; i++) {
+            mReplicas[i] = new Replica(new ComponentName(mContext, services[i]));
+        }
+    }
+    
+    /**
+     * 绑定第一个副本，其余副本按需绑定；连接是异步建立的
+     */
+    public synchronized void bind() {
+        if (mBound) {
+            return;
+        }
+        mBound = true;
+        bindNext();
+    }
+    
+    /**
+     * 绑定所有副本，适合一开始就有持续批量调用的场景
+     */
+    public synchronized void bindAll() {
+        mBound = true;
+        while (mBoundCount < mReplicas.length) {
+            bindNext();
+        }
+    }
+    
+    /**
+     * 解绑所有已绑定的副本
+     */
+    public synchronized void unbind() {
+        if (!mBound) {
+            return;
+        }
+        mBound = false;
+        for (int i = 0; i < mBoundCount; i++) {
+            mReplicas[i].unbind();
+        }
+        mBoundCount = 0;
+    }
+    
+    /**
+     * 已经绑定的副本数
+     */
+    public synchronized int boundReplicas() {
+        return mBoundCount;
+    }
+    
+    /**
+     * 在未完成请求最少的副本上执行
+     */
+    public <T> T execute(Call<T> call) throws RemoteException {
+        return execute(null, call);
+    }
+    
+    /**
+     * 在key对应的副本上执行，key为null时选择未完成请求最少的副本
+     *
+     * @throws RemoteException 没有可用的副本，或者调用本身失败
+     */
+    public <T> T execute(Object key, Call<T> call) throws RemoteException {
+        for (int attempt = 0; attempt < mReplicas.length; attempt++) {
+            Replica replica = key == null ? leastOutstanding() : forKey(key);
+            if (replica == null) {
+                break;
+            }
+            // 选中后副本可能刚好断开，换一个
+            IMyAidlInterface service = replica.mService;
+            if (service == null) {
+                continue;
+            }
+            if (key == null && replica.mOutstanding.get() >= GROW_OUTSTANDING) {
+                grow();
+            }
+            
+            replica.mOutstanding.incrementAndGet();
+            try {
+                return call.call(service);
+            } catch (DeadObjectException e) {
+                replica.onDied(service.asBinder());
+                throw e;
+            } finally {
+                replica.mOutstanding.decrementAndGet();
+            }
+        }
+        throw new RemoteException("No replica available");
+    }
+    
+    /**
+     * 当前可用的副本数
+     */
+    public int availableReplicas() {
+        int count = 0;
+        for (Replica replica : mReplicas) {
+            if (replica.mService != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * 输出每个副本的状态
+     */
+    public void dump(PrintWriter writer) {
+        int bound = boundReplicas();
+        writer.println("Replicas:");
+        for (int i = 0; i < mReplicas.length; i++) {
+            Replica replica = mReplicas[i];
+            writer.println("  " + replica.mComponent.getShortClassName()
+                    + ": " + (replica.mService != null ? "alive" : i < bound ? "down" : "unbound")
+                    + ", outstanding " + replica.mOutstanding.get()
+                    + ", deaths " + replica.mDeaths.get());
+        }
+    }
+    
+    /**
+     * 所有已绑定的副本都已连接时绑定下一个；还在连接或重启中的副本先分担，不一次绑定多个
+     */
+    private synchronized void grow() {
+        if (!mBound || mBoundCount >= mReplicas.length || availableReplicas() < mBoundCount) {
+            return;
+        }
+        Log.d(TAG, "Binding replica " + mBoundCount + " for bulk load");
+        bindNext();
+    }
+    
+    private void bindNext() {
+        mReplicas[mBoundCount++].bind();
+    }
+    
+    private Replica leastOutstanding() {
+        int start = Math.floorMod(mNext.getAndIncrement(), mReplicas.length);
+        Replica best = null;
+        int bestOutstanding = Integer.MAX_VALUE;
+        for (int i = 0; i < mReplicas.length; i++) {
+            Replica replica = mReplicas[(start + i) % mReplicas.length];
+            int outstanding = replica.mOutstanding.get();
+            if (replica.mService != null && outstanding < bestOutstanding) {
+                best = replica;
+                bestOutstanding = outstanding;
+            }
+        }
+        return best;
+    }
+    
+    /**
+     * rendezvous哈希：key与每个可用副本算一个分数，取分数最高的
+     */
+    private Replica forKey(Object key) {
+        long keyHash = key.hashCode() * 0x9E3779B97F4A7C15L;
+        Replica best = null;
+        long bestScore = Long.MIN_VALUE;
+        for (int i = 0; i < mReplicas.length; i++) {
+            Replica replica = mReplicas[i];
+            if (replica.mService == null) {
+                continue;
+            }
+            long score = mix(keyHash + i);
+            if (best == null || score > bestScore) {
+                best = replica;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+    
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+    
+    /**
+     * 一个副本的连接
+     */
+    private final class Replica implements ServiceConnection, IBinder.DeathRecipient {
+        final ComponentName mComponent;
+        final AtomicInteger mOutstanding = new AtomicInteger();
+        final AtomicInteger mDeaths = new AtomicInteger();
+        
+        /**
+         * 为null表示不可用
+         */
+        volatile IMyAidlInterface mService;
+        
+        /**
+         * 当前连接的服务注册表，同一个连接上重复回调时复用代理和它缓存的子接口
+         */
+        IServiceRegistry mRegistry;
+        
+        Replica(ComponentName component) {
+            mComponent = component;
+        }
+        
+        void bind() {
+            Intent intent = new Intent().setComponent(mComponent);
+            if (!mContext.bindService(intent, this, Context.BIND_AUTO_CREATE)) {
+                Log.w(TAG, "Failed to bind " + mComponent.getShortClassName());
+            }
+        }
+        
+        void unbind() {
+            mContext.unbindService(this);
+            clear();
+            mRegistry = null;
+        }
+        
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder registry) {
+            mRegistry = ServiceRegistryStub.asInterface(registry);
+            IBinder binder;
+            try {
+                binder = mRegistry.getService(IMyAidlInterface.DESCRIPTOR);
+                if (binder == null) {
+                    Log.w(TAG, "Replica has no " + IMyAidlInterface.DESCRIPTOR + ": " + name.getShortClassName());
+                    return;
+                }
+                binder.linkToDeath(this, 0);
+            } catch (RemoteException e) {
+                // 连接建立前副本已经死了，等系统重启后再次回调
+                Log.w(TAG, "Replica died before connected: " + name.getShortClassName());
+                return;
+            }
+            synchronized (this) {
+                mService = MyAidlStub.asInterface(binder, mLane);
+            }
+            Log.d(TAG, "Replica connected: " + name.getShortClassName());
+        }
+        
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            IMyAidlInterface service = mService;
+            if (service != null) {
+                onDied(service.asBinder());
+            }
+        }
+        
+        @Override
+        public void onBindingDied(ComponentName name) {
+            // 绑定已经失效，系统不会再回调，需要重新绑定
+            Log.w(TAG, "Replica binding died: " + name.getShortClassName());
+            unbind();
+            if (mBound) {
+                bind();
+            }
+        }
+        
+        @Override
+        public void binderDied() {
+            IMyAidlInterface service = mService;
+            if (service != null) {
+                onDied(service.asBinder());
+            }
+        }
+        
+        /**
+         * 标记副本不可用，同一个Binder的多次通知只处理一次
+         */
+        void onDied(IBinder binder) {
+            IMyAidlInterface service = mService;
+            if (service == null || service.asBinder() != binder) {
+                return;
+            }
+            synchronized (this) {
+                if (mService != service) {
+                    return;
+                }
+                mService = null;
+            }
+            binder.unlinkToDeath(this, 0);
+            mDeaths.incrementAndGet();
+            Log.w(TAG, "Replica died: " + mComponent.getShortClassName());
+        }
+        
+        private synchronized void clear() {
+            IMyAidlInterface service = mService;
+            if (service != null) {
+                mService = null;
+                service.asBinder().unlinkToDeath(this, 0);
+            }
+        }
+    }
+}
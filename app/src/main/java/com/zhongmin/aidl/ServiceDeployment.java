@@ -0,0 +1,170 @@
+package com.zhongmin.aidl;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * 服务的部署方式
+ *
+ * MODE_REMOTE：RemoteService 运行在独立的 :remote 进程（及副本进程），通过Binder调用
+ * MODE_COLOCATED：服务运行在客户端进程，asInterface 拿到本地对象后直接调用，没有跨进程开销，
+ * 代价是失去进程隔离，服务崩溃会带着客户端一起崩溃
+ *
+ * 默认值来自清单中 application 的 meta-data（META_DATA_KEY），setOverride() 可以在运行时覆盖并持久化，
+ * 之后新建立的绑定生效，已有的连接不受影响。
+ *
+ * 读取覆盖值（SharedPreferences 文件）和 meta-data（PackageManager 跨进程调用）都不能放在主线程上：
+ * AidlApplication 在主进程启动时调用 prefetch() 在后台线程上读取一次，之后 mode() 只读缓存；
+ * 没有预取时（例如测试）在调用线程上读取。
+ */
+public final class ServiceDeployment {
+    private static final String TAG = "ServiceDeployment";
+    
+    public static final String MODE_REMOTE = "remote";
+    public static final String MODE_COLOCATED = "colocated";
+    
+    static final String META_DATA_KEY = "com.zhongmin.aidl.DEPLOYMENT";
+    
+    private static final String PREFS_NAME = "service_deployment";
+    private static final String KEY_OVERRIDE = "override";
+    
+    private static volatile String sMode;
+    
+    /**
+     * 清单中的部署方式，setOverride(null) 时不再查询 PackageManager
+     */
+    private static volatile String sManifestMode;
+    
+    /**
+     * prefetch() 启动的后台读取，完成后 sMode 已经设置；受 ServiceDeployment.class 保护
+     */
+    private static FutureTask<String> sPrefetch;
+    
+    private ServiceDeployment() {
+    }
+    
+    /**
+     * 在后台线程上读取部署方式，进程启动时调用一次
+     */
+    public static synchronized void prefetch(Context context) {
+        if (sMode != null || sPrefetch != null) {
+            return;
+        }
+        Context app = context.getApplicationContext();
+        FutureTask<String> task = new FutureTask<>(() -> {
+            // 有覆盖值时也读取清单，之后 setOverride(null) 不用再查询
+            manifestMode(app);
+            String mode = resolve(app);
+            synchronized (ServiceDeployment.class) {
+                // 读取期间 setOverride() 设置的值优先
+                if (sMode == null) {
+                    sMode = mode;
+                }
+                return sMode;
+            }
+        });
+        sPrefetch = task;
+        Thread thread = new Thread(task, "deployment-prefetch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * 当前的部署方式，MODE_REMOTE 或 MODE_COLOCATED
+     * 预取还没完成时等待它，通常在第一次绑定之前早已完成
+     */
+    public static String mode(Context context) {
+        String mode = sMode;
+        if (mode != null) {
+            return mode;
+        }
+        FutureTask<String> prefetch;
+        synchronized (ServiceDeployment.class) {
+            prefetch = sPrefetch;
+        }
+        if (prefetch != null) {
+            try {
+                return prefetch.get();
+            } catch (ExecutionException e) {
+                Log.w(TAG, "Deployment prefetch failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mode = resolve(context.getApplicationContext());
+        sMode = mode;
+        return mode;
+    }
+    
+    public static boolean isColocated(Context context) {
+        return MODE_COLOCATED.equals(mode(context));
+    }
+    
+    /**
+     * 覆盖清单中的部署方式，持久化后立即生效
+     *
+     * @param mode MODE_REMOTE、MODE_COLOCATED，为null时恢复清单中的配置
+     */
+    public static void setOverride(Context context, String mode) {
+        if (mode != null && !MODE_REMOTE.equals(mode) && !MODE_COLOCATED.equals(mode)) {
+            throw new IllegalArgumentException("Unknown deployment mode: " + mode);
+        }
+        Context app = context.getApplicationContext();
+        app.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putString(KEY_OVERRIDE, mode)
+                .apply();
+        String resolved = mode != null ? mode : manifestMode(app);
+        synchronized (ServiceDeployment.class) {
+            sMode = resolved;
+        }
+    }
+    
+    /**
+     * 客户端应该绑定的服务
+     */
+    public static Class<?> serviceClass(Context context) {
+        return isColocated(context) ? RemoteService.Colocated.class : RemoteService.class;
+    }
+    
+    /**
+     * 负载均衡的副本；同进程部署时只有一个
+     */
+    public static Class<?>[] replicas(Context context) {
+        return isColocated(context) ? new Class<?>[] {RemoteService.Colocated.class} : RemoteService.REPLICAS;
+    }
+    
+    private static String resolve(Context app) {
+        String override = app.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getString(KEY_OVERRIDE, null);
+        if (override != null) {
+            return override;
+        }
+        return manifestMode(app);
+    }
+    
+    private static String manifestMode(Context app) {
+        String mode = sManifestMode;
+        if (mode != null) {
+            return mode;
+        }
+        mode = MODE_REMOTE;
+        try {
+            ApplicationInfo info = app.getPackageManager().getApplicationInfo(app.getPackageName(),
+                    PackageManager.ApplicationInfoFlags.of(PackageManager.GET_META_DATA));
+            Bundle metaData = info.metaData;
+            if (metaData != null && MODE_COLOCATED.equals(metaData.getString(META_DATA_KEY))) {
+                mode = MODE_COLOCATED;
+            }
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "Failed to read deployment meta-data", e);
+        }
+        sManifestMode = mode;
+        return mode;
+    }
+}
@@ -0,0 +1,73 @@
+package com.zhongmin.aidl;
+
+import android.os.IBinder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * 服务注册表的默认实现
+ * 
+ * 子接口在服务启动时只注册工厂，第一次被客户端获取时才创建，之后一直返回同一个Binder。
+ * 增加接口只需要注册一个名字，不需要新的 Service、新的绑定或新的进程。
+ */
+public class ServiceRegistry extends ServiceRegistryStub {
+    
+    /**
+     * 注册顺序即 listServices() 的顺序，受 this 保护
+     */
+    private final Map<String, Supplier<IBinder>> mFactories = new LinkedHashMap<>();
+    
+    /**
+     * 已经创建的子接口
+     */
+    private final ConcurrentHashMap<String, IBinder> mServices = new ConcurrentHashMap<>();
+    
+    /**
+     * 注册子接口，同名时替换还没有创建的工厂
+     * 
+     * @param name 接口名字，使用接口描述符
+     * @param factory 第一次被获取时在Binder线程上调用
+     */
+    public synchronized void register(String name, Supplier<IBinder> factory) {
+        mFactories.put(name, factory);
+    }
+    
+    /**
+     * 获取子接口，第一次获取时创建；同一个名字同时被多个线程获取时只创建一次
+     */
+    @Override
+    public IBinder getService(String name) {
+        if (name == null) {
+            return null;
+        }
+        IBinder service = mServices.get(name);
+        if (service != null) {
+            return service;
+        }
+        Supplier<IBinder> factory;
+        synchronized (this) {
+            factory = mFactories.get(name);
+        }
+        if (factory == null) {
+            return null;
+        }
+        return mServices.computeIfAbsent(name, key -> factory.get());
+    }
+    
+    @Override
+    public IBinder[] getServices(String[] names) {
+        IBinder[] services = new IBinder[names != null ? names.length : 0];
+        for (int i = 0; i < services.length; i++) {
+            services[i] = getService(names[i]);
+        }
+        return services;
+    }
+    
+    @Override
+    public synchronized String[] listServices() {
+        return mFactories.keySet().toArray(new String[0]);
+    }
+}
@@ -0,0 +1,135 @@
+package com.zhongmin.aidl;
+
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Proxy类 - 服务注册表的客户端代理
+ * 获取到的子接口Binder缓存在代理中，同一个名字只跨进程查询一次；服务进程重启后需要重新绑定并创建新的代理
+ */
+public class ServiceRegistryProxy implements IServiceRegistry {
+    
+    private IBinder mRemote;
+    
+    /**
+     * 已经获取的子接口
+     */
+    private final ConcurrentHashMap<String, IBinder> mCache = new ConcurrentHashMap<>();
+    
+    public ServiceRegistryProxy(IBinder remote) {
+        mRemote = remote;
+    }
+    
+    @Override
+    public IBinder asBinder() {
+        return mRemote;
+    }
+    
+    /**
+     * 获取子接口，已经获取过时不再跨进程
+     */
+    @Override
+    public IBinder getService(String name) throws RemoteException {
+        IBinder cached = mCache.get(name);
+        if (cached != null) {
+            return cached;
+        }
+        
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        IBinder service;
+        
+        try {
+            data.writeInterfaceToken(DESCRIPTOR);
+            data.writeString(name);
+            // 发起跨进程调用
+            mRemote.transact(TRANSACTION_getService, data, reply, 0);
+            reply.readException();
+            service = reply.readStrongBinder();
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+        
+        if (service != null) {
+            mCache.put(name, service);
+        }
+        return service;
+    }
+    
+    /**
+     * 一次跨进程获取多个子接口，只查询还没有缓存的名字
+     */
+    @Override
+    public IBinder[] getServices(String[] names) throws RemoteException {
+        IBinder[] result = new IBinder[names.length];
+        int missing = 0;
+        for (int i = 0; i < names.length; i++) {
+            result[i] = mCache.get(names[i]);
+            if (result[i] == null) {
+                missing++;
+            }
+        }
+        if (missing == 0) {
+            return result;
+        }
+        
+        String[] query = new String[missing];
+        for (int i = 0, j = 0; i < names.length; i++) {
+            if (result[i] == null) {
+                query[j++] = names[i];
+            }
+        }
+        
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        IBinder[] services;
+        
+        try {
+            data.writeInterfaceToken(DESCRIPTOR);
+            data.writeStringArray(query);
+            // 发起跨进程调用
+            mRemote.transact(TRANSACTION_getServices, data, reply, 0);
+            reply.readException();
+            services = reply.createBinderArray();
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+        
+        for (int i = 0, j = 0; i < names.length; i++) {
+            if (result[i] == null) {
+                IBinder service = services != null && j < services.length ? services[j] : null;
+                j++;
+                if (service != null) {
+                    mCache.put(names[i], service);
+                    result[i] = service;
+                }
+            }
+        }
+        return result;
+    }
+    
+    @Override
+    public String[] listServices() throws RemoteException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        String[] result;
+        
+        try {
+            data.writeInterfaceToken(DESCRIPTOR);
+            // 发起跨进程调用
+            mRemote.transact(TRANSACTION_listServices, data, reply, 0);
+            reply.readException();
+            result = reply.createStringArray();
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+        
+        return result;
+    }
+}
@@ -0,0 +1,97 @@
+package com.zhongmin.aidl;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.Parcel;
+import android.os.RemoteException;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * Stub类 - 服务注册表的服务端基类，默认实现见 ServiceRegistry
+ */
+public abstract class ServiceRegistryStub extends Binder implements IServiceRegistry {
+    
+    /**
+     * asInterface() 创建的代理，每个IBinder一个，子接口的缓存随代理一起复用；
+     * 值是弱引用，代理持有IBinder
+     */
+    private static final WeakHashMap<IBinder, WeakReference<IServiceRegistry>> sProxies = new WeakHashMap<>();
+    
+    /**
+     * 构造函数 - 注册接口描述符
+     */
+    public ServiceRegistryStub() {
+        this.attachInterface(this, DESCRIPTOR);
+    }
+    
+    /**
+     * 将IBinder转换为IServiceRegistry接口
+     * 如果是同进程，直接返回本地对象；如果是跨进程，返回带缓存的代理对象
+     * 同一个IBinder返回同一个代理，只要调用方还持有它
+     */
+    public static IServiceRegistry asInterface(IBinder obj) {
+        if (obj == null) {
+            return null;
+        }
+        
+        IInterface iin = obj.queryLocalInterface(DESCRIPTOR);
+        if (iin != null && iin instanceof IServiceRegistry) {
+            return (IServiceRegistry) iin;
+        }
+        
+        synchronized (sProxies) {
+            WeakReference<IServiceRegistry> ref = sProxies.get(obj);
+            IServiceRegistry cached = ref != null ? ref.get() : null;
+            if (cached == null) {
+                cached = new ServiceRegistryProxy(obj);
+                sProxies.put(obj, new WeakReference<>(cached));
+            }
+            return cached;
+        }
+    }
+    
+    @Override
+    public IBinder asBinder() {
+        return this;
+    }
+    
+    @Override
+    protected boolean onTransact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+        switch (code) {
+            case INTERFACE_TRANSACTION:
+                reply.writeString(DESCRIPTOR);
+                return true;
+                
+            case TRANSACTION_getService:
+                // 处理getService()方法调用
+                data.enforceInterface(DESCRIPTOR);
+                String name = data.readString();
+                IBinder service = this.getService(name);
+                reply.writeNoException();
+                reply.writeStrongBinder(service);
+                return true;
+                
+            case TRANSACTION_getServices:
+                // 处理getServices()方法调用
+                data.enforceInterface(DESCRIPTOR);
+                String[] names = data.createStringArray();
+                IBinder[] services = this.getServices(names);
+                reply.writeNoException();
+                reply.writeBinderArray(services);
+                return true;
+                
+            case TRANSACTION_listServices:
+                // 处理listServices()方法调用
+                data.enforceInterface(DESCRIPTOR);
+                String[] listed = this.listServices();
+                reply.writeNoException();
+                reply.writeStringArray(listed);
+                return true;
+        }
+        
+        return super.onTransact(code, data, reply, flags);
+    }
+}
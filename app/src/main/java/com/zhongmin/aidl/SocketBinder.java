@@ -0,0 +1,123 @@
+package com.zhongmin.aidl;
+
+import android.os.DeadObjectException;
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.Parcel;
+import android.os.RemoteException;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 用socket连接实现的IBinder
+ *
+ * 可以直接交给 MyAidlStub.asInterface()，MyAidlProxy 的序列化和事务码原样复用：
+ * transact() 把Parcel序列化后通过 SocketClient 发给对端的 BinderSocketHandler，再把回复反序列化。
+ * 多个线程的调用在同一个连接上流水线执行。
+ *
+ * socket不能传递文件描述符和Binder对象，所有事务都带上 FLAG_INLINE_ONLY，
+ * 双方的大数组都内联写入Parcel；连接断开时调用抛出 DeadObjectException 并触发死亡通知。
+ */
+public class SocketBinder implements IBinder {
+    
+    private final SocketClient mClient;
+    private final CopyOnWriteArrayList<DeathRecipient> mRecipients = new CopyOnWriteArrayList<>();
+    
+    public SocketBinder(SocketClient client) {
+        mClient = client;
+        mClient.addCloseListener(this::notifyDeath);
+    }
+    
+    @Override
+    public String getInterfaceDescriptor() throws RemoteException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            transact(INTERFACE_TRANSACTION, data, reply, 0);
+            return reply.readString();
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+    }
+    
+    @Override
+    public boolean pingBinder() {
+        return mClient.isOpen();
+    }
+    
+    @Override
+    public boolean isBinderAlive() {
+        return mClient.isOpen();
+    }
+    
+    /**
+     * 对端总是在另一个进程或另一台机器上
+     */
+    @Override
+    public IInterface queryLocalInterface(String descriptor) {
+        return null;
+    }
+    
+    @Override
+    public void dump(FileDescriptor fd, String[] args) {
+        // socket传输不支持dump
+    }
+    
+    @Override
+    public void dumpAsync(FileDescriptor fd, String[] args) {
+        // socket传输不支持dump
+    }
+    
+    @Override
+    public boolean transact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+        SocketClient.Reply result;
+        try {
+            result = mClient.call(code, data.marshall(), flags | IMyAidlInterface.FLAG_INLINE_ONLY);
+        } catch (IOException e) {
+            throw new DeadObjectException(e.getMessage());
+        }
+        if (result.isUnknownTransaction()) {
+            return false;
+        }
+        if (!result.isOk()) {
+            throw new RemoteException(new String(result.data, StandardCharsets.UTF_8));
+        }
+        if (reply != null && (flags & FLAG_ONEWAY) == 0) {
+            reply.unmarshall(result.data, 0, result.data.length);
+            reply.setDataPosition(0);
+        }
+        return true;
+    }
+    
+    @Override
+    public void linkToDeath(DeathRecipient recipient, int flags) throws RemoteException {
+        mRecipients.add(recipient);
+        if (!mClient.isOpen() && mRecipients.remove(recipient)) {
+            throw new DeadObjectException("Socket closed");
+        }
+    }
+    
+    @Override
+    public boolean unlinkToDeath(DeathRecipient recipient, int flags) {
+        return mRecipients.remove(recipient);
+    }
+    
+    /**
+     * 断开连接
+     */
+    public void close() {
+        mClient.close();
+    }
+    
+    private void notifyDeath() {
+        for (DeathRecipient recipient : mRecipients) {
+            if (mRecipients.remove(recipient)) {
+                recipient.binderDied();
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.zhongmin.aidl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基于NIO的流式socket客户端
+ *
+ * 一个连接上多路复用：每个请求带一个关联ID，调用线程直接把请求帧写进socket，不等待前面请求的回复；
+ * 进程内所有连接共用一个选择线程（SocketEventLoop.shared()），按关联ID把回复交给对应的调用。
+ * 多个线程的请求在同一个连接上流水线执行，回复可以乱序到达。
+ *
+ * 只依赖JDK，可以在普通JVM上运行；地址可以是 UnixDomainSocketAddress（JDK 16+）或回环地址。
+ * 帧格式见 SocketFrames。
+ */
+public class SocketClient implements Closeable {
+    
+    /**
+     * 一次调用的回复
+     */
+    public static final class Reply {
+        static final Reply ONEWAY = new Reply(SocketFrames.STATUS_OK, new byte[0]);
+        
+        public final int status;
+        public final byte[] data;
+        
+        Reply(int status, byte[] data) {
+            this.status = status;
+            this.data = data;
+        }
+        
+        public boolean isOk() {
+            return status == SocketFrames.STATUS_OK;
+        }
+        
+        public boolean isUnknownTransaction() {
+            return status == SocketFrames.STATUS_UNKNOWN_TRANSACTION;
+        }
+    }
+    
+    private final SocketEventLoop.Connection mConnection;
+    private final ConcurrentHashMap<Long, CompletableFuture<Reply>> mPending = new ConcurrentHashMap<>();
+    private final AtomicLong mNextId = new AtomicLong();
+    private final CopyOnWriteArrayList<Runnable> mCloseListeners = new CopyOnWriteArrayList<>();
+    
+    /**
+     * 连接断开的原因，为null表示连接正常
+     */
+    private volatile IOException mClosedCause;
+    
+    public static SocketClient connect(SocketAddress address) throws IOException {
+        return new SocketClient(SocketChannel.open(address));
+    }
+    
+    /**
+     * @param channel 已连接的channel，改为非阻塞模式后注册到共用的选择线程
+     */
+    public SocketClient(SocketChannel channel) throws IOException {
+        mConnection = SocketEventLoop.shared().register(channel, false, new SocketEventLoop.Listener() {
+            @Override
+            public void onFrame(SocketEventLoop.Connection connection, SocketFrames.Frame frame) {
+                CompletableFuture<Reply> future = mPending.remove(frame.id);
+                if (future != null) {
+                    future.complete(new Reply(frame.arg0, frame.payload));
+                }
+            }
+            
+            @Override
+            public void onClosed(SocketEventLoop.Connection connection, IOException cause) {
+                close(cause);
+            }
+        });
+    }
+    
+    /**
+     * 同步调用
+     *
+     * @throws IOException 连接断开
+     */
+    public Reply call(int code, byte[] data, int flags) throws IOException {
+        try {
+            return callAsync(code, data, flags).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for reply");
+        }
+    }
+    
+    /**
+     * 异步调用，请求写入socket（或写不下时进入发送队列）后立即返回
+     * oneway调用在写入后就完成，没有回复内容
+     */
+    public CompletableFuture<Reply> callAsync(int code, byte[] data, int flags) {
+        CompletableFuture<Reply> future = new CompletableFuture<>();
+        boolean oneway = (flags & SocketFrames.FLAG_ONEWAY) != 0;
+        long id = mNextId.incrementAndGet();
+        if (!oneway) {
+            mPending.put(id, future);
+        }
+        // 先登记再检查，关闭时的清理一定能看到这个请求，或者这里一定能看到关闭
+        IOException closed = mClosedCause;
+        if (closed != null) {
+            mPending.remove(id);
+            future.completeExceptionally(closed);
+            return future;
+        }
+        
+        try {
+            mConnection.send(SocketFrames.encodeRequest(id, code, flags, data));
+        } catch (IOException e) {
+            mPending.remove(id);
+            future.completeExceptionally(e);
+            return future;
+        }
+        if (oneway) {
+            future.complete(Reply.ONEWAY);
+        }
+        return future;
+    }
+    
+    public boolean isOpen() {
+        return mClosedCause == null;
+    }
+    
+    /**
+     * 连接断开时回调，在选择线程或关闭连接的线程上执行；已经断开时立即回调
+     */
+    public void addCloseListener(Runnable listener) {
+        mCloseListeners.add(listener);
+        if (mClosedCause != null && mCloseListeners.remove(listener)) {
+            listener.run();
+        }
+    }
+    
+    public void removeCloseListener(Runnable listener) {
+        mCloseListeners.remove(listener);
+    }
+    
+    @Override
+    public void close() {
+        close(new IOException("Client closed"));
+    }
+    
+    private void close(IOException cause) {
+        synchronized (this) {
+            if (mClosedCause != null) {
+                return;
+            }
+            mClosedCause = cause;
+        }
+        mConnection.close(cause);
+        for (Long id : mPending.keySet()) {
+            CompletableFuture<Reply> future = mPending.remove(id);
+            if (future != null) {
+                future.completeExceptionally(cause);
+            }
+        }
+        for (Runnable listener : mCloseListeners) {
+            if (mCloseListeners.remove(listener)) {
+                listener.run();
+            }
+        }
+    }
+}
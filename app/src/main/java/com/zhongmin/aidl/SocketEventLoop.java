@@ -0,0 +1,321 @@
+package com.zhongmin.aidl;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * 一个线程、一个 Selector 处理任意多个非阻塞socket连接
+ *
+ * 选择线程只做 accept、读取和解析帧，完整的帧交给连接的 Listener，Listener 不能阻塞；
+ * 请求的处理由调用方转到自己的执行器上。发送可以在任意线程上：
+ * 发送队列为空时直接在调用线程上写，写不完的部分排队，由选择线程在socket可写时继续写。
+ *
+ * 注册和修改关注的事件都转成任务在选择线程上执行，避免与 select() 互相等待。
+ * 只依赖JDK，可以在普通JVM上运行；地址可以是 UnixDomainSocketAddress（JDK 16+）或回环地址。
+ */
+final class SocketEventLoop implements Closeable {
+    
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    
+    private static SocketEventLoop sShared;
+    
+    /**
+     * 连接上的事件，在选择线程上回调
+     */
+    interface Listener {
+        void onFrame(Connection connection, SocketFrames.Frame frame);
+        
+        /**
+         * 连接断开，只回调一次
+         */
+        void onClosed(Connection connection, IOException cause);
+    }
+    
+    private final Selector mSelector;
+    private final Thread mThread;
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean mClosed;
+    
+    /**
+     * 选择线程上共用的读缓冲区，每次读完都解析到各连接自己的 Decoder 中
+     */
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    
+    SocketEventLoop(String name) throws IOException {
+        mSelector = Selector.open();
+        mThread = new Thread(this::loop, name);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+    
+    /**
+     * 进程内所有 SocketClient 共用的选择线程
+     */
+    static synchronized SocketEventLoop shared() throws IOException {
+        if (sShared == null || sShared.mClosed) {
+            sShared = new SocketEventLoop("socket-client-loop");
+        }
+        return sShared;
+    }
+    
+    /**
+     * 注册一个已连接的channel，改为非阻塞模式
+     *
+     * @param requests true时对端发来的是请求帧（服务端），false时是回复帧（客户端）
+     */
+    Connection register(SocketChannel channel, boolean requests, Listener listener) throws IOException {
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel, requests, listener);
+        execute(() -> {
+            try {
+                connection.mKey = channel.register(mSelector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                connection.close(e);
+            }
+        });
+        return connection;
+    }
+    
+    /**
+     * 在选择线程上接受连接，每个新连接交给 onAccept
+     */
+    void listen(ServerSocketChannel server, Consumer<SocketChannel> onAccept) throws IOException {
+        server.configureBlocking(false);
+        execute(() -> {
+            try {
+                server.register(mSelector, SelectionKey.OP_ACCEPT, onAccept);
+            } catch (IOException e) {
+                closeQuietly(server);
+            }
+        });
+    }
+    
+    /**
+     * 停止选择线程并断开所有连接
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        mSelector.wakeup();
+    }
+    
+    private void execute(Runnable task) {
+        mTasks.add(task);
+        mSelector.wakeup();
+    }
+    
+    private void loop() {
+        try {
+            while (!mClosed) {
+                mSelector.select();
+                Runnable task;
+                while ((task = mTasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        handle(key);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // 选择器本身出错，下面关闭所有连接
+        } finally {
+            mClosed = true;
+            IOException cause = new IOException("Event loop closed");
+            for (SelectionKey key : mSelector.keys()) {
+                Object attachment = key.attachment();
+                if (attachment instanceof Connection) {
+                    ((Connection) attachment).close(cause);
+                } else {
+                    closeQuietly(key.channel());
+                }
+            }
+            closeQuietly(mSelector);
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void handle(SelectionKey key) {
+        if (key.channel() instanceof ServerSocketChannel) {
+            ServerSocketChannel server = (ServerSocketChannel) key.channel();
+            SocketChannel channel;
+            try {
+                while ((channel = server.accept()) != null) {
+                    ((Consumer<SocketChannel>) key.attachment()).accept(channel);
+                }
+            } catch (IOException e) {
+                closeQuietly(server);
+            }
+            return;
+        }
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (key.isReadable()) {
+                connection.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.flush();
+            }
+        } catch (IOException e) {
+            connection.close(e);
+        } catch (CancelledKeyException e) {
+            // 其他线程关闭了连接
+            connection.close(new IOException("Connection closed", e));
+        }
+    }
+    
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            // 关闭失败时没有其他可做的
+        }
+    }
+    
+    /**
+     * 一个连接
+     */
+    final class Connection {
+        private final SocketChannel mChannel;
+        private final SocketFrames.Decoder mDecoder;
+        private final Listener mListener;
+        private final Consumer<SocketFrames.Frame> mSink;
+        
+        /**
+         * 在选择线程上注册后设置
+         */
+        private SelectionKey mKey;
+        
+        /**
+         * 还没写完的帧，受自身保护
+         */
+        private final ArrayDeque<ByteBuffer[]> mOutgoing = new ArrayDeque<>();
+        
+        /**
+         * 上次没解析完的字节，只在选择线程上访问；大多数时候为空
+         */
+        private ByteBuffer mRemainder;
+        
+        private boolean mClosed;
+        
+        Connection(SocketChannel channel, boolean requests, Listener listener) {
+            mChannel = channel;
+            mDecoder = new SocketFrames.Decoder(requests);
+            mListener = listener;
+            mSink = frame -> mListener.onFrame(this, frame);
+        }
+        
+        /**
+         * 发送一个帧，可以在任意线程上调用，帧按调用顺序写出
+         *
+         * @throws IOException 连接已经断开
+         */
+        void send(ByteBuffer[] frame) throws IOException {
+            try {
+                synchronized (mOutgoing) {
+                    if (mClosed) {
+                        throw new IOException("Connection closed");
+                    }
+                    if (mOutgoing.isEmpty()) {
+                        mChannel.write(frame);
+                        if (!frame[frame.length - 1].hasRemaining()) {
+                            return;
+                        }
+                    }
+                    mOutgoing.addLast(frame);
+                    if (mOutgoing.size() == 1) {
+                        execute(() -> setWriteInterest(true));
+                    }
+                }
+            } catch (IOException e) {
+                // 在锁外关闭，Listener 的回调不能持有发送锁
+                close(e);
+                throw e;
+            }
+        }
+        
+        boolean isOpen() {
+            synchronized (mOutgoing) {
+                return !mClosed;
+            }
+        }
+        
+        /**
+         * 断开连接，只有第一次调用生效并通知 Listener
+         */
+        void close(IOException cause) {
+            synchronized (mOutgoing) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                mOutgoing.clear();
+            }
+            closeQuietly(mChannel);
+            mListener.onClosed(this, cause);
+        }
+        
+        private void read() throws IOException {
+            ByteBuffer buffer = mReadBuffer;
+            buffer.clear();
+            if (mRemainder != null) {
+                buffer.put(mRemainder);
+                mRemainder = null;
+            }
+            int count;
+            while ((count = mChannel.read(buffer)) > 0) {
+                buffer.flip();
+                mDecoder.decode(buffer, mSink);
+                buffer.compact();
+            }
+            if (buffer.position() > 0) {
+                // 半个帧头留到下次，共用的缓冲区要给其他连接用
+                buffer.flip();
+                mRemainder = ByteBuffer.allocate(buffer.remaining());
+                mRemainder.put(buffer).flip();
+            }
+            if (count < 0) {
+                throw new EOFException("Connection closed by peer");
+            }
+        }
+        
+        private void flush() throws IOException {
+            synchronized (mOutgoing) {
+                while (!mOutgoing.isEmpty()) {
+                    ByteBuffer[] frame = mOutgoing.peekFirst();
+                    mChannel.write(frame);
+                    if (frame[frame.length - 1].hasRemaining()) {
+                        return;
+                    }
+                    mOutgoing.removeFirst();
+                }
+                setWriteInterest(false);
+            }
+        }
+        
+        /**
+         * 只在选择线程上调用
+         */
+        private void setWriteInterest(boolean write) {
+            if (mKey != null && mKey.isValid()) {
+                mKey.interestOps(write ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+        }
+    }
+}
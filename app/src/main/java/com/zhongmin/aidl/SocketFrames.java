@@ -0,0 +1,133 @@
+package com.zhongmin.aidl;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * socket传输的帧格式
+ *
+ * 请求：[int 帧长度][long 关联ID][int 事务码][int 标志][payload]
+ * 回复：[int 帧长度][long 关联ID][int 状态][payload]
+ * 帧长度不包含自身的4个字节。payload 是 Parcel.marshall() 的结果，内容与Binder事务完全一致。
+ * oneway请求没有回复。
+ *
+ * 非阻塞channel上一次读到的数据可能只有半个帧，Decoder 保存解析到一半的状态，数据到齐后再交出整帧；
+ * 写入时帧头和payload作为两个缓冲区一起写（gathering write），payload 不复制。
+ */
+final class SocketFrames {
+    
+    /**
+     * 与 IBinder.FLAG_ONEWAY 相同
+     */
+    static final int FLAG_ONEWAY = 0x00000001;
+    
+    static final int STATUS_OK = 0;
+    
+    /**
+     * 服务端不认识该事务码，对应 transact() 返回false
+     */
+    static final int STATUS_UNKNOWN_TRANSACTION = 1;
+    
+    /**
+     * 服务端处理请求时出错，payload 是UTF-8编码的错误信息
+     */
+    static final int STATUS_FAILED = 2;
+    
+    /**
+     * 单个payload的上限，防止损坏的长度字段导致分配巨大的数组
+     */
+    static final int MAX_PAYLOAD = 64 * 1024 * 1024;
+    
+    private static final int REQUEST_HEADER = 8 + 4 + 4;
+    private static final int REPLY_HEADER = 8 + 4;
+    
+    private SocketFrames() {
+    }
+    
+    /**
+     * 一个收到的帧，请求时 arg0/arg1 是事务码和标志，回复时 arg0 是状态
+     */
+    static final class Frame {
+        final long id;
+        final int arg0;
+        final int arg1;
+        final byte[] payload;
+        
+        Frame(long id, int arg0, int arg1, byte[] payload) {
+            this.id = id;
+            this.arg0 = arg0;
+            this.arg1 = arg1;
+            this.payload = payload;
+        }
+    }
+    
+    static ByteBuffer[] encodeRequest(long id, int code, int flags, byte[] payload) {
+        ByteBuffer header = ByteBuffer.allocate(4 + REQUEST_HEADER);
+        header.putInt(REQUEST_HEADER + payload.length).putLong(id).putInt(code).putInt(flags).flip();
+        return new ByteBuffer[]{header, ByteBuffer.wrap(payload)};
+    }
+    
+    static ByteBuffer[] encodeReply(long id, int status, byte[] payload) {
+        ByteBuffer header = ByteBuffer.allocate(4 + REPLY_HEADER);
+        header.putInt(REPLY_HEADER + payload.length).putLong(id).putInt(status).flip();
+        return new ByteBuffer[]{header, ByteBuffer.wrap(payload)};
+    }
+    
+    /**
+     * 增量解析一个方向上的帧，只能由一个线程使用
+     */
+    static final class Decoder {
+        private final boolean mRequests;
+        private final int mHeader;
+        
+        /**
+         * 正在接收payload的帧，mPayload 为null时等待下一个帧头
+         */
+        private long mId;
+        private int mArg0;
+        private int mArg1;
+        private byte[] mPayload;
+        private int mFilled;
+        
+        /**
+         * @param requests true解析请求帧，false解析回复帧
+         */
+        Decoder(boolean requests) {
+            mRequests = requests;
+            mHeader = requests ? REQUEST_HEADER : REPLY_HEADER;
+        }
+        
+        /**
+         * 解析 buffer（读模式）中的数据，每个完整的帧交给 sink；
+         * 不够一个帧头的字节留在 buffer 中，调用方 compact() 后继续读
+         */
+        void decode(ByteBuffer buffer, Consumer<Frame> sink) throws ProtocolException {
+            while (true) {
+                if (mPayload == null) {
+                    if (buffer.remaining() < 4 + mHeader) {
+                        return;
+                    }
+                    int length = buffer.getInt();
+                    if (length < mHeader || length - mHeader > MAX_PAYLOAD) {
+                        throw new ProtocolException("Bad frame length: " + length);
+                    }
+                    mId = buffer.getLong();
+                    mArg0 = buffer.getInt();
+                    mArg1 = mRequests ? buffer.getInt() : 0;
+                    mPayload = new byte[length - mHeader];
+                    mFilled = 0;
+                }
+                int count = Math.min(buffer.remaining(), mPayload.length - mFilled);
+                buffer.get(mPayload, mFilled, count);
+                mFilled += count;
+                if (mFilled < mPayload.length) {
+                    return;
+                }
+                Frame frame = new Frame(mId, mArg0, mArg1, mPayload);
+                mPayload = null;
+                sink.accept(frame);
+            }
+        }
+    }
+}
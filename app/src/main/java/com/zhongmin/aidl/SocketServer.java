@@ -0,0 +1,144 @@
+package com.zhongmin.aidl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 基于NIO的流式socket服务端，SocketClient 的对端
+ *
+ * 所有连接共用一个选择线程（SocketEventLoop），它只负责accept和解析请求帧；请求交给执行器并发处理，
+ * 同一个连接上流水线发来的请求不会互相等待，处理完立即按关联ID写回。连接数增加不会增加线程。
+ * 同一个连接上的oneway请求按到达顺序依次执行，与Binder对oneway调用的保证一致。
+ *
+ * 只依赖JDK，可以在普通JVM上运行。
+ */
+public class SocketServer implements Closeable {
+    
+    /**
+     * 请求处理
+     */
+    public interface Handler {
+        /**
+         * @return 回复内容，null表示不认识该事务码
+         * @throws Exception 处理失败，客户端收到 STATUS_FAILED 和错误信息
+         */
+        byte[] handle(int code, byte[] data, int flags) throws Exception;
+    }
+    
+    private final ServerSocketChannel mServer;
+    private final Handler mHandler;
+    private final Executor mExecutor;
+    private final KeyedSerialExecutor mOneway;
+    private final Set<SocketEventLoop.Connection> mConnections = ConcurrentHashMap.newKeySet();
+    private final SocketEventLoop.Listener mListener = new SocketEventLoop.Listener() {
+        @Override
+        public void onFrame(SocketEventLoop.Connection connection, SocketFrames.Frame frame) {
+            try {
+                if ((frame.arg1 & SocketFrames.FLAG_ONEWAY) != 0) {
+                    mOneway.execute(connection, () -> handle(connection, frame));
+                } else {
+                    mExecutor.execute(() -> handle(connection, frame));
+                }
+            } catch (RejectedExecutionException e) {
+                // 执行器已经关闭，断开这个连接，客户端的调用以连接断开失败而不是一直等待
+                connection.close(new IOException("Server executor rejected request", e));
+            }
+        }
+        
+        @Override
+        public void onClosed(SocketEventLoop.Connection connection, IOException cause) {
+            mConnections.remove(connection);
+        }
+    };
+    private SocketEventLoop mLoop;
+    private volatile boolean mClosed;
+    
+    /**
+     * @param server 已绑定地址的channel，start() 时改为非阻塞模式
+     * @param executor 处理请求的执行器
+     */
+    public SocketServer(ServerSocketChannel server, Handler handler, Executor executor) {
+        mServer = server;
+        mHandler = handler;
+        mExecutor = executor;
+        mOneway = new KeyedSerialExecutor(executor);
+    }
+    
+    /**
+     * 开始接受连接
+     */
+    public synchronized void start() throws IOException {
+        if (mLoop != null || mClosed) {
+            throw new IllegalStateException("Server already started or closed");
+        }
+        mLoop = new SocketEventLoop("socket-server-loop");
+        mLoop.listen(mServer, this::accept);
+    }
+    
+    /**
+     * 当前的连接数
+     */
+    public int connections() {
+        return mConnections.size();
+    }
+    
+    /**
+     * 停止接受连接并断开所有连接，已经在执行的请求执行完后不再写回
+     */
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        try {
+            mServer.close();
+        } catch (IOException ignored) {
+            // 关闭失败时没有其他可做的
+        }
+        if (mLoop != null) {
+            mLoop.close();
+        }
+    }
+    
+    /**
+     * 在选择线程上调用
+     */
+    private void accept(SocketChannel channel) {
+        try {
+            SocketEventLoop.Connection connection = mLoop.register(channel, true, mListener);
+            mConnections.add(connection);
+        } catch (IOException e) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // 关闭失败时没有其他可做的
+            }
+        }
+    }
+    
+    private void handle(SocketEventLoop.Connection connection, SocketFrames.Frame frame) {
+        int status;
+        byte[] reply;
+        try {
+            reply = mHandler.handle(frame.arg0, frame.payload, frame.arg1);
+            status = reply != null ? SocketFrames.STATUS_OK : SocketFrames.STATUS_UNKNOWN_TRANSACTION;
+        } catch (Exception e) {
+            status = SocketFrames.STATUS_FAILED;
+            reply = String.valueOf(e).getBytes(StandardCharsets.UTF_8);
+        }
+        if ((frame.arg1 & SocketFrames.FLAG_ONEWAY) != 0) {
+            return;
+        }
+        
+        try {
+            connection.send(SocketFrames.encodeReply(frame.id, status, reply != null ? reply : new byte[0]));
+        } catch (IOException e) {
+            // 连接已经断开，send() 中已经关闭
+        }
+    }
+}
@@ -0,0 +1,526 @@
+package com.zhongmin.aidl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * basicTypes 遥测数据的持久化日志
+ *
+ * 目录下按序号分段的只追加文件，每段创建时映射为固定大小，写满后换下一段。
+ * 追加一条记录只是加锁内的内存复制，不经过系统调用；需要持久化时调用 sync(seq)：
+ * 同时等待的多个Binder线程中只有一个执行force，其他线程等它完成，一次刷盘覆盖这之前追加的所有记录，
+ * 吞吐受磁盘带宽限制，而不是每条记录一次fsync。
+ *
+ * 段文件头  [int magic][int version][long 第一条记录的序号]
+ * 记录      [int 长度][int crc32][long 序号][long 时间毫秒][int anInt][long aLong][float aFloat]
+ *           [double aDouble][byte aBoolean][3字节填充][int 字符串字节数][UTF-8字符串]
+ * 多字节字段小端，CRC覆盖序号之后的所有字节；记录最后写长度，读取时长度、CRC和序号都对上才算有效，
+ * 进程崩溃时写了一半的记录会被丢弃，打开时从最后一条有效记录之后继续追加。
+ *
+ * 整理：记录没有key，不需要合并；段的数量超过上限时删除最旧的段，
+ * compact(seq) 删除已经被上传等方式消费完的段。
+ *
+ * 只依赖JDK，可以在普通JVM上运行。
+ */
+public class TelemetryJournal implements Closeable {
+    
+    private static final int MAGIC = 0x4A524E31;
+    private static final int VERSION = 1;
+    private static final int SEGMENT_HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 56;
+    private static final String SUFFIX = ".journal";
+    
+    /**
+     * 字符串超过此字节数时截断
+     */
+    public static final int MAX_STRING_BYTES = 64 * 1024;
+    
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    
+    /**
+     * 一条 basicTypes 记录
+     */
+    public static final class Entry {
+        public final long seq;
+        public final long timeMillis;
+        public final int anInt;
+        public final long aLong;
+        public final boolean aBoolean;
+        public final float aFloat;
+        public final double aDouble;
+        public final String aString;
+        
+        Entry(long seq, long timeMillis, int anInt, long aLong, boolean aBoolean, float aFloat,
+              double aDouble, String aString) {
+            this.seq = seq;
+            this.timeMillis = timeMillis;
+            this.anInt = anInt;
+            this.aLong = aLong;
+            this.aBoolean = aBoolean;
+            this.aFloat = aFloat;
+            this.aDouble = aDouble;
+            this.aString = aString;
+        }
+    }
+    
+    private final File mDir;
+    private final int mSegmentSize;
+    private final int mMaxSegments;
+    
+    /**
+     * 以下字段受 this 保护
+     */
+    private Segment mActive;
+    private long mNextSeq;
+    private boolean mClosed;
+    private final CRC32 mCrc = new CRC32();
+    
+    /**
+     * 组提交状态，受 mSyncLock 保护
+     */
+    private final Object mSyncLock = new Object();
+    private long mDurableSeq;
+    private boolean mSyncing;
+    
+    private final AtomicLong mAppended = new AtomicLong();
+    private final AtomicLong mSyncs = new AtomicLong();
+    private final AtomicLong mDeletedSegments = new AtomicLong();
+    
+    /**
+     * 打开目录下的日志，不存在时创建
+     *
+     * @param segmentSize 每段的字节数
+     * @param maxSegments 最多保留的段数，超过时删除最旧的段
+     */
+    public TelemetryJournal(File dir, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize < SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE + MAX_STRING_BYTES) {
+            throw new IllegalArgumentException("segmentSize too small: " + segmentSize);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        mDir = dir;
+        mSegmentSize = segmentSize;
+        mMaxSegments = Math.max(2, maxSegments);
+        
+        List<Long> bases = listSegments(dir);
+        if (bases.isEmpty()) {
+            mActive = Segment.create(segmentFile(dir, 1), 1, segmentSize);
+            mNextSeq = 1;
+        } else {
+            long base = bases.get(bases.size() - 1);
+            mActive = Segment.open(segmentFile(dir, base), segmentSize);
+            mNextSeq = mActive.recover(base);
+        }
+        mDurableSeq = mNextSeq - 1;
+    }
+    
+    public TelemetryJournal(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE, 16);
+    }
+    
+    /**
+     * 追加一条记录，可以在多个线程上同时调用；返回时记录已经对读取方可见，但不一定已经落盘
+     *
+     * @return 记录的序号，用于 sync()
+     */
+    public long append(int anInt, long aLong, boolean aBoolean, float aFloat, double aDouble,
+                       String aString) throws IOException {
+        byte[] string = aString != null ? aString.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        int stringLength = Math.min(string.length, MAX_STRING_BYTES);
+        int length = RECORD_HEADER_SIZE + stringLength;
+        long timeMillis = System.currentTimeMillis();
+        
+        long seq;
+        synchronized (this) {
+            if (mClosed) {
+                throw new IOException("Journal closed");
+            }
+            if (mActive.position + length > mSegmentSize) {
+                roll();
+            }
+            seq = mNextSeq++;
+            ByteBuffer buffer = mActive.buffer;
+            int start = mActive.position;
+            buffer.position(start + 8);
+            buffer.putLong(seq);
+            buffer.putLong(timeMillis);
+            buffer.putInt(anInt);
+            buffer.putLong(aLong);
+            buffer.putFloat(aFloat);
+            buffer.putDouble(aDouble);
+            buffer.put((byte) (aBoolean ? 1 : 0));
+            buffer.put((byte) 0).put((byte) 0).put((byte) 0);
+            buffer.putInt(stringLength);
+            buffer.put(string, 0, stringLength);
+            
+            buffer.putInt(start + 4, crc(mCrc, buffer, start + 8, start + length));
+            // 最后写长度，读取方看到长度时整条记录已经写完
+            buffer.putInt(start, length);
+            mActive.position = start + length;
+        }
+        mAppended.incrementAndGet();
+        return seq;
+    }
+    
+    /**
+     * 等待序号不大于 seq 的记录落盘
+     * 同时调用的线程共享一次force；正在force时到达的线程等这一次完成后由其中一个发起下一次
+     */
+    public void sync(long seq) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                synchronized (mSyncLock) {
+                    while (mSyncing && mDurableSeq < seq) {
+                        try {
+                            mSyncLock.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (mDurableSeq >= seq) {
+                        return;
+                    }
+                    mSyncing = true;
+                }
+                
+                long durable = -1;
+                try {
+                    long target;
+                    Segment segment;
+                    synchronized (this) {
+                        // 序号小于 mNextSeq 的记录都已经写完，之前的段在换段时已经落盘
+                        target = mNextSeq - 1;
+                        segment = mActive;
+                    }
+                    segment.force();
+                    mSyncs.incrementAndGet();
+                    durable = target;
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                } finally {
+                    synchronized (mSyncLock) {
+                        mSyncing = false;
+                        if (durable > mDurableSeq) {
+                            mDurableSeq = durable;
+                        }
+                        mSyncLock.notifyAll();
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+     * 删除所有记录的序号都不大于 seq 的段，当前正在写的段不会删除
+     */
+    public synchronized void compact(long seq) {
+        List<Long> bases = listSegments(mDir);
+        for (int i = 0; i + 1 < bases.size(); i++) {
+            // 一个段的最后一条记录是下一个段的第一条记录的前一条
+            if (bases.get(i + 1) - 1 > seq) {
+                break;
+            }
+            deleteSegment(bases.get(i));
+        }
+    }
+    
+    /**
+     * 从 seq 开始读取，seq 之前的段已经删除时从最旧的记录开始
+     * 读取不阻塞追加，可以在读到末尾后继续读取新追加的记录
+     */
+    public Cursor read(long seq) {
+        return new Cursor(seq);
+    }
+    
+    /**
+     * 落盘并关闭，之后的追加抛出 IOException
+     */
+    @Override
+    public void close() throws IOException {
+        Segment segment;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            segment = mActive;
+        }
+        segment.seal();
+    }
+    
+    /**
+     * 输出日志状态
+     */
+    public void dump(PrintWriter writer) {
+        long nextSeq;
+        synchronized (this) {
+            nextSeq = mNextSeq;
+        }
+        long durable;
+        synchronized (mSyncLock) {
+            durable = mDurableSeq;
+        }
+        writer.println("Telemetry journal:");
+        writer.println("  dir: " + mDir + ", segments: " + listSegments(mDir).size()
+                + ", next seq: " + nextSeq + ", durable seq: " + durable);
+        writer.println("  appended: " + mAppended.get() + ", syncs: " + mSyncs.get()
+                + ", deleted segments: " + mDeletedSegments.get());
+    }
+    
+    /**
+     * 当前段写满，落盘后开始新的一段；持有 this 时调用
+     */
+    private void roll() throws IOException {
+        mActive.seal();
+        mActive = Segment.create(segmentFile(mDir, mNextSeq), mNextSeq, mSegmentSize);
+        
+        List<Long> bases = listSegments(mDir);
+        for (int i = 0; i < bases.size() - mMaxSegments; i++) {
+            deleteSegment(bases.get(i));
+        }
+    }
+    
+    private void deleteSegment(long base) {
+        if (segmentFile(mDir, base).delete()) {
+            mDeletedSegments.incrementAndGet();
+        }
+    }
+    
+    private static int crc(CRC32 crc, ByteBuffer buffer, int from, int to) {
+        ByteBuffer range = buffer.duplicate();
+        range.limit(to);
+        range.position(from);
+        crc.reset();
+        crc.update(range);
+        return (int) crc.getValue();
+    }
+    
+    private static File segmentFile(File dir, long base) {
+        return new File(dir, String.format(Locale.US, "%020d", base) + SUFFIX);
+    }
+    
+    /**
+     * 所有段的起始序号，从小到大
+     */
+    private static List<Long> listSegments(File dir) {
+        List<Long> bases = new ArrayList<>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(SUFFIX)) {
+                    try {
+                        bases.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+                    } catch (NumberFormatException ignored) {
+                        // 不是段文件
+                    }
+                }
+            }
+        }
+        Collections.sort(bases);
+        return bases;
+    }
+    
+    /**
+     * 读取 position 处序号为 seq 的记录
+     *
+     * @return 记录无效（没写完、损坏或序号不对）时返回null
+     */
+    private static Entry readEntry(ByteBuffer buffer, int position, long seq, CRC32 crc) {
+        if (position + RECORD_HEADER_SIZE > buffer.limit()) {
+            return null;
+        }
+        int length = buffer.getInt(position);
+        if (length < RECORD_HEADER_SIZE || length > buffer.limit() - position
+                || buffer.getLong(position + 8) != seq
+                || buffer.getInt(position + 4) != crc(crc, buffer, position + 8, position + length)) {
+            return null;
+        }
+        ByteBuffer record = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        record.position(position + 16);
+        long timeMillis = record.getLong();
+        int anInt = record.getInt();
+        long aLong = record.getLong();
+        float aFloat = record.getFloat();
+        double aDouble = record.getDouble();
+        boolean aBoolean = record.get() != 0;
+        record.position(record.position() + 3);
+        int stringLength = record.getInt();
+        if (stringLength != length - RECORD_HEADER_SIZE) {
+            return null;
+        }
+        byte[] string = new byte[stringLength];
+        record.get(string);
+        return new Entry(seq, timeMillis, anInt, aLong, aBoolean, aFloat, aDouble,
+                new String(string, StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * 一个段文件
+     */
+    private static final class Segment {
+        final MappedByteBuffer buffer;
+        
+        /**
+         * 下一条记录的位置，受 TelemetryJournal 的锁保护
+         */
+        int position;
+        private boolean mSealed;
+        
+        private Segment(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+        
+        static Segment create(File file, long base, int size) throws IOException {
+            Segment segment = new Segment(map(file, size));
+            segment.buffer.putInt(0, MAGIC);
+            segment.buffer.putInt(4, VERSION);
+            segment.buffer.putLong(8, base);
+            segment.position = SEGMENT_HEADER_SIZE;
+            return segment;
+        }
+        
+        static Segment open(File file, int size) throws IOException {
+            return new Segment(map(file, (int) Math.max(size, file.length())));
+        }
+        
+        /**
+         * 找到最后一条有效记录，之后从这里继续追加
+         *
+         * @return 下一条记录的序号
+         */
+        long recover(long base) throws IOException {
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getLong(8) != base) {
+                throw new IOException("Corrupt journal segment " + base);
+            }
+            CRC32 crc = new CRC32();
+            long seq = base;
+            position = SEGMENT_HEADER_SIZE;
+            while (readEntry(buffer, position, seq, crc) != null) {
+                position += buffer.getInt(position);
+                seq++;
+            }
+            return seq;
+        }
+        
+        /**
+         * 落盘，已经封存的段在封存时已经落盘
+         */
+        synchronized void force() {
+            if (!mSealed) {
+                buffer.force();
+            }
+        }
+        
+        /**
+         * 落盘，之后不再写入
+         */
+        synchronized void seal() {
+            if (!mSealed) {
+                buffer.force();
+                mSealed = true;
+            }
+        }
+        
+        private static MappedByteBuffer map(File file, int size) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                return buffer;
+            }
+        }
+    }
+    
+    /**
+     * 顺序读取记录
+     */
+    public final class Cursor {
+        private final CRC32 mCrc = new CRC32();
+        private MappedByteBuffer mBuffer;
+        private int mPosition;
+        private long mNextSeq;
+        
+        Cursor(long seq) {
+            mNextSeq = seq;
+        }
+        
+        /**
+         * @return 下一条记录，暂时没有更多记录时返回null，之后可以再次调用
+         */
+        public Entry next() throws IOException {
+            while (true) {
+                if (mBuffer == null && !openSegment()) {
+                    return null;
+                }
+                Entry entry = readEntry(mBuffer, mPosition, mNextSeq, mCrc);
+                if (entry != null) {
+                    mPosition += mBuffer.getInt(mPosition);
+                    mNextSeq++;
+                    return entry;
+                }
+                // 读到段的末尾，下一段存在时说明这一段已经写完
+                if (!segmentFile(mDir, mNextSeq).exists()) {
+                    return null;
+                }
+                mBuffer = null;
+            }
+        }
+        
+        /**
+         * 打开包含 mNextSeq 的段，并跳到这条记录
+         */
+        private boolean openSegment() throws IOException {
+            List<Long> bases = listSegments(mDir);
+            if (bases.isEmpty()) {
+                return false;
+            }
+            long base = bases.get(0);
+            for (long candidate : bases) {
+                if (candidate <= mNextSeq) {
+                    base = candidate;
+                }
+            }
+            if (mNextSeq < base) {
+                mNextSeq = base;
+            }
+            
+            File file = segmentFile(mDir, base);
+            MappedByteBuffer buffer;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            }
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            int position = SEGMENT_HEADER_SIZE;
+            for (long seq = base; seq < mNextSeq; seq++) {
+                if (readEntry(buffer, position, seq, mCrc) == null) {
+                    // 要读的记录还没有写入
+                    return false;
+                }
+                position += buffer.getInt(position);
+            }
+            mBuffer = buffer;
+            mPosition = position;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.zhongmin.aidl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 事务录制
+ *
+ * 把收到的每个调用（事务码、标志、调用方、时间戳和Parcel序列化后的字节）追加写入录制文件，
+ * 用 TransactionReplayer 按原速或加速回放，用于复现线上的调用组合做性能测试。
+ *
+ * 文件通过内存映射按窗口写入，写一条记录只是一次加锁内的内存复制，不经过系统调用；
+ * 窗口写满时再映射下一段。记录先写内容再写长度，进程崩溃时读取方读到长度为0就停止，
+ * 已经完整写入的记录不受影响。
+ *
+ * 文件格式（小端）：
+ *   文件头  [int magic][int version][long 开始录制的时间，毫秒]
+ *   记录    [int 记录长度][int code][int flags][int uid][int pid][long 相对开始的纳秒][payload]
+ *
+ * 只依赖JDK，可以在普通JVM上运行；Parcel相关的部分在 MyAidlStub 中。
+ */
+public class TransactionRecorder implements Closeable {
+    
+    static final int MAGIC = 0x52585431;
+    static final int VERSION = 1;
+    static final int FILE_HEADER_SIZE = 16;
+    static final int RECORD_HEADER_SIZE = 28;
+    
+    /**
+     * 默认每次映射的窗口大小
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 4 * 1024 * 1024;
+    
+    private final File mFile;
+    private final RandomAccessFile mRaf;
+    private final FileChannel mChannel;
+    private final int mWindowSize;
+    private final long mMaxBytes;
+    private final long mStartNanos;
+    
+    /**
+     * 以下字段受 this 保护
+     */
+    private MappedByteBuffer mWindow;
+    private long mWindowStart;
+    private long mPosition;
+    private boolean mClosed;
+    
+    private final AtomicLong mRecorded = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    
+    /**
+     * 创建录制文件，已经存在时覆盖
+     *
+     * @param windowSize 每次映射的字节数
+     * @param maxBytes 文件大小上限，超过后丢弃新的记录
+     */
+    public TransactionRecorder(File file, int windowSize, long maxBytes) throws IOException {
+        if (windowSize < FILE_HEADER_SIZE + RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("windowSize too small: " + windowSize);
+        }
+        mFile = file;
+        mWindowSize = windowSize;
+        mMaxBytes = maxBytes;
+        mRaf = new RandomAccessFile(file, "rw");
+        mRaf.setLength(0);
+        mChannel = mRaf.getChannel();
+        mStartNanos = System.nanoTime();
+        
+        map(0, windowSize);
+        mWindow.putInt(MAGIC);
+        mWindow.putInt(VERSION);
+        mWindow.putLong(System.currentTimeMillis());
+        mPosition = FILE_HEADER_SIZE;
+    }
+    
+    public TransactionRecorder(File file) throws IOException {
+        this(file, DEFAULT_WINDOW_SIZE, Long.MAX_VALUE);
+    }
+    
+    public File getFile() {
+        return mFile;
+    }
+    
+    /**
+     * 追加一条记录，可以在多个线程上同时调用
+     *
+     * @return 是否写入；已经关闭、超过大小上限或写文件失败时返回false
+     */
+    public boolean record(int code, int flags, int uid, int pid, byte[] payload) {
+        int length = RECORD_HEADER_SIZE + payload.length;
+        synchronized (this) {
+            // 在锁内取时间，文件中的记录按时间排序
+            long nanos = System.nanoTime() - mStartNanos;
+            if (mClosed || mPosition + length > mMaxBytes) {
+                mDropped.incrementAndGet();
+                return false;
+            }
+            try {
+                if (mPosition + length > mWindowStart + mWindow.capacity()) {
+                    map(mPosition, Math.max(mWindowSize, length));
+                }
+            } catch (IOException e) {
+                mDropped.incrementAndGet();
+                return false;
+            }
+            int offset = (int) (mPosition - mWindowStart);
+            mWindow.position(offset + 4);
+            mWindow.putInt(code);
+            mWindow.putInt(flags);
+            mWindow.putInt(uid);
+            mWindow.putInt(pid);
+            mWindow.putLong(nanos);
+            mWindow.put(payload);
+            // 最后写长度，之前的记录都完整时才能读到这一条
+            mWindow.putInt(offset, length);
+            mPosition += length;
+        }
+        mRecorded.incrementAndGet();
+        return true;
+    }
+    
+    /**
+     * 已写入的字节数，包括文件头
+     */
+    public synchronized long size() {
+        return mPosition;
+    }
+    
+    /**
+     * 刷到磁盘，去掉映射多出的空间后关闭文件
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mWindow.force();
+            mWindow = null;
+        }
+        try {
+            mChannel.truncate(mPosition);
+        } finally {
+            mRaf.close();
+        }
+    }
+    
+    /**
+     * 输出录制状态
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("Transaction recorder:");
+        writer.println("  file: " + mFile + ", bytes: " + size()
+                + ", recorded: " + mRecorded.get() + ", dropped: " + mDropped.get());
+    }
+    
+    /**
+     * 从 start 开始映射 size 字节，文件不够长时自动扩展
+     */
+    private void map(long start, int size) throws IOException {
+        MappedByteBuffer window = mChannel.map(FileChannel.MapMode.READ_WRITE, start, size);
+        window.order(ByteOrder.LITTLE_ENDIAN);
+        // 旧窗口不需要force，映射是共享的，脏页由系统写回
+        mWindow = window;
+        mWindowStart = start;
+    }
+}
@@ -0,0 +1,220 @@
+package com.zhongmin.aidl;
+
+import android.os.IBinder;
+import android.os.Parcel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 回放 TransactionRecorder 录制的调用
+ *
+ * 按录制时的时间间隔除以 speed 发出每个调用，speed 为0时不等待、尽快发出。
+ * 同一个调用方（pid）的调用按录制顺序依次执行，不同调用方之间在 KeyedSerialExecutor 上并行，
+ * 与线上多个客户端同时调用的情况一致。
+ *
+ * 调用交给 Target 执行：binderTarget() 把记录反序列化成Parcel后调用 IBinder.transact()；
+ * 在普通JVM上可以直接实现 Target 处理原始字节，不依赖Android。
+ */
+public class TransactionReplayer {
+    
+    /**
+     * 一条录制的调用
+     */
+    public static final class Record {
+        public final int code;
+        public final int flags;
+        public final int uid;
+        public final int pid;
+        
+        /**
+         * 相对开始录制的纳秒数
+         */
+        public final long timeNanos;
+        public final byte[] payload;
+        
+        Record(int code, int flags, int uid, int pid, long timeNanos, byte[] payload) {
+            this.code = code;
+            this.flags = flags;
+            this.uid = uid;
+            this.pid = pid;
+            this.timeNanos = timeNanos;
+            this.payload = payload;
+        }
+    }
+    
+    /**
+     * 回放的目标
+     */
+    public interface Target {
+        void replay(Record record) throws Exception;
+    }
+    
+    /**
+     * 回放结果
+     */
+    public static final class Result {
+        public final int calls;
+        public final int failures;
+        public final long elapsedNanos;
+        
+        /**
+         * 每个调用的耗时，从小到大排序
+         */
+        private final long[] mLatencies;
+        
+        Result(int failures, long elapsedNanos, long[] latencies) {
+            this.calls = latencies.length;
+            this.failures = failures;
+            this.elapsedNanos = elapsedNanos;
+            mLatencies = latencies;
+            Arrays.sort(mLatencies);
+        }
+        
+        /**
+         * @param percentile 0到100
+         * @return 调用耗时的百分位数，纳秒
+         */
+        public long latencyNanos(double percentile) {
+            if (mLatencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * mLatencies.length) - 1;
+            return mLatencies[Math.max(0, Math.min(mLatencies.length - 1, index))];
+        }
+        
+        @Override
+        public String toString() {
+            return "calls=" + calls + ", failures=" + failures
+                    + ", elapsed=" + elapsedNanos / 1_000_000 + "ms"
+                    + ", p50=" + latencyNanos(50) / 1000 + "us"
+                    + ", p99=" + latencyNanos(99) / 1000 + "us";
+        }
+    }
+    
+    private final List<Record> mRecords;
+    
+    private TransactionReplayer(List<Record> records) {
+        mRecords = records;
+    }
+    
+    /**
+     * 读取录制文件
+     * 录制中的文件或进程崩溃留下的文件也可以读取，只读到最后一条完整的记录
+     */
+    public static TransactionReplayer open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            if (size < TransactionRecorder.FILE_HEADER_SIZE) {
+                throw new IOException("Not a transaction capture: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt() != TransactionRecorder.MAGIC
+                    || buffer.getInt() != TransactionRecorder.VERSION) {
+                throw new IOException("Not a transaction capture: " + file);
+            }
+            buffer.getLong();
+            
+            List<Record> records = new ArrayList<>();
+            while (buffer.remaining() >= TransactionRecorder.RECORD_HEADER_SIZE) {
+                int length = buffer.getInt();
+                if (length < TransactionRecorder.RECORD_HEADER_SIZE
+                        || length - 4 > buffer.remaining()) {
+                    // 0 表示后面没有写完的记录
+                    break;
+                }
+                int code = buffer.getInt();
+                int flags = buffer.getInt();
+                int uid = buffer.getInt();
+                int pid = buffer.getInt();
+                long timeNanos = buffer.getLong();
+                byte[] payload = new byte[length - TransactionRecorder.RECORD_HEADER_SIZE];
+                buffer.get(payload);
+                records.add(new Record(code, flags, uid, pid, timeNanos, payload));
+            }
+            return new TransactionReplayer(records);
+        }
+    }
+    
+    public List<Record> records() {
+        return mRecords;
+    }
+    
+    /**
+     * 回放所有调用，等待全部执行完后返回
+     *
+     * @param speed 相对录制时的速度，2表示两倍速，0表示不等待
+     * @param threads 并行执行的线程数
+     */
+    public Result replay(Target target, double speed, int threads) throws InterruptedException {
+        KeyedSerialExecutor executor = new KeyedSerialExecutor(threads, "replay");
+        long[] latencies = new long[mRecords.size()];
+        AtomicLong failures = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(mRecords.size());
+        long start = System.nanoTime();
+        long firstNanos = mRecords.isEmpty() ? 0 : mRecords.get(0).timeNanos;
+        try {
+            for (int i = 0; i < mRecords.size(); i++) {
+                Record record = mRecords.get(i);
+                if (speed > 0) {
+                    long due = start + (long) ((record.timeNanos - firstNanos) / speed);
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                int index = i;
+                executor.execute(record.pid, () -> {
+                    long begin = System.nanoTime();
+                    try {
+                        target.replay(record);
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        latencies[index] = System.nanoTime() - begin;
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+        } finally {
+            executor.shutdown();
+        }
+        return new Result((int) failures.get(), System.nanoTime() - start, latencies);
+    }
+    
+    /**
+     * 把记录反序列化成Parcel后调用 binder.transact()
+     * 目标是本地的 MyAidlStub 时调用方身份是回放进程自己，准入控制按一个调用方计算
+     */
+    public static Target binderTarget(IBinder binder) {
+        return record -> {
+            Parcel data = Parcel.obtain();
+            Parcel reply = Parcel.obtain();
+            try {
+                data.unmarshall(record.payload, 0, record.payload.length);
+                data.setDataPosition(0);
+                boolean oneway = (record.flags & IBinder.FLAG_ONEWAY) != 0;
+                binder.transact(record.code, data, oneway ? null : reply, record.flags);
+                if (!oneway) {
+                    reply.readException();
+                }
+            } finally {
+                reply.recycle();
+                data.recycle();
+            }
+        };
+    }
+}
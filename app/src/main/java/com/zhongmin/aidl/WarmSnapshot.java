@@ -0,0 +1,443 @@
+package com.zhongmin.aidl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 热状态快照，服务进程重启后不用从空状态开始
+ *
+ * 各个组件（缓存、计数器、字典）实现 Participant，用唯一的key注册。快照文件在构造时只映射并解析索引，
+ * 每个组件恢复时只读自己那一段：register() 立即恢复；registerLazy() 只登记，组件第一次使用时
+ * 再调用 restore() 解析，启动时（通常在主线程上）不为还用不到的组件付出解析的时间。
+ * 还没有恢复的组件保存时原样写回上次的那一段，不会被空状态覆盖。
+ *
+ * save() 把所有组件的状态写入临时文件，落盘后重命名覆盖快照，写到一半被杀不会破坏上一次的快照；
+ * 状态与上次保存的相同时不写文件，累计计数之类的统计（writeStats）不参与比较，只有统计变化时
+ * 定时保存会跳过。start() 按固定间隔在后台保存，requestSave() 和 stopAfterSave() 也在同一个
+ * 后台线程上保存，主线程的回调（onTrimMemory、onDestroy）不做文件IO。
+ *
+ * 文件格式：
+ *   [int magic][int version][long 保存时间毫秒][int 段数]
+ *   索引    每段 [UTF key][int 段版本][int 偏移][int 长度][int crc32]
+ *   数据    各段的内容：writeSnapshot 的输出后面接着 writeStats 的输出
+ * 某一段损坏、版本与组件当前的版本不同或恢复失败时只影响这个组件，其余组件照常恢复。
+ *
+ * 只依赖JDK，可以在普通JVM上运行。
+ */
+public class WarmSnapshot {
+    
+    private static final int MAGIC = 0x57534E50;
+    private static final int VERSION = 2;
+    
+    /**
+     * 参与快照的组件
+     */
+    public interface Participant {
+        /**
+         * 写入当前状态，在保存线程上调用，需要自己处理并发
+         */
+        void writeSnapshot(DataOutput out) throws IOException;
+        
+        /**
+         * 从快照恢复，在 register() 或 restore() 的线程上调用；延迟恢复时组件可能已经在使用，需要自己处理并发
+         */
+        void readSnapshot(DataInput in) throws IOException;
+        
+        /**
+         * 段的格式版本，不兼容地修改格式时加一；快照中的版本不同时这一段不恢复，组件从空状态开始
+         */
+        default int snapshotVersion() {
+            return 1;
+        }
+        
+        /**
+         * 写入统计，紧接在 writeSnapshot 的输出后面；只有统计变化时定时保存不写文件
+         */
+        default void writeStats(DataOutput out) throws IOException {
+        }
+        
+        /**
+         * 恢复统计，在 readSnapshot 之后调用
+         */
+        default void readStats(DataInput in) throws IOException {
+        }
+    }
+    
+    private final File mFile;
+    private final File mTempFile;
+    private final LinkedHashMap<String, Participant> mParticipants = new LinkedHashMap<>();
+    
+    /**
+     * 上次的快照和其中还没有恢复的段，所有段都恢复或丢弃后释放，受 this 保护
+     */
+    private MappedByteBuffer mRestored;
+    private HashMap<String, int[]> mIndex;
+    private long mRestoredSavedAt;
+    
+    /**
+     * 上次保存的状态（不含统计）和全部内容的校验和
+     */
+    private long mLastStateCrc = -1;
+    private long mLastCrc = -1;
+    private int mSaves;
+    private int mRestoredCount;
+    private int mSkippedCount;
+    private String mLastError;
+    private ScheduledExecutorService mScheduler;
+    
+    /**
+     * 映射上次的快照并读取索引，文件不存在或损坏时从空状态开始
+     */
+    public WarmSnapshot(File file) {
+        mFile = file;
+        mTempFile = new File(file.getPath() + ".tmp");
+        if (!file.exists()) {
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer.duplicate()));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a snapshot");
+            }
+            long savedAt = in.readLong();
+            int sections = in.readInt();
+            HashMap<String, int[]> index = new HashMap<>();
+            for (int i = 0; i < sections; i++) {
+                String key = in.readUTF();
+                int version = in.readInt();
+                int offset = in.readInt();
+                int length = in.readInt();
+                int crc = in.readInt();
+                if (offset < 0 || length < 0 || (long) offset + length > buffer.capacity()) {
+                    throw new IOException("Bad section " + key);
+                }
+                index.put(key, new int[] {offset, length, crc, version});
+            }
+            mRestored = buffer;
+            mIndex = index;
+            mRestoredSavedAt = savedAt;
+        } catch (IOException | RuntimeException e) {
+            mLastError = "Unreadable snapshot: " + e;
+        }
+    }
+    
+    /**
+     * 注册组件，上次的快照中有这个key时立即恢复
+     *
+     * @return 是否从快照恢复了状态
+     */
+    public synchronized boolean register(String key, Participant participant) {
+        registerLazy(key, participant);
+        return restore(key);
+    }
+    
+    /**
+     * 注册组件，不读取快照；组件第一次使用前调用 restore()
+     */
+    public synchronized void registerLazy(String key, Participant participant) {
+        mParticipants.put(key, participant);
+    }
+    
+    /**
+     * 从上次的快照恢复已经注册的组件，每个key只恢复一次，之后的调用直接返回
+     *
+     * @return 这次调用是否从快照恢复了状态
+     */
+    public synchronized boolean restore(String key) {
+        Participant participant = mParticipants.get(key);
+        int[] section = participant != null && mIndex != null ? mIndex.remove(key) : null;
+        if (section == null) {
+            return false;
+        }
+        ByteBuffer slice = slice(section);
+        CRC32 crc = new CRC32();
+        crc.update(slice.duplicate());
+        boolean restored = false;
+        if ((int) crc.getValue() != section[2]) {
+            mLastError = "Corrupt section " + key;
+        } else if (section[3] != participant.snapshotVersion()) {
+            // 格式已经改变，不是错误
+            mSkippedCount++;
+        } else {
+            try {
+                DataInputStream in = new DataInputStream(new ByteBufferInputStream(slice));
+                participant.readSnapshot(in);
+                participant.readStats(in);
+                mRestoredCount++;
+                restored = true;
+            } catch (IOException | RuntimeException e) {
+                mLastError = "Failed to restore " + key + ": " + e;
+            }
+        }
+        if (mIndex.isEmpty()) {
+            releaseRestored();
+        }
+        return restored;
+    }
+    
+    /**
+     * 保存所有组件的状态，只有统计变化时不写文件
+     *
+     * @return 是否写了文件，状态没有变化时返回false
+     */
+    public synchronized boolean save() throws IOException {
+        return save(false);
+    }
+    
+    /**
+     * 保存所有组件的状态
+     *
+     * @param includeStats 为true时只有统计变化也写文件，用于进程可能被杀之前的保存
+     * @return 是否写了文件，内容没有变化时返回false
+     */
+    public synchronized boolean save(boolean includeStats) throws IOException {
+        ByteArrayOutputStream[] sections = new ByteArrayOutputStream[mParticipants.size()];
+        CRC32 state = new CRC32();
+        CRC32 total = new CRC32();
+        int[] versions = new int[sections.length];
+        int i = 0;
+        for (Map.Entry<String, Participant> entry : mParticipants.entrySet()) {
+            sections[i] = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(sections[i]);
+            byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            int[] pending = mIndex != null ? mIndex.get(entry.getKey()) : null;
+            if (pending != null) {
+                // 还没有恢复，原样写回上次的内容和版本
+                ByteBuffer slice = slice(pending);
+                byte[] bytes = new byte[slice.remaining()];
+                slice.get(bytes);
+                out.write(bytes);
+                versions[i] = pending[3];
+                state.update(key);
+                state.update(bytes);
+            } else {
+                entry.getValue().writeSnapshot(out);
+                versions[i] = entry.getValue().snapshotVersion();
+                state.update(key);
+                state.update(sections[i].toByteArray());
+                entry.getValue().writeStats(out);
+            }
+            total.update(key);
+            total.update(sections[i].toByteArray());
+            i++;
+        }
+        // 没有注册的组件的旧状态会随这次保存丢失
+        if (mIndex != null) {
+            mIndex.keySet().retainAll(mParticipants.keySet());
+            if (mIndex.isEmpty()) {
+                releaseRestored();
+            }
+        }
+        if (total.getValue() == mLastCrc || (!includeStats && state.getValue() == mLastStateCrc)) {
+            return false;
+        }
+        
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(header);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(System.currentTimeMillis());
+        out.writeInt(sections.length);
+        // 索引的大小只取决于key，先算出数据的起始偏移
+        ByteArrayOutputStream keys = new ByteArrayOutputStream();
+        DataOutputStream keysOut = new DataOutputStream(keys);
+        for (String key : mParticipants.keySet()) {
+            keysOut.writeUTF(key);
+        }
+        int offset = header.size() + keys.size() + 16 * sections.length;
+        i = 0;
+        for (Map.Entry<String, Participant> entry : mParticipants.entrySet()) {
+            CRC32 crc = new CRC32();
+            crc.update(sections[i].toByteArray());
+            out.writeUTF(entry.getKey());
+            out.writeInt(versions[i]);
+            out.writeInt(offset);
+            out.writeInt(sections[i].size());
+            out.writeInt((int) crc.getValue());
+            offset += sections[i].size();
+            i++;
+        }
+        
+        try (RandomAccessFile raf = new RandomAccessFile(mTempFile, "rw")) {
+            raf.setLength(0);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, offset);
+            buffer.put(header.toByteArray());
+            for (ByteArrayOutputStream section : sections) {
+                buffer.put(section.toByteArray());
+            }
+            buffer.force();
+        }
+        if (!mTempFile.renameTo(mFile)) {
+            throw new IOException("Cannot rename " + mTempFile + " to " + mFile);
+        }
+        mLastStateCrc = state.getValue();
+        mLastCrc = total.getValue();
+        mSaves++;
+        return true;
+    }
+    
+    /**
+     * 每隔 periodMillis 在后台线程上保存一次
+     */
+    public synchronized void start(long periodMillis) {
+        if (mScheduler != null) {
+            return;
+        }
+        mScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "warm-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mScheduler.scheduleWithFixedDelay(() -> saveQuietly(false), periodMillis, periodMillis,
+                TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * 在后台线程上尽快保存一次（包括统计），不等待完成；没有 start() 时不保存
+     */
+    public synchronized void requestSave() {
+        requestSave(null);
+    }
+    
+    /**
+     * 同 requestSave()，保存之后在同一个后台线程上执行 then，用于先保存缓存再释放它；
+     * 没有 start() 时不保存，直接在当前线程上执行 then
+     */
+    public synchronized void requestSave(Runnable then) {
+        if (mScheduler != null) {
+            mScheduler.execute(() -> {
+                saveQuietly(true);
+                if (then != null) {
+                    then.run();
+                }
+            });
+        } else if (then != null) {
+            then.run();
+        }
+    }
+    
+    /**
+     * 停止后台保存，不保存当前状态
+     */
+    public synchronized void stop() {
+        if (mScheduler != null) {
+            mScheduler.shutdownNow();
+            mScheduler = null;
+        }
+    }
+    
+    /**
+     * 停止定时保存，在后台线程上最后保存一次（包括统计），不等待完成
+     */
+    public synchronized void stopAfterSave() {
+        if (mScheduler != null) {
+            mScheduler.execute(() -> saveQuietly(true));
+            // 已经提交的保存会执行，定时任务取消，保存完线程退出
+            mScheduler.shutdown();
+            mScheduler = null;
+        }
+    }
+    
+    /**
+     * 最近一次失败的原因，没有失败时为null
+     */
+    public synchronized String getLastError() {
+        return mLastError;
+    }
+    
+    /**
+     * 输出快照状态
+     */
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Warm snapshot:");
+        writer.println("  file: " + mFile + ", participants: " + mParticipants.keySet());
+        writer.println("  restored: " + mRestoredCount
+                + (mRestoredSavedAt > 0 ? " (saved at " + mRestoredSavedAt + ")" : "")
+                + ", pending: " + (mIndex != null ? mIndex.size() : 0)
+                + ", skipped by version: " + mSkippedCount
+                + ", saves: " + mSaves + ", last error: " + mLastError);
+    }
+    
+    private void saveQuietly(boolean includeStats) {
+        try {
+            save(includeStats);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                mLastError = "Failed to save: " + e;
+            }
+        }
+    }
+    
+    private ByteBuffer slice(int[] section) {
+        ByteBuffer slice = mRestored.duplicate();
+        slice.limit(section[0] + section[1]);
+        slice.position(section[0]);
+        return slice;
+    }
+    
+    private void releaseRestored() {
+        mRestored = null;
+        mIndex = null;
+    }
+    
+    /**
+     * 写入长度和UTF-8字节，没有 writeUTF 的64KB限制
+     */
+    public static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    public static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * 直接从映射的内存读取，不复制整个文件
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+        
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+        
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+        }
+        
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, mBuffer.remaining());
+            mBuffer.get(bytes, offset, count);
+            return count;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.zhongmin.aidl;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * AdmissionController 的令牌桶和并发限制，时钟由测试控制
+ */
+public class AdmissionControllerTest {
+    
+    private static final int UID = 10_000;
+    private static final int PID = 1234;
+    private static final int ADD = IMyAidlInterface.TRANSACTION_add;
+    private static final int SUM = IMyAidlInterface.TRANSACTION_sum;
+    
+    private final AtomicLong now = new AtomicLong(TimeUnit.SECONDS.toNanos(100));
+    
+    @Test
+    public void burst_thenRejectedWithRetryHintUntilRefill() {
+        AdmissionController admission = new AdmissionController(10, 5, now::get);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(AdmissionController.ADMITTED, admission.acquire(ADD, UID, PID));
+        }
+        // 每秒10个令牌，下一个令牌在100ms后
+        assertRetryMillis(100, admission.acquire(ADD, UID, PID));
+        advanceMillis(40);
+        assertRetryMillis(60, admission.acquire(ADD, UID, PID));
+        advanceMillis(61);
+        assertEquals(AdmissionController.ADMITTED, admission.acquire(ADD, UID, PID));
+        assertRetryMillis(99, admission.acquire(ADD, UID, PID));
+    }
+    
+    @Test
+    public void idleRefill_isCappedAtBurst() {
+        AdmissionController admission = new AdmissionController(10, 5, now::get);
+        for (int i = 0; i < 5; i++) {
+            admission.acquire(ADD, UID, PID);
+        }
+        advanceMillis(60_000);
+        int admitted = 0;
+        while (admission.acquire(ADD, UID, PID) == AdmissionController.ADMITTED) {
+            admitted++;
+        }
+        assertEquals(5, admitted);
+    }
+    
+    @Test
+    public void rateLimitChange_takesEffectImmediately() {
+        AdmissionController admission = new AdmissionController(10, 1, now::get);
+        assertEquals(AdmissionController.ADMITTED, admission.acquire(ADD, UID, PID));
+        assertTrue(admission.acquire(ADD, UID, PID) > 0);
+        
+        admission.setRateLimit(0, 1);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(AdmissionController.ADMITTED, admission.acquire(ADD, UID, PID));
+        }
+        
+        admission.setRateLimit(1000, 1);
+        // 不限速期间桶没有被消耗，恢复限速后从原来的状态继续回填
+        advanceMillis(1);
+        assertEquals(AdmissionController.ADMITTED, admission.acquire(ADD, UID, PID));
+        assertRetryMillis(1, admission.acquire(ADD, UID, PID));
+    }
+    
+    @Test
+    public void callers_haveIndependentBuckets() {
+        AdmissionController admission = new AdmissionController(1, 2, now::get);
+        assertEquals(AdmissionController.ADMITTED, admission.acquire(ADD, UID, PID));
+        assertEquals(AdmissionController.ADMITTED, admission.acquire(ADD, UID, PID));
+        assertTrue(admission.acquire(ADD, UID, PID) > 0);
+        // 同一个uid的其他进程、同一个pid号的其他uid都不受影响；令牌不区分事务码
+        assertEquals(AdmissionController.ADMITTED, admission.acquire(ADD, UID, PID + 1));
+        assertEquals(AdmissionController.ADMITTED, admission.acquire(ADD, UID + 1, PID));
+        assertTrue(admission.acquire(SUM, UID, PID) > 0);
+    }
+    
+    @Test
+    public void concurrencyLimit_isPerCodeAndReleased() {
+        AdmissionController admission = new AdmissionController(0, 1, now::get);
+        admission.setConcurrencyLimit(SUM, 2);
+        assertEquals(AdmissionController.ADMITTED, admission.acquire(SUM, UID, PID));
+        assertEquals(AdmissionController.ADMITTED, admission.acquire(SUM, UID + 1, PID));
+        assertEquals(10, admission.acquire(SUM, UID + 2, PID));
+        // 其他事务码没有限制
+        for (int i = 0; i < 10; i++) {
+            assertEquals(AdmissionController.ADMITTED, admission.acquire(ADD, UID, PID));
+        }
+        
+        admission.release(SUM);
+        assertEquals(AdmissionController.ADMITTED, admission.acquire(SUM, UID + 2, PID));
+        assertEquals(10, admission.acquire(SUM, UID + 3, PID));
+        
+        admission.setConcurrencyLimit(SUM, 0);
+        assertEquals(AdmissionController.ADMITTED, admission.acquire(SUM, UID + 3, PID));
+        assertTrue(dump(admission).contains("code " + SUM + ": in flight 3, limit none"));
+    }
+    
+    @Test
+    public void rateRejection_releasesConcurrencySlot() {
+        AdmissionController admission = new AdmissionController(1, 1, now::get);
+        admission.setConcurrencyLimit(SUM, 1);
+        assertEquals(AdmissionController.ADMITTED, admission.acquire(SUM, UID, PID));
+        admission.release(SUM);
+        // 被速率拒绝的调用不占并发名额
+        for (int i = 0; i < 5; i++) {
+            assertTrue(admission.acquire(SUM, UID, PID) > 0);
+        }
+        assertEquals(AdmissionController.ADMITTED, admission.acquire(SUM, UID + 1, PID));
+        String dump = dump(admission);
+        assertTrue(dump, dump.contains("code " + SUM + ": in flight 1, limit 1"));
+        assertTrue(dump, dump.contains("admitted: 2, rejected by rate: 5, rejected by concurrency: 0"));
+    }
+    
+    @Test
+    public void overrides_winOverDefaultsUntilCleared() {
+        AdmissionController admission = new AdmissionController(0, 1, now::get);
+        admission.setConcurrencyLimit(SUM, 1);
+        admission.overrideConcurrencyLimit(SUM, 2);
+        admission.overrideRateLimit(1, 1);
+        // 覆盖之后修改默认值不生效
+        admission.setConcurrencyLimit(SUM, 3);
+        admission.setRateLimit(0, 1);
+        assertEquals(AdmissionController.ADMITTED, admission.acquire(SUM, UID, PID));
+        assertTrue(admission.acquire(ADD, UID, PID) > 0);
+        assertEquals(AdmissionController.ADMITTED, admission.acquire(SUM, UID + 1, PID));
+        assertEquals(10, admission.acquire(SUM, UID + 2, PID));
+        String dump = dump(admission);
+        assertTrue(dump, dump.contains("rate limit: 1.0/s, burst 1 (overridden)"));
+        assertTrue(dump, dump.contains("code " + SUM + ": in flight 2, limit 2 (overridden)"));
+        
+        admission.clearOverrides();
+        dump = dump(admission);
+        assertTrue(dump, dump.contains("rate limit: off\n"));
+        assertTrue(dump, dump.contains("code " + SUM + ": in flight 2, limit 3\n"));
+        assertEquals(AdmissionController.ADMITTED, admission.acquire(SUM, UID + 2, PID));
+    }
+    
+    @Test
+    public void unsupportedCode_isRejectedForLimitsAndIgnoredOtherwise() {
+        AdmissionController admission = new AdmissionController(0, 1, now::get);
+        try {
+            admission.setConcurrencyLimit(0, 1);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // 只支持 FIRST_CALL_TRANSACTION 开始的事务码
+        }
+        assertEquals(AdmissionController.ADMITTED, admission.acquire(0, UID, PID));
+        admission.release(0);
+    }
+    
+    @Test
+    public void stripes_spreadProcessesOfOneUidAndUidsWithOnePid() {
+        int stripes = 32;
+        int[] byPid = new int[stripes];
+        int[] byUid = new int[stripes];
+        int callers = 32 * 64;
+        for (int i = 0; i < callers; i++) {
+            byPid[AdmissionController.stripeIndex(caller(UID, PID + i))]++;
+            byUid[AdmissionController.stripeIndex(caller(UID + i, PID))]++;
+        }
+        for (int s = 0; s < stripes; s++) {
+            // 均匀时每段64个，允许两倍的偏差
+            assertTrue("pid stripe " + s + ": " + byPid[s], byPid[s] > 32 && byPid[s] < 128);
+            assertTrue("uid stripe " + s + ": " + byUid[s], byUid[s] > 32 && byUid[s] < 128);
+        }
+    }
+    
+    @Test
+    public void eviction_keepsBucketsThatAreNotFull() {
+        AdmissionController admission = new AdmissionController(1, 1, now::get);
+        assertEquals(AdmissionController.ADMITTED, admission.acquire(ADD, UID, PID));
+        assertTrue(admission.acquire(ADD, UID, PID) > 0);
+        
+        // 大量其他调用方让每个分段都超过上限；没回满的桶不能被清理，否则耗尽的调用方会拿到新的满桶
+        for (int i = 1; i <= 32 * 200; i++) {
+            assertEquals(AdmissionController.ADMITTED, admission.acquire(ADD, UID, PID + i));
+        }
+        assertTrue(admission.acquire(ADD, UID, PID) > 0);
+        
+        // 回满之后被清理的桶等价于新桶
+        advanceMillis(1000);
+        for (int i = 1; i <= 32 * 200; i++) {
+            assertEquals(AdmissionController.ADMITTED, admission.acquire(ADD, UID + 1, PID + i));
+        }
+        assertEquals(AdmissionController.ADMITTED, admission.acquire(ADD, UID, PID));
+        assertTrue(admission.acquire(ADD, UID, PID) > 0);
+    }
+    
+    /**
+     * 重试间隔由浮点计算取整，允许1ms误差
+     */
+    private static void assertRetryMillis(long expected, long actual) {
+        assertTrue("retry " + actual + "ms, expected " + expected + "ms", Math.abs(actual - expected) <= 1);
+    }
+    
+    private void advanceMillis(long millis) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+    
+    private static long caller(int uid, int pid) {
+        return ((long) uid << 32) | (pid & 0xFFFFFFFFL);
+    }
+    
+    private static String dump(AdmissionController admission) {
+        StringWriter writer = new StringWriter();
+        admission.dump(new PrintWriter(writer, true));
+        return writer.toString();
+    }
+}
@@ -0,0 +1,23 @@
+package com.zhongmin.aidl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * AidlApplication 按进程名选择初始化路径
+ */
+public class AidlApplicationTest {
+    
+    @Test
+    public void isServiceProcess_matchesManifestSuffixesOnly() {
+        assertTrue(AidlApplication.isServiceProcess("com.zhongmin.aidl:remote"));
+        assertTrue(AidlApplication.isServiceProcess("com.zhongmin.aidl:remote1"));
+        assertTrue(AidlApplication.isServiceProcess("com.zhongmin.aidl:remote2"));
+        assertFalse(AidlApplication.isServiceProcess("com.zhongmin.aidl"));
+        assertFalse(AidlApplication.isServiceProcess("com.zhongmin.aidl:leakcanary"));
+        assertFalse(AidlApplication.isServiceProcess("com.zhongmin.aidl:remote3"));
+        assertFalse(AidlApplication.isServiceProcess(null));
+    }
+}
@@ -0,0 +1,171 @@
+package com.zhongmin.aidl;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BinderWatchdog 在普通JVM上的测试
+ */
+public class BinderWatchdogTest {
+    
+    private static final int CODE = 1;
+    
+    @Test
+    public void concurrentCalls_recordHighWaterAndSaturation() throws Exception {
+        BinderWatchdog watchdog = new BinderWatchdog(4, 10_000);
+        CountDownLatch entered = new CountDownLatch(4);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                BinderWatchdog.Slot slot = watchdog.enter(CODE, 0, 0);
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                    // 测试结束
+                } finally {
+                    watchdog.exit(slot, CODE);
+                }
+            });
+            threads[i].start();
+        }
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        assertEquals(4, watchdog.getInFlight());
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        assertEquals(0, watchdog.getInFlight());
+        assertEquals(4, watchdog.getHighWater());
+        assertTrue(dump(watchdog).contains("saturated: 1 times"));
+        watchdog.resetHighWater();
+        assertEquals(0, watchdog.getHighWater());
+    }
+    
+    @Test
+    public void slowCall_capturesStackOfWorker() throws Exception {
+        BinderWatchdog watchdog = new BinderWatchdog(16, 50);
+        watchdog.start();
+        try {
+            BinderWatchdog.Slot slot = watchdog.enter(CODE, 1000, 42);
+            long start = slot.getStartNanos();
+            Thread worker = new Thread(() -> {
+                slot.setWorker(start, Thread.currentThread());
+                slowWork();
+            });
+            worker.start();
+            worker.join();
+            watchdog.exit(slot, CODE);
+            
+            String dump = dump(watchdog);
+            assertTrue(dump.contains("slow calls: 1"));
+            assertTrue(dump.contains("code " + CODE + ", uid 1000, pid 42"));
+            assertTrue(dump.contains("slowWork"));
+        } finally {
+            watchdog.stop();
+        }
+    }
+    
+    @Test
+    public void nestedCalls_occupyOneThread() {
+        BinderWatchdog watchdog = new BinderWatchdog(2, 10_000);
+        BinderWatchdog.Slot outer = watchdog.enter(CODE, 0, 0);
+        BinderWatchdog.Slot nested = watchdog.enter(CODE + 1, 0, 0);
+        BinderWatchdog.Slot deeper = watchdog.enter(CODE + 1, 0, 0);
+        assertEquals(1, watchdog.getInFlight());
+        String dump = dump(watchdog);
+        assertTrue(dump, dump.contains("saturated: 0 times"));
+        assertTrue(dump, dump.contains("code " + (CODE + 1) + ": in flight 2, high water 2"));
+        
+        watchdog.exit(deeper, CODE + 1);
+        watchdog.exit(nested, CODE + 1);
+        assertEquals(1, watchdog.getInFlight());
+        watchdog.exit(outer, CODE);
+        assertEquals(0, watchdog.getInFlight());
+        assertEquals(1, watchdog.getHighWater());
+    }
+    
+    @Test
+    public void staleWorker_doesNotTouchNextCall() throws Exception {
+        BinderWatchdog watchdog = new BinderWatchdog(16, 50);
+        BinderWatchdog.Slot slot = watchdog.enter(CODE, 0, 0);
+        long staleStart = slot.getStartNanos();
+        watchdog.exit(slot, CODE);
+        
+        // 同一个Binder线程上的下一个调用复用槽位
+        Thread.sleep(1);
+        slot = watchdog.enter(CODE, 1000, 42);
+        long start = slot.getStartNanos();
+        Thread stale = new Thread(BinderWatchdogTest::slowWork);
+        slot.setWorker(staleStart, stale);
+        assertNull(slot.worker);
+        
+        BinderWatchdog.Slot current = slot;
+        Thread worker = new Thread(() -> {
+            current.setWorker(start, Thread.currentThread());
+            // 上一个调用的工作线程迟到的清除不影响当前调用
+            current.setWorker(staleStart, null);
+            slowWork();
+        });
+        watchdog.start();
+        try {
+            worker.start();
+            worker.join();
+            watchdog.exit(slot, CODE);
+            String dump = dump(watchdog);
+            assertTrue(dump, dump.contains("slow calls: 1"));
+            assertTrue(dump, dump.contains("slowWork"));
+        } finally {
+            watchdog.stop();
+        }
+    }
+    
+    @Test
+    public void exitedThreads_slotsRemovedByScan() throws Exception {
+        BinderWatchdog watchdog = new BinderWatchdog(4, 40);
+        watchdog.enter(CODE, 0, 0);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> watchdog.exit(watchdog.enter(CODE, 0, 0), CODE));
+            threads[i].start();
+            threads[i].join();
+        }
+        assertEquals(threads.length + 1, watchdog.getSlotCount());
+        
+        watchdog.start();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (watchdog.getSlotCount() > 1 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            // 只剩下仍然存活的当前线程
+            assertEquals(1, watchdog.getSlotCount());
+        } finally {
+            watchdog.stop();
+        }
+    }
+    
+    private static void slowWork() {
+        try {
+            Thread.sleep(300);
+        } catch (InterruptedException ignored) {
+            // 测试结束
+        }
+    }
+    
+    private static String dump(BinderWatchdog watchdog) {
+        StringWriter out = new StringWriter();
+        watchdog.dump(new PrintWriter(out, true));
+        return out.toString();
+    }
+}
@@ -0,0 +1,59 @@
+package com.zhongmin.aidl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Capabilities 在普通JVM上的测试
+ */
+public class CapabilitiesTest {
+    
+    @Test
+    public void negotiate_reportsOnlyCommonCapabilities() {
+        Capabilities caps = Capabilities.negotiate(Capabilities.CAP_CHUNKED_STRINGS | 1 << 20, 0xFF, false);
+        assertEquals(Capabilities.VERSION, caps.version);
+        assertEquals(Capabilities.CAP_CHUNKED_STRINGS, caps.flags);
+        assertEquals(ChunkedTransfer.SUPPORTED_CODECS, caps.codecs);
+        assertEquals(Capabilities.DEFAULT_MAX_PARCEL_BYTES, caps.maxParcelBytes);
+    }
+    
+    @Test
+    public void negotiate_inlineOnlyTransportDropsSharedMemory() {
+        Capabilities caps = Capabilities.negotiate(Capabilities.SUPPORTED, ChunkedTransfer.SUPPORTED_CODECS, true);
+        assertFalse(caps.has(Capabilities.CAP_SHARED_MEMORY));
+        assertTrue(caps.has(Capabilities.CAP_CHUNKED_STRINGS | Capabilities.CAP_ONEWAY));
+        assertFalse(caps.useSharedMemory(true));
+    }
+    
+    @Test
+    public void routing_followsCapabilities() {
+        Capabilities caps = Capabilities.negotiate(Capabilities.SUPPORTED, ChunkedTransfer.SUPPORTED_CODECS, false);
+        assertTrue(caps.useSharedMemory(true));
+        assertFalse(caps.useSharedMemory(false));
+        assertEquals(IntArrays.INLINE_MAX_INTS, caps.inlineMaxInts());
+        assertEquals(ChunkedTransfer.CODEC_LZ, caps.stringCodecs());
+        assertTrue(caps.useOneway());
+        
+        // 服务端建议更小的事务时内联上限随之降低
+        assertEquals(256, new Capabilities(1, Capabilities.SUPPORTED, 0, 1024).inlineMaxInts());
+        assertEquals(1, new Capabilities(1, Capabilities.SUPPORTED, 0, 0).inlineMaxInts());
+    }
+    
+    @Test
+    public void legacyServices_fallBackToWhatTheySupport() {
+        Capabilities chunked = Capabilities.legacyChunked(ChunkedTransfer.CODEC_LZ);
+        assertEquals(0, chunked.version);
+        assertEquals(ChunkedTransfer.CODEC_LZ, chunked.stringCodecs());
+        assertTrue(chunked.useSharedMemory(true));
+        assertFalse(chunked.useOneway());
+        
+        Capabilities basic = Capabilities.LEGACY_BASIC;
+        assertFalse(basic.has(Capabilities.CAP_CHUNKED_STRINGS));
+        assertEquals(0, basic.stringCodecs());
+        assertFalse(basic.useSharedMemory(true));
+        assertFalse(basic.useOneway());
+    }
+}
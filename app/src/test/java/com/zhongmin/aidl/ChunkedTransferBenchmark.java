@@ -0,0 +1,120 @@
+package com.zhongmin.aidl;
+
+import android.os.Parcel;
+import android.util.Log;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 字符串参数压缩与不压缩的耗时对比，ChunkedTransfer.COMPRESS_THRESHOLD_CHARS 按这里的结果选取
+ *
+ * 每种长度的JSON分别走两条路径：writeString/readString 原样写UTF-16，
+ * writeCompressed/readString 编码UTF-8、压缩、解压。都只有一次事务，不涉及分块。
+ * 输出每次调用的耗时和Parcel中的字节数；JVM上不包含内核拷贝，真机上不压缩一侧还要再拷贝一次全部字节。
+ * 计时只做参考输出，测试本身只检查往返结果和压缩率，不会因为机器快慢失败。
+ *
+ * 每种长度要处理16M字符，默认跳过，不拖慢单元测试。需要时手动运行，结果输出到日志：
+ *   ./gradlew :app:testDebugUnitTest --tests '*ChunkedTransferBenchmark' -Paidl.benchmark=true -Drobolectric.logging=stdout
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ChunkedTransferBenchmark {
+    private static final String TAG = "ChunkedTransferBenchmark";
+    
+    private static final int[] SIZES = {256, 512, 1024, 2048, 4096, 8192, 16384, ChunkedTransfer.CHUNK_CHARS};
+    
+    /**
+     * 每种长度处理的字符总数，小字符串多跑几轮，保证每种长度的计时都足够长
+     */
+    private static final long CHARS_PER_SIZE = 16L * 1024 * 1024;
+    
+    private final ChunkedTransfer mServer = new ChunkedTransfer();
+    
+    @Before
+    public void setUp() {
+        Assume.assumeTrue("Benchmark runs only with -Paidl.benchmark=true", Boolean.getBoolean("aidl.benchmark"));
+    }
+    
+    @Test
+    public void compressionAcrossPayloadSizes() throws Exception {
+        Log.i(TAG, "chars   plain(us) compressed(us)  plain(B) compressed(B)");
+        for (int size : SIZES) {
+            String json = json(size);
+            int iterations = (int) Math.max(20, CHARS_PER_SIZE / size);
+            
+            // 预热，让两条路径都经过JIT编译
+            measure(json, false, iterations);
+            measure(json, true, iterations);
+            long plainNs = measure(json, false, iterations);
+            long compressedNs = measure(json, true, iterations);
+            
+            int plainBytes = parcelBytes(json, false);
+            int compressedBytes = parcelBytes(json, true);
+            Log.i(TAG, String.format(Locale.US, "%6d %11.2f %14.2f %9d %13d", size,
+                    plainNs / 1000.0 / iterations, compressedNs / 1000.0 / iterations, plainBytes, compressedBytes));
+            
+            if (size >= ChunkedTransfer.COMPRESS_THRESHOLD_CHARS) {
+                // 达到阈值的JSON至少能省一半事务缓冲区
+                assertTrue(compressedBytes * 2 < plainBytes);
+            }
+        }
+    }
+    
+    private long measure(String json, boolean compressed, int iterations) throws Exception {
+        Parcel data = Parcel.obtain();
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                data.setDataSize(0);
+                data.setDataPosition(0);
+                write(data, json, compressed);
+                data.setDataPosition(0);
+                if (mServer.readString(data, 0).length() != json.length()) {
+                    throw new AssertionError("Round trip failed");
+                }
+            }
+            return System.nanoTime() - start;
+        } finally {
+            data.recycle();
+        }
+    }
+    
+    private static int parcelBytes(String json, boolean compressed) throws Exception {
+        Parcel data = Parcel.obtain();
+        try {
+            write(data, json, compressed);
+            return data.dataSize();
+        } finally {
+            data.recycle();
+        }
+    }
+    
+    private static void write(Parcel data, String json, boolean compressed) throws Exception {
+        if (!compressed) {
+            data.writeString(json);
+        } else if (!ChunkedTransfer.writeCompressed(null, data, json)) {
+            throw new AssertionError("JSON did not compress");
+        }
+    }
+    
+    /**
+     * 典型的上报JSON：字段名重复，数值各不相同
+     */
+    static String json(int chars) {
+        StringBuilder builder = new StringBuilder(chars + 64).append('[');
+        for (int i = 0; builder.length() < chars; i++) {
+            builder.append("{\"id\":").append(i * 7919 % 100003)
+                    .append(",\"name\":\"user").append(i % 97)
+                    .append("\",\"ts\":").append(1700000000000L + i * 1013L)
+                    .append(",\"ok\":").append(i % 3 != 0).append("},");
+        }
+        return builder.substring(0, chars);
+    }
+}
@@ -0,0 +1,457 @@
+package com.zhongmin.aidl;
+
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.ServiceSpecificException;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.FileDescriptor;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * ChunkedTransfer 单次事务内的格式选择和往返，服务端缓存的上限、调用方检查和过期，
+ * 以及经过 MyAidlProxy 和 MyAidlStub 的多事务参数和返回值
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ChunkedTransferTest {
+    
+    private static final long CALLER = ChunkedTransfer.caller(10_000, 1234);
+    private static final long SAME_UID_OTHER_PID = ChunkedTransfer.caller(10_000, 1235);
+    private static final long OTHER_UID = ChunkedTransfer.caller(10_001, 1234);
+    
+    private final AtomicLong now = new AtomicLong(TimeUnit.SECONDS.toMillis(100));
+    private final ChunkedTransfer mServer = new ChunkedTransfer(now::get);
+    
+    @Test
+    public void shortString_writtenAsPlainString() {
+        String value = ChunkedTransferBenchmark.json(ChunkedTransfer.COMPRESS_THRESHOLD_CHARS - 1);
+        assertEquals(value.length(), roundTrip(value, ChunkedTransfer.CODEC_LZ, value));
+    }
+    
+    @Test
+    public void thresholdString_compressed() {
+        String value = ChunkedTransferBenchmark.json(ChunkedTransfer.COMPRESS_THRESHOLD_CHARS);
+        assertEquals(ChunkedTransfer.MARKER_COMPRESSED, roundTrip(value, ChunkedTransfer.CODEC_LZ, value));
+    }
+    
+    @Test
+    public void withoutCodec_neverCompressed() {
+        String value = ChunkedTransferBenchmark.json(ChunkedTransfer.CHUNK_CHARS);
+        assertEquals(value.length(), roundTrip(value, 0, value));
+    }
+    
+    @Test
+    public void surrogatePairs_stillCompressed() {
+        String value = repeat("{\"emoji\":\"😀\"},", ChunkedTransfer.COMPRESS_THRESHOLD_CHARS);
+        assertEquals(ChunkedTransfer.MARKER_COMPRESSED, roundTrip(value, ChunkedTransfer.CODEC_LZ, value));
+    }
+    
+    @Test
+    public void loneSurrogate_sentUncompressedAndPreserved() {
+        String json = ChunkedTransferBenchmark.json(ChunkedTransfer.COMPRESS_THRESHOLD_CHARS * 2);
+        String highOnly = json.substring(0, 100) + '\uD83D' + json.substring(100);
+        String lowOnly = json + '\uDE00';
+        String reversed = "\uDE00\uD83D" + json;
+        for (String value : new String[]{highOnly, lowOnly, reversed}) {
+            assertFalse(ChunkedTransfer.isWellFormed(value));
+            // 没有压缩标记，按UTF-16原样写入，第一个int是字符串长度
+            assertEquals(value.length(), roundTrip(value, ChunkedTransfer.CODEC_LZ, value));
+        }
+    }
+    
+    @Test
+    public void isWellFormed_acceptsPairsAndPlainText() {
+        assertTrue(ChunkedTransfer.isWellFormed(""));
+        assertTrue(ChunkedTransfer.isWellFormed("abc"));
+        assertTrue(ChunkedTransfer.isWellFormed("a😀b😀"));
+        assertFalse(ChunkedTransfer.isWellFormed("\uD83D"));
+        assertFalse(ChunkedTransfer.isWellFormed("a\uDE00"));
+    }
+    
+    @Test
+    public void incomingTransfer_onlyUsableByItsCaller() {
+        String first = repeat("a", ChunkedTransfer.CHUNK_CHARS);
+        putChunk(CALLER, 7, 0, 2, first);
+        assertEquals(2L * first.length(), mServer.bufferedBytes());
+        // 同一个uid的其他进程不能追加分块
+        try {
+            putChunk(SAME_UID_OTHER_PID, 7, 0, 2, "x");
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+            // 按传输不存在处理
+        }
+        // 其他uid使用相同的ID是另一个传输，不能取走这一个
+        try {
+            finishChunked(OTHER_UID, 7, 2, "b");
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+            // 按传输不存在处理
+        }
+        assertEquals(first + "b", finishChunked(CALLER, 7, 2, "b"));
+        assertEquals(0, mServer.bufferedBytes());
+    }
+    
+    @Test
+    public void onewayFinish_matchesByUidOnly() {
+        putChunk(CALLER, 8, 0, 2, "a");
+        // oneway调用的pid是0
+        assertEquals("ab", finishChunked(ChunkedTransfer.caller(10_000, 0), 8, 2, "b"));
+    }
+    
+    @Test
+    public void outgoingTransfer_onlyFetchableByItsCaller() {
+        String value = repeat("r", ChunkedTransfer.CHUNK_CHARS + 10);
+        Parcel reply = Parcel.obtain();
+        try {
+            mServer.writeString(reply, value, CALLER);
+            reply.setDataPosition(0);
+            assertEquals(ChunkedTransfer.MARKER_CHUNKED, reply.readInt());
+            long transferId = reply.readLong();
+            try {
+                fetchChunk(OTHER_UID, transferId, 1);
+                fail("Expected IllegalStateException");
+            } catch (IllegalStateException expected) {
+                // 按传输不存在处理
+            }
+            assertEquals(repeat("r", 10), fetchChunk(CALLER, transferId, 1));
+            assertEquals(0, mServer.bufferedBytes());
+        } finally {
+            reply.recycle();
+        }
+    }
+    
+    @Test
+    public void tooManyTransfersFromOneUid_rejectedAsBusy() {
+        for (int i = 0; i < ChunkedTransfer.MAX_CALLER_TRANSFERS; i++) {
+            putChunk(CALLER, i, 0, 2, "a");
+        }
+        assertBusy(() -> putChunk(SAME_UID_OTHER_PID, 100, 0, 2, "a"));
+        // 其他uid不受影响；完成一个传输后名额归还
+        putChunk(OTHER_UID, 100, 0, 2, "a");
+        assertEquals("ab", finishChunked(CALLER, 0, 2, "b"));
+        putChunk(CALLER, 100, 0, 2, "a");
+    }
+    
+    @Test
+    public void bufferedBytes_limitedPerUidAndInTotal() {
+        String chunk = repeat("c", ChunkedTransfer.CHUNK_CHARS);
+        long half = ChunkedTransfer.MAX_CALLER_BYTES / 2;
+        int chunksPerHalf = (int) (half / (2L * chunk.length()));
+        fill(CALLER, 1, chunk, chunksPerHalf, chunksPerHalf + 1);
+        // 超过上限的传输整个作废，已经缓存的分块不占着缓存等超时
+        fill(CALLER, 2, chunk, chunksPerHalf, ChunkedTransfer.MAX_CHUNKS);
+        assertEquals(ChunkedTransfer.MAX_CALLER_BYTES, mServer.bufferedBytes());
+        assertBusy(() -> putChunk(CALLER, 2, chunksPerHalf, ChunkedTransfer.MAX_CHUNKS, chunk));
+        assertEquals(half, mServer.bufferedBytes());
+        
+        fill(CALLER, 3, chunk, chunksPerHalf, chunksPerHalf + 1);
+        fill(OTHER_UID, 1, chunk, chunksPerHalf, chunksPerHalf + 1);
+        fill(OTHER_UID, 2, chunk, chunksPerHalf, chunksPerHalf + 1);
+        assertEquals(ChunkedTransfer.MAX_BUFFERED_BYTES, mServer.bufferedBytes());
+        long third = ChunkedTransfer.caller(10_002, 1);
+        assertBusy(() -> putChunk(third, 1, 0, 2, chunk));
+        
+        // 服务端的返回值也计入缓存
+        Parcel reply = Parcel.obtain();
+        try {
+            assertBusy(() -> mServer.writeString(reply, chunk + chunk, third));
+        } finally {
+            reply.recycle();
+        }
+        assertEquals(ChunkedTransfer.MAX_BUFFERED_BYTES, mServer.bufferedBytes());
+    }
+    
+    @Test
+    public void expiredTransfers_treatedAsUnknownAndReleased() {
+        putChunk(CALLER, 1, 0, 2, "a");
+        Parcel reply = Parcel.obtain();
+        try {
+            mServer.writeString(reply, repeat("r", ChunkedTransfer.CHUNK_CHARS + 1), CALLER);
+            reply.setDataPosition(0);
+            reply.readInt();
+            long outgoingId = reply.readLong();
+            assertTrue(mServer.bufferedBytes() > 0);
+            
+            now.addAndGet(ChunkedTransfer.TRANSFER_TIMEOUT_MS + 1);
+            try {
+                finishChunked(CALLER, 1, 2, "b");
+                fail("Expected IllegalStateException");
+            } catch (IllegalStateException expected) {
+                // 客户端需要重新上传
+            }
+            try {
+                fetchChunk(CALLER, outgoingId, 1);
+                fail("Expected IllegalStateException");
+            } catch (IllegalStateException expected) {
+                // 客户端需要重新调用
+            }
+            assertEquals(0, mServer.bufferedBytes());
+        } finally {
+            reply.recycle();
+        }
+    }
+    
+    @Test
+    public void chunkedReplyAndArgument_throughProxyWithCompression() throws RemoteException {
+        CountingBinder binder = proxyRoundTrip(true);
+        // 随机小写字母的UTF-8只有UTF-16的一半，压缩后分块数约减半（不压缩时是 MAX_CHUNKS / 2 - 1）
+        int chunks = binder.putChunks.get();
+        assertTrue("put chunks: " + chunks, chunks > 0 && chunks <= ChunkedTransfer.MAX_CHUNKS / 4);
+    }
+    
+    @Test
+    public void chunkedReplyAndArgument_throughProxyWithoutCompression() throws RemoteException {
+        CountingBinder binder = proxyRoundTrip(false);
+        assertEquals(ChunkedTransfer.MAX_CHUNKS / 2 - 1, binder.putChunks.get());
+    }
+    
+    @Test
+    public void unknownTransfer_rejectedByStub() throws RemoteException {
+        TestAidlService service = new TestAidlService();
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(IMyAidlInterface.DESCRIPTOR);
+            data.writeLong(12345);
+            data.writeInt(1);
+            service.transact(IMyAidlInterface.TRANSACTION_fetchChunk, data, reply, 0);
+            reply.readException();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+            assertTrue(expected.getMessage().contains("12345"));
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+    }
+    
+    /**
+     * 经过代理上传一个需要分块的参数并取回一个需要分块的返回值，返回统计了事务数的Binder
+     */
+    private static CountingBinder proxyRoundTrip(boolean compression) throws RemoteException {
+        String name = randomLetters(ChunkedTransfer.CHUNK_CHARS * 3 + 17);
+        String argument = randomLetters(ChunkedTransfer.CHUNK_CHARS * (ChunkedTransfer.MAX_CHUNKS / 2));
+        LargeNameService service = new LargeNameService(name);
+        CountingBinder binder = new CountingBinder(service, compression);
+        IMyAidlInterface remote = MyAidlStub.asInterface(binder);
+        assertTrue(remote instanceof MyAidlProxy);
+        
+        assertEquals(name, remote.getServiceName());
+        assertEquals(3, binder.fetchChunks.get());
+        remote.basicTypes(1, 2, true, 3, 4, argument);
+        assertEquals(argument, service.basicStrings.get(0));
+        return binder;
+    }
+    
+    private static String randomLetters(int length) {
+        Random random = new Random(length);
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+    
+    /**
+     * 上传共 count 块的传输的前 chunks 块
+     */
+    private void fill(long caller, long transferId, String chunk, int chunks, int count) {
+        for (int i = 0; i < chunks; i++) {
+            putChunk(caller, transferId, i, count, chunk);
+        }
+    }
+    
+    private void putChunk(long caller, long transferId, int index, int count, String part) {
+        Parcel data = Parcel.obtain();
+        try {
+            data.writeLong(transferId);
+            data.writeInt(index);
+            data.writeInt(count);
+            data.writeInt(0); // PART_STRING
+            data.writeString(part);
+            data.setDataPosition(0);
+            mServer.onPutChunk(data, caller);
+        } finally {
+            data.recycle();
+        }
+    }
+    
+    private String finishChunked(long caller, long transferId, int count, String last) {
+        Parcel data = Parcel.obtain();
+        try {
+            data.writeInt(ChunkedTransfer.MARKER_CHUNKED);
+            data.writeLong(transferId);
+            data.writeInt(count);
+            data.writeString(last);
+            data.setDataPosition(0);
+            return mServer.readString(data, caller);
+        } finally {
+            data.recycle();
+        }
+    }
+    
+    private String fetchChunk(long caller, long transferId, int index) {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeLong(transferId);
+            data.writeInt(index);
+            data.setDataPosition(0);
+            mServer.onFetchChunk(data, reply, caller);
+            reply.setDataPosition(0);
+            reply.readException();
+            return reply.readString();
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+    }
+    
+    private static void assertBusy(Runnable call) {
+        try {
+            call.run();
+            fail("Expected ServiceSpecificException");
+        } catch (ServiceSpecificException expected) {
+            assertEquals(IMyAidlInterface.ERROR_BUSY, expected.errorCode);
+        }
+    }
+    
+    /**
+     * 客户端写入、服务端读出，检查内容不变
+     *
+     * @return Parcel中的第一个int：字符串长度或格式标记
+     */
+    private int roundTrip(String value, int codecs, String expected) {
+        Parcel data = Parcel.obtain();
+        try {
+            ChunkedTransfer.writeString(null, data, value, codecs);
+            data.setDataPosition(0);
+            int head = data.readInt();
+            data.setDataPosition(0);
+            assertEquals(expected, mServer.readString(data, CALLER));
+            return head;
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        } finally {
+            data.recycle();
+        }
+    }
+    
+    /**
+     * 返回超长服务名的服务端
+     */
+    private static final class LargeNameService extends TestAidlService {
+        private final String mName;
+        
+        LargeNameService(String name) {
+            mName = name;
+        }
+        
+        @Override
+        public String getServiceName() {
+            return mName;
+        }
+    }
+    
+    /**
+     * 统计分块事务数的IBinder，queryLocalInterface 返回null，本地的Stub也走代理的完整序列化路径；
+     * 不启用压缩时把握手结果里的编码清零
+     */
+    private static final class CountingBinder implements IBinder {
+        final AtomicInteger putChunks = new AtomicInteger();
+        final AtomicInteger fetchChunks = new AtomicInteger();
+        private final IBinder mDelegate;
+        private final boolean mCompression;
+        
+        CountingBinder(IBinder delegate, boolean compression) {
+            mDelegate = delegate;
+            mCompression = compression;
+        }
+        
+        @Override
+        public boolean transact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+            if (code == IMyAidlInterface.TRANSACTION_putChunk) {
+                putChunks.incrementAndGet();
+            } else if (code == IMyAidlInterface.TRANSACTION_fetchChunk) {
+                fetchChunks.incrementAndGet();
+            }
+            boolean handled = mDelegate.transact(code, data, reply, flags);
+            if (code == IMyAidlInterface.TRANSACTION_handshake && !mCompression) {
+                reply.readException();
+                int version = reply.readInt();
+                int caps = reply.readInt();
+                reply.readInt();
+                int maxParcelBytes = reply.readInt();
+                reply.setDataPosition(0);
+                reply.writeNoException();
+                reply.writeInt(version);
+                reply.writeInt(caps);
+                reply.writeInt(0);
+                reply.writeInt(maxParcelBytes);
+                reply.setDataPosition(0);
+            }
+            return handled;
+        }
+        
+        @Override
+        public IInterface queryLocalInterface(String descriptor) {
+            return null;
+        }
+        
+        @Override
+        public String getInterfaceDescriptor() throws RemoteException {
+            return mDelegate.getInterfaceDescriptor();
+        }
+        
+        @Override
+        public boolean pingBinder() {
+            return mDelegate.pingBinder();
+        }
+        
+        @Override
+        public boolean isBinderAlive() {
+            return mDelegate.isBinderAlive();
+        }
+        
+        @Override
+        public void dump(FileDescriptor fd, String[] args) throws RemoteException {
+            mDelegate.dump(fd, args);
+        }
+        
+        @Override
+        public void dumpAsync(FileDescriptor fd, String[] args) throws RemoteException {
+            mDelegate.dumpAsync(fd, args);
+        }
+        
+        @Override
+        public void linkToDeath(DeathRecipient recipient, int flags) throws RemoteException {
+            mDelegate.linkToDeath(recipient, flags);
+        }
+        
+        @Override
+        public boolean unlinkToDeath(DeathRecipient recipient, int flags) {
+            return mDelegate.unlinkToDeath(recipient, flags);
+        }
+    }
+    
+    private static String repeat(String unit, int minChars) {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < minChars) {
+            builder.append(unit);
+        }
+        return builder.toString();
+    }
+}
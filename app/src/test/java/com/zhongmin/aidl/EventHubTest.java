@@ -0,0 +1,188 @@
+package com.zhongmin.aidl;
+
+import android.os.RemoteException;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * EventHub 的合并投递、慢订阅者移除和订阅时的当前值
+ */
+@RunWith(RobolectricTestRunner.class)
+public class EventHubTest {
+    
+    private EventHub hub;
+    
+    @After
+    public void tearDown() {
+        if (hub != null) {
+            hub.shutdown();
+        }
+    }
+    
+    @Test
+    public void eventsWithinTick_conflatedPerTopicIntoOneCallback() throws Exception {
+        hub = new EventHub(100);
+        Recorder recorder = new Recorder();
+        hub.subscribe(recorder, null);
+        
+        hub.publish("a", "1");
+        hub.publish("b", "1");
+        hub.publish("a", "2");
+        hub.publish("a", "3");
+        
+        assertTrue(recorder.awaitValue("a", "3"));
+        assertEquals(1, recorder.callbacks());
+        assertEquals(Arrays.asList("a=3", "b=1"), recorder.batch(0));
+    }
+    
+    @Test
+    public void topicFilter_deliversOnlySubscribedTopics() throws Exception {
+        hub = new EventHub(10);
+        Recorder recorder = new Recorder();
+        hub.subscribe(recorder, new String[]{"b"});
+        hub.publish("a", "1");
+        hub.publish("b", "2");
+        assertTrue(recorder.awaitValue("b", "2"));
+        assertEquals(Arrays.asList("b=2"), recorder.batch(0));
+    }
+    
+    @Test
+    public void newSubscriber_receivesCurrentValues() throws Exception {
+        hub = new EventHub(10);
+        hub.publish("a", "1");
+        hub.publish("b", "2");
+        Recorder recorder = new Recorder();
+        hub.subscribe(recorder, new String[]{"a"});
+        assertTrue(recorder.awaitValue("a", "1"));
+        assertEquals(Arrays.asList("a=1"), recorder.batch(0));
+    }
+    
+    @Test
+    public void slowSubscriber_removedWithoutAffectingOthers() throws Exception {
+        hub = new EventHub(1);
+        Recorder healthy = new Recorder();
+        hub.subscribe(healthy, null);
+        hub.subscribe(new MyEventCallbackStub() {
+            @Override
+            public void onEvents(String[] topics, String[] values) throws RemoteException {
+                throw new RemoteException("async buffer full");
+            }
+        }, null);
+        
+        hub.publish("a", "1");
+        // 失败的订阅者有积压，每个tick重试，连续失败后被移除
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!dump().contains("subscribers: 1,") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(dump(), dump().contains("subscribers: 1,"));
+        assertTrue(dump(), dump().contains("dropped subscribers: 1"));
+        
+        hub.publish("a", "2");
+        assertTrue(healthy.awaitValue("a", "2"));
+    }
+    
+    @Test
+    public void subscribeRacingPublish_endsWithLatestValue() throws Exception {
+        // tick间隔为0，订阅和发布并发时让tick尽量落在快照和注册之间
+        hub = new EventHub(0);
+        for (int i = 0; i < 200; i++) {
+            hub.publish("t", Integer.toString(2 * i));
+            Recorder recorder = new Recorder();
+            CountDownLatch start = new CountDownLatch(1);
+            Thread subscriber = new Thread(() -> {
+                awaitQuietly(start);
+                hub.subscribe(recorder, null);
+            });
+            subscriber.start();
+            String latest = Integer.toString(2 * i + 1);
+            start.countDown();
+            hub.publish("t", latest);
+            subscriber.join();
+            assertTrue("Subscriber " + i + " stuck at " + recorder.last("t"), recorder.awaitValue("t", latest));
+            hub.unsubscribe(recorder);
+        }
+    }
+    
+    private String dump() {
+        StringWriter writer = new StringWriter();
+        hub.dump(new PrintWriter(writer));
+        return writer.toString();
+    }
+    
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * 记录收到的每一批事件
+     */
+    private static final class Recorder extends MyEventCallbackStub {
+        private final List<List<String>> mBatches = new ArrayList<>();
+        
+        @Override
+        public synchronized void onEvents(String[] topics, String[] values) {
+            List<String> batch = new ArrayList<>();
+            for (int i = 0; i < topics.length; i++) {
+                batch.add(topics[i] + "=" + values[i]);
+            }
+            mBatches.add(batch);
+            notifyAll();
+        }
+        
+        synchronized int callbacks() {
+            return mBatches.size();
+        }
+        
+        synchronized List<String> batch(int index) {
+            return mBatches.get(index);
+        }
+        
+        /**
+         * 最后收到的某个主题的值
+         */
+        synchronized String last(String topic) {
+            for (int i = mBatches.size() - 1; i >= 0; i--) {
+                for (String event : mBatches.get(i)) {
+                    if (event.startsWith(topic + "=")) {
+                        return event.substring(topic.length() + 1);
+                    }
+                }
+            }
+            return null;
+        }
+        
+        /**
+         * 等到某个主题最后收到的值是 value
+         */
+        synchronized boolean awaitValue(String topic, String value) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 2000;
+            while (!value.equals(last(topic))) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+            return true;
+        }
+    }
+}
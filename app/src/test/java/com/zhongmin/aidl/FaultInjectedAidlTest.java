@@ -0,0 +1,154 @@
+package com.zhongmin.aidl;
+
+import android.os.DeadObjectException;
+import android.os.RemoteException;
+import android.os.TransactionTooLargeException;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 注入故障时通过 MyAidlProxy 调用真实的 MyAidlStub
+ *
+ * MyAidlStub.asInterface(new FaultInjectingBinder(...)) 得到的是 MyAidlProxy，
+ * 参数经过完整的Parcel序列化和服务端的分发路径。调用方按超时等待结果，
+ * 遇到 DeadObjectException 时重新“绑定”后重试，遇到 TransactionTooLargeException 时直接重试。
+ */
+@RunWith(RobolectricTestRunner.class)
+public class FaultInjectedAidlTest {
+    
+    private static final int MAX_ATTEMPTS = 10;
+    
+    private final ExecutorService caller = Executors.newCachedThreadPool();
+    private final TestAidlService service = new TestAidlService();
+    
+    private int mDeaths;
+    private int mTooLarge;
+    private int mTimeouts;
+    
+    private interface Call<T> {
+        T call(IMyAidlInterface remote) throws RemoteException;
+    }
+    
+    @After
+    public void tearDown() {
+        caller.shutdownNow();
+    }
+    
+    @Test
+    public void realCalls_succeedWithRetryUnderDeathAndTooLarge() throws Exception {
+        FaultPlan plan = new FaultPlan(7);
+        plan.setLatency(FaultPlan.uniform(0, 1));
+        plan.setDeathProbability(0.05);
+        plan.setTooLargeProbability(0.05);
+        FaultInjectingBinder binder = new FaultInjectingBinder(service, plan);
+        IMyAidlInterface remote = MyAidlStub.asInterface(binder);
+        assertTrue(remote instanceof MyAidlProxy);
+        
+        int calls = 200;
+        for (int i = 0; i < calls; i++) {
+            int a = i;
+            assertEquals(2 * i, (int) callWithRetry(binder, remote, 1000, r -> r.add(a, a)));
+            String value = "call-" + i;
+            callWithRetry(binder, remote, 1000, r -> {
+                r.basicTypes(a, a, true, a, a, value);
+                return null;
+            });
+        }
+        assertEquals(TestAidlService.NAME, callWithRetry(binder, remote, 1000, IMyAidlInterface::getServiceName));
+        
+        assertTrue("No deaths injected", mDeaths > 0);
+        assertTrue("No TransactionTooLargeException injected", mTooLarge > 0);
+        // 死亡发生在调用送达之后，重试的调用可能执行了两次：至少一次，但不会丢失
+        assertEquals(calls, new HashSet<>(service.basicStrings).size());
+        assertTrue(service.basicStrings.size() >= calls);
+        binder.shutdown();
+    }
+    
+    @Test
+    public void slowCall_timesOutAndRetrySucceeds() throws Exception {
+        FaultPlan plan = new FaultPlan(1);
+        // 第一次调用慢于超时，之后恢复正常
+        plan.setLatency(new FaultPlan.Latency() {
+            private boolean mFirst = true;
+            
+            @Override
+            public long sampleNanos(Random random) {
+                if (mFirst) {
+                    mFirst = false;
+                    return TimeUnit.MILLISECONDS.toNanos(500);
+                }
+                return 0;
+            }
+        });
+        FaultInjectingBinder binder = new FaultInjectingBinder(service, plan);
+        IMyAidlInterface remote = MyAidlStub.asInterface(binder);
+        
+        assertEquals(42, (int) callWithRetry(binder, remote, 50, IMyAidlInterface::getPid));
+        assertEquals(1, mTimeouts);
+        binder.shutdown();
+    }
+    
+    @Test
+    public void deadService_failsAfterMaxAttempts() throws Exception {
+        FaultPlan plan = new FaultPlan(1);
+        FaultInjectingBinder binder = new FaultInjectingBinder(service, plan);
+        IMyAidlInterface remote = MyAidlStub.asInterface(binder);
+        plan.setDeathProbability(1);
+        
+        try {
+            callWithRetry(binder, remote, 1000, r -> r.add(1, 2));
+            fail("Expected DeadObjectException");
+        } catch (DeadObjectException expected) {
+            // 每次重试都在送达后死亡
+        }
+        assertEquals(MAX_ATTEMPTS, mDeaths);
+        binder.shutdown();
+    }
+    
+    /**
+     * 在调用线程之外执行调用，超时后放弃等待并重试；服务死亡时模拟重新绑定
+     */
+    private <T> T callWithRetry(FaultInjectingBinder binder, IMyAidlInterface remote, long timeoutMillis,
+            Call<T> call) throws Exception {
+        Exception last = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            Future<T> future = caller.submit(() -> call.call(remote));
+            try {
+                return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // Binder调用不能中断，放弃等待即可
+                future.cancel(false);
+                mTimeouts++;
+                last = e;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof DeadObjectException) {
+                    mDeaths++;
+                    binder.revive();
+                } else if (cause instanceof TransactionTooLargeException) {
+                    mTooLarge++;
+                } else {
+                    throw e;
+                }
+                last = (Exception) cause;
+            }
+        }
+        throw last;
+    }
+}
@@ -0,0 +1,278 @@
+package com.zhongmin.aidl;
+
+import android.os.DeadObjectException;
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.TransactionTooLargeException;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 注入延迟和故障的IBinder，用来测试调用方的超时、重试和批量逻辑
+ *
+ * 包装任意IBinder后交给 MyAidlStub.asInterface()，queryLocalInterface 总是返回null，
+ * 包装本地的 MyAidlStub 时也走 MyAidlProxy 的完整序列化路径。按 FaultPlan 注入：
+ * 1. 延迟：同步调用送达前后各等待采样延迟的一半
+ * 2. TransactionTooLargeException：请求超过大小上限或按概率，调用不会送达
+ * 3. 服务死亡：调用送达服务端之后死亡，调用方收到 DeadObjectException，副作用已经发生；
+ *    之后的调用都失败并触发死亡通知，直到 revive()
+ * 4. oneway调用立即返回，在后台线程上延迟送达，可以配置为乱序
+ *
+ * 只在测试中使用，在Robolectric下可以直接包装本地的 MyAidlStub，见 FaultInjectedAidlTest。
+ */
+public class FaultInjectingBinder implements IBinder {
+    
+    private final IBinder mDelegate;
+    private final FaultPlan mPlan;
+    private final CopyOnWriteArrayList<DeathRecipient> mRecipients = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService mOneway;
+    
+    private volatile boolean mDead;
+    
+    /**
+     * 不乱序时最后一个oneway调用的送达时间和等待送达的调用，受 mOneway 保护
+     */
+    private long mLastOnewayNanos;
+    private final ArrayDeque<Runnable> mInOrder = new ArrayDeque<>();
+    
+    /**
+     * 已经送达的oneway调用中最大的发出序号，只在送达线程上访问
+     */
+    private long mMaxDeliveredSeq;
+    private final AtomicLong mOnewaySeq = new AtomicLong();
+    
+    private final AtomicLong mCalls = new AtomicLong();
+    private final AtomicLong mDelayNanos = new AtomicLong();
+    private final AtomicLong mDeaths = new AtomicLong();
+    private final AtomicLong mTooLarge = new AtomicLong();
+    private final AtomicLong mReordered = new AtomicLong();
+    private final AtomicLong mOnewayFailures = new AtomicLong();
+    
+    public FaultInjectingBinder(IBinder delegate, FaultPlan plan) {
+        mDelegate = delegate;
+        mPlan = plan;
+        mOneway = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fault-oneway");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            // 被包装的Binder真的死亡时同样通知
+            delegate.linkToDeath(this::kill, 0);
+        } catch (RemoteException e) {
+            mDead = true;
+        }
+    }
+    
+    /**
+     * 立即让服务“死亡”：之后的调用都抛出 DeadObjectException，并通知所有死亡监听
+     */
+    public synchronized void kill() {
+        if (mDead) {
+            return;
+        }
+        mDead = true;
+        mDeaths.incrementAndGet();
+        for (DeathRecipient recipient : mRecipients) {
+            if (mRecipients.remove(recipient)) {
+                recipient.binderDied();
+            }
+        }
+    }
+    
+    /**
+     * 模拟服务重启后重新绑定，死亡监听需要重新注册
+     */
+    public synchronized void revive() {
+        mDead = false;
+    }
+    
+    /**
+     * 停止oneway送达线程，还没送达的调用丢弃
+     */
+    public void shutdown() {
+        mOneway.shutdownNow();
+    }
+    
+    @Override
+    public String getInterfaceDescriptor() throws RemoteException {
+        checkAlive();
+        return mDelegate.getInterfaceDescriptor();
+    }
+    
+    @Override
+    public boolean pingBinder() {
+        return !mDead && mDelegate.pingBinder();
+    }
+    
+    @Override
+    public boolean isBinderAlive() {
+        return !mDead && mDelegate.isBinderAlive();
+    }
+    
+    /**
+     * 总是走代理路径，同进程的服务也经过序列化和故障注入
+     */
+    @Override
+    public IInterface queryLocalInterface(String descriptor) {
+        return null;
+    }
+    
+    @Override
+    public void dump(FileDescriptor fd, String[] args) throws RemoteException {
+        mDelegate.dump(fd, args);
+    }
+    
+    @Override
+    public void dumpAsync(FileDescriptor fd, String[] args) throws RemoteException {
+        mDelegate.dumpAsync(fd, args);
+    }
+    
+    @Override
+    public boolean transact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+        checkAlive();
+        mCalls.incrementAndGet();
+        int size = data != null ? data.dataSize() : 0;
+        if (size > mPlan.getMaxTransactionBytes() || mPlan.rollTooLarge()) {
+            mTooLarge.incrementAndGet();
+            throw new TransactionTooLargeException("Injected: code " + code + ", data " + size + " bytes");
+        }
+        long latency = mPlan.sampleLatencyNanos();
+        mDelayNanos.addAndGet(latency);
+        if ((flags & FLAG_ONEWAY) != 0) {
+            enqueueOneway(code, data, flags, latency);
+            return true;
+        }
+        
+        sleep(latency / 2);
+        boolean dies = mPlan.rollDeath();
+        boolean handled = mDelegate.transact(code, data, reply, flags);
+        if (dies) {
+            kill();
+            throw new DeadObjectException("Injected death during code " + code);
+        }
+        sleep(latency - latency / 2);
+        return handled;
+    }
+    
+    @Override
+    public void linkToDeath(DeathRecipient recipient, int flags) throws RemoteException {
+        mRecipients.add(recipient);
+        if (mDead && mRecipients.remove(recipient)) {
+            throw new DeadObjectException("Injected death");
+        }
+    }
+    
+    @Override
+    public boolean unlinkToDeath(DeathRecipient recipient, int flags) {
+        return mRecipients.remove(recipient);
+    }
+    
+    /**
+     * 输出注入的故障统计
+     */
+    public void dump(PrintWriter writer) {
+        long calls = mCalls.get();
+        writer.println("Fault injection: " + (mDead ? "dead" : "alive"));
+        writer.println("  calls: " + calls
+                + ", mean injected latency: " + (calls > 0 ? TimeUnit.NANOSECONDS.toMicros(mDelayNanos.get() / calls) : 0) + "us"
+                + ", deaths: " + mDeaths.get()
+                + ", too large: " + mTooLarge.get()
+                + ", oneway reordered: " + mReordered.get()
+                + ", oneway failed: " + mOnewayFailures.get());
+    }
+    
+    private void checkAlive() throws DeadObjectException {
+        if (mDead) {
+            throw new DeadObjectException("Injected death");
+        }
+    }
+    
+    /**
+     * 调用方返回后 data 会被回收，先复制一份
+     */
+    private void enqueueOneway(int code, Parcel data, int flags, long latency) {
+        Parcel copy = null;
+        if (data != null) {
+            copy = Parcel.obtain();
+            copy.appendFrom(data, 0, data.dataSize());
+            copy.setDataPosition(0);
+        }
+        Parcel parcel = copy;
+        synchronized (mOneway) {
+            long seq = mOnewaySeq.incrementAndGet();
+            Runnable delivery = () -> deliverOneway(seq, code, parcel, flags);
+            if (mPlan.isReorderOneway()) {
+                mOneway.schedule(delivery, latency, TimeUnit.NANOSECONDS);
+                return;
+            }
+            // 同一个Binder对象的oneway调用按顺序送达：每次定时到期只送达队头，
+            // 定时器的误差不会让后发出的调用先送达
+            long now = System.nanoTime();
+            long deliverAt = Math.max(now + latency, mLastOnewayNanos);
+            mLastOnewayNanos = deliverAt;
+            mInOrder.addLast(delivery);
+            mOneway.schedule(this::deliverNextInOrder, deliverAt - now, TimeUnit.NANOSECONDS);
+        }
+    }
+    
+    private void deliverNextInOrder() {
+        Runnable delivery;
+        synchronized (mOneway) {
+            delivery = mInOrder.pollFirst();
+        }
+        if (delivery != null) {
+            delivery.run();
+        }
+    }
+    
+    private void deliverOneway(long seq, int code, Parcel data, int flags) {
+        try {
+            if (mDead) {
+                return;
+            }
+            if (seq < mMaxDeliveredSeq) {
+                mReordered.incrementAndGet();
+            } else {
+                mMaxDeliveredSeq = seq;
+            }
+            boolean dies = mPlan.rollDeath();
+            mDelegate.transact(code, data, null, flags);
+            if (dies) {
+                kill();
+            }
+        } catch (RemoteException | RuntimeException e) {
+            // oneway调用的失败调用方看不到
+            mOnewayFailures.incrementAndGet();
+        } finally {
+            if (data != null) {
+                data.recycle();
+            }
+        }
+    }
+    
+    /**
+     * Thread.sleep 把不足1ms的等待向上取整到1ms，用 parkNanos 保持亚毫秒的延迟分布
+     */
+    private static void sleep(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        long remaining = nanos;
+        while (remaining > 0) {
+            LockSupport.parkNanos(remaining);
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            remaining = deadline - System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.zhongmin.aidl;
+
+import android.os.DeadObjectException;
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.TransactionTooLargeException;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.FileDescriptor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * FaultInjectingBinder 在普通JVM上的测试，被包装的是只记录事务码、不读写Parcel的替身
+ */
+@RunWith(RobolectricTestRunner.class)
+public class FaultInjectingBinderTest {
+    
+    @Test
+    public void logNormal_matchesMedianAndP99() {
+        FaultPlan.Latency latency = FaultPlan.logNormal(2, 40);
+        Random random = new Random(1);
+        long[] samples = new long[100_000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = latency.sampleNanos(random);
+        }
+        Arrays.sort(samples);
+        double p50 = samples[samples.length / 2] / 1e6;
+        double p99 = samples[samples.length * 99 / 100] / 1e6;
+        assertEquals(2, p50, 0.1);
+        assertEquals(40, p99, 4);
+    }
+    
+    @Test
+    public void death_happensAfterDeliveryAndNotifiesRecipients() throws Exception {
+        Loopback loopback = new Loopback(null);
+        FaultPlan plan = new FaultPlan(1);
+        plan.setDeathProbability(1);
+        FaultInjectingBinder binder = new FaultInjectingBinder(loopback, plan);
+        CountDownLatch died = new CountDownLatch(1);
+        binder.linkToDeath(died::countDown, 0);
+        
+        try {
+            binder.transact(1, null, null, 0);
+            fail("Expected DeadObjectException");
+        } catch (DeadObjectException expected) {
+            // 调用已经送达
+        }
+        assertEquals(Collections.singletonList(1), loopback.codes());
+        assertEquals(0, died.getCount());
+        assertFalse(binder.isBinderAlive());
+        
+        // 死亡后的调用不再送达
+        try {
+            binder.transact(2, null, null, 0);
+            fail("Expected DeadObjectException");
+        } catch (DeadObjectException expected) {
+            assertEquals(1, loopback.codes().size());
+        }
+        
+        plan.setDeathProbability(0);
+        binder.revive();
+        assertTrue(binder.transact(3, null, null, 0));
+        assertEquals(Arrays.asList(1, 3), loopback.codes());
+        binder.shutdown();
+    }
+    
+    @Test
+    public void tooLarge_isThrownBeforeDelivery() throws Exception {
+        Loopback loopback = new Loopback(null);
+        FaultPlan plan = new FaultPlan(1);
+        plan.setTooLargeProbability(1);
+        FaultInjectingBinder binder = new FaultInjectingBinder(loopback, plan);
+        try {
+            binder.transact(1, null, null, 0);
+            fail("Expected TransactionTooLargeException");
+        } catch (TransactionTooLargeException expected) {
+            assertTrue(loopback.codes().isEmpty());
+        }
+        binder.shutdown();
+    }
+    
+    @Test
+    public void latency_delaysSyncCalls() throws Exception {
+        FaultPlan plan = new FaultPlan(1);
+        plan.setLatency(FaultPlan.fixed(20));
+        FaultInjectingBinder binder = new FaultInjectingBinder(new Loopback(null), plan);
+        long start = System.nanoTime();
+        binder.transact(1, null, null, 0);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        binder.shutdown();
+    }
+    
+    @Test
+    public void oneway_keepsOrderUnlessReorderingEnabled() throws Exception {
+        assertEquals(sorted(sendOneway(false)), sendOneway(false));
+        List<Integer> reordered = sendOneway(true);
+        assertFalse(sorted(reordered).equals(reordered));
+        assertEquals(sorted(reordered), sorted(sendOneway(true)));
+    }
+    
+    private static List<Integer> sendOneway(boolean reorder) throws Exception {
+        int count = 50;
+        CountDownLatch delivered = new CountDownLatch(count);
+        Loopback loopback = new Loopback(delivered);
+        FaultPlan plan = new FaultPlan(7);
+        plan.setLatency(FaultPlan.uniform(0, 20));
+        plan.setReorderOneway(reorder);
+        FaultInjectingBinder binder = new FaultInjectingBinder(loopback, plan);
+        for (int code = 1; code <= count; code++) {
+            // oneway调用立即返回
+            assertTrue(binder.transact(code, null, null, IBinder.FLAG_ONEWAY));
+        }
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        binder.shutdown();
+        return loopback.codes();
+    }
+    
+    private static List<Integer> sorted(List<Integer> codes) {
+        List<Integer> copy = new ArrayList<>(codes);
+        Collections.sort(copy);
+        return copy;
+    }
+    
+    /**
+     * 替身服务：记录收到的事务码
+     */
+    private static final class Loopback implements IBinder {
+        private final List<Integer> mCodes = new ArrayList<>();
+        private final CountDownLatch mDelivered;
+        
+        Loopback(CountDownLatch delivered) {
+            mDelivered = delivered;
+        }
+        
+        synchronized List<Integer> codes() {
+            return new ArrayList<>(mCodes);
+        }
+        
+        @Override
+        public String getInterfaceDescriptor() {
+            return IMyAidlInterface.DESCRIPTOR;
+        }
+        
+        @Override
+        public boolean pingBinder() {
+            return true;
+        }
+        
+        @Override
+        public boolean isBinderAlive() {
+            return true;
+        }
+        
+        @Override
+        public IInterface queryLocalInterface(String descriptor) {
+            return null;
+        }
+        
+        @Override
+        public void dump(FileDescriptor fd, String[] args) {
+        }
+        
+        @Override
+        public void dumpAsync(FileDescriptor fd, String[] args) {
+        }
+        
+        @Override
+        public boolean transact(int code, Parcel data, Parcel reply, int flags) {
+            synchronized (this) {
+                mCodes.add(code);
+            }
+            if (mDelivered != null) {
+                mDelivered.countDown();
+            }
+            return true;
+        }
+        
+        @Override
+        public void linkToDeath(DeathRecipient recipient, int flags) {
+        }
+        
+        @Override
+        public boolean unlinkToDeath(DeathRecipient recipient, int flags) {
+            return true;
+        }
+    }
+}
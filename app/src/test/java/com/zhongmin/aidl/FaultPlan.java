@@ -0,0 +1,149 @@
+package com.zhongmin.aidl;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FaultInjectingBinder 注入的故障配置
+ *
+ * 延迟按 Latency 分布采样，用固定种子时每次运行注入的故障序列相同，结果可以复现。
+ * 所有设置都可以在运行中修改，下一次调用生效。
+ */
+public class FaultPlan {
+    
+    /**
+     * 正态分布的99分位
+     */
+    private static final double Z_99 = 2.3263;
+    
+    /**
+     * 一次调用的往返延迟分布
+     */
+    public interface Latency {
+        long sampleNanos(Random random);
+    }
+    
+    /**
+     * 没有额外延迟
+     */
+    public static Latency none() {
+        return random -> 0;
+    }
+    
+    public static Latency fixed(double millis) {
+        long nanos = toNanos(millis);
+        return random -> nanos;
+    }
+    
+    public static Latency uniform(double minMillis, double maxMillis) {
+        long min = toNanos(minMillis);
+        long range = toNanos(maxMillis) - min;
+        return random -> min + (long) (random.nextDouble() * range);
+    }
+    
+    /**
+     * 对数正态分布，用中位数和99分位描述，长尾接近真实的Binder调用
+     */
+    public static Latency logNormal(double medianMillis, double p99Millis) {
+        if (medianMillis <= 0 || p99Millis < medianMillis) {
+            throw new IllegalArgumentException("Need 0 < median <= p99");
+        }
+        double mu = Math.log(medianMillis);
+        double sigma = Math.log(p99Millis / medianMillis) / Z_99;
+        return random -> toNanos(Math.exp(mu + sigma * random.nextGaussian()));
+    }
+    
+    /**
+     * 以 slowProbability 的概率使用 slow 分布，例如偶尔遇到GC或Binder线程池耗尽
+     */
+    public static Latency mixture(Latency fast, Latency slow, double slowProbability) {
+        return random -> random.nextDouble() < slowProbability
+                ? slow.sampleNanos(random) : fast.sampleNanos(random);
+    }
+    
+    /**
+     * 受自身保护，Random 本身线程安全，但同步后多线程时的序列仍然只取决于调用顺序
+     */
+    private final Random mRandom;
+    
+    private volatile Latency mLatency = none();
+    private volatile double mDeathProbability;
+    private volatile double mTooLargeProbability;
+    private volatile int mMaxTransactionBytes = Integer.MAX_VALUE;
+    private volatile boolean mReorderOneway;
+    
+    /**
+     * @param seed 随机种子
+     */
+    public FaultPlan(long seed) {
+        mRandom = new Random(seed);
+    }
+    
+    public void setLatency(Latency latency) {
+        mLatency = latency;
+    }
+    
+    /**
+     * 每次调用时服务进程死亡的概率；调用已经送达服务端后才死亡，调用方收到 DeadObjectException
+     */
+    public void setDeathProbability(double probability) {
+        mDeathProbability = probability;
+    }
+    
+    /**
+     * 每次调用随机抛出 TransactionTooLargeException 的概率，模拟其他调用占满了Binder缓冲区
+     */
+    public void setTooLargeProbability(double probability) {
+        mTooLargeProbability = probability;
+    }
+    
+    /**
+     * 请求数据超过此大小时抛出 TransactionTooLargeException，真实设备上限约为1MB且由进程内所有调用共享
+     */
+    public void setMaxTransactionBytes(int maxBytes) {
+        mMaxTransactionBytes = maxBytes;
+    }
+    
+    /**
+     * oneway调用是否按各自的延迟独立送达，从而乱序；否则按发出顺序依次送达（Binder对同一个对象的保证）
+     */
+    public void setReorderOneway(boolean reorder) {
+        mReorderOneway = reorder;
+    }
+    
+    int getMaxTransactionBytes() {
+        return mMaxTransactionBytes;
+    }
+    
+    boolean isReorderOneway() {
+        return mReorderOneway;
+    }
+    
+    long sampleLatencyNanos() {
+        Latency latency = mLatency;
+        synchronized (mRandom) {
+            return Math.max(0, latency.sampleNanos(mRandom));
+        }
+    }
+    
+    boolean rollDeath() {
+        return roll(mDeathProbability);
+    }
+    
+    boolean rollTooLarge() {
+        return roll(mTooLargeProbability);
+    }
+    
+    private boolean roll(double probability) {
+        if (probability <= 0) {
+            return false;
+        }
+        synchronized (mRandom) {
+            return mRandom.nextDouble() < probability;
+        }
+    }
+    
+    private static long toNanos(double millis) {
+        return (long) (millis * TimeUnit.MILLISECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,104 @@
+package com.zhongmin.aidl;
+
+import android.os.Parcel;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * IntArrays 内联与共享内存的切换阈值和往返结果
+ */
+@RunWith(RobolectricTestRunner.class)
+public class IntArraysTest {
+    
+    @Test
+    public void atThreshold_isInlineLikeWriteIntArray() {
+        int[] values = sequence(IntArrays.INLINE_MAX_INTS);
+        Parcel parcel = Parcel.obtain();
+        try {
+            IntArrays.write(parcel, values);
+            assertEquals(4 + values.length * 4, parcel.dataSize());
+            parcel.setDataPosition(0);
+            assertEquals(values.length, parcel.readInt());
+            parcel.setDataPosition(0);
+            assertArrayEquals(values, IntArrays.read(parcel));
+        } finally {
+            parcel.recycle();
+        }
+    }
+    
+    @Test
+    public void aboveThreshold_usesSharedMemory() {
+        int[] values = sequence(IntArrays.INLINE_MAX_INTS + 1);
+        Parcel parcel = Parcel.obtain();
+        try {
+            IntArrays.write(parcel, values);
+            parcel.setDataPosition(0);
+            assertEquals(IntArrays.MARKER_SHARED, parcel.readInt());
+            assertEquals(values.length, parcel.readInt());
+            parcel.setDataPosition(0);
+            assertArrayEquals(values, IntArrays.read(parcel));
+        } finally {
+            parcel.recycle();
+        }
+    }
+    
+    @Test
+    public void negotiatedLimit_movesThreshold() {
+        int[] values = sequence(1000);
+        Parcel parcel = Parcel.obtain();
+        try {
+            IntArrays.write(parcel, values, true, 999);
+            parcel.setDataPosition(0);
+            assertEquals(IntArrays.MARKER_SHARED, parcel.readInt());
+            
+            parcel.setDataSize(0);
+            IntArrays.write(parcel, values, true, 1000);
+            parcel.setDataPosition(0);
+            assertEquals(values.length, parcel.readInt());
+        } finally {
+            parcel.recycle();
+        }
+    }
+    
+    @Test
+    public void withoutFileDescriptors_alwaysInline() {
+        int[] values = sequence(IntArrays.INLINE_MAX_INTS * 4);
+        Parcel parcel = Parcel.obtain();
+        try {
+            IntArrays.write(parcel, values, false);
+            parcel.setDataPosition(0);
+            assertNotEquals(IntArrays.MARKER_SHARED, parcel.readInt());
+            parcel.setDataPosition(0);
+            assertArrayEquals(values, IntArrays.read(parcel));
+        } finally {
+            parcel.recycle();
+        }
+    }
+    
+    @Test
+    public void nullArray_roundTripsAsNull() {
+        Parcel parcel = Parcel.obtain();
+        try {
+            IntArrays.write(parcel, null);
+            parcel.setDataPosition(0);
+            assertNull(IntArrays.read(parcel));
+        } finally {
+            parcel.recycle();
+        }
+    }
+    
+    private static int[] sequence(int length) {
+        int[] values = new int[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = i * 31 - length;
+        }
+        return values;
+    }
+}
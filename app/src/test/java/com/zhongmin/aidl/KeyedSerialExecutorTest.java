@@ -0,0 +1,167 @@
+package com.zhongmin.aidl;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * KeyedSerialExecutor 顺序与并行测试
+ */
+@RunWith(RobolectricTestRunner.class)
+public class KeyedSerialExecutorTest {
+    
+    private final KeyedSerialExecutor executor = new KeyedSerialExecutor(4, "test");
+    
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+    
+    @Test
+    public void sameKey_runsInSubmissionOrder() throws InterruptedException {
+        int keys = 8;
+        int tasksPerKey = 1000;
+        List<List<Integer>> results = new ArrayList<>();
+        for (int k = 0; k < keys; k++) {
+            results.add(Collections.synchronizedList(new ArrayList<>()));
+        }
+        CountDownLatch done = new CountDownLatch(keys * tasksPerKey);
+        for (int i = 0; i < tasksPerKey; i++) {
+            for (int k = 0; k < keys; k++) {
+                int value = i;
+                List<Integer> result = results.get(k);
+                executor.execute(k, () -> {
+                    result.add(value);
+                    done.countDown();
+                });
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (List<Integer> result : results) {
+            assertEquals(tasksPerKey, result.size());
+            for (int i = 0; i < tasksPerKey; i++) {
+                assertEquals(i, (int) result.get(i));
+            }
+        }
+    }
+    
+    @Test
+    public void differentKeys_runInParallel() throws InterruptedException {
+        // 两个key互相等待，串行执行会超时
+        CountDownLatch bothStarted = new CountDownLatch(2);
+        CountDownLatch done = new CountDownLatch(2);
+        for (int k = 0; k < 2; k++) {
+            executor.execute(k, () -> {
+                bothStarted.countDown();
+                try {
+                    if (bothStarted.await(5, TimeUnit.SECONDS)) {
+                        done.countDown();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+    
+    @Test
+    public void idleKeys_areRemoved() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(100);
+        for (int k = 0; k < 100; k++) {
+            executor.execute(k, done::countDown);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (executor.activeKeys() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, executor.activeKeys());
+    }
+    
+    @Test
+    public void errorInTask_doesNotBlockLaterTasksForKey() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        executor.execute("key", () -> {
+            throw new AssertionError("boom");
+        });
+        executor.execute("key", done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+    
+    @Test
+    public void rejectedSchedule_cancelsQueuedFutureAndLaterTasksRun() throws Exception {
+        AtomicInteger rejections = new AtomicInteger(1);
+        Executor pool = runnable -> {
+            if (rejections.getAndDecrement() > 0) {
+                throw new RejectedExecutionException("shutting down");
+            }
+            new Thread(runnable).start();
+        };
+        KeyedSerialExecutor serial = new KeyedSerialExecutor(pool);
+        
+        FutureTask<Void> rejected = new FutureTask<>(() -> null);
+        try {
+            serial.execute("key", rejected);
+            fail("Expected RejectedExecutionException");
+        } catch (RejectedExecutionException expected) {
+            // 线程池拒绝时抛给提交方
+        }
+        try {
+            rejected.get(1, TimeUnit.SECONDS);
+            fail("Expected the rejected task to be cancelled");
+        } catch (CancellationException expected) {
+            // 等待它的线程不会一直阻塞
+        }
+        assertEquals(0, serial.activeKeys());
+        
+        CountDownLatch done = new CountDownLatch(1);
+        serial.execute("key", done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+    
+    @Test
+    public void rejectedReschedule_drainsRemainingTasksOnCurrentThread() throws InterruptedException {
+        // 只接受第一次调度，批次用完后的重新调度被拒绝
+        AtomicInteger accepted = new AtomicInteger();
+        Executor pool = runnable -> {
+            if (accepted.getAndIncrement() > 0) {
+                throw new RejectedExecutionException("shutting down");
+            }
+            new Thread(runnable).start();
+        };
+        KeyedSerialExecutor serial = new KeyedSerialExecutor(pool);
+        CountDownLatch submitted = new CountDownLatch(1);
+        int tasks = 100;
+        CountDownLatch done = new CountDownLatch(tasks);
+        serial.execute("key", () -> {
+            try {
+                submitted.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            done.countDown();
+        });
+        for (int i = 1; i < tasks; i++) {
+            serial.execute("key", done::countDown);
+        }
+        submitted.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+}
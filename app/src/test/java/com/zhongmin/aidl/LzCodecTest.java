@@ -0,0 +1,70 @@
+package com.zhongmin.aidl;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * LzCodec 压缩/解压往返测试
+ */
+public class LzCodecTest {
+    
+    private final int[] table = new int[LzCodec.HASH_TABLE_SIZE];
+    
+    @Test
+    public void roundTrip_randomInputs() {
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            int length = random.nextInt(4096);
+            byte[] src = new byte[length];
+            for (int j = 0; j < length; j++) {
+                switch (i % 3) {
+                    case 0: src[j] = (byte) random.nextInt(256); break;  // 不可压缩
+                    case 1: src[j] = (byte) random.nextInt(4); break;    // 小字母表
+                    default: src[j] = (byte) (j % 17); break;            // 周期重复
+                }
+            }
+            assertArrayEquals(src, roundTrip(src));
+        }
+    }
+    
+    @Test
+    public void roundTrip_longRunsAndOverlappingMatches() {
+        byte[] src = new byte[100_000];
+        Arrays.fill(src, (byte) 'a');
+        assertArrayEquals(src, roundTrip(src));
+    }
+    
+    @Test
+    public void compress_jsonShrinksBelowHalfOfUtf16() {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; json.length() < ChunkedTransfer.CHUNK_CHARS * 2; i++) {
+            json.append("{\"id\":").append(i).append(",\"name\":\"user").append(i % 100).append("\"},");
+        }
+        byte[] src = json.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] dst = new byte[LzCodec.maxCompressedLength(src.length)];
+        int length = LzCodec.compress(src, src.length, dst, table);
+        assertTrue(length < json.length());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void decompress_rejectsTruncatedInput() {
+        byte[] src = "hello hello hello hello hello hello".getBytes(StandardCharsets.UTF_8);
+        byte[] dst = new byte[LzCodec.maxCompressedLength(src.length)];
+        int length = LzCodec.compress(src, src.length, dst, table);
+        LzCodec.decompress(dst, 0, length - 3, new byte[src.length], src.length);
+    }
+    
+    private byte[] roundTrip(byte[] src) {
+        byte[] compressed = new byte[LzCodec.maxCompressedLength(src.length)];
+        int length = LzCodec.compress(src, src.length, compressed, table);
+        byte[] out = new byte[src.length];
+        LzCodec.decompress(compressed, 0, length, out, src.length);
+        return out;
+    }
+}
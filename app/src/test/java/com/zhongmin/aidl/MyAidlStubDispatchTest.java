@@ -0,0 +1,153 @@
+package com.zhongmin.aidl;
+
+import android.os.IBinder;
+import android.os.Parcel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * MyAidlStub 把调用转到分发器后，Binder线程被中断时的行为
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MyAidlStubDispatchTest {
+    
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger adds = new AtomicInteger();
+    private PriorityDispatcher dispatcher;
+    private MyAidlStub stub;
+    
+    @Before
+    public void setUp() {
+        dispatcher = new PriorityDispatcher(2, 1);
+        stub = new TestAidlService() {
+            @Override
+            public int add(int a, int b) {
+                adds.incrementAndGet();
+                entered.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return a + b;
+            }
+        };
+        stub.setDispatcher(dispatcher);
+    }
+    
+    @After
+    public void tearDown() {
+        release.countDown();
+        dispatcher.shutdown();
+    }
+    
+    @Test
+    public void interruptedWhileRunning_waitsForTaskBeforeReturning() throws Exception {
+        AtomicReference<Object> result = new AtomicReference<>();
+        AtomicBoolean interruptedAfter = new AtomicBoolean();
+        Thread binderThread = new Thread(() -> {
+            result.set(callAdd(1, 2));
+            interruptedAfter.set(Thread.currentThread().isInterrupted());
+        });
+        binderThread.start();
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        
+        binderThread.interrupt();
+        // 任务还在使用 data 和 reply，Binder线程不能先返回
+        binderThread.join(200);
+        assertTrue(binderThread.isAlive());
+        
+        release.countDown();
+        binderThread.join(5000);
+        assertFalse(binderThread.isAlive());
+        assertEquals(3, result.get());
+        assertTrue(interruptedAfter.get());
+    }
+    
+    @Test
+    public void interruptedWhileQueued_cancelsTaskWithoutRunningIt() throws Exception {
+        // 同一个调用方的调用串行执行，第二个排在第一个后面
+        Thread first = new Thread(() -> callAdd(1, 2));
+        first.start();
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        
+        AtomicReference<Object> result = new AtomicReference<>();
+        Thread second = new Thread(() -> result.set(callAdd(3, 4)));
+        second.start();
+        Thread.sleep(100);
+        second.interrupt();
+        second.join(5000);
+        assertFalse(second.isAlive());
+        assertTrue(result.get() instanceof IllegalStateException);
+        
+        release.countDown();
+        first.join(5000);
+        Thread.sleep(100);
+        assertEquals(1, adds.get());
+    }
+    
+    @Test
+    public void failureBeforeQueueing_releasesBulkPermits() {
+        MyAidlStub failing = new TestAidlService() {
+            @Override
+            protected Object dispatchKey(int code, int callingUid, int callingPid) {
+                throw new IllegalStateException("No dispatch key");
+            }
+        };
+        failing.setDispatcher(dispatcher);
+        dispatcher.setBulkLimits(1, 1);
+        int bulkAdd = IMyAidlInterface.TRANSACTION_add | IMyAidlInterface.FLAG_BULK_LANE;
+        
+        for (int i = 0; i < 3; i++) {
+            assertTrue(callAdd(failing, bulkAdd, 0, 1, 2) instanceof IllegalStateException);
+            callAdd(failing, bulkAdd, IBinder.FLAG_ONEWAY, 1, 2);
+        }
+        // 名额都已归还
+        assertTrue(dispatcher.tryAcquireBulk(false));
+        assertTrue(dispatcher.tryAcquireBulk(true));
+    }
+    
+    private Object callAdd(int a, int b) {
+        return callAdd(stub, IMyAidlInterface.TRANSACTION_add, 0, a, b);
+    }
+    
+    /**
+     * @return 结果，或者调用抛出的异常
+     */
+    private static Object callAdd(MyAidlStub stub, int code, int flags, int a, int b) {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(IMyAidlInterface.DESCRIPTOR);
+            data.writeInt(a);
+            data.writeInt(b);
+            stub.transact(code, data, reply, flags);
+            if ((flags & IBinder.FLAG_ONEWAY) != 0) {
+                return null;
+            }
+            reply.setDataPosition(0);
+            reply.readException();
+            return reply.readInt();
+        } catch (Exception e) {
+            return e;
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+    }
+}
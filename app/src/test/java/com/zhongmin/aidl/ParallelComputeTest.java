@@ -0,0 +1,104 @@
+package com.zhongmin.aidl;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * ParallelCompute 在并行阈值和拆分边界附近与顺序计算的结果一致
+ */
+public class ParallelComputeTest {
+    
+    private final ParallelCompute compute = new ParallelCompute(4);
+    
+    @After
+    public void tearDown() {
+        compute.shutdown();
+    }
+    
+    @Test
+    public void results_matchSequentialAroundSplitBoundaries() {
+        int threshold = ParallelCompute.PARALLEL_THRESHOLD;
+        int[] lengths = {0, 1, 16 * 1024 - 1, 16 * 1024 + 1, threshold - 1, threshold, threshold + 1,
+                threshold * 3 + 7, 1_000_003};
+        Random random = new Random(1);
+        for (int length : lengths) {
+            int[] a = random(random, length);
+            int[] b = random(random, length);
+            
+            int[] expectedAdd = new int[length];
+            long expectedSum = 0;
+            long expectedDot = 0;
+            for (int i = 0; i < length; i++) {
+                expectedAdd[i] = a[i] + b[i];
+                expectedSum += a[i];
+                expectedDot += (long) a[i] * b[i];
+            }
+            assertArrayEquals("add, length " + length, expectedAdd, compute.add(a, b));
+            assertEquals("sum, length " + length, expectedSum, compute.sum(a));
+            assertEquals("dot, length " + length, expectedDot, compute.dot(a, b));
+        }
+    }
+    
+    @Test
+    public void sum_doesNotOverflowInt() {
+        int[] values = new int[ParallelCompute.PARALLEL_THRESHOLD * 2];
+        Arrays.fill(values, Integer.MAX_VALUE);
+        assertEquals((long) Integer.MAX_VALUE * values.length, compute.sum(values));
+    }
+    
+    @Test
+    public void lengthMismatch_throwsIllegalArgument() {
+        int[] small = new int[3];
+        int[] large = new int[ParallelCompute.PARALLEL_THRESHOLD];
+        try {
+            compute.add(small, large);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            assertEquals("Array length mismatch: 3 vs " + large.length, expected.getMessage());
+        }
+        try {
+            compute.dot(large, small);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // 长度不一致时不会越界或截断
+        }
+    }
+    
+    @Test
+    public void nullArrays_throwIllegalArgument() {
+        int[] values = {1, 2, 3};
+        try {
+            compute.add(values, null);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            assertEquals("b == null", expected.getMessage());
+        }
+        try {
+            compute.dot(null, values);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            assertEquals("a == null", expected.getMessage());
+        }
+        try {
+            compute.sum(null);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            assertEquals("values == null", expected.getMessage());
+        }
+    }
+    
+    private static int[] random(Random random, int length) {
+        int[] values = new int[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = random.nextInt();
+        }
+        return values;
+    }
+}
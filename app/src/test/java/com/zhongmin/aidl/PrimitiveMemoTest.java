@@ -0,0 +1,117 @@
+package com.zhongmin.aidl;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PrimitiveMemo 在普通JVM上的测试
+ */
+public class PrimitiveMemoTest {
+    
+    @Test
+    public void get_computesOnceAndCountsHits() {
+        PrimitiveMemo memo = new PrimitiveMemo("add", 100);
+        AtomicInteger computed = new AtomicInteger();
+        for (int round = 0; round < 3; round++) {
+            for (int a = -5; a < 5; a++) {
+                int x = a;
+                long result = memo.get(PrimitiveMemo.key(a, 7), key -> {
+                    computed.incrementAndGet();
+                    return x + 7;
+                });
+                assertEquals(a + 7, result);
+            }
+        }
+        assertEquals(10, computed.get());
+        assertEquals(10, memo.size());
+        assertTrue(dump(memo).contains("hits 20, misses 10 (66.7% hit)"));
+    }
+    
+    @Test
+    public void key_unpacksBothArguments() {
+        int[] values = {0, 1, -1, Integer.MIN_VALUE, Integer.MAX_VALUE, 0x12345678};
+        for (int a : values) {
+            for (int b : values) {
+                long key = PrimitiveMemo.key(a, b);
+                assertEquals(a, PrimitiveMemo.first(key));
+                assertEquals(b, PrimitiveMemo.second(key));
+            }
+        }
+    }
+    
+    @Test
+    public void eviction_boundsSizeAndKeepsReferencedEntries() {
+        PrimitiveMemo memo = new PrimitiveMemo("hot", 64);
+        for (long key = 0; key < 64; key++) {
+            memo.put(key, key);
+        }
+        // 访问前16个，设置访问位
+        for (long key = 0; key < 16; key++) {
+            memo.get(key, k -> -1);
+        }
+        for (long key = 1000; key < 1040; key++) {
+            memo.put(key, key);
+        }
+        assertEquals(64, memo.size());
+        for (long key = 0; key < 16; key++) {
+            assertEquals(key, memo.get(key, k -> -1));
+        }
+    }
+    
+    @Test
+    public void randomOperations_matchHashMap() {
+        PrimitiveMemo memo = new PrimitiveMemo("random", 1_000_000);
+        HashMap<Long, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200_000; i++) {
+            long key = PrimitiveMemo.key(random.nextInt(512), random.nextInt(512) << 16);
+            long value = random.nextLong();
+            memo.put(key, value);
+            expected.put(key, value);
+            if (i % 50_000 == 0) {
+                // 缩小时淘汰的条目从参照中删除
+                memo.shrink();
+                expected.entrySet().removeIf(e -> memo.get(e.getKey(), k -> Long.MIN_VALUE) == Long.MIN_VALUE);
+            }
+        }
+        for (HashMap.Entry<Long, Long> entry : expected.entrySet()) {
+            assertEquals((long) entry.getValue(), memo.get(entry.getKey(), k -> Long.MIN_VALUE));
+        }
+    }
+    
+    @Test
+    public void shrinkAndClear_releaseEntries() {
+        PrimitiveMemo memo = new PrimitiveMemo("trim", 1000);
+        for (long key = 0; key < 1000; key++) {
+            memo.put(key, key * 2);
+        }
+        memo.shrink();
+        assertEquals(500, memo.size());
+        int present = 0;
+        for (long key = 0; key < 1000; key++) {
+            long value = memo.get(key, k -> -1);
+            if (value != -1) {
+                assertEquals(key * 2, value);
+                present++;
+            }
+        }
+        assertTrue(present >= 500);
+        memo.clear();
+        assertEquals(0, memo.size());
+        assertTrue(dump(memo).contains("capacity 16"));
+    }
+    
+    private static String dump(PrimitiveMemo memo) {
+        StringWriter out = new StringWriter();
+        memo.dump(new PrintWriter(out, true));
+        return out.toString();
+    }
+}
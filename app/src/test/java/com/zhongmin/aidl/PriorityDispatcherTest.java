@@ -0,0 +1,145 @@
+package com.zhongmin.aidl;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PriorityDispatcher 的保留线程、调度比例和批量上限
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PriorityDispatcherTest {
+    
+    private static final int INTERACTIVE = IMyAidlInterface.LANE_INTERACTIVE;
+    private static final int BULK = IMyAidlInterface.LANE_BULK;
+    
+    private PriorityDispatcher dispatcher;
+    private final CountDownLatch release = new CountDownLatch(1);
+    
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+        }
+    }
+    
+    @Test
+    public void reservedWorker_runsInteractiveWhileBulkOccupiesSharedWorkers() throws Exception {
+        dispatcher = new PriorityDispatcher(2, 1);
+        CountDownLatch bulkStarted = new CountDownLatch(1);
+        dispatcher.lane(BULK).execute("bulk-1", () -> {
+            bulkStarted.countDown();
+            await(release);
+        });
+        assertTrue(bulkStarted.await(5, TimeUnit.SECONDS));
+        
+        // 共享线程被批量调用占满，第二个批量调用不能占用保留线程
+        CountDownLatch secondBulk = new CountDownLatch(1);
+        dispatcher.lane(BULK).execute("bulk-2", secondBulk::countDown);
+        
+        CountDownLatch interactive = new CountDownLatch(1);
+        AtomicReference<String> thread = new AtomicReference<>();
+        dispatcher.lane(INTERACTIVE).execute("ui", () -> {
+            thread.set(Thread.currentThread().getName());
+            interactive.countDown();
+        });
+        assertTrue(interactive.await(5, TimeUnit.SECONDS));
+        assertTrue(thread.get().startsWith("dispatch-interactive-"));
+        assertFalse(secondBulk.await(200, TimeUnit.MILLISECONDS));
+        
+        release.countDown();
+        assertTrue(secondBulk.await(5, TimeUnit.SECONDS));
+    }
+    
+    @Test
+    public void sharedWorker_runsOneBulkAfterEveryInteractiveWeight() throws Exception {
+        // 只有一个共享线程，执行顺序完全由调度比例决定
+        dispatcher = new PriorityDispatcher(1, 0);
+        CountDownLatch gateStarted = new CountDownLatch(1);
+        dispatcher.lane(INTERACTIVE).execute("gate", () -> {
+            gateStarted.countDown();
+            await(release);
+        });
+        assertTrue(gateStarted.await(5, TimeUnit.SECONDS));
+        
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        int interactiveCount = 2 * PriorityDispatcher.INTERACTIVE_WEIGHT + 2;
+        CountDownLatch done = new CountDownLatch(interactiveCount + 2);
+        for (int i = 0; i < interactiveCount; i++) {
+            String name = "i" + i;
+            dispatcher.lane(INTERACTIVE).execute(name, () -> {
+                order.add(name);
+                done.countDown();
+            });
+        }
+        for (int i = 0; i < 2; i++) {
+            String name = "b" + i;
+            dispatcher.lane(BULK).execute(name, () -> {
+                order.add(name);
+                done.countDown();
+            });
+        }
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        
+        List<String> expected = new ArrayList<>();
+        int next = 0;
+        for (int bulk = 0; bulk < 2; bulk++) {
+            for (int i = 0; i < PriorityDispatcher.INTERACTIVE_WEIGHT; i++) {
+                expected.add("i" + next++);
+            }
+            expected.add("b" + bulk);
+        }
+        while (next < interactiveCount) {
+            expected.add("i" + next++);
+        }
+        assertEquals(expected, order);
+    }
+    
+    @Test
+    public void bulkLimits_rejectBeyondCapsAndRecoverOnRelease() {
+        dispatcher = new PriorityDispatcher(2, 1);
+        dispatcher.setBulkLimits(2, 3);
+        
+        assertTrue(dispatcher.tryAcquireBulk(false));
+        assertTrue(dispatcher.tryAcquireBulk(false));
+        assertFalse(dispatcher.tryAcquireBulk(false));
+        // 同步和oneway的名额分开计算
+        for (int i = 0; i < 3; i++) {
+            assertTrue(dispatcher.tryAcquireBulk(true));
+        }
+        assertFalse(dispatcher.tryAcquireBulk(true));
+        
+        dispatcher.releaseBulk(false);
+        dispatcher.releaseBulk(true);
+        assertTrue(dispatcher.tryAcquireBulk(false));
+        assertTrue(dispatcher.tryAcquireBulk(true));
+        
+        StringWriter dump = new StringWriter();
+        dispatcher.dump(new PrintWriter(dump));
+        assertTrue(dump.toString(), dump.toString().contains("waiting 2/2, oneway queued 3/3, rejected 2"));
+    }
+    
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
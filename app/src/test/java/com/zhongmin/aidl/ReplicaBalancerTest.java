@@ -0,0 +1,341 @@
+package com.zhongmin.aidl;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.DeadObjectException;
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * ReplicaBalancer 的副本选择、按需绑定和死亡处理
+ *
+ * 绑定由替身 Context 记录，测试直接回调 ServiceConnection；每个副本是包装了 TestAidlService 的
+ * FaultInjectingBinder，kill() 模拟副本进程死亡并发出死亡通知。
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ReplicaBalancerTest {
+    
+    private static final int REPLICAS = RemoteService.REPLICAS.length;
+    
+    private final BindingContext context = new BindingContext();
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+    private final FaultInjectingBinder[] binders = new FaultInjectingBinder[REPLICAS];
+    private ReplicaBalancer balancer;
+    
+    @Before
+    public void setUp() {
+        balancer = new ReplicaBalancer(context, IMyAidlInterface.LANE_BULK, RemoteService.REPLICAS);
+        balancer.bindAll();
+        assertEquals(REPLICAS, context.connections.size());
+        for (int i = 0; i < REPLICAS; i++) {
+            connect(i);
+        }
+        assertEquals(REPLICAS, balancer.availableReplicas());
+    }
+    
+    @After
+    public void tearDown() {
+        callers.shutdownNow();
+        balancer.unbind();
+        for (FaultInjectingBinder binder : binders) {
+            binder.shutdown();
+        }
+    }
+    
+    @Test
+    public void execute_callsThroughSelectedReplica() throws RemoteException {
+        assertEquals(3, (int) balancer.execute(service -> service.add(1, 2)));
+        assertEquals(42, (int) balancer.execute("key", IMyAidlInterface::getPid));
+    }
+    
+    @Test
+    public void bind_startsWithOneReplicaAndGrowsUnderLoad() throws Exception {
+        BindingContext lazyContext = new BindingContext();
+        ReplicaBalancer lazy = new ReplicaBalancer(lazyContext, IMyAidlInterface.LANE_BULK, RemoteService.REPLICAS);
+        lazy.bind();
+        assertEquals(1, lazyContext.connections.size());
+        connect(lazyContext, 0);
+        // 串行调用不会绑定更多副本
+        for (int i = 0; i < 20; i++) {
+            assertSame(binders[0], lazy.execute(IMyAidlInterface::asBinder));
+        }
+        assertEquals(1, lazy.boundReplicas());
+        
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<IBinder>> calls = new ArrayList<>();
+        for (int i = 0; i < ReplicaBalancer.GROW_OUTSTANDING; i++) {
+            Blocking blocking = new Blocking(release);
+            calls.add(callers.submit(() -> lazy.execute(blocking)));
+            assertSame(binders[0], blocking.awaitStarted());
+        }
+        // 唯一的副本已经很忙，绑定下一个；新副本连接之前调用仍然在原来的副本上执行
+        assertSame(binders[0], lazy.execute(IMyAidlInterface::asBinder));
+        assertEquals(2, lazy.boundReplicas());
+        assertEquals(2, lazyContext.connections.size());
+        // 新绑定的副本还没有连接，不再继续绑定
+        assertSame(binders[0], lazy.execute(IMyAidlInterface::asBinder));
+        assertEquals(2, lazy.boundReplicas());
+        
+        connect(lazyContext, 1);
+        assertSame(binders[1], lazy.execute(IMyAidlInterface::asBinder));
+        StringWriter dump = new StringWriter();
+        lazy.dump(new PrintWriter(dump, true));
+        assertTrue(dump.toString(), dump.toString().contains("$Replica2: unbound"));
+        
+        release.countDown();
+        for (Future<IBinder> call : calls) {
+            call.get(5, TimeUnit.SECONDS);
+        }
+        lazy.unbind();
+        assertEquals(2, lazyContext.unbinds);
+        assertEquals(0, lazy.boundReplicas());
+    }
+    
+    @Test
+    public void leastOutstanding_spreadsConcurrentCallsAndRefillsIdleReplica() throws Exception {
+        List<CountDownLatch> releases = new ArrayList<>();
+        List<Future<IBinder>> calls = new ArrayList<>();
+        List<IBinder> busy = new ArrayList<>();
+        for (int i = 0; i < REPLICAS; i++) {
+            CountDownLatch release = new CountDownLatch(1);
+            Blocking blocking = new Blocking(release);
+            releases.add(release);
+            calls.add(callers.submit(() -> balancer.execute(blocking)));
+            busy.add(blocking.awaitStarted());
+        }
+        // 每个副本上都有一个未完成的调用
+        for (int i = 0; i < REPLICAS; i++) {
+            for (int j = i + 1; j < REPLICAS; j++) {
+                assertNotSame(busy.get(i), busy.get(j));
+            }
+        }
+        
+        // 只有一个调用完成，之后的调用都落在它的副本上
+        releases.get(1).countDown();
+        assertSame(busy.get(1), calls.get(1).get(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 20; i++) {
+            assertSame(busy.get(1), balancer.execute(IMyAidlInterface::asBinder));
+        }
+        
+        for (CountDownLatch release : releases) {
+            release.countDown();
+        }
+        for (Future<IBinder> call : calls) {
+            call.get(5, TimeUnit.SECONDS);
+        }
+    }
+    
+    @Test
+    public void sameKey_staysOnOneReplicaAndOnlyDeadReplicaKeysMove() throws RemoteException {
+        int keys = 300;
+        IBinder[] before = new IBinder[keys];
+        int[] perReplica = new int[REPLICAS];
+        for (int k = 0; k < keys; k++) {
+            before[k] = balancer.execute("user-" + k, IMyAidlInterface::asBinder);
+            assertSame(before[k], balancer.execute("user-" + k, IMyAidlInterface::asBinder));
+            perReplica[indexOf(before[k])]++;
+        }
+        for (int count : perReplica) {
+            assertTrue("Keys not spread over replicas", count > keys / REPLICAS / 2);
+        }
+        
+        binders[1].kill();
+        assertEquals(REPLICAS - 1, balancer.availableReplicas());
+        int moved = 0;
+        for (int k = 0; k < keys; k++) {
+            IBinder after = balancer.execute("user-" + k, IMyAidlInterface::asBinder);
+            if (before[k] == binders[1]) {
+                assertNotSame(binders[1], after);
+                moved++;
+            } else {
+                assertSame("Key on a live replica moved", before[k], after);
+            }
+        }
+        assertEquals(perReplica[1], moved);
+    }
+    
+    @Test
+    public void deadObject_marksReplicaDownAndCallsFailOver() throws RemoteException {
+        IBinder[] chosen = new IBinder[1];
+        try {
+            balancer.execute("key", service -> {
+                chosen[0] = service.asBinder();
+                throw new DeadObjectException();
+            });
+            fail("Expected DeadObjectException");
+        } catch (DeadObjectException expected) {
+            // 调用不一定是幂等的，不自动重试
+        }
+        IBinder dead = chosen[0];
+        assertEquals(REPLICAS - 1, balancer.availableReplicas());
+        for (int i = 0; i < 20; i++) {
+            assertNotSame(dead, balancer.execute(IMyAidlInterface::asBinder));
+            assertNotSame(dead, balancer.execute("key", IMyAidlInterface::asBinder));
+        }
+        
+        // 系统重启副本后重新连接
+        int index = indexOf(dead);
+        connect(index);
+        assertEquals(REPLICAS, balancer.availableReplicas());
+        assertSame(binders[index], balancer.execute("key", IMyAidlInterface::asBinder));
+    }
+    
+    @Test
+    public void deathNotificationAndDisconnect_markReplicasDown() throws RemoteException {
+        binders[0].kill();
+        assertEquals(REPLICAS - 1, balancer.availableReplicas());
+        // 死亡通知之后的断开回调不会重复计数
+        context.connections.get(0).onServiceDisconnected(component(0));
+        for (int i = 1; i < REPLICAS; i++) {
+            context.connections.get(i).onServiceDisconnected(component(i));
+        }
+        assertEquals(0, balancer.availableReplicas());
+        StringWriter dump = new StringWriter();
+        balancer.dump(new PrintWriter(dump, true));
+        assertTrue(dump.toString(), dump.toString().contains(".RemoteService: down, outstanding 0, deaths 1\n"));
+        try {
+            balancer.execute(IMyAidlInterface::getPid);
+            fail("Expected RemoteException");
+        } catch (RemoteException expected) {
+            assertEquals("No replica available", expected.getMessage());
+        }
+        
+        connect(2);
+        assertEquals(1, balancer.availableReplicas());
+        assertSame(binders[2], balancer.execute("any", IMyAidlInterface::asBinder));
+    }
+    
+    @Test
+    public void bindingDied_rebinds() {
+        ServiceConnection connection = context.connections.get(0);
+        connection.onBindingDied(component(0));
+        assertEquals(REPLICAS - 1, balancer.availableReplicas());
+        assertEquals(1, context.unbinds);
+        // 重新绑定的是同一个 ServiceConnection
+        assertEquals(REPLICAS + 1, context.binds);
+        assertEquals(REPLICAS, context.connections.size());
+    }
+    
+    /**
+     * 模拟副本进程（重新）启动：新的服务对象、新的Binder
+     */
+    private void connect(int index) {
+        connect(context, index);
+    }
+    
+    private void connect(BindingContext bindings, int index) {
+        if (binders[index] != null) {
+            binders[index].shutdown();
+        }
+        binders[index] = new FaultInjectingBinder(new TestAidlService(), new FaultPlan(index));
+        ServiceRegistry registry = new ServiceRegistry();
+        IBinder binder = binders[index];
+        registry.register(IMyAidlInterface.DESCRIPTOR, () -> binder);
+        bindings.connections.get(index).onServiceConnected(component(index), registry);
+    }
+    
+    private ComponentName component(int index) {
+        return new ComponentName(context, RemoteService.REPLICAS[index]);
+    }
+    
+    private int indexOf(IBinder binder) {
+        for (int i = 0; i < REPLICAS; i++) {
+            if (binders[i] == binder) {
+                return i;
+            }
+        }
+        throw new AssertionError("Unknown binder " + binder);
+    }
+    
+    /**
+     * 在副本上阻塞到 release，返回所在副本的Binder
+     */
+    private static final class Blocking implements ReplicaBalancer.Call<IBinder> {
+        private final CountDownLatch mRelease;
+        private final CountDownLatch mStarted = new CountDownLatch(1);
+        private volatile IBinder mBinder;
+        
+        Blocking(CountDownLatch release) {
+            mRelease = release;
+        }
+        
+        @Override
+        public IBinder call(IMyAidlInterface service) {
+            mBinder = service.asBinder();
+            mStarted.countDown();
+            try {
+                mRelease.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return mBinder;
+        }
+        
+        IBinder awaitStarted() throws InterruptedException {
+            assertTrue(mStarted.await(5, TimeUnit.SECONDS));
+            return mBinder;
+        }
+    }
+    
+    /**
+     * 记录绑定请求，不真正启动服务
+     */
+    private static final class BindingContext extends ContextWrapper {
+        final List<ServiceConnection> connections = new ArrayList<>();
+        int binds;
+        int unbinds;
+        
+        BindingContext() {
+            super(null);
+        }
+        
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+        
+        @Override
+        public String getPackageName() {
+            return "com.zhongmin.aidl";
+        }
+        
+        @Override
+        public boolean bindService(Intent service, ServiceConnection connection, int flags) {
+            binds++;
+            if (!connections.contains(connection)) {
+                connections.add(connection);
+            }
+            return true;
+        }
+        
+        @Override
+        public void unbindService(ServiceConnection connection) {
+            unbinds++;
+        }
+    }
+}
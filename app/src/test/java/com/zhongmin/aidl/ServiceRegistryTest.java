@@ -0,0 +1,158 @@
+package com.zhongmin.aidl;
+
+import android.os.Binder;
+import android.os.IBinder;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ServiceRegistry 的延迟创建和 ServiceRegistryProxy 的缓存与批量获取
+ *
+ * 跨进程的路径用 FaultInjectingBinder 包装注册表（不注入故障），调用经过 ServiceRegistryProxy
+ * 的序列化，dump() 中的调用数就是跨进程调用的次数。
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ServiceRegistryTest {
+    
+    private static final String A = "test.A";
+    private static final String B = "test.B";
+    private static final String C = "test.C";
+    
+    @Test
+    public void factory_runsOnlyOnFirstGet() throws Exception {
+        ServiceRegistry registry = new ServiceRegistry();
+        CountingFactory factory = new CountingFactory();
+        registry.register(A, factory);
+        assertArrayEquals(new String[] {A}, registry.listServices());
+        assertEquals(0, factory.created.get());
+        
+        IBinder first = registry.getService(A);
+        assertSame(first, registry.getService(A));
+        assertEquals(1, factory.created.get());
+        assertNull(registry.getService("unknown"));
+        assertNull(registry.getService(null));
+    }
+    
+    @Test
+    public void concurrentFirstGets_createOnce() throws Exception {
+        ServiceRegistry registry = new ServiceRegistry();
+        CountingFactory factory = new CountingFactory();
+        registry.register(A, factory);
+        int threads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<IBinder>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(pool.submit(() -> {
+                    start.await();
+                    return registry.getService(A);
+                }));
+            }
+            start.countDown();
+            IBinder expected = results.get(0).get(5, TimeUnit.SECONDS);
+            for (Future<IBinder> result : results) {
+                assertSame(expected, result.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, factory.created.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void proxy_batchesMissingNamesIntoOneCallAndCaches() throws Exception {
+        ServiceRegistry registry = new ServiceRegistry();
+        CountingFactory a = new CountingFactory();
+        CountingFactory b = new CountingFactory();
+        CountingFactory c = new CountingFactory();
+        registry.register(A, a);
+        registry.register(B, b);
+        registry.register(C, c);
+        FaultInjectingBinder remote = new FaultInjectingBinder(registry, new FaultPlan(1));
+        try {
+            IServiceRegistry proxy = ServiceRegistryStub.asInterface(remote);
+            assertTrue(proxy instanceof ServiceRegistryProxy);
+            
+            IBinder[] services = proxy.getServices(new String[] {A, "unknown", B});
+            assertEquals(1, calls(remote));
+            assertSame(registry.getService(A), services[0]);
+            assertNull(services[1]);
+            assertSame(registry.getService(B), services[2]);
+            assertEquals(0, c.created.get());
+            
+            // 已经获取的不再跨进程，只查询缺少的名字
+            assertSame(services[0], proxy.getService(A));
+            proxy.getServices(new String[] {B, A});
+            assertEquals(1, calls(remote));
+            IBinder[] more = proxy.getServices(new String[] {A, C});
+            assertEquals(2, calls(remote));
+            assertSame(services[0], more[0]);
+            assertSame(registry.getService(C), more[1]);
+            assertEquals(1, a.created.get());
+            assertEquals(1, c.created.get());
+            
+            // 不存在的名字不缓存，每次都重新查询
+            assertNull(proxy.getService("unknown"));
+            assertEquals(3, calls(remote));
+        } finally {
+            remote.shutdown();
+        }
+    }
+    
+    @Test
+    public void asInterface_returnsSameProxyPerBinder() {
+        ServiceRegistry registry = new ServiceRegistry();
+        assertSame(registry, ServiceRegistryStub.asInterface(registry));
+        
+        FaultInjectingBinder remote = new FaultInjectingBinder(registry, new FaultPlan(1));
+        FaultInjectingBinder other = new FaultInjectingBinder(registry, new FaultPlan(2));
+        try {
+            IServiceRegistry proxy = ServiceRegistryStub.asInterface(remote);
+            assertSame(proxy, ServiceRegistryStub.asInterface(remote));
+            assertNotSame(proxy, ServiceRegistryStub.asInterface(other));
+        } finally {
+            remote.shutdown();
+            other.shutdown();
+        }
+    }
+    
+    private static long calls(FaultInjectingBinder binder) {
+        StringWriter dump = new StringWriter();
+        binder.dump(new PrintWriter(dump, true));
+        String text = dump.toString();
+        int start = text.indexOf("calls: ") + "calls: ".length();
+        return Long.parseLong(text.substring(start, text.indexOf(',', start)));
+    }
+    
+    private static final class CountingFactory implements Supplier<IBinder> {
+        final AtomicInteger created = new AtomicInteger();
+        
+        @Override
+        public IBinder get() {
+            created.incrementAndGet();
+            return new Binder();
+        }
+    }
+}
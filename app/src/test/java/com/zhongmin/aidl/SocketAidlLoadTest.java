@@ -0,0 +1,159 @@
+package com.zhongmin.aidl;
+
+import android.os.DeadObjectException;
+import android.os.RemoteException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 通过Unix域socket调用 IMyAidlInterface 的压力测试
+ *
+ * 客户端是 MyAidlStub.asInterface(new SocketBinder(...)) 得到的 MyAidlProxy，服务端是 BinderSocketHandler
+ * 包装的 MyAidlStub，中间是 SocketClient/SocketServer，Parcel 的序列化和事务码与真实Binder调用完全相同。
+ * 多个线程在同一个连接上流水线调用，覆盖小调用、内联的大数组和分块传输的大字符串。
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SocketAidlLoadTest {
+    
+    private Path directory;
+    private ExecutorService executor;
+    private TestAidlService service;
+    private SocketServer server;
+    private SocketBinder binder;
+    private IMyAidlInterface proxy;
+    
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("aidl-socket");
+        SocketAddress address = UnixSockets.address(directory.resolve("service.sock"));
+        ServerSocketChannel channel = UnixSockets.bind(address);
+        executor = Executors.newFixedThreadPool(8);
+        service = new TestAidlService();
+        server = new SocketServer(channel, new BinderSocketHandler(service), executor);
+        server.start();
+        binder = new SocketBinder(SocketClient.connect(address));
+        proxy = MyAidlStub.asInterface(binder);
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        binder.close();
+        server.close();
+        executor.shutdownNow();
+        Files.deleteIfExists(directory.resolve("service.sock"));
+        Files.deleteIfExists(directory);
+    }
+    
+    @Test
+    public void asInterface_returnsProxyOverSocket() throws Exception {
+        assertTrue(proxy instanceof MyAidlProxy);
+        assertEquals(42, proxy.getPid());
+        assertEquals(TestAidlService.NAME, proxy.getServiceName());
+    }
+    
+    @Test
+    public void pipelinedCallsFromManyThreads_allReturnCorrectResults() throws Exception {
+        int threads = 16;
+        int callsPerThread = 500;
+        int[] large = new int[64 * 1024];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = i;
+        }
+        long largeSum = (long) large.length * (large.length - 1) / 2;
+        
+        ExecutorService callers = Executors.newFixedThreadPool(threads);
+        AtomicInteger calls = new AtomicInteger();
+        List<Future<?>> results = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            for (int t = 0; t < threads; t++) {
+                int base = t * callsPerThread;
+                results.add(callers.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < callsPerThread; i++) {
+                        int n = base + i;
+                        switch (i % 4) {
+                            case 0:
+                                assertEquals(2 * n + 1, proxy.add(n, n + 1));
+                                break;
+                            case 1:
+                                assertArrayEquals(new int[]{n, 2 * n}, proxy.addArrays(new int[]{n, n}, new int[]{0, n}));
+                                break;
+                            case 2:
+                                // 超过共享内存阈值，socket上内联传输
+                                assertEquals(largeSum, proxy.sum(large));
+                                break;
+                            default:
+                                proxy.basicTypes(n, n, true, 1f, 1d, "call-" + n);
+                                break;
+                        }
+                        calls.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                result.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+        assertEquals(threads * callsPerThread, calls.get());
+        assertEquals(threads * callsPerThread / 4, service.basicStrings.size());
+        assertEquals(1, server.connections());
+    }
+    
+    @Test
+    public void largeString_sentInChunksOverSocket() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 5 * ChunkedTransfer.CHUNK_CHARS) {
+            builder.append("{\"key\":").append(builder.length()).append('}');
+        }
+        String value = builder.toString();
+        proxy.basicTypes(1, 2L, false, 3f, 4d, value);
+        assertEquals(value, service.basicStrings.get(0));
+    }
+    
+    @Test
+    public void serverClose_failsCallsWithDeadObjectAndNotifiesDeath() throws Exception {
+        CountDownLatch died = new CountDownLatch(1);
+        binder.linkToDeath(died::countDown, 0);
+        assertEquals(3, proxy.add(1, 2));
+        server.close();
+        assertTrue(died.await(5, TimeUnit.SECONDS));
+        try {
+            proxy.add(1, 2);
+            fail("Expected DeadObjectException");
+        } catch (DeadObjectException expected) {
+            // 连接已经断开
+        } catch (RemoteException e) {
+            fail("Expected DeadObjectException but got " + e);
+        }
+        assertFalse(binder.isBinderAlive());
+    }
+}
@@ -0,0 +1,231 @@
+package com.zhongmin.aidl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * SocketClient/SocketServer 在普通JVM上的多路复用和压力测试
+ *
+ * 使用回环TCP地址，只测帧的收发；Unix域socket上的完整AIDL调用见 SocketAidlLoadTest。
+ */
+public class SocketTransportTest {
+    
+    private static final int CODE_ADD = 1;
+    private static final int CODE_ECHO = 2;
+    private static final int CODE_RECORD = 3;
+    private static final int CODE_SLOW = 4;
+    
+    private final List<Integer> recorded = Collections.synchronizedList(new ArrayList<>());
+    private ExecutorService executor;
+    private SocketServer server;
+    private SocketClient client;
+    private SocketAddress address;
+    
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newFixedThreadPool(4);
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server = new SocketServer(channel, this::handle, executor);
+        server.start();
+        address = channel.getLocalAddress();
+        client = SocketClient.connect(address);
+    }
+    
+    @After
+    public void tearDown() {
+        client.close();
+        server.close();
+        executor.shutdownNow();
+    }
+    
+    @Test
+    public void pipelinedCallsFromManyThreads_repliesMatchRequests() throws Exception {
+        int threads = 8;
+        int callsPerThread = 2000;
+        AtomicInteger failures = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int base = t * callsPerThread;
+            new Thread(() -> {
+                try {
+                    // 先把所有请求发出去，再等待回复
+                    List<CompletableFuture<SocketClient.Reply>> futures = new ArrayList<>();
+                    for (int i = 0; i < callsPerThread; i++) {
+                        futures.add(client.callAsync(CODE_ADD, ints(base + i, i), 0));
+                    }
+                    for (int i = 0; i < callsPerThread; i++) {
+                        SocketClient.Reply reply = futures.get(i).get(10, TimeUnit.SECONDS);
+                        if (!reply.isOk() || ByteBuffer.wrap(reply.data).getInt() != base + 2 * i) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(0, failures.get());
+    }
+    
+    @Test
+    public void slowCall_doesNotBlockLaterCallsOnSameConnection() throws Exception {
+        CompletableFuture<SocketClient.Reply> slow = client.callAsync(CODE_SLOW, new byte[0], 0);
+        SocketClient.Reply fast = client.call(CODE_ADD, ints(1, 2), 0);
+        assertEquals(3, ByteBuffer.wrap(fast.data).getInt());
+        assertFalse(slow.isDone());
+        assertTrue(slow.get(5, TimeUnit.SECONDS).isOk());
+    }
+    
+    @Test
+    public void largePayload_roundTrips() throws Exception {
+        byte[] payload = new byte[3 * 1024 * 1024 + 17];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 31);
+        }
+        assertArrayEquals(payload, client.call(CODE_ECHO, payload, 0).data);
+    }
+    
+    @Test
+    public void onewayCalls_runInOrder() throws Exception {
+        for (int i = 0; i < 500; i++) {
+            client.callAsync(CODE_RECORD, ints(i), SocketFrames.FLAG_ONEWAY);
+        }
+        // 同步调用返回时不保证oneway已经执行完，等待一下
+        long deadline = System.currentTimeMillis() + 5000;
+        while (recorded.size() < 500 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(500, recorded.size());
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, (int) recorded.get(i));
+        }
+    }
+    
+    @Test
+    public void unknownCode_reportsUnknownTransaction() throws Exception {
+        assertTrue(client.call(99, new byte[0], 0).isUnknownTransaction());
+    }
+    
+    @Test
+    public void serverClose_failsPendingCalls() throws Exception {
+        CompletableFuture<SocketClient.Reply> slow = client.callAsync(CODE_SLOW, new byte[0], 0);
+        server.close();
+        try {
+            slow.get(5, TimeUnit.SECONDS);
+            fail("Expected the pending call to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertFalse(client.isOpen());
+    }
+    
+    @Test
+    public void decoder_reassemblesFramesSplitAcrossReads() throws Exception {
+        byte[] first = new byte[1000];
+        for (int i = 0; i < first.length; i++) {
+            first[i] = (byte) i;
+        }
+        ByteBuffer stream = ByteBuffer.allocate(200 + first.length);
+        for (ByteBuffer part : SocketFrames.encodeRequest(7, CODE_ECHO, 0, first)) {
+            stream.put(part);
+        }
+        for (ByteBuffer part : SocketFrames.encodeRequest(8, CODE_ADD, SocketFrames.FLAG_ONEWAY, new byte[0])) {
+            stream.put(part);
+        }
+        stream.flip();
+        
+        // 每次只送进一个字节，模拟非阻塞读每次只读到一点
+        SocketFrames.Decoder decoder = new SocketFrames.Decoder(true);
+        List<SocketFrames.Frame> frames = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        while (stream.hasRemaining()) {
+            buffer.put(stream.get());
+            buffer.flip();
+            decoder.decode(buffer, frames::add);
+            buffer.compact();
+        }
+        assertEquals(0, buffer.position());
+        assertEquals(2, frames.size());
+        assertEquals(7, frames.get(0).id);
+        assertEquals(CODE_ECHO, frames.get(0).arg0);
+        assertArrayEquals(first, frames.get(0).payload);
+        assertEquals(8, frames.get(1).id);
+        assertEquals(SocketFrames.FLAG_ONEWAY, frames.get(1).arg1);
+        assertEquals(0, frames.get(1).payload.length);
+    }
+    
+    @Test
+    public void manyConnections_servedWithoutThreadPerConnection() throws Exception {
+        int before = Thread.activeCount();
+        List<SocketClient> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < 50; i++) {
+                clients.add(SocketClient.connect(address));
+            }
+            for (int i = 0; i < clients.size(); i++) {
+                assertEquals(2 * i, ByteBuffer.wrap(clients.get(i).call(CODE_ADD, ints(i, i), 0).data).getInt());
+            }
+            assertEquals(51, server.connections());
+            // 请求执行器最多4个线程，其余都不应随连接数增加
+            assertTrue(Thread.activeCount() - before <= 4);
+        } finally {
+            for (SocketClient other : clients) {
+                other.close();
+            }
+        }
+    }
+    
+    private byte[] handle(int code, byte[] data, int flags) throws InterruptedException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        switch (code) {
+            case CODE_ADD:
+                return ints(buffer.getInt() + buffer.getInt());
+            case CODE_ECHO:
+                return data;
+            case CODE_RECORD:
+                recorded.add(buffer.getInt());
+                return new byte[0];
+            case CODE_SLOW:
+                Thread.sleep(500);
+                return new byte[0];
+            default:
+                return null;
+        }
+    }
+    
+    private static byte[] ints(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+        for (int value : values) {
+            buffer.putInt(value);
+        }
+        return buffer.array();
+    }
+}
@@ -0,0 +1,142 @@
+package com.zhongmin.aidl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * TelemetryJournal 在普通JVM上的测试
+ */
+public class TelemetryJournalTest {
+    
+    private static final int SEGMENT_SIZE = 128 * 1024;
+    
+    private File dir;
+    
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("journal").toFile();
+    }
+    
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+    
+    @Test
+    public void concurrentAppendAndSync_readsBackInSeqOrderAcrossSegments() throws Exception {
+        TelemetryJournal journal = new TelemetryJournal(dir, SEGMENT_SIZE, 100);
+        int threads = 8;
+        int perThread = 1000;
+        AtomicInteger failures = new AtomicInteger();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    for (int i = 0; i < perThread; i++) {
+                        long seq = journal.append(thread, i, i % 2 == 0, i / 2f, i * 0.25, "value-" + thread + "-" + i);
+                        journal.sync(seq);
+                    }
+                } catch (IOException e) {
+                    failures.incrementAndGet();
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(0, failures.get());
+        // 多个段
+        assertTrue(dir.list().length > 2);
+        
+        TelemetryJournal.Cursor cursor = journal.read(1);
+        int[] next = new int[threads];
+        for (long seq = 1; seq <= threads * perThread; seq++) {
+            TelemetryJournal.Entry entry = cursor.next();
+            assertEquals(seq, entry.seq);
+            int i = next[entry.anInt]++;
+            assertEquals(i, entry.aLong);
+            assertEquals(i % 2 == 0, entry.aBoolean);
+            assertEquals(i / 2f, entry.aFloat, 0);
+            assertEquals(i * 0.25, entry.aDouble, 0);
+            assertEquals("value-" + entry.anInt + "-" + i, entry.aString);
+        }
+        assertNull(cursor.next());
+        
+        // 读到末尾后继续读取新的记录
+        long seq = journal.append(1, 2, true, 3, 4, null);
+        assertEquals(seq, cursor.next().seq);
+        journal.close();
+    }
+    
+    @Test
+    public void reopen_continuesAfterLastValidRecord() throws Exception {
+        TelemetryJournal journal = new TelemetryJournal(dir, SEGMENT_SIZE, 10);
+        for (int i = 0; i < 10; i++) {
+            journal.append(i, 0, false, 0, 0, "x");
+        }
+        journal.close();
+        
+        // 模拟崩溃时写了一半的第10条记录：破坏它的CRC
+        File segment = dir.listFiles()[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            long offset = 16 + 9L * (56 + 1);
+            raf.seek(offset + 4);
+            raf.writeInt(0x12345678);
+        }
+        
+        journal = new TelemetryJournal(dir, SEGMENT_SIZE, 10);
+        assertEquals(10, journal.append(99, 0, false, 0, 0, "y"));
+        TelemetryJournal.Cursor cursor = journal.read(9);
+        assertEquals(8, cursor.next().anInt);
+        assertEquals(99, cursor.next().anInt);
+        assertNull(cursor.next());
+        journal.close();
+    }
+    
+    @Test
+    public void retentionAndCompact_deleteOldSegments() throws Exception {
+        TelemetryJournal journal = new TelemetryJournal(dir, SEGMENT_SIZE, 3);
+        String value = new String(new char[1000]).replace('\0', 'v');
+        for (int i = 0; i < 1000; i++) {
+            journal.append(i, 0, false, 0, 0, value);
+        }
+        assertEquals(3, dir.list().length);
+        
+        // 从已经删除的序号开始读，跳到最旧的记录
+        TelemetryJournal.Entry oldest = journal.read(1).next();
+        assertTrue(oldest.seq > 1);
+        
+        journal.compact(Long.MAX_VALUE);
+        assertEquals(1, dir.list().length);
+        TelemetryJournal.Cursor cursor = journal.read(1);
+        TelemetryJournal.Entry first = cursor.next();
+        long count = 1;
+        while (cursor.next() != null) {
+            count++;
+        }
+        assertEquals(1000, first.seq + count - 1);
+        journal.close();
+    }
+}
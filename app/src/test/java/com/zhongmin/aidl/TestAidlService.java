@@ -0,0 +1,70 @@
+package com.zhongmin.aidl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * JVM测试用的服务端，各方法只做简单计算，basicTypes 记录收到的字符串
+ */
+class TestAidlService extends MyAidlStub {
+    
+    static final String NAME = "TestAidlService";
+    
+    final List<String> basicStrings = Collections.synchronizedList(new ArrayList<>());
+    
+    @Override
+    public int getPid() {
+        return 42;
+    }
+    
+    @Override
+    public void basicTypes(int anInt, long aLong, boolean aBoolean, float aFloat, double aDouble, String aString) {
+        basicStrings.add(aString);
+    }
+    
+    @Override
+    public int add(int a, int b) {
+        return a + b;
+    }
+    
+    @Override
+    public String getServiceName() {
+        return NAME;
+    }
+    
+    @Override
+    public int[] addArrays(int[] a, int[] b) {
+        int[] result = new int[a.length];
+        for (int i = 0; i < a.length; i++) {
+            result[i] = a[i] + b[i];
+        }
+        return result;
+    }
+    
+    @Override
+    public long sum(int[] values) {
+        long sum = 0;
+        for (int value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+    
+    @Override
+    public long dot(int[] a, int[] b) {
+        long sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += (long) a[i] * b[i];
+        }
+        return sum;
+    }
+    
+    @Override
+    public void subscribe(IMyEventCallback callback, String[] topics) {
+    }
+    
+    @Override
+    public void unsubscribe(IMyEventCallback callback) {
+    }
+}
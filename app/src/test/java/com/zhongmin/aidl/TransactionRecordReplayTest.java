@@ -0,0 +1,144 @@
+package com.zhongmin.aidl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * TransactionRecorder/TransactionReplayer 在普通JVM上的测试
+ *
+ * 回放目标直接处理原始字节，也可以用来在JVM上对录制的调用组合做基准测试。
+ */
+public class TransactionRecordReplayTest {
+    
+    private File file;
+    
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("capture", ".txr");
+    }
+    
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+    
+    @Test
+    public void concurrentRecords_acrossWindows_readBackIntact() throws Exception {
+        // 小窗口，强制多次重新映射，并且有记录比窗口还大
+        TransactionRecorder recorder = new TransactionRecorder(file, 4096, Long.MAX_VALUE);
+        int threads = 4;
+        int perThread = 500;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int pid = 100 + t;
+            Thread worker = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    recorder.record(1, 0, 10000, pid, payload(pid, i, i == 7 ? 10000 : i % 64));
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        recorder.close();
+        
+        List<TransactionReplayer.Record> records = TransactionReplayer.open(file).records();
+        assertEquals(threads * perThread, records.size());
+        int[] next = new int[threads];
+        long lastTime = 0;
+        for (TransactionReplayer.Record record : records) {
+            ByteBuffer buffer = ByteBuffer.wrap(record.payload);
+            assertEquals(record.pid, buffer.getInt());
+            int index = buffer.getInt();
+            // 同一个线程的记录保持顺序，时间戳不递减
+            assertEquals(next[record.pid - 100]++, index);
+            assertArrayEquals(payload(record.pid, index, index == 7 ? 10000 : index % 64), record.payload);
+            assertTrue(record.timeNanos >= lastTime);
+            lastTime = record.timeNanos;
+        }
+    }
+    
+    @Test
+    public void unclosedCapture_readsCompleteRecords() throws Exception {
+        TransactionRecorder recorder = new TransactionRecorder(file, 1 << 16, Long.MAX_VALUE);
+        for (int i = 0; i < 10; i++) {
+            recorder.record(2, 0, 0, 1, payload(1, i, 8));
+        }
+        // 不关闭，文件尾部是映射扩展出来的0
+        assertTrue(file.length() > recorder.size());
+        assertEquals(10, TransactionReplayer.open(file).records().size());
+        recorder.close();
+        assertEquals(recorder.size(), file.length());
+    }
+    
+    @Test
+    public void maxBytes_dropsLaterRecords() throws Exception {
+        TransactionRecorder recorder = new TransactionRecorder(file, 4096, 200);
+        assertTrue(recorder.record(1, 0, 0, 1, new byte[100]));
+        assertFalse(recorder.record(1, 0, 0, 1, new byte[100]));
+        recorder.close();
+        assertFalse(recorder.record(1, 0, 0, 1, new byte[0]));
+        assertEquals(1, TransactionReplayer.open(file).records().size());
+    }
+    
+    @Test
+    public void replay_keepsPerCallerOrderAndPacing() throws Exception {
+        TransactionRecorder recorder = new TransactionRecorder(file);
+        for (int i = 0; i < 20; i++) {
+            recorder.record(1, 0, 0, 1 + i % 2, payload(1 + i % 2, i, 0));
+            Thread.sleep(10);
+        }
+        recorder.close();
+        TransactionReplayer replayer = TransactionReplayer.open(file);
+        
+        ConcurrentHashMap<Integer, List<Integer>> seen = new ConcurrentHashMap<>();
+        TransactionReplayer.Target target = record -> {
+            int index = ByteBuffer.wrap(record.payload).getInt(4);
+            seen.computeIfAbsent(record.pid, pid -> Collections.synchronizedList(new ArrayList<>())).add(index);
+            if (index == 5) {
+                throw new IllegalStateException("failed call");
+            }
+        };
+        
+        // 录制时长约200ms，4倍速回放不少于约50ms
+        TransactionReplayer.Result result = replayer.replay(target, 4, 4);
+        assertEquals(20, result.calls);
+        assertEquals(1, result.failures);
+        assertTrue(result.elapsedNanos >= 40_000_000L);
+        for (List<Integer> indexes : seen.values()) {
+            for (int i = 1; i < indexes.size(); i++) {
+                assertTrue(indexes.get(i - 1) < indexes.get(i));
+            }
+        }
+        
+        // 不等待时明显更快
+        TransactionReplayer.Result fast = replayer.replay(record -> { }, 0, 4);
+        assertEquals(20, fast.calls);
+        assertTrue(fast.elapsedNanos < result.elapsedNanos);
+    }
+    
+    private static byte[] payload(int pid, int index, int extra) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + extra);
+        buffer.putInt(pid).putInt(index);
+        for (int i = 0; i < extra; i++) {
+            buffer.put((byte) (index + i));
+        }
+        return buffer.array();
+    }
+}
@@ -0,0 +1,52 @@
+package com.zhongmin.aidl;
+
+import org.junit.Assume;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+
+/**
+ * 在JVM测试中创建Unix域socket
+ *
+ * 单元测试按 android.jar 编译，其中没有 UnixDomainSocketAddress（JDK 16+），只能反射创建；
+ * 运行测试的JDK不支持时跳过测试。
+ */
+final class UnixSockets {
+    
+    private UnixSockets() {
+    }
+    
+    static SocketAddress address(Path path) {
+        try {
+            Class<?> type = Class.forName("java.net.UnixDomainSocketAddress");
+            return (SocketAddress) type.getMethod("of", Path.class).invoke(null, path);
+        } catch (ReflectiveOperationException e) {
+            Assume.assumeTrue("Unix domain sockets need JDK 16+", false);
+            throw new AssertionError(e);
+        }
+    }
+    
+    /**
+     * 创建绑定到 address 的Unix域服务端channel
+     */
+    static ServerSocketChannel bind(SocketAddress address) throws IOException {
+        ServerSocketChannel server;
+        try {
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            server = (ServerSocketChannel) ServerSocketChannel.class
+                    .getMethod("open", ProtocolFamily.class).invoke(null, unix);
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (IllegalArgumentException | ReflectiveOperationException e) {
+            Assume.assumeTrue("Unix domain sockets need JDK 16+", false);
+            throw new AssertionError(e);
+        }
+        server.bind(address);
+        return server;
+    }
+}
@@ -0,0 +1,347 @@
+package com.zhongmin.aidl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * WarmSnapshot 在普通JVM上的测试
+ */
+public class WarmSnapshotTest {
+    
+    private File file;
+    
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("warm", ".snap");
+        file.delete();
+    }
+    
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+    
+    @Test
+    public void saveAndRestore_eachParticipantGetsItsOwnSection() throws Exception {
+        WarmSnapshot snapshot = new WarmSnapshot(file);
+        assertFalse(snapshot.register("a", new Counter(7)));
+        assertFalse(snapshot.register("b", new Counter(42)));
+        assertTrue(snapshot.save());
+        // 内容没有变化时不重写
+        assertFalse(snapshot.save());
+        
+        WarmSnapshot restarted = new WarmSnapshot(file);
+        Counter b = new Counter(0);
+        Counter c = new Counter(5);
+        assertTrue(restarted.register("b", b));
+        assertFalse(restarted.register("c", c));
+        assertEquals(42, b.value);
+        assertEquals(5, c.value);
+        assertNull(restarted.getLastError());
+    }
+    
+    @Test
+    public void corruptSection_onlyAffectsThatParticipant() throws Exception {
+        WarmSnapshot snapshot = new WarmSnapshot(file);
+        snapshot.register("a", new Counter(1));
+        snapshot.register("b", new Counter(2));
+        snapshot.save();
+        
+        // 文件最后是b的数据
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - 1);
+            raf.write(0x55);
+        }
+        
+        WarmSnapshot restarted = new WarmSnapshot(file);
+        Counter a = new Counter(0);
+        Counter b = new Counter(0);
+        assertTrue(restarted.register("a", a));
+        assertFalse(restarted.register("b", b));
+        assertEquals(1, a.value);
+        assertEquals(0, b.value);
+        assertNotNull(restarted.getLastError());
+    }
+    
+    @Test
+    public void unreadableFile_startsEmpty() throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.writeInt(1);
+        }
+        WarmSnapshot snapshot = new WarmSnapshot(file);
+        assertFalse(snapshot.register("a", new Counter(0)));
+        assertNotNull(snapshot.getLastError());
+        assertTrue(snapshot.save());
+    }
+    
+    @Test
+    public void statsOnlyChange_skipsSaveUnlessIncluded() throws Exception {
+        WarmSnapshot snapshot = new WarmSnapshot(file);
+        Counter counter = new Counter(1);
+        snapshot.register("a", counter);
+        assertTrue(snapshot.save());
+        
+        counter.stats = 100;
+        assertFalse(snapshot.save());
+        assertTrue(snapshot.save(true));
+        assertFalse(snapshot.save(true));
+        counter.value = 2;
+        assertTrue(snapshot.save());
+        
+        WarmSnapshot restarted = new WarmSnapshot(file);
+        Counter restored = new Counter(0);
+        assertTrue(restarted.register("a", restored));
+        assertEquals(2, restored.value);
+        assertEquals(100, restored.stats);
+    }
+    
+    @Test
+    public void admissionCounters_doNotTriggerSave() throws Exception {
+        // 不限速时 acquire 不读时钟，普通JVM上可以运行
+        AdmissionController admission = new AdmissionController(0, 1);
+        WarmSnapshot snapshot = new WarmSnapshot(file);
+        snapshot.register("admission", admission);
+        assertTrue(snapshot.save());
+        
+        int code = IMyAidlInterface.TRANSACTION_add;
+        for (int i = 0; i < 10; i++) {
+            assertEquals(AdmissionController.ADMITTED, admission.acquire(code, 1000, 1));
+            admission.release(code);
+        }
+        assertFalse(snapshot.save());
+        // 默认值不保存，只有覆盖值保存
+        admission.setConcurrencyLimit(code, 2);
+        assertFalse(snapshot.save());
+        admission.overrideConcurrencyLimit(code, 3);
+        assertTrue(snapshot.save());
+        
+        AdmissionController restored = new AdmissionController(0, 1);
+        assertTrue(new WarmSnapshot(file).register("admission", restored));
+        StringWriter dump = new StringWriter();
+        restored.dump(new PrintWriter(dump, true));
+        assertTrue(dump.toString(), dump.toString().contains("admitted: 10,"));
+        assertTrue(dump.toString(), dump.toString().contains("limit 3 (overridden)"));
+    }
+    
+    @Test
+    public void admissionDefaults_changedAfterSave_takeEffectOnRestore() throws Exception {
+        int sum = IMyAidlInterface.TRANSACTION_sum;
+        int dot = IMyAidlInterface.TRANSACTION_dot;
+        AdmissionController admission = new AdmissionController(0, 1);
+        admission.setConcurrencyLimit(sum, 2);
+        admission.setConcurrencyLimit(dot, 2);
+        admission.overrideConcurrencyLimit(dot, 5);
+        WarmSnapshot snapshot = new WarmSnapshot(file);
+        snapshot.register("admission", admission);
+        assertTrue(snapshot.save());
+        
+        // 升级后的新版本改了默认值；恢复在设置默认值之前或之后都一样
+        AdmissionController upgraded = new AdmissionController(500, 100);
+        upgraded.setConcurrencyLimit(dot, 1);
+        assertTrue(new WarmSnapshot(file).register("admission", upgraded));
+        upgraded.setConcurrencyLimit(sum, 4);
+        StringWriter dump = new StringWriter();
+        upgraded.dump(new PrintWriter(dump, true));
+        assertTrue(dump.toString(), dump.toString().contains("rate limit: 500.0/s, burst 100\n"));
+        assertTrue(dump.toString(), dump.toString().contains("code " + sum + ": in flight 0, limit 4\n"));
+        assertTrue(dump.toString(), dump.toString().contains("code " + dot + ": in flight 0, limit 5 (overridden)"));
+    }
+    
+    @Test
+    public void sectionVersionChange_restoresThatParticipantCold() throws Exception {
+        WarmSnapshot snapshot = new WarmSnapshot(file);
+        snapshot.register("a", new Counter(1));
+        snapshot.register("b", new Counter(2));
+        snapshot.save();
+        
+        WarmSnapshot restarted = new WarmSnapshot(file);
+        Counter a = new Counter(0);
+        Counter b = new Counter(0);
+        b.version = 2;
+        assertTrue(restarted.register("a", a));
+        assertFalse(restarted.register("b", b));
+        assertEquals(1, a.value);
+        assertEquals(0, b.value);
+        assertNull(restarted.getLastError());
+        
+        // 新版本保存后可以正常恢复
+        assertTrue(restarted.save());
+        Counter upgraded = new Counter(0);
+        upgraded.version = 2;
+        assertTrue(new WarmSnapshot(file).register("b", upgraded));
+    }
+    
+    @Test
+    public void requestSaveAndStopAfterSave_writeOnSnapshotThread() throws Exception {
+        WarmSnapshot snapshot = new WarmSnapshot(file);
+        Counter counter = new Counter(1);
+        snapshot.register("a", counter);
+        snapshot.start(TimeUnit.HOURS.toMillis(1));
+        
+        snapshot.requestSave();
+        assertEquals("warm-snapshot", counter.awaitWriter());
+        assertEquals(1, awaitSaved(1));
+        
+        counter.value = 2;
+        snapshot.stopAfterSave();
+        assertEquals("warm-snapshot", counter.awaitWriter());
+        assertEquals(2, awaitSaved(2));
+        // 停止后不再保存
+        snapshot.requestSave();
+        assertNull(counter.writers.poll(100, TimeUnit.MILLISECONDS));
+    }
+    
+    @Test
+    public void lazyParticipant_isParsedOnRestoreAndKeptBySaveBeforeThat() throws Exception {
+        WarmSnapshot snapshot = new WarmSnapshot(file);
+        snapshot.register("a", new Counter(1));
+        snapshot.register("b", new Counter(2));
+        snapshot.save();
+        
+        WarmSnapshot restarted = new WarmSnapshot(file);
+        Counter a = new Counter(0);
+        Counter b = new Counter(0);
+        restarted.registerLazy("a", a);
+        restarted.registerLazy("b", b);
+        assertEquals(0, a.reads);
+        assertTrue(restarted.restore("a"));
+        assertFalse(restarted.restore("a"));
+        assertEquals(1, a.value);
+        assertEquals(1, a.reads);
+        
+        // b 还没有恢复，保存时写回上次的内容而不是空状态
+        a.value = 10;
+        assertTrue(restarted.save());
+        assertEquals(0, b.reads);
+        assertTrue(restarted.restore("b"));
+        assertEquals(2, b.value);
+        
+        WarmSnapshot again = new WarmSnapshot(file);
+        Counter a2 = new Counter(0);
+        Counter b2 = new Counter(0);
+        assertTrue(again.register("a", a2));
+        assertTrue(again.register("b", b2));
+        assertEquals(10, a2.value);
+        assertEquals(2, b2.value);
+        assertNull(again.getLastError());
+    }
+    
+    @Test
+    public void memo_roundTripsWithoutOverwritingNewResults() throws Exception {
+        PrimitiveMemo memo = new PrimitiveMemo("add", 100);
+        for (int i = 0; i < 50; i++) {
+            memo.put(PrimitiveMemo.key(i, i), 2 * i);
+        }
+        WarmSnapshot snapshot = new WarmSnapshot(file);
+        snapshot.register("memo", memo);
+        assertTrue(snapshot.save());
+        
+        // 恢复之前已经算出的结果保留；容量更小时多出的条目被淘汰
+        PrimitiveMemo restored = new PrimitiveMemo("add", 40);
+        restored.put(PrimitiveMemo.key(0, 0), -1);
+        WarmSnapshot restarted = new WarmSnapshot(file);
+        restarted.registerLazy("memo", restored);
+        assertTrue(restarted.restore("memo"));
+        assertEquals(40, restored.size());
+        assertEquals(-1, restored.get(PrimitiveMemo.key(0, 0), key -> 0));
+    }
+    
+    @Test
+    public void requestSaveThen_runsAfterSaveOnSnapshotThread() throws Exception {
+        PrimitiveMemo memo = new PrimitiveMemo("add", 100);
+        memo.put(1, 2);
+        WarmSnapshot snapshot = new WarmSnapshot(file);
+        snapshot.register("memo", memo);
+        snapshot.start(TimeUnit.HOURS.toMillis(1));
+        BlockingQueue<String> cleared = new LinkedBlockingQueue<>();
+        snapshot.requestSave(() -> {
+            memo.clear();
+            cleared.add(Thread.currentThread().getName());
+        });
+        assertEquals("warm-snapshot", cleared.poll(5, TimeUnit.SECONDS));
+        snapshot.stop();
+        assertEquals(0, memo.size());
+        
+        PrimitiveMemo restored = new PrimitiveMemo("add", 100);
+        assertTrue(new WarmSnapshot(file).register("memo", restored));
+        assertEquals(1, restored.size());
+    }
+    
+    /**
+     * 后台保存完成后文件才被替换，等到快照中的值为 expected 或超时
+     */
+    private int awaitSaved(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        Counter restored = new Counter(0);
+        while (System.currentTimeMillis() < deadline) {
+            restored = new Counter(0);
+            new WarmSnapshot(file).register("a", restored);
+            if (restored.value == expected) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        return restored.value;
+    }
+    
+    private static final class Counter implements WarmSnapshot.Participant {
+        int value;
+        int stats;
+        int version = 1;
+        int reads;
+        final BlockingQueue<String> writers = new LinkedBlockingQueue<>();
+        
+        Counter(int value) {
+            this.value = value;
+        }
+        
+        String awaitWriter() throws InterruptedException {
+            return writers.poll(5, TimeUnit.SECONDS);
+        }
+        
+        @Override
+        public int snapshotVersion() {
+            return version;
+        }
+        
+        @Override
+        public void writeStats(DataOutput out) throws IOException {
+            out.writeInt(stats);
+        }
+        
+        @Override
+        public void readStats(DataInput in) throws IOException {
+            stats = in.readInt();
+        }
+        
+        @Override
+        public void writeSnapshot(DataOutput out) throws IOException {
+            writers.add(Thread.currentThread().getName());
+            out.writeInt(value);
+        }
+        
+        @Override
+        public void readSnapshot(DataInput in) throws IOException {
+            reads++;
+            value = in.readInt();
+        }
+    }
+}
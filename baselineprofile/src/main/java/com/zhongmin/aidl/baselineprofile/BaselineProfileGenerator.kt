@@ -0,0 +1,57 @@
+package com.zhongmin.aidl.baselineprofile
+
+import androidx.benchmark.macro.junit4.BaselineProfileRule
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.LargeTest
+import androidx.test.uiautomator.By
+import androidx.test.uiautomator.Until
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * 生成 app 的 Baseline Profile 和启动 profile
+ *
+ * 覆盖冷启动 MainActivity、绑定 RemoteService（包括 :remote 进程的启动）和界面上每个接口的第一次调用，
+ * 客户端和服务进程执行到的方法都会收集进来。界面上没有入口的接口由 app/src/main/baseline-prof.txt 的规则覆盖。
+ *
+ * 运行：./gradlew :app:generateBaselineProfile
+ */
+@RunWith(AndroidJUnit4::class)
+@LargeTest
+class BaselineProfileGenerator {
+
+    @get:Rule
+    val rule = BaselineProfileRule()
+
+    @Test
+    fun generate() {
+        rule.collect(
+            packageName = TARGET_PACKAGE,
+            includeInStartupProfile = true
+        ) {
+            pressHome()
+            startActivityAndWait()
+
+            device.findObject(By.text("绑定服务")).click()
+            for (label in CALL_BUTTONS) {
+                val button = device.wait(Until.findObject(By.text(label).enabled(true)), TIMEOUT_MS)
+                    ?: throw AssertionError("Button not enabled: $label")
+                button.click()
+                device.waitForIdle()
+            }
+            device.findObject(By.text("解绑服务")).click()
+            device.waitForIdle()
+        }
+    }
+
+    companion object {
+        private const val TARGET_PACKAGE = "com.zhongmin.aidl"
+        private const val TIMEOUT_MS = 10_000L
+
+        /**
+         * MainActivity 上每个接口调用按钮的文字
+         */
+        private val CALL_BUTTONS = listOf("获取服务进程PID", "测试加法 (5 + 3)", "获取服务名称", "测试基本类型传递")
+    }
+}
@@ -0,0 +1,56 @@
+package com.zhongmin.aidl.macrobenchmark
+
+import androidx.benchmark.macro.ExperimentalMetricApi
+import androidx.benchmark.macro.TraceMetric
+import androidx.benchmark.traceprocessor.TraceProcessor
+
+/**
+ * 服务进程的冷启动耗时和常驻内存
+ *
+ * app 中 ProcessMetrics 在服务第一次 onBind 后写入 trace counter（aidl.process.*），
+ * 这里从 trace 中读出指定进程最后一次写入的值：
+ *   forkMs          从请求创建进程到进程开始运行
+ *   applicationMs   AidlApplication.onCreate
+ *   firstBindMs     从请求创建进程到第一次 onBind
+ *   pssKb / privateDirtyKb / loadedClasses  第一次 onBind 后的内存和加载的类数量
+ * 同一台设备上运行多个服务进程，这些值按进程数放大，需要跟踪变化。
+ */
+@OptIn(ExperimentalMetricApi::class)
+class RemoteProcessMetric(private val processSuffix: String = ":remote") : TraceMetric() {
+
+    override fun getMeasurements(
+        captureInfo: CaptureInfo,
+        traceSession: TraceProcessor.Session
+    ): List<Measurement> {
+        val process = captureInfo.targetPackageName + processSuffix
+        return COUNTERS.map { counter ->
+            val row = traceSession.query(
+                """
+                SELECT counter.value AS value FROM counter
+                JOIN process_counter_track AS track ON counter.track_id = track.id
+                JOIN process USING (upid)
+                WHERE track.name = '$COUNTER_PREFIX$counter' AND process.name = '$process'
+                ORDER BY counter.ts DESC LIMIT 1
+                """.trimIndent()
+            ).firstOrNull()
+                ?: throw IllegalStateException("No $COUNTER_PREFIX$counter counter from $process in trace")
+            Measurement("remote_$counter", row.double("value"))
+        }
+    }
+
+    companion object {
+        /**
+         * 与 app 中 ProcessMetrics.COUNTER_PREFIX 一致
+         */
+        private const val COUNTER_PREFIX = "aidl.process."
+
+        private val COUNTERS = listOf(
+            "forkMs",
+            "applicationMs",
+            "firstBindMs",
+            "pssKb",
+            "privateDirtyKb",
+            "loadedClasses"
+        )
+    }
+}
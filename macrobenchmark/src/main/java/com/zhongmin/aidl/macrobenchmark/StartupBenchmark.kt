@@ -0,0 +1,122 @@
+package com.zhongmin.aidl.macrobenchmark
+
+import androidx.benchmark.macro.BaselineProfileMode
+import androidx.benchmark.macro.CompilationMode
+import androidx.benchmark.macro.ExperimentalMetricApi
+import androidx.benchmark.macro.MacrobenchmarkScope
+import androidx.benchmark.macro.StartupMode
+import androidx.benchmark.macro.StartupTimingMetric
+import androidx.benchmark.macro.TraceSectionMetric
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.LargeTest
+import androidx.test.uiautomator.By
+import androidx.test.uiautomator.Until
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * 冷启动和第一次调用的基准测试
+ *
+ * 每个场景分别在 CompilationMode.None（安装后没有 profile，全部解释执行/JIT）和
+ * Partial(BaselineProfileMode.Require)（只用打包的 Baseline Profile 编译）下运行，两组结果对比即 profile 的收益。
+ *
+ * 测量的 trace section 由 app 代码打点：
+ *   AidlApplication.onCreateServiceProcess  :remote 进程的 Application 初始化
+ *   RemoteService.onCreate  :remote 进程中服务的创建
+ *   aidl.bind               从 bindService 到 onServiceConnected，包括 :remote 进程的启动
+ *   aidl.<方法名>           MainActivity 中每个接口的调用
+ * 每次迭代前 killProcess() 会停止应用的所有进程，:remote 也是冷启动。
+ * :remote 进程的启动各阶段耗时和第一次 onBind 后的内存由 RemoteProcessMetric 报告。
+ */
+@OptIn(ExperimentalMetricApi::class)
+@RunWith(AndroidJUnit4::class)
+@LargeTest
+class StartupBenchmark {
+
+    @get:Rule
+    val rule = MacrobenchmarkRule()
+
+    @Test
+    fun startupNoCompilation() = startup(CompilationMode.None())
+
+    @Test
+    fun startupBaselineProfile() = startup(CompilationMode.Partial(BaselineProfileMode.Require))
+
+    @Test
+    fun firstCallsNoCompilation() = firstCalls(CompilationMode.None())
+
+    @Test
+    fun firstCallsBaselineProfile() = firstCalls(CompilationMode.Partial(BaselineProfileMode.Require))
+
+    /**
+     * MainActivity 冷启动
+     */
+    private fun startup(compilationMode: CompilationMode) {
+        rule.measureRepeated(
+            packageName = TARGET_PACKAGE,
+            metrics = listOf(StartupTimingMetric()),
+            compilationMode = compilationMode,
+            startupMode = StartupMode.COLD,
+            iterations = ITERATIONS,
+            setupBlock = { pressHome() }
+        ) {
+            startActivityAndWait()
+        }
+    }
+
+    /**
+     * 冷启动后绑定服务（:remote 进程冷启动）并依次第一次调用每个接口
+     */
+    private fun firstCalls(compilationMode: CompilationMode) {
+        rule.measureRepeated(
+            packageName = TARGET_PACKAGE,
+            metrics = SECTIONS.map { TraceSectionMetric(it, TraceSectionMetric.Mode.First) } + RemoteProcessMetric(),
+            compilationMode = compilationMode,
+            startupMode = StartupMode.COLD,
+            iterations = ITERATIONS,
+            setupBlock = {
+                pressHome()
+                startActivityAndWait()
+            }
+        ) {
+            bindAndCallAll()
+            // 等 :remote 进程在后台线程采样完内存、写入 counter
+            Thread.sleep(METRICS_SETTLE_MS)
+        }
+    }
+
+    private fun MacrobenchmarkScope.bindAndCallAll() {
+        device.findObject(By.text("绑定服务")).click()
+        for (label in CALL_BUTTONS) {
+            val button = device.wait(Until.findObject(By.text(label).enabled(true)), TIMEOUT_MS)
+                ?: throw AssertionError("Button not enabled: $label")
+            button.click()
+            device.waitForIdle()
+        }
+    }
+
+    companion object {
+        private const val TARGET_PACKAGE = "com.zhongmin.aidl"
+        private const val ITERATIONS = 10
+        private const val TIMEOUT_MS = 10_000L
+        private const val METRICS_SETTLE_MS = 500L
+
+        private val SECTIONS = listOf(
+            "AidlApplication.onCreateServiceProcess",
+            "RemoteService.onCreate",
+            "aidl.bind",
+            "aidl.subscribe",
+            "aidl.getPid",
+            "aidl.add",
+            "aidl.getServiceName",
+            "aidl.basicTypes"
+        )
+
+        /**
+         * MainActivity 上每个接口调用按钮的文字
+         */
+        private val CALL_BUTTONS = listOf("获取服务进程PID", "测试加法 (5 + 3)", "获取服务名称", "测试基本类型传递")
+    }
+}